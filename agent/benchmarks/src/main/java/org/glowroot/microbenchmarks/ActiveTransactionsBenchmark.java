@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures contention on the registry of active transactions, while a number of other
+// transactions are held open (in-flight) on background threads
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ActiveTransactionsBenchmark {
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads1(InFlightTransactions inFlightTransactions) throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(InFlightTransactions inFlightTransactions) throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64(InFlightTransactions inFlightTransactions) throws Exception {
+        transactionWorthy.doSomethingTransactionWorthy();
+    }
+
+    @State(Scope.Benchmark)
+    public static class InFlightTransactions {
+
+        @Param({"0", "1000", "5000"})
+        private int count;
+
+        private CountDownLatch endLatch;
+        private List<Thread> threads;
+
+        @Setup
+        public void setup() throws InterruptedException {
+            endLatch = new CountDownLatch(1);
+            final CountDownLatch startLatch = new CountDownLatch(count);
+            threads = Lists.newArrayList();
+            for (int i = 0; i < count; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            new BlockingTransactionWorthy(startLatch, endLatch)
+                                    .doSomethingTransactionWorthy();
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            startLatch.await();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            endLatch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    private static class BlockingTransactionWorthy extends TransactionWorthy {
+
+        private final CountDownLatch startLatch;
+        private final CountDownLatch endLatch;
+
+        private BlockingTransactionWorthy(CountDownLatch startLatch, CountDownLatch endLatch) {
+            this.startLatch = startLatch;
+            this.endLatch = endLatch;
+        }
+
+        @Override
+        public void doSomethingTransactionWorthy() throws Exception {
+            startLatch.countDown();
+            endLatch.await();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+// variant of SyntheticWeavingBenchmark that loads classes from many threads concurrently using a
+// single (parallel capable) class loader, similar to application startup in many containers,
+// mostly to measure contention in the class hierarchy lookups in AnalyzedWorld
+//
+// the classes in each package form a single inheritance chain, and the root of each chain extends
+// the same base class, so that the threads look up overlapping parts of the class hierarchy
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ConcurrentWeavingBenchmark {
+
+    private static final String BASE_CLASS_NAME = "org/example/synthetic/Base";
+
+    private static final int CLASSES_PER_PACKAGE = 20;
+
+    @Param({"20000"})
+    private int classCount;
+
+    private File jarFile;
+
+    private URLClassLoader loader;
+
+    @Setup
+    public void setup() throws IOException {
+        jarFile = File.createTempFile("glowroot-synthetic-", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            out.putNextEntry(new JarEntry(BASE_CLASS_NAME + ".class"));
+            out.write(SyntheticWeavingBenchmark.createClassBytes(BASE_CLASS_NAME,
+                    "java/lang/Object"));
+            out.closeEntry();
+            for (int i = 0; i < classCount; i++) {
+                String internalName = getInternalName(i);
+                String superInternalName =
+                        i % CLASSES_PER_PACKAGE == 0 ? BASE_CLASS_NAME : getInternalName(i - 1);
+                out.putNextEntry(new JarEntry(internalName + ".class"));
+                out.write(SyntheticWeavingBenchmark.createClassBytes(internalName,
+                        superInternalName));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // each iteration loads the classes in a new class loader, so that they are woven again
+    @Setup(Level.Iteration)
+    public void setupLoader() throws IOException {
+        loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()},
+                ConcurrentWeavingBenchmark.class.getClassLoader());
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!jarFile.delete()) {
+            jarFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void execute(ThreadParams threadParams) throws Exception {
+        int packageCount = classCount / CLASSES_PER_PACKAGE;
+        // packages are split between the threads, and the classes in each package are loaded
+        // starting from the bottom of the inheritance chain
+        for (int p = threadParams.getThreadIndex(); p < packageCount;
+                p += threadParams.getThreadCount()) {
+            for (int i = (p + 1) * CLASSES_PER_PACKAGE - 1; i >= p * CLASSES_PER_PACKAGE; i--) {
+                Class.forName(getInternalName(i).replace('/', '.'), false, loader);
+            }
+        }
+    }
+
+    private static String getInternalName(int i) {
+        return "org/example/synthetic/p" + (i / CLASSES_PER_PACKAGE) + "/Class" + i;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// this benchmark does not need the glowroot agent, it exercises the profile tree directly using
+// synthetic stack traces that resemble deep framework (e.g. Spring/Hibernate) call stacks
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    private static final String[] PACKAGE_NAMES = {"org.springframework.web.servlet",
+            "org.springframework.aop.framework", "org.hibernate.internal",
+            "org.hibernate.engine.spi", "org.apache.catalina.core", "com.example.app.service"};
+
+    private static final String[] METHOD_NAMES =
+            {"invoke", "proceed", "doFilter", "execute", "handle", "process", "list"};
+
+    @Param({"50", "200"})
+    private int stackDepth;
+
+    @Param({"1000"})
+    private int stackTraceCount;
+
+    private List<List<StackTraceElement>> stackTraces;
+    private Profile profile;
+
+    private MutableProfile toBeFilteredOrTruncated;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        stackTraces = Lists.newArrayList();
+        for (int i = 0; i < stackTraceCount; i++) {
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            // common root frames (which is typical, e.g. thread pool and servlet container frames)
+            // followed by increasingly divergent frames towards the leaf
+            for (int j = 0; j < stackDepth; j++) {
+                int variation = j * 10 / stackDepth;
+                int k = j + random.nextInt(variation + 1);
+                String packageName = PACKAGE_NAMES[k % PACKAGE_NAMES.length];
+                stackTrace.add(new StackTraceElement(packageName + ".Class" + k,
+                        METHOD_NAMES[k % METHOD_NAMES.length], "Class" + k + ".java", k));
+            }
+            stackTraces.add(ImmutableList.copyOf(Lists.reverse(stackTrace)));
+        }
+        MutableProfile mutableProfile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            mutableProfile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        profile = mutableProfile.toProto();
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        toBeFilteredOrTruncated = new MutableProfile();
+        toBeFilteredOrTruncated.merge(profile);
+    }
+
+    @Benchmark
+    public MutableProfile merge() {
+        MutableProfile mutableProfile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            mutableProfile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return mutableProfile;
+    }
+
+    @Benchmark
+    public MutableProfile mergeProto() {
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile);
+        return mutableProfile;
+    }
+
+    @Benchmark
+    public MutableProfile filter() {
+        toBeFilteredOrTruncated.filter(ImmutableList.of("hibernate"), ImmutableList.of("list"));
+        return toBeFilteredOrTruncated;
+    }
+
+    @Benchmark
+    public MutableProfile truncate() {
+        toBeFilteredOrTruncated.truncateBranches(10);
+        return toBeFilteredOrTruncated;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.PercentileSketch;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compares merging the stored duration histograms for a percentile chart using the full histograms
+// (which was the prior approach) with using the sketches that are stored alongside them
+//
+// the maxRelativeError counter reports the worst relative error of the sketch percentiles compared
+// to the full histogram percentiles
+//
+// this benchmark does not need the glowroot agent
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PercentileSketchBenchmark {
+
+    private static final double[] PERCENTILES = {50, 95, 99, 99.9};
+
+    @Benchmark
+    public long fullHistogram(Histograms histograms) throws DataFormatException {
+        LazyHistogram mergedHistogram = new LazyHistogram();
+        for (Aggregate.Histogram histogram : histograms.fullHistograms) {
+            mergedHistogram.merge(histogram);
+        }
+        return mergedHistogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public long sketch(Histograms histograms, Accuracy accuracy) {
+        PercentileSketch mergedSketch = new PercentileSketch();
+        for (Aggregate.Histogram histogram : histograms.histograms) {
+            mergedSketch.merge(histogram);
+        }
+        accuracy.record(histograms.mergedHistogram, mergedSketch);
+        return mergedSketch.getValueAtPercentile(99);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Histograms {
+
+        // e.g. 1440 is one day of 1 minute aggregates
+        @Param({"60", "1440"})
+        private int intervals;
+
+        @Param({"10000"})
+        private int transactionsPerInterval;
+
+        // histograms with sketches, which is how they are now stored
+        private List<Aggregate.Histogram> histograms;
+
+        // the same histograms without sketches
+        private List<Aggregate.Histogram> fullHistograms;
+
+        private LazyHistogram mergedHistogram;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(0);
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            histograms = Lists.newArrayList();
+            fullHistograms = Lists.newArrayList();
+            mergedHistogram = new LazyHistogram();
+            for (int i = 0; i < intervals; i++) {
+                LazyHistogram histogram = new LazyHistogram();
+                for (int j = 0; j < transactionsPerInterval; j++) {
+                    // log-normal is a reasonable approximation of response times
+                    long value = (long) Math.exp(16 + random.nextGaussian());
+                    histogram.add(value);
+                    mergedHistogram.add(value);
+                }
+                Aggregate.Histogram proto = histogram.toProto(scratchBuffer);
+                histograms.add(proto);
+                fullHistograms.add(proto.toBuilder().clearSketch().build());
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Accuracy {
+
+        public double maxRelativeError;
+
+        private void record(LazyHistogram histogram, PercentileSketch sketch) {
+            for (double percentile : PERCENTILES) {
+                long expected = histogram.getValueAtPercentile(percentile);
+                double relativeError = Math.abs(sketch.getValueAtPercentile(percentile) - expected)
+                        / (double) expected;
+                maxRelativeError = Math.max(maxRelativeError, relativeError);
+            }
+        }
+    }
+}
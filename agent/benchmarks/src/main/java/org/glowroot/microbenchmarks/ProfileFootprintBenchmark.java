@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.StackTraceSamples;
+
+// reports the retained heap per stack trace sample (bytesPerSample counter) for many concurrently
+// profiled transactions, comparing the prior per transaction profile storage (up to 10 raw stack
+// traces, then a per transaction MutableProfile) with the compact StackTraceSamples storage
+//
+// no results are recorded for this benchmark, compare the bytesPerSample counter of the two
+// benchmark methods from a local run (ideally with -XX:+UseSerialGC so that the used heap after
+// System.gc() is stable)
+//
+// this benchmark does not need the glowroot agent
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProfileFootprintBenchmark {
+
+    private static final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+    @Benchmark
+    public Object rawStackTracesThenTree(StackTraces stackTraces, Footprint footprint) {
+        long heapBefore = footprint.usedHeapAfterGc();
+        List<RawThenTreeProfile> profiles = Lists.newArrayList();
+        for (int i = 0; i < stackTraces.transactionCount; i++) {
+            RawThenTreeProfile profile = new RawThenTreeProfile();
+            for (int j = 0; j < stackTraces.samplesPerTransaction; j++) {
+                profile.add(stackTraces.capture(i, j), Thread.State.RUNNABLE);
+            }
+            profiles.add(profile);
+        }
+        footprint.record(heapBefore, stackTraces);
+        return profiles;
+    }
+
+    @Benchmark
+    public Object compactSamples(StackTraces stackTraces, Footprint footprint) {
+        long heapBefore = footprint.usedHeapAfterGc();
+        List<StackTraceSamples> profiles = Lists.newArrayList();
+        for (int i = 0; i < stackTraces.transactionCount; i++) {
+            StackTraceSamples profile = new StackTraceSamples();
+            for (int j = 0; j < stackTraces.samplesPerTransaction; j++) {
+                profile.add(stackTraces.capture(i, j), Thread.State.RUNNABLE);
+            }
+            profiles.add(profile);
+        }
+        footprint.record(heapBefore, stackTraces);
+        return profiles;
+    }
+
+    @State(Scope.Benchmark)
+    public static class StackTraces {
+
+        private static final String[] CLASS_NAMES = {"org.apache.catalina.core.StandardWrapper",
+                "org.springframework.web.servlet.DispatcherServlet",
+                "org.springframework.aop.framework.ReflectiveMethodInvocation",
+                "org.hibernate.internal.SessionImpl", "org.hibernate.loader.Loader",
+                "com.example.app.service.OrderService"};
+
+        private static final String[] METHOD_NAMES =
+                {"invoke", "proceed", "doFilter", "execute", "handle", "process", "list"};
+
+        @Param({"1000"})
+        private int transactionCount;
+
+        @Param({"1", "10", "100"})
+        private int samplesPerTransaction;
+
+        @Param({"100"})
+        private int stackDepth;
+
+        private StackTraceElement[][] distinctStackTraces;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(0);
+            distinctStackTraces = new StackTraceElement[50][];
+            for (int i = 0; i < distinctStackTraces.length; i++) {
+                StackTraceElement[] stackTrace = new StackTraceElement[stackDepth];
+                for (int j = 0; j < stackDepth; j++) {
+                    // frames towards the leaf vary more than frames towards the root
+                    int root = stackDepth - 1 - j;
+                    int k = root + random.nextInt(root * 5 / stackDepth + 1);
+                    stackTrace[j] = new StackTraceElement(CLASS_NAMES[k % CLASS_NAMES.length],
+                            METHOD_NAMES[k % METHOD_NAMES.length], "Source.java", k);
+                }
+                distinctStackTraces[i] = stackTrace;
+            }
+        }
+
+        // returns new stack trace element instances each time, same as ThreadInfo.getStackTrace()
+        private StackTraceElement[] capture(int transactionIndex, int sampleIndex) {
+            StackTraceElement[] stackTrace = distinctStackTraces[(transactionIndex + sampleIndex)
+                    % distinctStackTraces.length];
+            StackTraceElement[] copy = new StackTraceElement[stackTrace.length];
+            for (int i = 0; i < stackTrace.length; i++) {
+                StackTraceElement element = stackTrace[i];
+                copy[i] = new StackTraceElement(element.getClassName(), element.getMethodName(),
+                        element.getFileName(), element.getLineNumber());
+            }
+            return copy;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public double bytesPerSample;
+
+        private long usedHeapAfterGc() {
+            System.gc();
+            System.gc();
+            return memoryMXBean.getHeapMemoryUsage().getUsed();
+        }
+
+        private void record(long heapBefore, StackTraces stackTraces) {
+            long retained = usedHeapAfterGc() - heapBefore;
+            bytesPerSample = retained
+                    / (double) (stackTraces.transactionCount * stackTraces.samplesPerTransaction);
+        }
+    }
+
+    // this is the per transaction profile storage prior to StackTraceSamples
+    private static class RawThenTreeProfile {
+
+        private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+        private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+        private MutableProfile profile;
+
+        private void add(StackTraceElement[] stackTrace, Thread.State threadState) {
+            if (profile == null) {
+                unmergedStackTraces.add(Arrays.asList(stackTrace));
+                unmergedStackTraceThreadStates.add(threadState);
+                if (unmergedStackTraces.size() >= 10) {
+                    profile = new MutableProfile();
+                    for (int i = 0; i < unmergedStackTraces.size(); i++) {
+                        profile.merge(unmergedStackTraces.get(i),
+                                unmergedStackTraceThreadStates.get(i));
+                    }
+                    unmergedStackTraces.clear();
+                    unmergedStackTraceThreadStates.clear();
+                }
+            } else {
+                profile.merge(Arrays.asList(stackTrace), threadState);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.io.CharStreams;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// reports the peak heap (peakHeapBytes counter) while writing a profile or trace entries as json,
+// comparing building the entire json string in memory with writing it in bounded chunks (which is
+// how the ui streams trace entries and profiles)
+//
+// the peak heap counter is only meaningful with a large young generation relative to the profile
+// size, e.g. -Xmn1g, so that there are no collections while the json is being written
+//
+// this benchmark does not need the glowroot agent
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProfileJsonBenchmark {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    // same as the ui
+    private static final int ENTRIES_PER_CHUNK = 100;
+    private static final int PROFILE_NODES_PER_CHUNK = 1000;
+
+    @Benchmark
+    public int fullString(Profile profile, PeakHeap peakHeap) throws IOException {
+        peakHeap.reset();
+        String json = profile.profile.toJson();
+        peakHeap.record();
+        return json.length();
+    }
+
+    @Benchmark
+    public int chunked(Profile profile, PeakHeap peakHeap) throws IOException {
+        peakHeap.reset();
+        CountingWriter writer = new CountingWriter();
+        JsonGenerator jg = jsonFactory.createGenerator(writer);
+        MutableProfile.ChunkedJsonWriter profileWriter = profile.profile.newChunkedJsonWriter(jg);
+        while (profileWriter.writeNext(PROFILE_NODES_PER_CHUNK)) {
+            jg.flush();
+        }
+        peakHeap.record();
+        return writer.count;
+    }
+
+    @Benchmark
+    public int entriesFullString(Entries entries, PeakHeap peakHeap) throws IOException {
+        peakHeap.reset();
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
+        jg.writeStartArray();
+        writeEntries(jg, Iterators.peekingIterator(entries.entries.iterator()),
+                Integer.MAX_VALUE);
+        jg.writeEndArray();
+        jg.close();
+        String json = sb.toString();
+        peakHeap.record();
+        return json.length();
+    }
+
+    @Benchmark
+    public int entriesChunked(Entries entries, PeakHeap peakHeap) throws IOException {
+        peakHeap.reset();
+        CountingWriter writer = new CountingWriter();
+        JsonGenerator jg = jsonFactory.createGenerator(writer);
+        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.entries.iterator());
+        jg.writeStartArray();
+        while (writeEntries(jg, i, ENTRIES_PER_CHUNK)) {
+            jg.flush();
+        }
+        jg.writeEndArray();
+        jg.flush();
+        peakHeap.record();
+        return writer.count;
+    }
+
+    // same nesting as TraceCommonService, with only the entry fields that are populated below
+    private static boolean writeEntries(JsonGenerator jg, PeekingIterator<Trace.Entry> i,
+            int maxEntries) throws IOException {
+        for (int count = 0; count < maxEntries && i.hasNext(); count++) {
+            Trace.Entry entry = i.next();
+            int depth = entry.getDepth();
+            jg.writeStartObject();
+            jg.writeNumberField("startOffsetNanos", entry.getStartOffsetNanos());
+            jg.writeNumberField("durationNanos", entry.getDurationNanos());
+            jg.writeStringField("message", entry.getMessage());
+            int nextDepth = i.hasNext() ? i.peek().getDepth() : 0;
+            if (nextDepth > depth) {
+                jg.writeArrayFieldStart("childEntries");
+            } else if (nextDepth < depth) {
+                jg.writeEndObject();
+                for (int j = depth; j > nextDepth; j--) {
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                }
+            } else {
+                jg.writeEndObject();
+            }
+        }
+        return i.hasNext();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Entries {
+
+        // the agent's default max trace entries per transaction is 2000, the larger sizes are for
+        // traces stored with a raised limit
+        @Param({"2000", "20000", "100000"})
+        private int entryCount;
+
+        private List<Trace.Entry> entries;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(0);
+            entries = Lists.newArrayList();
+            int depth = 0;
+            for (int i = 0; i < entryCount; i++) {
+                entries.add(Trace.Entry.newBuilder()
+                        .setDepth(depth)
+                        .setStartOffsetNanos(i * 1000L)
+                        .setDurationNanos(500)
+                        .setMessage("select * from example_table where id = " + i)
+                        .build());
+                // nested entries, e.g. jdbc queries under servlet dispatches
+                int r = random.nextInt(3);
+                if (r == 0 && depth < 10) {
+                    depth++;
+                } else if (r == 1 && depth > 0) {
+                    depth = random.nextInt(depth);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Profile {
+
+        @Param({"1000", "10000", "100000"})
+        private int distinctStackTraces;
+
+        @Param({"50"})
+        private int stackDepth;
+
+        private MutableProfile profile;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(0);
+            profile = new MutableProfile();
+            for (int i = 0; i < distinctStackTraces; i++) {
+                List<StackTraceElement> stackTrace = Lists.newArrayList();
+                for (int j = 0; j < stackDepth; j++) {
+                    // branch more towards the leaf, so that the tree has many nodes
+                    int k = j < stackDepth / 2 ? j : random.nextInt(100);
+                    stackTrace.add(0, new StackTraceElement("org.example.Class" + k,
+                            "method" + k, "Class" + k + ".java", j));
+                }
+                profile.merge(stackTrace, Thread.State.RUNNABLE);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class PeakHeap {
+
+        public double peakHeapBytes;
+
+        private long usedBefore;
+
+        private void reset() {
+            System.gc();
+            System.gc();
+            usedBefore = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    usedBefore += pool.getUsage().getUsed();
+                }
+            }
+        }
+
+        private void record() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            peakHeapBytes = peak - usedBefore;
+        }
+    }
+
+    // stands in for the netty ByteBuf, which is cleared after each chunk is sent
+    private static class CountingWriter extends Writer {
+
+        private int count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// run with -prof gc to see the allocation rate per query entry
+//
+// each transaction starts more query entries than the default trace entry limit, so most of them
+// go through the over the limit code path, where the query entry is reused once the prior one has
+// completed (if it has the same timer and query data)
+//
+// with distinctQueryTexts, the query texts also exceed the default aggregate query limit, so most
+// query entries have no query data, without it every query entry shares the same query data
+//
+// no results are recorded for this benchmark
+//
+// there is no PointcutType param since query entries can only be started from the plugin api
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryEntryBenchmark extends TransactionWorthy {
+
+    private static final int QUERY_COUNT = 50000;
+
+    @Param({"true", "false"})
+    private boolean distinctQueryTexts;
+
+    private TraceEntryWorthy traceEntryWorthy;
+
+    private String[] queryTexts;
+
+    @Setup
+    public void setup() {
+        traceEntryWorthy = new TraceEntryWorthy();
+        queryTexts = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            queryTexts[i] = distinctQueryTexts ? "select * from employee where id = " + i
+                    : "select * from employee where id = ?";
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERY_COUNT)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            traceEntryWorthy.doSomethingQueryWorthy(queryTexts[i]);
+        }
+    }
+}
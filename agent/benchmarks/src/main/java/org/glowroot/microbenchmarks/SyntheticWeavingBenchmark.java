@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// variant of WeavingBenchmark that loads a synthetic jar with a large number of (empty) classes,
+// mostly to measure the cost of matching each class load against the advisors, which grows with
+// the number of plugins and instrumentation configs
+//
+// each invocation loads the classes in a new class loader, so that they are woven again
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class SyntheticWeavingBenchmark {
+
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    @Param({"50000"})
+    private int classCount;
+
+    private File jarFile;
+    private List<String> classNames;
+
+    @Setup
+    public void setup() throws IOException {
+        jarFile = File.createTempFile("glowroot-synthetic-", ".jar");
+        classNames = Lists.newArrayList();
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (int i = 0; i < classCount; i++) {
+                String internalName = "org/example/synthetic/p" + (i / CLASSES_PER_PACKAGE)
+                        + "/Class" + i;
+                out.putNextEntry(new JarEntry(internalName + ".class"));
+                out.write(createClassBytes(internalName, "java/lang/Object"));
+                out.closeEntry();
+                classNames.add(internalName.replace('/', '.'));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!jarFile.delete()) {
+            jarFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()},
+                SyntheticWeavingBenchmark.class.getClassLoader());
+        for (String className : classNames) {
+            Class.forName(className, false, loader);
+        }
+    }
+
+    // minimal public class (with no members)
+    static byte[] createClassBytes(String internalName, String superInternalName)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0); // minor version
+        out.writeShort(49); // major version (java 5)
+        out.writeShort(5); // constant pool count (plus one)
+        out.writeByte(7); // #1 class
+        out.writeShort(2);
+        out.writeByte(1); // #2 utf8
+        out.writeUTF(internalName);
+        out.writeByte(7); // #3 class
+        out.writeShort(4);
+        out.writeByte(1); // #4 utf8
+        out.writeUTF(superInternalName);
+        out.writeShort(0x0021); // public super
+        out.writeShort(1); // this class
+        out.writeShort(3); // super class
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(0); // methods
+        out.writeShort(0); // attributes
+        out.close();
+        return baos.toByteArray();
+    }
+}
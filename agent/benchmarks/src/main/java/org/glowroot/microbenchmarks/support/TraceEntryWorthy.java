@@ -21,6 +21,8 @@ public class TraceEntryWorthy {
 
     public void doSomethingTraceEntryWorthy2() {}
 
+    public void doSomethingQueryWorthy(String queryText) {}
+
     public String getName() {
         return "the name";
     }
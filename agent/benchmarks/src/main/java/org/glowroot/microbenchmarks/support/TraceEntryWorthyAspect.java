@@ -17,9 +17,12 @@ package org.glowroot.microbenchmarks.support;
 
 import org.glowroot.agent.plugin.api.Agent;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
+import org.glowroot.agent.plugin.api.QueryMessageSupplier;
 import org.glowroot.agent.plugin.api.ThreadContext;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindThrowable;
 import org.glowroot.agent.plugin.api.weaving.BindTraveler;
 import org.glowroot.agent.plugin.api.weaving.OnAfter;
@@ -52,4 +55,30 @@ public class TraceEntryWorthyAspect {
             traceEntry.end();
         }
     }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.core.support.TraceEntryWorthy",
+            methodName = "doSomethingQueryWorthy", methodParameterTypes = {"java.lang.String"},
+            timerName = "query worthy")
+    public static class QueryWorthyAdvice {
+
+        private static final TimerName timerName = Agent.getTimerName(QueryWorthyAdvice.class);
+
+        @OnBefore
+        public static QueryEntry onBefore(ThreadContext context,
+                @BindParameter String queryText) {
+            return context.startQueryEntry("SQL", queryText,
+                    QueryMessageSupplier.create("query worthy: "), timerName);
+        }
+
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t,
+                @BindTraveler QueryEntry queryEntry) {
+            queryEntry.endWithError(t);
+        }
+
+        @OnAfter
+        public static void onReturn(@BindTraveler QueryEntry queryEntry) {
+            queryEntry.end();
+        }
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.central;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -22,17 +23,23 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.protobuf.MessageLite;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.RecordType;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.Tickers;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -73,13 +80,18 @@ public class CentralCollector implements Collector {
     private final CollectorServiceStub collectorServiceStub;
     private final DownstreamServiceObserver downstreamServiceObserver;
 
+    // null if the spool could not be created (e.g. another agent is using the same spool dir)
+    private final @Nullable CentralSpool spool;
+    private final @Nullable SpoolReplayer spoolReplayer;
+
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
     private volatile int nextAggregateDelayMillis;
 
-    public CentralCollector(Map<String, String> properties, String collectorHost,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater)
+    public CentralCollector(Map<String, String> properties, String collectorHost, File baseDir,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater)
             throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
@@ -115,6 +127,23 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+
+        CentralSpool spool = null;
+        try {
+            spool = new CentralSpool(new File(new File(baseDir, "data"), "central-spool"));
+        } catch (IOException e) {
+            logger.warn("unable to create central collector spool, data will not be retained"
+                    + " during central collector outages: {}", e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+        this.spool = spool;
+        if (spool == null) {
+            spoolReplayer = null;
+        } else {
+            lazyPlatformMBeanServer.lazyRegisterMBean(spool, "org.glowroot:type=CentralSpool");
+            spoolReplayer = new SpoolReplayer(spool, collectorServiceStub, inConnectionFailure,
+                    Tickers.getTicker());
+        }
     }
 
     @Override
@@ -145,6 +174,9 @@ public class CentralCollector implements Collector {
                     }
                 }
                 downstreamServiceObserver.connectAsync();
+                if (spoolReplayer != null) {
+                    spoolReplayer.start();
+                }
             }
         });
     }
@@ -167,6 +199,10 @@ public class CentralCollector implements Collector {
             public void call(StreamObserver<EmptyMessage> responseObserver) {
                 collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
             }
+            @Override
+            boolean spool() {
+                return spoolRecord(RecordType.GAUGE_VALUES, gaugeValueMessage.toByteArray());
+            }
         });
     }
 
@@ -187,20 +223,44 @@ public class CentralCollector implements Collector {
         centralConnection.callWithAFewRetries(new GrpcCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
-                StreamObserver<TraceStreamMessage> requestObserver =
-                        collectorServiceStub.collectTraceStream(responseObserver);
+                // need to clear in case this is a retry
+                fullTextSha1s.clear();
+                writeMessages(collectorServiceStub.collectTraceStream(responseObserver), true);
+            }
+            @Override
+            public void doWithResponse(EmptyMessage response) {
+                for (String fullTextSha1 : fullTextSha1s) {
+                    sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+                }
+            }
+            @Override
+            boolean spool() {
+                SpoolingStreamObserver<TraceStreamMessage> spoolingObserver =
+                        new SpoolingStreamObserver<TraceStreamMessage>();
+                writeMessages(spoolingObserver, false);
+                return spoolRecord(RecordType.TRACE, spoolingObserver.toByteArray());
+            }
+            // shared query texts are not limited when spooling, since the central collector may
+            // no longer have the full text by the time the spooled trace is replayed
+            private void writeMessages(StreamObserver<TraceStreamMessage> requestObserver,
+                    boolean limitSharedQueryTexts) {
                 requestObserver.onNext(TraceStreamMessage.newBuilder()
                         .setHeader(TraceStreamHeader.newBuilder()
                                 .setAgentId(agentId))
                         .build());
-                // need to clear in case this is a retry
-                fullTextSha1s.clear();
                 for (String sharedQueryText : sharedQueryTexts) {
-                    Trace.SharedQueryText traceSharedQueryText =
-                            sharedQueryTextLimiter.buildTraceSharedQueryText(sharedQueryText);
-                    String fullTextSha1 = traceSharedQueryText.getFullTextSha1();
-                    if (!fullTextSha1.isEmpty()) {
-                        fullTextSha1s.add(fullTextSha1);
+                    Trace.SharedQueryText traceSharedQueryText;
+                    if (limitSharedQueryTexts) {
+                        traceSharedQueryText =
+                                sharedQueryTextLimiter.buildTraceSharedQueryText(sharedQueryText);
+                        String fullTextSha1 = traceSharedQueryText.getFullTextSha1();
+                        if (!fullTextSha1.isEmpty()) {
+                            fullTextSha1s.add(fullTextSha1);
+                        }
+                    } else {
+                        traceSharedQueryText = Trace.SharedQueryText.newBuilder()
+                                .setFullText(sharedQueryText)
+                                .build();
                     }
                     requestObserver.onNext(TraceStreamMessage.newBuilder()
                             .setSharedQueryText(traceSharedQueryText)
@@ -211,12 +271,6 @@ public class CentralCollector implements Collector {
                         .build());
                 requestObserver.onCompleted();
             }
-            @Override
-            public void doWithResponse(EmptyMessage response) {
-                for (String fullTextSha1 : fullTextSha1s) {
-                    sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
-                }
-            }
         });
     }
 
@@ -242,9 +296,15 @@ public class CentralCollector implements Collector {
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
         downstreamServiceObserver.close();
         centralConnection.close();
+        if (spoolReplayer != null) {
+            spoolReplayer.close();
+        }
+        if (spool != null) {
+            spool.close();
+        }
     }
 
     @OnlyUsedByTests
@@ -252,6 +312,18 @@ public class CentralCollector implements Collector {
         centralConnection.awaitClose();
     }
 
+    private boolean spoolRecord(RecordType type, byte[] payload) {
+        if (spool == null) {
+            return false;
+        }
+        try {
+            return spool.append(type, payload);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return false;
+        }
+    }
+
     private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
 
         private final Aggregates aggregates;
@@ -265,22 +337,44 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
-                    collectorServiceStub.collectAggregateStream(responseObserver);
+            // need to clear in case this is a retry
+            fullTextSha1s.clear();
+            writeMessages(collectorServiceStub.collectAggregateStream(responseObserver), true);
+        }
+
+        @Override
+        public void doWithResponse(AggregateResponseMessage response) {
+            // Math.min is just for safety
+            nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
+            for (String fullTextSha1 : fullTextSha1s) {
+                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+            }
+        }
+
+        @Override
+        boolean spool() {
+            SpoolingStreamObserver<AggregateStreamMessage> spoolingObserver =
+                    new SpoolingStreamObserver<AggregateStreamMessage>();
+            writeMessages(spoolingObserver, false);
+            return spoolRecord(RecordType.AGGREGATES, spoolingObserver.toByteArray());
+        }
+
+        // shared query texts are not limited when spooling, since the central collector may no
+        // longer have the full text by the time the spooled aggregates are replayed
+        private void writeMessages(final StreamObserver<AggregateStreamMessage> requestObserver,
+                final boolean limitSharedQueryTexts) {
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
                             .setCaptureTime(captureTime))
                     .build());
-            // need to clear in case this is a retry
-            fullTextSha1s.clear();
             aggregates.accept(new AggregateVisitor<RuntimeException>() {
                 @Override
                 public void visitOverallAggregate(String transactionType,
                         List<String> sharedQueryTexts, Aggregate overallAggregate) {
                     for (String sharedQueryText : sharedQueryTexts) {
-                        Aggregate.SharedQueryText aggregateSharedQueryText = sharedQueryTextLimiter
-                                .buildAggregateSharedQueryText(sharedQueryText);
+                        Aggregate.SharedQueryText aggregateSharedQueryText =
+                                buildSharedQueryText(sharedQueryText, limitSharedQueryTexts);
                         String fullTextSha1 = aggregateSharedQueryText.getFullTextSha1();
                         if (!fullTextSha1.isEmpty()) {
                             fullTextSha1s.add(fullTextSha1);
@@ -301,8 +395,8 @@ public class CentralCollector implements Collector {
                         Aggregate transactionAggregate) {
                     for (String sharedQueryText : sharedQueryTexts) {
                         requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                                .setSharedQueryText(sharedQueryTextLimiter
-                                        .buildAggregateSharedQueryText(sharedQueryText))
+                                .setSharedQueryText(buildSharedQueryText(sharedQueryText,
+                                        limitSharedQueryTexts))
                                 .build());
                     }
                     requestObserver.onNext(AggregateStreamMessage.newBuilder()
@@ -315,13 +409,43 @@ public class CentralCollector implements Collector {
             });
             requestObserver.onCompleted();
         }
+
+        private Aggregate.SharedQueryText buildSharedQueryText(String sharedQueryText,
+                boolean limitSharedQueryText) {
+            if (limitSharedQueryText) {
+                return sharedQueryTextLimiter.buildAggregateSharedQueryText(sharedQueryText);
+            } else {
+                return Aggregate.SharedQueryText.newBuilder()
+                        .setFullText(sharedQueryText)
+                        .build();
+            }
+        }
+    }
+
+    // collects length delimited messages for the spool
+    private static class SpoolingStreamObserver<T extends MessageLite>
+            implements StreamObserver<T> {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
         @Override
-        public void doWithResponse(AggregateResponseMessage response) {
-            // Math.min is just for safety
-            nextAggregateDelayMillis = Math.min(response.getNextDelayMillis(), 30000);
-            for (String fullTextSha1 : fullTextSha1s) {
-                sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
+        public void onNext(T value) {
+            try {
+                value.writeDelimitedTo(out);
+            } catch (IOException e) {
+                // not possible when writing to ByteArrayOutputStream
+                throw new IllegalStateException(e);
             }
         }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+
+        private byte[] toByteArray() {
+            return out.toByteArray();
+        }
     }
 }
@@ -26,6 +26,7 @@ import javax.annotation.concurrent.GuardedBy;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.netty.NegotiationType;
 import io.grpc.netty.NettyChannelBuilder;
 import io.grpc.stub.StreamObserver;
@@ -115,12 +116,15 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.spool();
             return;
         }
         synchronized (backPressureLogger) {
             if (pendingRequestCount >= PENDING_LIMIT) {
-                backPressureLogger.warn("not sending data to the central collector because of an"
-                        + " excessive backlog of {} requests in progress", PENDING_LIMIT);
+                if (!call.spool()) {
+                    backPressureLogger.warn("not sending data to the central collector because of"
+                            + " an excessive backlog of {} requests in progress", PENDING_LIMIT);
+                }
                 return;
             }
             pendingRequestCount++;
@@ -195,6 +199,18 @@ class CentralConnection {
     static abstract class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // returns true if the call was spooled to disk (to be replayed later)
+        boolean spool() {
+            return false;
+        }
+    }
+
+    // errors that are worth retrying later, as opposed to errors that would most likely recur
+    // when the same message is sent again
+    static boolean isTransient(Throwable t) {
+        Status.Code code = Status.fromThrowable(t).getCode();
+        return code == Status.Code.UNAVAILABLE || code == Status.Code.DEADLINE_EXCEEDED
+                || code == Status.Code.RESOURCE_EXHAUSTED;
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -225,6 +241,12 @@ class CentralConnection {
                 return;
             }
             if (inConnectionFailure.get()) {
+                if (maxTotalInSeconds != -1) {
+                    grpcCall.spool();
+                    synchronized (backPressureLogger) {
+                        pendingRequestCount--;
+                    }
+                }
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -233,6 +255,15 @@ class CentralConnection {
                     logger.debug(t.getMessage(), t);
                 }
             });
+            if (maxTotalInSeconds != -1 && isTransient(t) && grpcCall.spool()) {
+                // no need to retain the rpc message in memory while retrying, since it will be
+                // replayed from the spool (other errors are not spooled, since a record that is
+                // rejected by the central collector would be rejected again on replay)
+                synchronized (backPressureLogger) {
+                    pendingRequestCount--;
+                }
+                return;
+            }
             if (maxTotalInSeconds != -1 && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
                 connectionErrorLogger.warn("error sending data to the central collector: {}",
                         t.getMessage(), t);
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// bounded disk spool of messages that could not be sent to the central collector (e.g. during a
+// central collector outage), so that they can be replayed in order once the connection has been
+// re-established, instead of being dropped or retained on the heap while retrying
+//
+// the spool is a fixed number of memory mapped segment files that are reused as a ring, once all
+// segments are full the oldest segment is discarded (along with its unsent records)
+//
+// each segment starts with a header (sequence, read position, write position) which is updated in
+// place, so that unsent records survive agent restart
+class CentralSpool implements CentralSpoolMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    @VisibleForTesting
+    static final int SEGMENT_COUNT = 8;
+
+    private static final int SEGMENT_SIZE = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(Integer.getInteger("glowroot.internal.central.spoolSizeMb", 128), 1)
+                    * 1024L * 1024 / SEGMENT_COUNT);
+
+    // sequence (long), read position (int), write position (int)
+    @VisibleForTesting
+    static final int HEADER_SIZE = 16;
+
+    // payload length (int), record type (byte)
+    @VisibleForTesting
+    static final int RECORD_HEADER_SIZE = 5;
+
+    private static final RecordType[] RECORD_TYPES = RecordType.values();
+
+    private final int segmentSize;
+
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private final Segment[] segments;
+
+    private long lastSequence;
+    private long droppedCount;
+
+    private final RateLimitedLogger droppedLogger = new RateLimitedLogger(CentralSpool.class);
+
+    CentralSpool(File dir) throws IOException {
+        this(dir, SEGMENT_SIZE);
+    }
+
+    @VisibleForTesting
+    CentralSpool(File dir, int segmentSize) throws IOException {
+        this.segmentSize = segmentSize;
+        File lockFile = new File(dir, ".lock");
+        Files.createParentDirs(lockFile);
+        this.lockFile = new RandomAccessFile(lockFile, "rw");
+        FileLock lock = this.lockFile.getChannel().tryLock();
+        if (lock == null) {
+            this.lockFile.close();
+            throw new IOException("Spool directory is locked by another process: "
+                    + dir.getAbsolutePath());
+        }
+        this.lock = lock;
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            Segment segment = new Segment(new File(dir, "segment-" + i), segmentSize);
+            if (segment.file.exists()) {
+                segment.load();
+                lastSequence = Math.max(lastSequence, segment.sequence);
+            }
+            segments[i] = segment;
+        }
+        int depth = getDepth();
+        if (depth > 0) {
+            logger.info("{} unsent records found in the central collector spool", depth);
+        }
+    }
+
+    synchronized boolean append(RecordType type, byte[] payload) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (HEADER_SIZE + recordSize > segmentSize) {
+            logger.warn("not spooling record of {} bytes since it is larger than the spool segment"
+                    + " size", recordSize);
+            return false;
+        }
+        Segment tail = getTail();
+        if (tail == null || segmentSize - tail.writePosition < recordSize) {
+            tail = nextSegment();
+        }
+        MappedByteBuffer buffer = tail.getBuffer();
+        buffer.putInt(tail.writePosition, payload.length);
+        buffer.put(tail.writePosition + 4, (byte) type.ordinal());
+        buffer.position(tail.writePosition + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        tail.writePosition += recordSize;
+        tail.recordCount++;
+        tail.writeHeader();
+        return true;
+    }
+
+    synchronized @Nullable Record peek() throws IOException {
+        Segment head = getHead();
+        if (head == null) {
+            return null;
+        }
+        MappedByteBuffer buffer = head.getBuffer();
+        int payloadLength = buffer.getInt(head.readPosition);
+        int typeOrdinal = buffer.get(head.readPosition + 4);
+        byte[] payload = new byte[payloadLength];
+        buffer.position(head.readPosition + RECORD_HEADER_SIZE);
+        buffer.get(payload);
+        RecordType type = typeOrdinal < RECORD_TYPES.length ? RECORD_TYPES[typeOrdinal] : null;
+        return new Record(head.sequence, head.readPosition, type, payload);
+    }
+
+    // no-op if the record has already been discarded (because the spool was full)
+    synchronized void remove(Record record) throws IOException {
+        removeInternal(record);
+    }
+
+    // removes a record that could not be replayed, counting it as dropped
+    synchronized void discard(Record record) throws IOException {
+        if (removeInternal(record)) {
+            droppedCount++;
+        }
+    }
+    private boolean removeInternal(Record record) throws IOException {
+        for (Segment segment : segments) {
+            if (segment.sequence == record.sequence && segment.recordCount > 0
+                    && segment.readPosition == record.position) {
+                segment.readPosition += RECORD_HEADER_SIZE + record.payload.length;
+                segment.recordCount--;
+                if (segment.recordCount == 0) {
+                    // reclaim the space
+                    segment.readPosition = HEADER_SIZE;
+                    segment.writePosition = HEADER_SIZE;
+                }
+                segment.writeHeader();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized int getDepth() {
+        int depth = 0;
+        for (Segment segment : segments) {
+            depth += segment.recordCount;
+        }
+        return depth;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long sizeBytes = 0;
+        for (Segment segment : segments) {
+            sizeBytes += segment.writePosition - segment.readPosition;
+        }
+        return sizeBytes;
+    }
+
+    @Override
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    @OnlyUsedByTests
+    synchronized void close() throws IOException {
+        lock.release();
+        lockFile.close();
+    }
+
+    private @Nullable Segment getHead() {
+        Segment head = null;
+        for (Segment segment : segments) {
+            if (segment.recordCount > 0 && (head == null || segment.sequence < head.sequence)) {
+                head = segment;
+            }
+        }
+        return head;
+    }
+
+    private @Nullable Segment getTail() {
+        Segment tail = null;
+        for (Segment segment : segments) {
+            if (segment.sequence != 0 && (tail == null || segment.sequence > tail.sequence)) {
+                tail = segment;
+            }
+        }
+        return tail;
+    }
+
+    private Segment nextSegment() throws IOException {
+        Segment next = null;
+        for (Segment segment : segments) {
+            if (segment.recordCount == 0) {
+                next = segment;
+                break;
+            }
+        }
+        if (next == null) {
+            // spool is full, so discard the oldest segment
+            next = getHead();
+            if (next == null) {
+                // this should be impossible since recordCount > 0 for all segments
+                throw new IllegalStateException("Could not find spool segment to discard");
+            }
+            droppedCount += next.recordCount;
+            droppedLogger.warn("the central collector spool is full (glowroot.internal.central"
+                    + ".spoolSizeMb), discarding the oldest {} records", next.recordCount);
+        }
+        next.sequence = ++lastSequence;
+        next.readPosition = HEADER_SIZE;
+        next.writePosition = HEADER_SIZE;
+        next.recordCount = 0;
+        next.writeHeader();
+        return next;
+    }
+
+    enum RecordType {
+        AGGREGATES, TRACE, GAUGE_VALUES
+    }
+
+    static class Record {
+
+        private final long sequence;
+        private final int position;
+        // null if the record type is not recognized
+        private final @Nullable RecordType type;
+        private final byte[] payload;
+
+        private Record(long sequence, int position, @Nullable RecordType type, byte[] payload) {
+            this.sequence = sequence;
+            this.position = position;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        boolean isSameRecord(Record other) {
+            return sequence == other.sequence && position == other.position;
+        }
+
+        @Nullable
+        RecordType getType() {
+            return type;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final int segmentSize;
+
+        // mapped lazily since the spool is not used at all unless there is a problem sending data
+        // to the central collector
+        private @Nullable MappedByteBuffer buffer;
+
+        // zero means the segment is unused
+        private long sequence;
+        private int readPosition = HEADER_SIZE;
+        private int writePosition = HEADER_SIZE;
+        private int recordCount;
+
+        private Segment(File file, int segmentSize) {
+            this.file = file;
+            this.segmentSize = segmentSize;
+        }
+
+        private void load() throws IOException {
+            MappedByteBuffer buffer = getBuffer();
+            long sequence = buffer.getLong(0);
+            int readPosition = buffer.getInt(8);
+            int writePosition = buffer.getInt(12);
+            if (sequence <= 0 || readPosition < HEADER_SIZE || writePosition < readPosition
+                    || writePosition > segmentSize) {
+                // unused, or corrupt, or spool size has been reduced since it was written
+                return;
+            }
+            int recordCount = 0;
+            int position = readPosition;
+            while (position < writePosition) {
+                int payloadLength = position + RECORD_HEADER_SIZE > writePosition ? -1
+                        : buffer.getInt(position);
+                int nextPosition = position + RECORD_HEADER_SIZE + payloadLength;
+                if (payloadLength < 0 || nextPosition > writePosition || nextPosition < 0) {
+                    // corrupt, so keep only the valid records
+                    logger.warn("central collector spool segment is corrupt: {}",
+                            file.getAbsolutePath());
+                    writePosition = position;
+                    break;
+                }
+                position = nextPosition;
+                recordCount++;
+            }
+            this.sequence = sequence;
+            this.readPosition = recordCount == 0 ? HEADER_SIZE : readPosition;
+            this.writePosition = recordCount == 0 ? HEADER_SIZE : writePosition;
+            this.recordCount = recordCount;
+        }
+
+        private MappedByteBuffer getBuffer() throws IOException {
+            if (buffer == null) {
+                RandomAccessFile out = new RandomAccessFile(file, "rw");
+                try {
+                    // mapping remains valid after the file is closed
+                    buffer = out.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+                } finally {
+                    out.close();
+                }
+            }
+            return buffer;
+        }
+
+        // header is written after the record, so that a partially written record is never
+        // visible after restart
+        private void writeHeader() throws IOException {
+            MappedByteBuffer buffer = getBuffer();
+            buffer.putLong(0, sequence);
+            buffer.putInt(8, readPosition);
+            buffer.putInt(12, writePosition);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.central.CentralSpool.Record;
+import org.glowroot.agent.central.CentralSpool.RecordType;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// replays spooled records to the central collector, one at a time and in order, rate limited so
+// that a large spool does not overwhelm the central collector after an outage
+class SpoolReplayer implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoolReplayer.class);
+
+    private static final int REPLAY_PER_SECOND = Math.max(
+            Integer.getInteger("glowroot.internal.central.spoolReplayPerSecond", 10), 1);
+
+    private static final int MAX_BACKOFF_SECONDS = 60;
+
+    // a record that is rejected this many times in a row (other than for transient errors, see
+    // CentralConnection.isTransient()) is discarded, so that it does not block the spool forever
+    private static final int MAX_REPLAY_ATTEMPTS = Math.max(
+            Integer.getInteger("glowroot.internal.central.spoolMaxReplayAttempts", 10), 1);
+
+    private final CentralSpool spool;
+    private final CollectorServiceStub collectorServiceStub;
+    private final AtomicBoolean inConnectionFailure;
+    private final Ticker ticker;
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+
+    private volatile long nextAttemptTick;
+    private volatile int backoffSeconds;
+
+    // only accessed by the replay in flight
+    private @Nullable Record failedRecord;
+    private int failedAttempts;
+
+    SpoolReplayer(CentralSpool spool, CollectorServiceStub collectorServiceStub,
+            AtomicBoolean inConnectionFailure, Ticker ticker) {
+        this.spool = spool;
+        this.collectorServiceStub = collectorServiceStub;
+        this.inConnectionFailure = inConnectionFailure;
+        this.ticker = ticker;
+        nextAttemptTick = ticker.read();
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Collector-Spool-Replay")
+                        .build());
+    }
+
+    void start() {
+        long periodMillis = Math.max(1000 / REPLAY_PER_SECOND, 1);
+        executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        if (inConnectionFailure.get() || inFlight.get()
+                || ticker.read() - nextAttemptTick < 0) {
+            return;
+        }
+        try {
+            Record record = spool.peek();
+            if (record == null) {
+                return;
+            }
+            inFlight.set(true);
+            try {
+                replay(record);
+            } catch (IOException e) {
+                // corrupt record, no point in retrying it
+                logger.error(e.getMessage(), e);
+                spool.discard(record);
+                inFlight.set(false);
+            }
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            inFlight.set(false);
+        }
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void replay(Record record) throws IOException {
+        RecordType type = record.getType();
+        if (type == null) {
+            throw new IOException("Unexpected spool record type");
+        }
+        // parse before starting the rpc, so that a corrupt record does not leave a partial stream
+        ByteArrayInputStream in = new ByteArrayInputStream(record.getPayload());
+        switch (type) {
+            case AGGREGATES:
+                List<AggregateStreamMessage> aggregateStreamMessages = Lists.newArrayList();
+                AggregateStreamMessage aggregateStreamMessage;
+                while ((aggregateStreamMessage =
+                        AggregateStreamMessage.parseDelimitedFrom(in)) != null) {
+                    aggregateStreamMessages.add(aggregateStreamMessage);
+                }
+                StreamObserver<AggregateStreamMessage> aggregateRequestObserver =
+                        collectorServiceStub.collectAggregateStream(
+                                new ReplayObserver<AggregateResponseMessage>(record));
+                for (AggregateStreamMessage message : aggregateStreamMessages) {
+                    aggregateRequestObserver.onNext(message);
+                }
+                aggregateRequestObserver.onCompleted();
+                break;
+            case TRACE:
+                List<TraceStreamMessage> traceStreamMessages = Lists.newArrayList();
+                TraceStreamMessage traceStreamMessage;
+                while ((traceStreamMessage = TraceStreamMessage.parseDelimitedFrom(in)) != null) {
+                    traceStreamMessages.add(traceStreamMessage);
+                }
+                StreamObserver<TraceStreamMessage> traceRequestObserver = collectorServiceStub
+                        .collectTraceStream(new ReplayObserver<EmptyMessage>(record));
+                for (TraceStreamMessage message : traceStreamMessages) {
+                    traceRequestObserver.onNext(message);
+                }
+                traceRequestObserver.onCompleted();
+                break;
+            case GAUGE_VALUES:
+                collectorServiceStub.collectGaugeValues(GaugeValueMessage.parseFrom(in),
+                        new ReplayObserver<EmptyMessage>(record));
+                break;
+            default:
+                throw new IOException("Unexpected spool record type: " + type);
+        }
+    }
+
+    @VisibleForTesting
+    class ReplayObserver<T extends /*@NonNull*/ Object> implements StreamObserver<T> {
+
+        private final Record record;
+
+        @VisibleForTesting
+        ReplayObserver(Record record) {
+            this.record = record;
+        }
+
+        @Override
+        public void onNext(T value) {}
+
+        @Override
+        public void onError(Throwable t) {
+            logger.debug(t.getMessage(), t);
+            if (!CentralConnection.isTransient(t)) {
+                Record failedRecord = SpoolReplayer.this.failedRecord;
+                if (failedRecord != null && failedRecord.isSameRecord(record)) {
+                    failedAttempts++;
+                } else {
+                    SpoolReplayer.this.failedRecord = record;
+                    failedAttempts = 1;
+                }
+                if (failedAttempts >= MAX_REPLAY_ATTEMPTS) {
+                    logger.warn("discarding spooled record after {} failed attempts to send it to"
+                            + " the central collector: {}", failedAttempts, t.getMessage(), t);
+                    try {
+                        spool.discard(record);
+                    } catch (Throwable u) {
+                        logger.error(u.getMessage(), u);
+                    }
+                    SpoolReplayer.this.failedRecord = null;
+                    failedAttempts = 0;
+                    backoffSeconds = 0;
+                    inFlight.set(false);
+                    return;
+                }
+            }
+            // back off, doubling each time
+            backoffSeconds = Math.min(Math.max(backoffSeconds * 2, 1), MAX_BACKOFF_SECONDS);
+            nextAttemptTick = ticker.read() + SECONDS.toNanos(backoffSeconds);
+            inFlight.set(false);
+        }
+
+        @Override
+        public void onCompleted() {
+            try {
+                spool.remove(record);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+            SpoolReplayer.this.failedRecord = null;
+            failedAttempts = 0;
+            backoffSeconds = 0;
+            inFlight.set(false);
+        }
+    }
+}
@@ -20,14 +20,20 @@ import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.tainting.qual.Untainted;
@@ -70,6 +76,7 @@ import org.glowroot.common.repo.AggregateRepository;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
@@ -149,24 +156,55 @@ public class AggregateDao implements AggregateRepository {
             ImmutableList.of("capture_time", "transaction_type", "transaction_name",
                     "total_duration_nanos", "transaction_count", "error_count");
 
+    // bound on the estimated heap retained by a single rollup accumulator (the merged aggregates,
+    // not the level 0 aggregates that were merged into it), since the accumulators are held in
+    // memory for up to the largest rollup interval, and an interval whose accumulator exceeds this
+    // is instead rolled up by re-reading the lower rollup level
+    //
+    // the merged aggregates are mostly bounded by the aggregate query and service call limits, so
+    // the retained size levels off after the first intervals, except for profiles which keep
+    // growing with the number of distinct stack trace nodes (the largest fixed part is the duration
+    // histogram, which takes 2-10mb once a transaction name switches to an HdrHistogram)
+    private static final int MAX_ROLLUP_ACCUMULATOR_BYTES = Integer.getInteger(
+            "glowroot.internal.aggregate.maxRollupAccumulatorBytes", 16 * 1024 * 1024);
+
     private final DataSource dataSource;
     private final List<CappedDatabase> rollupCappedDatabases;
     private final ConfigRepository configRepository;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
 
+    private final int maxRollupAccumulatorBytes;
+
     private final AtomicLongArray lastRollupTimes;
 
+    // level 0 aggregates are merged into these as they are stored, so that completed intervals can
+    // be written to the higher rollup levels without re-reading the lower rollup level
+    // (index is rollup level - 1, and each list holds the intervals that are not rolled up yet)
+    private final List<List<RollupAccumulator>> rollupAccumulators;
+
+    // used to determine whether a new accumulator will see every level 0 aggregate in its interval
+    private long lastStoredCaptureTime;
+
     private final Object rollupLock = new Object();
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao) throws Exception {
+        this(dataSource, rollupCappedDatabases, configRepository, transactionTypeDao,
+                fullQueryTextDao, MAX_ROLLUP_ACCUMULATOR_BYTES);
+    }
+
+    @VisibleForTesting
+    AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
+            ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
+            FullQueryTextDao fullQueryTextDao, int maxRollupAccumulatorBytes) throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.maxRollupAccumulatorBytes = maxRollupAccumulatorBytes;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (int i = 0; i < rollupConfigs.size(); i++) {
@@ -190,6 +228,12 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        rollupAccumulators = Lists.newArrayList();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            rollupAccumulators.add(Lists.<RollupAccumulator>newArrayList());
+        }
+        lastStoredCaptureTime = readLastStoredCaptureTime();
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -198,6 +242,7 @@ public class AggregateDao implements AggregateRepository {
         // large batch
         final CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
         final List<TruncatedQueryText> truncatedQueryTexts = Lists.newArrayList();
+        final List<RollupAccumulator> activeAccumulators = startRollupAccumulators(captureTime);
         aggregates.accept(new AggregateVisitor<Exception>() {
             @Override
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
@@ -205,6 +250,8 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, null, captureTime,
                         overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                accumulate(activeAccumulators, transactionType, null, overallAggregate,
+                        truncatedQueryTexts);
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -214,6 +261,8 @@ public class AggregateDao implements AggregateRepository {
                 addToTruncatedQueryTexts(sharedQueryTexts);
                 dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                accumulate(activeAccumulators, transactionType, transactionName,
+                        transactionAggregate, truncatedQueryTexts);
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -235,6 +284,7 @@ public class AggregateDao implements AggregateRepository {
             }
         });
         synchronized (rollupLock) {
+            lastStoredCaptureTime = Math.max(lastStoredCaptureTime, captureTime);
             List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
             for (int i = 1; i < rollupConfigs.size(); i++) {
                 RollupConfig rollupConfig = rollupConfigs.get(i);
@@ -302,6 +352,15 @@ public class AggregateDao implements AggregateRepository {
         return dataSource.query(new ThroughputAggregateQuery(query));
     }
 
+    // level 0 aggregates are stored one capture time at a time, and each rollup level is rolled up
+    // in order as part of storing level 0 aggregates
+    @Override
+    public long readRollupCompleteTime(String agentRollupId, int rollupLevel) {
+        synchronized (rollupLock) {
+            return rollupLevel == 0 ? lastStoredCaptureTime : lastRollupTimes.get(rollupLevel);
+        }
+    }
+
     @Override
     public @Nullable String readFullQueryText(String agentRollupId, String fullQueryTextSha1)
             throws Exception {
@@ -422,11 +481,112 @@ public class AggregateDao implements AggregateRepository {
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (rollupLock) {
+            for (int i = 1; i < lastRollupTimes.length(); i++) {
+                lastRollupTimes.set(i, 0);
+            }
+            for (List<RollupAccumulator> accumulators : rollupAccumulators) {
+                accumulators.clear();
+            }
+            lastStoredCaptureTime = readLastStoredCaptureTime();
+        }
+    }
+
+    @VisibleForTesting
+    boolean isRollupAccumulatorComplete(int rollupLevel, long rollupCaptureTime) {
+        synchronized (rollupLock) {
+            for (RollupAccumulator accumulator : rollupAccumulators.get(rollupLevel - 1)) {
+                if (accumulator.rollupCaptureTime == rollupCaptureTime) {
+                    return accumulator.complete;
+                }
+            }
+            return false;
+        }
+    }
+
+    private long readLastStoredCaptureTime() throws Exception {
+        return dataSource.queryForLong(
+                "select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0");
+    }
+
+    private List<RollupAccumulator> startRollupAccumulators(long captureTime) throws Exception {
+        List<RollupAccumulator> activeAccumulators = Lists.newArrayList();
+        synchronized (rollupLock) {
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            for (int i = 1; i < rollupConfigs.size(); i++) {
+                long intervalMillis = rollupConfigs.get(i).intervalMillis();
+                long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, intervalMillis);
+                List<RollupAccumulator> accumulators = rollupAccumulators.get(i - 1);
+                RollupAccumulator accumulator =
+                        accumulators.isEmpty() ? null : accumulators.get(accumulators.size() - 1);
+                if (accumulator == null || rollupCaptureTime > accumulator.rollupCaptureTime) {
+                    // the accumulator can only be used for the rollup if it sees every level 0
+                    // aggregate in its interval, which is not the case if level 0 aggregates were
+                    // already stored in the interval prior to the agent (re)starting
+                    accumulator = new RollupAccumulator(rollupCaptureTime,
+                            lastStoredCaptureTime <= rollupCaptureTime - intervalMillis);
+                    accumulators.add(accumulator);
+                }
+                if (rollupCaptureTime == accumulator.rollupCaptureTime) {
+                    activeAccumulators.add(accumulator);
+                }
+                // otherwise the capture time went backwards (e.g. system clock change) into an
+                // interval that has already been rolled up
+            }
+        }
+        return activeAccumulators;
+    }
+
+    private void accumulate(List<RollupAccumulator> activeAccumulators, String transactionType,
+            @Nullable String transactionName, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) throws Exception {
+        synchronized (rollupLock) {
+            for (RollupAccumulator accumulator : activeAccumulators) {
+                if (!accumulator.complete) {
+                    // this interval will be rolled up by re-reading the lower rollup level
+                    continue;
+                }
+                MutableAggregate mergedAggregate =
+                        accumulator.getAggregate(transactionType, transactionName);
+                long sizeBefore = mergedAggregate.getRetainedSizeEstimate();
+                merge(mergedAggregate, aggregate, truncatedQueryTexts);
+                accumulator.bytes += mergedAggregate.getRetainedSizeEstimate() - sizeBefore;
+                if (accumulator.bytes > maxRollupAccumulatorBytes) {
+                    accumulator.discard();
+                }
+            }
+        }
+    }
+
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
+        Set<Long> accumulatedRollupTimes = Sets.newHashSet();
+        Iterator<RollupAccumulator> i = rollupAccumulators.get(toRollupLevel - 1).iterator();
+        while (i.hasNext()) {
+            RollupAccumulator accumulator = i.next();
+            if (accumulator.rollupCaptureTime > curentRollupTime) {
+                continue;
+            }
+            i.remove();
+            if (accumulator.complete && accumulator.rollupCaptureTime > lastRollupTime) {
+                accumulator.write(toRollupLevel);
+                accumulatedRollupTimes.add(accumulator.rollupCaptureTime);
+            }
+        }
+        if (accumulatedRollupTimes.size() == (curentRollupTime - lastRollupTime)
+                / fixedIntervalMillis) {
+            // every interval was accumulated
+            return;
+        }
+        // fall back to re-reading the lower rollup level, e.g. for the interval that was in
+        // progress when the agent was (re)started
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
         for (Long rollupTime : rollupTimes) {
+            if (accumulatedRollupTimes.contains(rollupTime)) {
+                continue;
+            }
             dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
                     fromRollupLevel, toRollupLevel));
             dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
@@ -540,6 +700,39 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static void merge(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) throws Exception {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        mergedAggregate.mergeMainThreadStats(aggregate.getMainThreadStats());
+        mergedAggregate.mergeAuxThreadStats(aggregate.getAuxThreadStats());
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                TruncatedQueryText truncatedQueryText =
+                        truncatedQueryTexts.get(query.getSharedQueryTextIndex());
+                mergedAggregate.mergeQuery(queriesByType.getType(),
+                        truncatedQueryText.truncatedText(), truncatedQueryText.fullTextSha1(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue());
+            }
+        }
+        if (aggregate.getServiceCallsByTypeCount() > 0) {
+            mergedAggregate.mergeServiceCalls(aggregate.getServiceCallsByTypeList());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mergedAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mergedAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
     private int getMaxAggregateQueriesPerType() throws IOException {
         AdvancedConfig advancedConfig = configRepository.getAdvancedConfig(AGENT_ID);
         if (advancedConfig != null && advancedConfig.hasMaxAggregateQueriesPerType()) {
@@ -1144,6 +1337,76 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // guarded by rollupLock
+    private class RollupAccumulator {
+
+        private final long rollupCaptureTime;
+        // false if the accumulator did not see (or discarded) some of the level 0 aggregates in
+        // its interval
+        private boolean complete;
+        // estimated heap retained by the merged aggregates in this accumulator
+        private long bytes;
+
+        private final Map<String, MutableAggregate> overallAggregates = Maps.newHashMap();
+        private final Map<String, Map<String, MutableAggregate>> transactionAggregates =
+                Maps.newHashMap();
+
+        private RollupAccumulator(long rollupCaptureTime, boolean complete) {
+            this.rollupCaptureTime = rollupCaptureTime;
+            this.complete = complete;
+        }
+
+        private MutableAggregate getAggregate(String transactionType,
+                @Nullable String transactionName) throws IOException {
+            Map<String, MutableAggregate> aggregates;
+            String key;
+            if (transactionName == null) {
+                aggregates = overallAggregates;
+                key = transactionType;
+            } else {
+                aggregates = transactionAggregates.get(transactionType);
+                if (aggregates == null) {
+                    aggregates = Maps.newHashMap();
+                    transactionAggregates.put(transactionType, aggregates);
+                }
+                key = transactionName;
+            }
+            MutableAggregate aggregate = aggregates.get(key);
+            if (aggregate == null) {
+                aggregate = new MutableAggregate(getMaxAggregateQueriesPerType(),
+                        getMaxAggregateServiceCallsPerType());
+                aggregates.put(key, aggregate);
+                bytes += aggregate.getRetainedSizeEstimate();
+            }
+            return aggregate;
+        }
+
+        private void discard() {
+            complete = false;
+            bytes = 0;
+            overallAggregates.clear();
+            transactionAggregates.clear();
+        }
+
+        private void write(int rollupLevel) throws Exception {
+            CappedDatabase cappedDatabase = rollupCappedDatabases.get(rollupLevel);
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Map.Entry<String, MutableAggregate> entry : overallAggregates.entrySet()) {
+                dataSource.update(new AggregateInsert(entry.getKey(), null, rollupCaptureTime,
+                        entry.getValue(), rollupLevel, cappedDatabase, scratchBuffer));
+            }
+            for (Map.Entry<String, Map<String, MutableAggregate>> outerEntry : transactionAggregates
+                    .entrySet()) {
+                for (Map.Entry<String, MutableAggregate> entry : outerEntry.getValue()
+                        .entrySet()) {
+                    dataSource.update(new AggregateInsert(outerEntry.getKey(), entry.getKey(),
+                            rollupCaptureTime, entry.getValue(), rollupLevel, cappedDatabase,
+                            scratchBuffer));
+                }
+            }
+        }
+    }
+
     private class CappedIdQuery implements JdbcQuery<List<CappedId>> {
 
         private final @Untainted String cappedIdColumnName;
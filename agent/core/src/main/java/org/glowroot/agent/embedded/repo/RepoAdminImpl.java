@@ -30,6 +30,7 @@ class RepoAdminImpl implements RepoAdmin {
     private final CappedDatabase traceCappedDatabase;
     private final ConfigRepository configRepository;
     private final AgentDao agentDao;
+    private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final GaugeNameDao gaugeNameDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
@@ -38,14 +39,15 @@ class RepoAdminImpl implements RepoAdmin {
 
     RepoAdminImpl(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             CappedDatabase traceCappedDatabase, ConfigRepository configRepository,
-            AgentDao agentDao, GaugeValueDao gaugeValueDao, GaugeNameDao gaugeNameDao,
-            TraceAttributeNameDao traceAttributeNameDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao) {
+            AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
+            GaugeNameDao gaugeNameDao, TraceAttributeNameDao traceAttributeNameDao,
+            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
         this.configRepository = configRepository;
         this.agentDao = agentDao;
+        this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.gaugeNameDao = gaugeNameDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
@@ -58,6 +60,7 @@ class RepoAdminImpl implements RepoAdmin {
         Environment environment = agentDao.readEnvironment("");
         dataSource.deleteAll();
         agentDao.reinitAfterDeletingDatabase();
+        aggregateDao.reinitAfterDeletingDatabase();
         gaugeValueDao.reinitAfterDeletingDatabase();
         gaugeNameDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
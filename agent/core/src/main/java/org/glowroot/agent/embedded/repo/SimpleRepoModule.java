@@ -91,8 +91,8 @@ public class SimpleRepoModule {
         gaugeValueDao = new GaugeValueDao(dataSource, gaugeNameDao, clock);
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, agentDao, gaugeValueDao, gaugeNameDao, traceAttributeNameDao,
-                transactionTypeDao, fullQueryTextDao);
+                configRepository, agentDao, aggregateDao, gaugeValueDao, gaugeNameDao,
+                traceAttributeNameDao, transactionTypeDao, fullQueryTextDao);
 
         TriggeredAlertDao triggeredAlertDao = new TriggeredAlertDao(dataSource);
         alertingService = new AlertingService(configRepository, triggeredAlertDao, aggregateDao,
@@ -16,19 +16,24 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -49,6 +54,15 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
+// compression is performed by the calling threads outside of the lock, and the compressed blocks
+// are then written (and synced) in groups by whichever thread acquires the lock first (group
+// commit), so that concurrent writers share a single sync
+//
+// reads do not acquire the lock, they perform positional reads (from memory mapped segments of the
+// file, see MappedFileReader) and then check that the block was not overwritten (or the file
+// resized) during the read, so readers do not block each other or the writer (a read that races
+// with a resize is retried, and a read that races with the block being overwritten is reported as
+// rolled over, regardless of how the read failed)
 public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
@@ -58,18 +72,31 @@ public class CappedDatabase {
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    private final boolean mmap;
+    private volatile MappedFileReader inFile;
     private volatile boolean closing = false;
 
+    // this is incremented before and after each resize, so it is odd during a resize
+    private volatile int resizeSequence;
+
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+
     private final Ticker ticker;
+    @GuardedBy("lock")
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, MappedFileReader.MMAP_ENABLED);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean mmap)
+            throws IOException {
         this.file = file;
         this.ticker = ticker;
+        this.mmap = mmap;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
+        inFile = new MappedFileReader(file, getMaxFileSize(), mmap);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -96,11 +123,13 @@ public class CappedDatabase {
     }
 
     public CappedDatabaseStats getStats(String type) {
-        CappedDatabaseStats stats = statsByType.get(type);
-        if (stats == null) {
-            return new CappedDatabaseStats();
+        synchronized (lock) {
+            CappedDatabaseStats stats = statsByType.get(type);
+            if (stats == null) {
+                return new CappedDatabaseStats();
+            }
+            return stats;
         }
-        return stats;
     }
 
     @OnlyUsedByTests
@@ -114,38 +143,71 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
+        if (closing) {
+            return -1;
+        }
+        long startTick = ticker.read();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(4096);
+        CountingOutputStream countingStreamBeforeCompression =
+                new CountingOutputStream(new LZFOutputStream(compressed));
+        copier.copyTo(countingStreamBeforeCompression);
+        countingStreamBeforeCompression.close();
+        PendingWrite pendingWrite = new PendingWrite(compressed);
+        pendingWrites.add(pendingWrite);
         synchronized (lock) {
-            if (closing) {
-                return -1;
+            if (!pendingWrite.completed) {
+                // this thread is the first to acquire the lock since its block was queued, so it
+                // writes all of the queued blocks (including blocks queued by other threads)
+                writePendingBlocks();
             }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
-            CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(new LZFOutputStream(countingStreamAfterCompression));
-            copier.copyTo(countingStreamBeforeCompression);
-            countingStreamBeforeCompression.close();
-            long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
+            IOException exception = pendingWrite.exception;
+            if (exception != null) {
+                throw exception;
             }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            if (pendingWrite.cappedId != -1) {
+                long endTick = ticker.read();
+                CappedDatabaseStats stats = statsByType.get(type);
+                if (stats == null) {
+                    stats = new CappedDatabaseStats();
+                    statsByType.put(type, stats);
+                }
+                stats.record(countingStreamBeforeCompression.getCount(), compressed.size(),
+                        endTick - startTick);
+            }
+            return pendingWrite.cappedId;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writePendingBlocks() {
+        List<PendingWrite> group = Lists.newArrayList();
+        PendingWrite pendingWrite;
+        while ((pendingWrite = pendingWrites.poll()) != null) {
+            group.add(pendingWrite);
+        }
+        try {
+            if (!closing) {
+                for (PendingWrite write : group) {
+                    out.startBlock();
+                    write.compressed.writeTo(out);
+                    write.cappedId = out.endBlock();
+                }
+                out.sync();
+            }
+        } catch (IOException e) {
+            for (PendingWrite write : group) {
+                write.exception = e;
+            }
+        }
+        for (PendingWrite write : group) {
+            write.completed = true;
         }
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return null;
         }
@@ -157,11 +219,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newBlockInputStream(cappedId);
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
@@ -176,12 +234,8 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/MessageLite> List<T> readMessages(long cappedId, Parser<T> parser)
             throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
+        boolean overwritten = out.isOverwritten(cappedId);
+        boolean inTheFuture = cappedId >= out.getCurrIndex();
         if (overwritten) {
             return ImmutableList.of();
         }
@@ -193,11 +247,7 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        InputStream input = newBlockInputStream(cappedId);
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -223,15 +273,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return out.isOverwritten(cappedId);
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return out.getSmallestNonOverwrittenId();
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -239,9 +285,14 @@ public class CappedDatabase {
             if (closing) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            resizeSequence++;
+            try {
+                inFile.close();
+                out.resize(newSizeKb);
+                inFile = new MappedFileReader(file, getMaxFileSize(), mmap);
+            } finally {
+                resizeSequence++;
+            }
         }
     }
 
@@ -255,6 +306,39 @@ public class CappedDatabase {
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private InputStream newBlockInputStream(long cappedId) {
+        if (mmap) {
+            // decompress directly from the mapped file
+            return new LZFInputStream(new CappedBlockInputStream(cappedId));
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying file channel
+        final int bufferSize = 32768;
+        return new LZFInputStream(
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+    }
+
+    private long getMaxFileSize() {
+        return CappedDatabaseOutputStream.HEADER_SKIP_BYTES + out.getSizeBytes();
+    }
+
+    private void waitForResize() {
+        synchronized (lock) {
+            // resize is performed under the lock, so nothing to do here
+        }
+    }
+
+    // positional reads (and mapping) fail with ClosedChannelException (and close the channel) if
+    // the reading thread is interrupted, in which case the file needs to be re-opened for other
+    // readers
+    private void reopenInFile(MappedFileReader closedFile) throws IOException {
+        synchronized (lock) {
+            if (inFile == closedFile && !closing) {
+                inFile = new MappedFileReader(file, getMaxFileSize(), mmap);
+            }
+        }
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -266,12 +350,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(new LZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
-                    Charsets.UTF_8);
+            return new InputStreamReader(newBlockInputStream(cappedId), Charsets.UTF_8);
         }
     }
 
@@ -290,38 +369,96 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            while (true) {
+                int sequence = resizeSequence;
+                if ((sequence & 1) == 1) {
+                    waitForResize();
+                    continue;
+                }
+                MappedFileReader currInFile = inFile;
+                try {
+                    int numRead = read(currInFile, bytes, off, len);
+                    if (resizeSequence == sequence) {
+                        return numRead;
+                    }
+                } catch (ClosedChannelException e) {
+                    if (closing) {
+                        throw e;
+                    }
+                    if (resizeSequence == sequence) {
+                        reopenInFile(currInFile);
+                        if (e instanceof ClosedByInterruptException) {
+                            throw e;
+                        }
+                    }
+                } catch (IOException e) {
+                    // e.g. EOFException or invalid block header
+                    if (!shouldRetry(sequence)) {
+                        throw e;
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. IndexOutOfBoundsException from a file position that was computed while
+                    // the capped database was being resized
+                    if (!shouldRetry(sequence)) {
+                        throw e;
+                    }
                 }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            }
+        }
+
+        // a read that fails because it raced with a resize is retried, and a read that fails
+        // because it raced with the block being rolled over is reported as rolled over
+        private boolean shouldRetry(int sequence) throws CappedBlockRolledOverMidReadException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            return resizeSequence != sequence;
+        }
+
+        private int read(MappedFileReader inFile, byte[] bytes, int off, int len)
+                throws IOException {
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            long sizeBytes = out.getSizeBytes();
+            long blockLength = this.blockLength;
+            if (blockLength == -1) {
+                long filePosition = out.convertToFilePosition(cappedId);
+                blockLength = inFile
+                        .readLong(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                if (blockLength < 0 || blockLength > sizeBytes) {
+                    // block header was overwritten during the read
+                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
             }
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = sizeBytes - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            inFile.readFully(bytes, off, numToRead,
+                    CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            // checking after the read since the block could have been overwritten during the read
+            // (currIndex is advanced prior to overwriting)
+            if (out.isOverwritten(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+            this.blockLength = blockLength;
+            blockIndex += numToRead;
+            return numToRead;
         }
 
         @Override
         public int read(byte[] bytes) throws IOException {
-            // this is never called since CappedBlockInputStream is always wrapped in a
-            // BufferedInputStream
             return read(bytes, 0, bytes.length);
         }
 
         @Override
         public int read() throws IOException {
-            throw new UnsupportedOperationException(
-                    "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
+            // this is not expected to be called since LZFInputStream reads in chunks
+            byte[] bytes = new byte[1];
+            int n = read(bytes, 0, 1);
+            return n == -1 ? -1 : bytes[0] & 0xff;
         }
     }
 
@@ -354,31 +491,17 @@ public class CappedDatabase {
         }
     }
 
-    private static class NonClosingCountingOutputStream extends FilterOutputStream {
-
-        private long count;
-
-        private NonClosingCountingOutputStream(OutputStream out) {
-            super(out);
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            count += len;
-        }
+    private static class PendingWrite {
 
-        @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            count++;
-        }
+        private final ByteArrayOutputStream compressed;
 
-        @Override
-        public void close() {}
+        // these are written and read under the lock
+        private boolean completed;
+        private long cappedId = -1;
+        private @Nullable IOException exception;
 
-        private long getCount() {
-            return count;
+        private PendingWrite(ByteArrayOutputStream compressed) {
+            this.compressed = compressed;
         }
     }
 }
@@ -19,10 +19,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
-import org.glowroot.common.util.OnlyUsedByTests;
-
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Needs to be externally synchronized around startBlock()/write()/endBlock()/sync().
+//
+// Writes are positional writes to the underlying FileChannel, and currIndex, lastResizeBaseIndex
+// and sizeBytes are volatile, so that readers can perform positional reads without holding the
+// external lock (see CappedDatabase).
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -32,16 +36,22 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     private final File file;
     private RandomAccessFile out;
+    private FileChannel outChannel;
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is advanced before bytes are written, so that a reader who checks isOverwritten()
+    // after reading can detect that the bytes it read may have been overwritten
+    private volatile long currIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
+    private volatile long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
     // startBlock()/write()/endBlock()
     private volatile int sizeKb;
-    private long sizeBytes;
+    private volatile long sizeBytes;
+
+    private final ByteBuffer longBuffer = ByteBuffer.allocate(8);
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -66,6 +76,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        outChannel = out.getChannel();
     }
 
     void startBlock() {
@@ -81,13 +92,19 @@ class CappedDatabaseOutputStream extends OutputStream {
         currIndex += BLOCK_HEADER_SKIP_BYTES;
     }
 
+    // the block is not durable until sync() is called, which allows multiple blocks to be
+    // committed with a single sync
     long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        writeLong(HEADER_SKIP_BYTES + blockStartPosition,
+                currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
+        writeLong(HEADER_CURR_INDEX_POS, currIndex);
         return blockStartIndex;
     }
 
+    void sync() throws IOException {
+        outChannel.force(false);
+    }
+
     boolean isOverwritten(long cappedId) {
         return cappedId < getSmallestNonOverwrittenId();
     }
@@ -111,6 +128,10 @@ class CappedDatabaseOutputStream extends OutputStream {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
+    long getSizeBytes() {
+        return sizeBytes;
+    }
+
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
         if (performEasyResize(newSizeKb)) {
@@ -149,6 +170,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         sizeKb = newSizeKb;
         sizeBytes = newSizeBytes;
         out = new RandomAccessFile(file, "rw");
+        outChannel = out.getChannel();
     }
 
     @Override
@@ -173,19 +195,31 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
-        out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
+        // advance currIndex prior to writing (see comment on currIndex)
+        currIndex += len;
         if (len >= remaining) {
             // intentionally handling == case here
-            out.write(b, off, (int) remaining);
-            out.seek(HEADER_SKIP_BYTES);
-            out.write(b, (int) remaining, (int) (len - remaining));
+            writeFully(ByteBuffer.wrap(b, off, (int) remaining), HEADER_SKIP_BYTES + currPosition);
+            writeFully(ByteBuffer.wrap(b, off + (int) remaining, (int) (len - remaining)),
+                    HEADER_SKIP_BYTES);
         } else {
-            out.write(b, off, len);
+            writeFully(ByteBuffer.wrap(b, off, len), HEADER_SKIP_BYTES + currPosition);
+        }
+    }
+
+    private void writeLong(long position, long value) throws IOException {
+        longBuffer.clear();
+        longBuffer.putLong(value);
+        longBuffer.flip();
+        writeFully(longBuffer, position);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            currPosition += outChannel.write(buffer, currPosition);
         }
-        currIndex += len;
-        out.seek(HEADER_CURR_INDEX_POS);
-        out.writeLong(currIndex);
     }
 
     private boolean performEasyResize(int newSizeKb) throws IOException {
@@ -212,11 +246,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
-    void sync() throws IOException {
-        out.getFD().sync();
-    }
-
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
             throws IOException {
         byte[] block = new byte[1024];
@@ -25,7 +25,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -49,7 +54,15 @@ import org.glowroot.agent.embedded.util.Schemas.Index;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// all writes (and schema changes) go through a single writer connection under the lock, while
+// queries go through a pool of reader connections, so that (slow) UI queries do not hold up
+// storing traces and aggregates behind the lock
+//
+// the database is opened in MVCC mode so that readers do not take table locks, note that h2 1.3
+// still executes statements one at a time inside the database, so the main benefit is that result
+// set processing (e.g. reading trace entries from the capped database) no longer holds the lock
 public class DataSource {
 
     private static final Logger logger = LoggerFactory.getLogger(DataSource.class);
@@ -60,14 +73,27 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READER_POOL_SIZE =
+            Math.max(Integer.getInteger("glowroot.internal.h2.readerPoolSize", 4), 1);
+
+    private static final AtomicInteger memDbCounter = new AtomicInteger();
+
     // null means use memDb
     private final @Nullable File dbFile;
+    private final String url;
     private final Thread shutdownHookThread;
     private final Object lock = new Object();
     @GuardedBy("lock")
     private Connection connection;
     private volatile boolean closing = false;
 
+    private final BlockingQueue<ReaderConnection> readerConnections =
+            new LinkedBlockingQueue<ReaderConnection>();
+    // read lock is held while a reader connection is in use, write lock is held while the reader
+    // connections are closed (and re-created), so that waiting for in-flight reads to complete
+    // happens before (and not while) holding the writer lock
+    private final ReadWriteLock readerConnectionsLock = new ReentrantReadWriteLock();
+
     private final Map</*@Untainted*/String, ImmutableList<Column>> tables = Maps.newConcurrentMap();
     private final Map</*@Untainted*/String, ImmutableList<Index>> indexes = Maps.newConcurrentMap();
 
@@ -84,14 +110,22 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        // named in-memory database so that it can be shared by the writer and reader connections
+        // (it is closed when the last connection is closed)
+        url = "jdbc:h2:mem:glowroot-" + memDbCounter.getAndIncrement() + ";" + getUrlSettings();
+        connection = createConnection(url);
+        createReaderConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        String dbPath = dbFile.getPath();
+        dbPath = dbPath.replaceFirst(".h2.db$", "");
+        url = "jdbc:h2:" + dbPath + ";" + getUrlSettings() + ";cache_size=" + CACHE_SIZE;
+        connection = createConnection(url);
+        createReaderConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -100,13 +134,20 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closing) {
-                return;
+        readerConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closing) {
+                    return;
+                }
+                closeReaderConnections();
+                execute("shutdown defrag");
+                preparedStatementCache.invalidateAll();
+                connection = createConnection(url);
+                createReaderConnections();
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+        } finally {
+            readerConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -114,23 +155,33 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closing) {
-                return;
-            }
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            boolean success = dbFile.delete();
-            connection = createConnection(dbFile);
-            for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables.entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes.entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            if (!success) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+        readerConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closing) {
+                    return;
+                }
+                closeReaderConnections();
+                connection.close();
+                preparedStatementCache.invalidateAll();
+                boolean success = dbFile.delete();
+                connection = createConnection(url);
+                createReaderConnections();
+                for (Entry</*@Untainted*/String, ImmutableList<Column>> entry : tables
+                        .entrySet()) {
+                    syncTable(entry.getKey(), entry.getValue());
+                }
+                for (Entry</*@Untainted*/String, ImmutableList<Index>> entry : indexes
+                        .entrySet()) {
+                    syncIndexes(entry.getKey(), entry.getValue());
+                }
+                if (!success) {
+                    throw new SQLException(
+                            "Could not delete file: " + dbFile.getAbsolutePath());
+                }
             }
+        } finally {
+            readerConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -163,11 +214,13 @@ public class DataSource {
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closing) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+        ReaderConnection readerConnection = acquireReaderConnection();
+        if (readerConnection == null) {
+            return null;
+        }
+        try {
+            return query(readerConnection, sql, args,
+                    new ResultSetExtractor</*@Nullable*/ Long>() {
                 @Override
                 public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -181,21 +234,26 @@ public class DataSource {
                     return value;
                 }
             });
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
     public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closing) {
-                return false;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
+        ReaderConnection readerConnection = acquireReaderConnection();
+        if (readerConnection == null) {
+            return false;
+        }
+        try {
+            return query(readerConnection, sql, args, new ResultSetExtractor<Boolean>() {
                 @Override
                 public Boolean extractData(ResultSet resultSet) throws SQLException {
                     return resultSet.next();
                 }
             });
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
@@ -215,12 +273,13 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closing) {
-                return jdbcQuery.valueIfDataSourceClosing();
-            }
+        ReaderConnection readerConnection = acquireReaderConnection();
+        if (readerConnection == null) {
+            return jdbcQuery.valueIfDataSourceClosing();
+        }
+        try {
             PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                    readerConnection.prepareStatement(jdbcQuery.getSql());
             jdbcQuery.bind(preparedStatement);
             ResultSet resultSet = preparedStatement.executeQuery();
             ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -231,7 +290,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and only used by the thread
+            // that has acquired the reader connection
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
@@ -249,12 +311,13 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closing) {
-                return ImmutableList.of();
-            }
+        ReaderConnection readerConnection = acquireReaderConnection();
+        if (readerConnection == null) {
+            return ImmutableList.of();
+        }
+        try {
             PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                    readerConnection.prepareStatement(jdbcQuery.getSql());
             jdbcQuery.bind(preparedStatement);
             ResultSet resultSet = preparedStatement.executeQuery();
             ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -269,7 +332,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and only used by the thread
+            // that has acquired the reader connection
+        } finally {
+            releaseReaderConnection(readerConnection);
         }
     }
 
@@ -399,16 +465,84 @@ public class DataSource {
             if (closing) {
                 return;
             }
+            // set before waiting for in-flight reads, so that new reads and writes abort quickly
             closing = true;
-            connection.close();
+        }
+        readerConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                closeReaderConnections();
+                connection.close();
+            }
+        } finally {
+            readerConnectionsLock.writeLock().unlock();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
+    // returns null if the data source is closing
+    private @Nullable ReaderConnection acquireReaderConnection() throws SQLException {
+        if (closing) {
+            return null;
+        }
+        readerConnectionsLock.readLock().lock();
+        boolean acquired = false;
+        try {
+            ReaderConnection readerConnection;
+            // polling in order to notice if the data source is closing
+            while ((readerConnection = readerConnections.poll(1, SECONDS)) == null) {
+                if (closing) {
+                    return null;
+                }
+            }
+            if (closing) {
+                readerConnection.close();
+                return null;
+            }
+            acquired = true;
+            return readerConnection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } finally {
+            if (!acquired) {
+                readerConnectionsLock.readLock().unlock();
+            }
+        }
+    }
+
+    private void releaseReaderConnection(ReaderConnection readerConnection) throws SQLException {
+        try {
+            if (closing) {
+                readerConnection.close();
+            } else {
+                readerConnections.add(readerConnection);
+            }
+        } finally {
+            readerConnectionsLock.readLock().unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void createReaderConnections() throws SQLException {
+        for (int i = 0; i < READER_POOL_SIZE; i++) {
+            readerConnections.add(new ReaderConnection(createConnection(url)));
+        }
+    }
+
+    // must be called while holding the reader connections write lock, so that no reader
+    // connections are in use
+    @GuardedBy("lock")
+    private void closeReaderConnections() throws SQLException {
+        ReaderConnection readerConnection;
+        while ((readerConnection = readerConnections.poll()) != null) {
+            readerConnection.close();
+        }
+    }
+
+    private static <T extends /*@Nullable*/ Object> T query(ReaderConnection readerConnection,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement = readerConnection.prepareStatement(sql);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -421,11 +555,19 @@ public class DataSource {
         } finally {
             closer.close();
         }
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and only used by the thread
+        // that has acquired the reader connection
     }
 
+    @GuardedBy("lock")
     private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
             throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    private static PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -441,27 +583,21 @@ public class DataSource {
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private static String getUrlSettings() {
+        // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
+        return "compress=true;db_close_on_exit=false;mvcc=true";
+    }
+
+    private static Connection createConnection(String url) throws SQLException {
         try {
             Class.forName("org.h2.Driver");
         } catch (ClassNotFoundException e) {
             throw new SQLException(e);
         }
-        if (dbFile == null) {
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
-                    new Properties());
-        } else {
-            String dbPath = dbFile.getPath();
-            dbPath = dbPath.replaceFirst(".h2.db$", "");
-            Properties props = new Properties();
-            props.setProperty("user", "sa");
-            props.setProperty("password", "");
-            // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
-                    + CACHE_SIZE;
-            return new JdbcConnection(url, props);
-        }
+        Properties props = new Properties();
+        props.setProperty("user", "sa");
+        props.setProperty("password", "");
+        return new JdbcConnection(url, props);
     }
 
     private static void debug(String sql, @Nullable Object... args) {
@@ -515,6 +651,36 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // each reader connection has its own prepared statement cache, and is only used by one thread
+    // at a time (between acquireReaderConnection() and releaseReaderConnection())
+    private static class ReaderConnection {
+
+        private final Connection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private ReaderConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            return DataSource.prepareStatement(preparedStatementCache, sql,
+                    QUERY_TIMEOUT_SECONDS);
+        }
+
+        private void close() throws SQLException {
+            connection.close();
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -527,6 +693,11 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closing = true;
                 synchronized (lock) {
+                    // reader connections that are in use are closed when they are released
+                    ReaderConnection readerConnection;
+                    while ((readerConnection = readerConnections.poll()) != null) {
+                        readerConnection.close();
+                    }
                     connection.close();
                 }
             } catch (SQLException e) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// positional reads from a file, using read-only memory mapped segments of the file, or using
+// positional FileChannel reads when memory mapping is disabled
+//
+// this class is thread safe and does not perform any locking, segments are mapped lazily (and
+// re-mapped if the file has grown since the segment was mapped), and it is ok if multiple threads
+// race to map the same segment
+//
+// mapped segments are never explicitly unmapped (there is no public api for this), they are
+// unmapped when they are garbage collected after close()
+class MappedFileReader {
+
+    // memory mapping is opt-in (-Dglowroot.internal.cappedDatabase.mmap=true) until the mapped
+    // read path has been measured against the positional read path, see
+    // CappedDatabasePerformanceMain
+    //
+    // it should not be enabled on windows since a file cannot be deleted on windows while it is
+    // mapped (which is needed by CappedDatabaseOutputStream.resize())
+    static final boolean MMAP_ENABLED =
+            Boolean.getBoolean("glowroot.internal.cappedDatabase.mmap");
+
+    private static final int SEGMENT_SHIFT = 26; // 64mb
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final FileChannel channel;
+    private final boolean mmap;
+
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+
+    MappedFileReader(File file, long maxFileSize, boolean mmap) throws IOException {
+        channel = new RandomAccessFile(file, "r").getChannel();
+        this.mmap = mmap;
+        int segmentCount = (int) ((maxFileSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        segments = new AtomicReferenceArray<MappedByteBuffer>(mmap ? segmentCount : 0);
+    }
+
+    void readFully(byte[] bytes, int off, int len, long position) throws IOException {
+        if (!mmap) {
+            readFully(ByteBuffer.wrap(bytes, off, len), position);
+            return;
+        }
+        long currPosition = position;
+        int currOff = off;
+        int remaining = len;
+        while (remaining > 0) {
+            int segmentIndex = (int) (currPosition >>> SEGMENT_SHIFT);
+            int segmentOffset = (int) (currPosition & (SEGMENT_SIZE - 1));
+            int numToRead = (int) Math.min(remaining, SEGMENT_SIZE - segmentOffset);
+            if (segmentIndex >= segments.length()) {
+                // file is larger than expected (e.g. max file size is out of date), so fall back
+                // to channel read
+                readFully(ByteBuffer.wrap(bytes, currOff, numToRead), currPosition);
+            } else {
+                ByteBuffer segment = getSegment(segmentIndex, segmentOffset + numToRead);
+                // duplicate so that position is not shared across threads
+                ByteBuffer buffer = segment.duplicate();
+                buffer.position(segmentOffset);
+                buffer.get(bytes, currOff, numToRead);
+            }
+            currPosition += numToRead;
+            currOff += numToRead;
+            remaining -= numToRead;
+        }
+    }
+
+    long readLong(long position) throws IOException {
+        byte[] bytes = new byte[8];
+        readFully(bytes, 0, 8, position);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer getSegment(int segmentIndex, int minLimit) throws IOException {
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        if (segment != null && segment.limit() >= minLimit) {
+            return segment;
+        }
+        // map up to the current end of file, since the file grows until the capped database
+        // wraps around for the first time (and read only mappings cannot extend the file)
+        long segmentStart = (long) segmentIndex << SEGMENT_SHIFT;
+        long mapSize = Math.min(SEGMENT_SIZE, channel.size() - segmentStart);
+        if (mapSize < minLimit) {
+            throw new EOFException();
+        }
+        segment = channel.map(MapMode.READ_ONLY, segmentStart, mapSize);
+        segments.set(segmentIndex, segment);
+        return segment;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long currPosition = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, currPosition);
+            if (n == -1) {
+                throw new EOFException();
+            }
+            currPosition += n;
+        }
+    }
+}
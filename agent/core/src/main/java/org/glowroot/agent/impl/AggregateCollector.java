@@ -54,7 +54,7 @@ import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-// must be used under an appropriate lock
+// must be used under an appropriate lock (AggregateIntervalCollector synchronizes on the instance)
 @Styles.Private
 class AggregateCollector {
 
@@ -228,7 +228,8 @@ class AggregateCollector {
                 .captureTime(captureTime)
                 .totalDurationNanos(totalDurationNanos)
                 .transactionCount(transactionCount)
-                .durationNanosHistogram(durationNanosHistogram.toProto(new ScratchBuffer()))
+                .durationNanosHistogram(
+                        durationNanosHistogram.toProtoWithoutSketch(new ScratchBuffer()))
                 .build();
     }
 
@@ -16,12 +16,12 @@
 package org.glowroot.agent.impl;
 
 import java.io.IOException;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
@@ -59,10 +59,16 @@ public class AggregateIntervalCollector {
     private final int maxAggregateServiceCallsPerType;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
-
-    private final Object lock = new Object();
+    // aggregation is striped by transaction type and transaction name, each AggregateCollector is
+    // guarded by its own monitor, so that readers (e.g. UI polling of live aggregates) only
+    // contend with aggregation of the same transaction type/name
+    //
+    // readers that span multiple collectors of a transaction type (the transaction summaries) read
+    // each collector under its own monitor, so they do not block aggregation of the other
+    // transaction names, the summaries are therefore not an atomic snapshot across transaction
+    // names, which is fine since the current interval is still changing anyway
+    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
@@ -80,32 +86,30 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
-            typeCollector.add(transaction);
-        }
+        IntervalTypeCollector typeCollector = getTypeCollector(transaction.getTransactionType());
+        typeCollector.add(transaction);
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+        synchronized (aggregateCollector) {
+            aggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                .values()) {
+            synchronized (aggregateCollector) {
                 aggregateCollector.mergeTransactionSummariesInto(collector);
             }
         }
@@ -113,24 +117,25 @@ public class AggregateIntervalCollector {
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        AggregateCollector aggregateCollector = typeCollector.overallAggregateCollector;
+        synchronized (aggregateCollector) {
+            aggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
+        if (typeCollector == null) {
+            return;
+        }
+        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                .values()) {
+            synchronized (aggregateCollector) {
                 aggregateCollector.mergeTransactionErrorSummariesInto(collector);
             }
         }
@@ -138,99 +143,97 @@ public class AggregateIntervalCollector {
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
-            }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        synchronized (aggregateCollector) {
             return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
-                }
+        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+            if (fullQueryText != null) {
+                return fullQueryText;
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) throws IOException {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
-            }
+        AggregateCollector aggregateCollector =
+                getAggregateCollector(transactionType, transactionName);
+        if (aggregateCollector == null) {
+            return;
+        }
+        synchronized (aggregateCollector) {
             aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
@@ -240,17 +243,18 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
-        }
+        typeCollectors.clear();
     }
 
     private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+            IntervalTypeCollector existing =
+                    typeCollectors.putIfAbsent(transactionType, typeCollector);
+            if (existing != null) {
+                typeCollector = existing;
+            }
         }
         return typeCollector;
     }
@@ -271,8 +275,10 @@ public class AggregateIntervalCollector {
     private class IntervalTypeCollector {
 
         private final AggregateCollector overallAggregateCollector;
-        private final Map<String, AggregateCollector> transactionAggregateCollectors =
+        private final ConcurrentMap<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
+        // counted separately from the map, so that concurrent adds cannot exceed the limit
+        private final AtomicInteger transactionNameCount = new AtomicInteger();
 
         private IntervalTypeCollector() {
             overallAggregateCollector = new AggregateCollector(null, maxAggregateQueriesPerType,
@@ -281,15 +287,11 @@ public class AggregateIntervalCollector {
 
         private void add(Transaction transaction) {
             merge(transaction, overallAggregateCollector);
+            String transactionName = transaction.getTransactionName();
             AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
-            if (transactionAggregateCollector == null && transactionAggregateCollectors
-                    .size() < maxAggregateTransactionsPerTransactionType) {
-                transactionAggregateCollector =
-                        new AggregateCollector(transaction.getTransactionName(),
-                                maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
-                transactionAggregateCollectors.put(transaction.getTransactionName(),
-                        transactionAggregateCollector);
+                    transactionAggregateCollectors.get(transactionName);
+            if (transactionAggregateCollector == null) {
+                transactionAggregateCollector = getOrCreate(transactionName);
             }
             if (transactionAggregateCollector == null) {
                 if (!maxAggregateTransactionsWarnLogged.getAndSet(true)) {
@@ -304,7 +306,33 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        // returns null if the max transaction names per transaction type has been reached
+        private @Nullable AggregateCollector getOrCreate(String transactionName) {
+            int count = transactionNameCount.incrementAndGet();
+            if (count > maxAggregateTransactionsPerTransactionType) {
+                transactionNameCount.decrementAndGet();
+                // another thread may have added it in the meantime
+                return transactionAggregateCollectors.get(transactionName);
+            }
+            AggregateCollector transactionAggregateCollector = new AggregateCollector(
+                    transactionName, maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+            AggregateCollector existing = transactionAggregateCollectors
+                    .putIfAbsent(transactionName, transactionAggregateCollector);
+            if (existing != null) {
+                transactionNameCount.decrementAndGet();
+                return existing;
+            }
+            return transactionAggregateCollector;
+        }
+
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
+            synchronized (aggregateCollector) {
+                mergeInternal(transaction, aggregateCollector);
+            }
+        }
+
+        private void mergeInternal(Transaction transaction,
+                AggregateCollector aggregateCollector) {
             aggregateCollector.add(transaction);
             aggregateCollector.getMainThreadRootTimers()
                     .mergeRootTimer(transaction.getMainThreadRootTimer());
@@ -323,44 +351,56 @@ public class AggregateIntervalCollector {
         }
 
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
-            String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
+            String fullQueryText = getFullQueryText(overallAggregateCollector, fullQueryTextSha1);
             if (fullQueryText != null) {
                 return fullQueryText;
             }
             for (AggregateCollector aggregateCollector : transactionAggregateCollectors.values()) {
-                fullQueryText = aggregateCollector.getFullQueryText(fullQueryTextSha1);
+                fullQueryText = getFullQueryText(aggregateCollector, fullQueryTextSha1);
                 if (fullQueryText != null) {
                     return fullQueryText;
                 }
             }
             return null;
         }
+
+        private @Nullable String getFullQueryText(AggregateCollector aggregateCollector,
+                String fullQueryTextSha1) {
+            synchronized (aggregateCollector) {
+                return aggregateCollector.getFullQueryText(fullQueryTextSha1);
+            }
+        }
     }
 
     private class AggregatesImpl implements Aggregates {
         @Override
         public <T extends Exception> void accept(AggregateVisitor<T> aggregateVisitor) throws T {
-            synchronized (lock) {
-                SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
+            SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+            ScratchBuffer scratchBuffer = new ScratchBuffer();
+            for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+                String transactionType = e.getKey();
+                IntervalTypeCollector intervalTypeCollector = e.getValue();
+                Aggregate overallAggregate = build(intervalTypeCollector.overallAggregateCollector,
+                        sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (Entry<String, AggregateCollector> f : intervalTypeCollector
+                        .transactionAggregateCollectors.entrySet()) {
+                    Aggregate transactionAggregate =
+                            build(f.getValue(), sharedQueryTextCollector, scratchBuffer);
+                    aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
                             sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
-                    }
+                            transactionAggregate);
                 }
             }
         }
+
+        private Aggregate build(AggregateCollector aggregateCollector,
+                SharedQueryTextCollector sharedQueryTextCollector, ScratchBuffer scratchBuffer) {
+            synchronized (aggregateCollector) {
+                return aggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
+            }
+        }
     }
 }
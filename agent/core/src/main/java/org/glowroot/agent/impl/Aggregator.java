@@ -18,9 +18,10 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -35,6 +36,7 @@ import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
@@ -46,6 +48,8 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    private static final long MAX_PARK_MILLIS = 1000;
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
@@ -58,14 +62,17 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // the transaction queue is a lock free multi-producer single-consumer linked list, producers
+    // link new nodes by swapping the tail, and the single TransactionProcessor thread consumes
+    // from the head
+    private final AtomicReference<PendingTransaction> tail;
+    // head is only accessed by the TransactionProcessor thread
+    private PendingTransaction head;
+    // written only by the TransactionProcessor thread, read by producers to apply back pressure
+    private volatile long processedCount;
+
+    private volatile @Nullable Thread processorThread;
+    private volatile boolean processorParked;
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
@@ -75,6 +82,8 @@ public class Aggregator {
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
+        head = new PendingTransaction(null, 0, 0);
+        tail = new AtomicReference<PendingTransaction>(head);
         processingExecutor = Executors.newSingleThreadExecutor(
                 new ThreadFactoryBuilder()
                         .setDaemon(true)
@@ -112,26 +121,34 @@ public class Aggregator {
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
+        // capture time is assigned as part of linking the transaction into the queue, and is never
+        // less than the capture time of the node it is linked after, so that traces are placed
+        // into processing queue in the order of captureTime (so that queue reader can assume if
+        // captureTime indicates time to flush, then no new traces will come in with prior
+        // captureTime)
+        PendingTransaction prevTail;
+        PendingTransaction newTail;
+        do {
+            prevTail = tail.get();
+            // clock must be read after reading the tail, see maybeEndOfInterval()
+            long captureTime = Math.max(clock.currentTimeMillis(), prevTail.captureTime);
+            if (prevTail.sequence - processedCount >= TRANSACTION_PENDING_LIMIT) {
                 backPressureLogger.warn("not aggregating a transaction because of an excessive"
                         + " backlog of {} transactions already waiting to be aggregated",
                         TRANSACTION_PENDING_LIMIT);
                 transaction.removeFromActiveTransactions();
                 return captureTime;
             }
-            newTail.captureTime = captureTime;
-            tail.next = newTail;
-            tail = newTail;
-            queueLength++;
+            newTail = new PendingTransaction(transaction, captureTime, prevTail.sequence + 1);
+        } while (!tail.compareAndSet(prevTail, newTail));
+        prevTail.next = newTail;
+        if (processorParked) {
+            Thread processorThread = this.processorThread;
+            if (processorThread != null) {
+                LockSupport.unpark(processorThread);
+            }
         }
-        return captureTime;
+        return newTail.captureTime;
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -167,6 +184,7 @@ public class Aggregator {
 
         @Override
         public void run() {
+            processorThread = Thread.currentThread();
             while (true) {
                 try {
                     processOne();
@@ -183,11 +201,14 @@ public class Aggregator {
         private void processOne() throws InterruptedException {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                if (tail.get() != head) {
+                    // a producer has swapped in a new tail but has not linked it to the previous
+                    // tail yet, this window is only a few instructions long
+                    Thread.yield();
+                } else if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
                     maybeEndOfInterval();
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    waitForTransaction();
                 }
                 return;
             }
@@ -197,15 +218,11 @@ public class Aggregator {
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
+            // remove head (the consumed node becomes the new head, so release its transaction)
+            pendingTransaction.transaction = null;
+            head = pendingTransaction;
+            processedCount = pendingTransaction.sequence;
+
             if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
                 flushActiveIntervalCollector();
                 activeIntervalCollector = new AggregateIntervalCollector(
@@ -218,28 +235,50 @@ public class Aggregator {
         }
 
         private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
+            long currentTime = Math.max(clock.currentTimeMillis(), head.captureTime);
+            if (currentTime <= activeIntervalCollector.getCaptureTime()) {
+                return;
+            }
+            // swap an empty marker node in place of the current tail, this fails if something
+            // just crept into the queue (possibly still something from active interval, it will
+            // get picked up right away and if it is in next interval it will force active
+            // aggregate to be flushed anyways)
+            //
+            // if it succeeds, then any producer that read the current tail (and possibly the clock)
+            // before the swap will fail its own compareAndSet, and will re-read the clock after
+            // reading the marker node, so no other pending transactions can enter queue with
+            // earlier capture time than the marker node
+            PendingTransaction marker = new PendingTransaction(null, currentTime, head.sequence);
+            if (!tail.compareAndSet(head, marker)) {
+                return;
+            }
+            head = marker;
+            flushActiveIntervalCollector();
+            activeIntervalCollector = new AggregateIntervalCollector(currentTime,
+                    aggregateIntervalMillis,
+                    configService.getAdvancedConfig()
+                            .maxAggregateTransactionsPerType(),
+                    configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                    configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+        }
+
+        private void waitForTransaction() throws InterruptedException {
+            processorParked = true;
+            try {
+                // re-check after setting the parked flag, since a producer that linked a new
+                // transaction before reading the flag will not unpark this thread
+                if (tail.get() == head) {
+                    long remainingMillis =
+                            activeIntervalCollector.getCaptureTime() - clock.currentTimeMillis();
+                    // wake up at the end of the active interval (capped in case clock is adjusted)
+                    LockSupport.parkNanos(MILLISECONDS
+                            .toNanos(Math.max(1, Math.min(remainingMillis + 1, MAX_PARK_MILLIS))));
                 }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+            } finally {
+                processorParked = false;
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
         }
 
@@ -269,12 +308,19 @@ public class Aggregator {
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for head
+        private @Nullable Transaction transaction;
+        // captureTime and sequence are safely published by the compareAndSet on the tail
+        private final long captureTime;
+        // number of transactions that have been linked into the queue up to and including this
+        private final long sequence;
         private volatile @Nullable PendingTransaction next;
 
-        private PendingTransaction(@Nullable Transaction transaction) {
+        private PendingTransaction(@Nullable Transaction transaction, long captureTime,
+                long sequence) {
             this.transaction = transaction;
+            this.captureTime = captureTime;
+            this.sequence = sequence;
         }
     }
 }
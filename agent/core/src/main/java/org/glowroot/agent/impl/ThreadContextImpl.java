@@ -37,6 +37,7 @@ import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.QueryDataMap;
 import org.glowroot.agent.model.QueryEntryBase;
+import org.glowroot.agent.model.QueryTexts;
 import org.glowroot.agent.model.ThreadContextPlus;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.ThreadStatsComponent;
@@ -104,6 +105,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private @MonotonicNonNull QueryDataMap serviceCallsForFirstType;
     private @MonotonicNonNull Map<String, QueryDataMap> allServiceCallTypesMap;
 
+    // the most recent (synchronous) query entry beyond the trace entry limit, which is reused for
+    // the next such query entry once it has completed, as long as it has the same timer and the
+    // same query data (only accessed by the thread context's thread)
+    private @Nullable DummyTraceEntryOrQuery reusableDummyQueryEntry;
+
     private final long threadId;
 
     private final boolean limitExceededAuxThreadContext;
@@ -263,13 +269,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     // only called by transaction thread
-    private QueryData getOrCreateQueryDataIfPossible(String queryType, String queryText,
-            boolean bypassLimit) {
+    private @Nullable QueryData getOrCreateQueryDataIfPossible(String queryType,
+            String rawQueryText, boolean bypassLimit) {
+        // when query normalization is enabled, queries that only differ by literals share a single
+        // query data (trace entries still get the raw query text)
+        String queryText = QueryTexts.getAggregateQueryText(queryType, rawQueryText);
         if (headQueryData == null) {
             // the call to allowAnotherAggregateQuery() is needed to increment the counter
             if (!transaction.allowAnotherAggregateQuery(bypassLimit)) {
                 // maxAggregateQueriesPerType set to 0
-                return new QueryData(queryType, queryText, null);
+                return null;
             }
             QueryData queryData = new QueryData(queryType, queryText, null);
             queriesForFirstType = new QueryDataMap(queryType);
@@ -287,9 +296,6 @@ public class ThreadContextImpl implements ThreadContextPlus {
             queriesForCurrentType.put(queryText, queryData);
             headQueryData = queryData;
         }
-        if (queryData == null) {
-            return new QueryData(queryType, queryText, null);
-        }
         return queryData;
     }
 
@@ -320,9 +326,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private TraceEntryImpl addErrorEntry(long startTick, long endTick,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
-            ErrorMessage errorMessage) {
+            @Nullable String queryText, ErrorMessage errorMessage) {
         TraceEntryImpl entry = traceEntryComponent.addErrorEntry(startTick, endTick,
-                messageSupplier, queryData, errorMessage);
+                messageSupplier, queryData, queryText, errorMessage);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -332,7 +338,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private TraceEntryImpl startAsyncTraceEntry(long startTick, MessageSupplier messageSupplier,
             TimerImpl syncTimer, AsyncTimerImpl asyncTimer) {
         TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier, syncTimer,
-                asyncTimer, null, 0);
+                asyncTimer, null, null, 0);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -341,21 +347,37 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private TraceEntryImpl startAsyncQueryEntry(long startTick,
             QueryMessageSupplier queryMessageSupplier, TimerImpl syncTimer,
-            AsyncTimerImpl asyncTimer, @Nullable QueryData queryData, long queryExecutionCount) {
+            AsyncTimerImpl asyncTimer, @Nullable QueryData queryData, String queryText,
+            long queryExecutionCount) {
         TraceEntryImpl entry =
                 traceEntryComponent.pushEntry(startTick, queryMessageSupplier, syncTimer,
-                        asyncTimer, queryData, queryExecutionCount);
+                        asyncTimer, queryData, queryText, queryExecutionCount);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
         return entry;
     }
 
+    // only called by transaction thread
+    private DummyTraceEntryOrQuery startDummyQueryEntry(TimerImpl timer, long startTick,
+            QueryMessageSupplier queryMessageSupplier, @Nullable QueryData queryData,
+            long queryExecutionCount, String queryText) {
+        DummyTraceEntryOrQuery entry = reusableDummyQueryEntry;
+        if (entry != null && entry.isReusableFor(timer, queryData)) {
+            entry.restart(startTick, queryMessageSupplier, queryExecutionCount, queryText);
+            return entry;
+        }
+        entry = new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
+                queryData, queryExecutionCount, queryText);
+        reusableDummyQueryEntry = entry;
+        return entry;
+    }
+
     private TraceEntryImpl startAsyncServiceCallEntry(long startTick,
             MessageSupplier messageSupplier, TimerImpl syncTimer, AsyncTimerImpl asyncTimer,
             @Nullable QueryData queryData) {
         TraceEntryImpl entry = traceEntryComponent.pushEntry(startTick, messageSupplier,
-                syncTimer, asyncTimer, queryData, 1);
+                syncTimer, asyncTimer, queryData, null, 1);
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -491,7 +513,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
-            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
+            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null,
+                    null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
         }
@@ -510,7 +533,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
-            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
+            return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null,
+                    null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
         }
@@ -562,11 +586,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
-                    queryData, 1);
+                    queryData, queryText, 1);
         } else {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
-            return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
-                    queryData, 1);
+            return startDummyQueryEntry(timer, startTick, queryMessageSupplier, queryData, 1,
+                    queryText);
         }
     }
 
@@ -594,11 +618,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return traceEntryComponent.pushEntry(startTick, queryMessageSupplier, timer, null,
-                    queryData, queryExecutionCount);
+                    queryData, queryText, queryExecutionCount);
         } else {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
-            return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
-                    queryData, queryExecutionCount);
+            return startDummyQueryEntry(timer, startTick, queryMessageSupplier, queryData,
+                    queryExecutionCount, queryText);
         }
     }
 
@@ -628,11 +652,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         if (transaction.allowAnotherEntry()) {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, true);
             return startAsyncQueryEntry(startTick, queryMessageSupplier, syncTimer, asyncTimer,
-                    queryData, 1);
+                    queryData, queryText, 1);
         } else {
             QueryData queryData = getOrCreateQueryDataIfPossible(queryType, queryText, false);
             return new DummyTraceEntryOrQuery(syncTimer, asyncTimer, startTick,
-                    queryMessageSupplier, queryData, 1);
+                    queryMessageSupplier, queryData, 1, queryText);
         }
     }
 
@@ -660,7 +684,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         QueryData queryData = getOrCreateServiceCallDataIfPossible(type, text);
         if (transaction.allowAnotherEntry()) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, queryData,
-                    1);
+                    null, 1);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, queryData,
                     1);
@@ -834,7 +858,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             ErrorMessage errorMessage =
                     ErrorMessage.create(message, t, transaction.getThrowableFrameLimitCounter());
             org.glowroot.agent.impl.TraceEntryImpl entry =
-                    addErrorEntry(currTick, currTick, null, null, errorMessage);
+                    addErrorEntry(currTick, currTick, null, null, null, errorMessage);
             if (t == null) {
                 StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
                 // need to strip back a few stack calls:
@@ -909,8 +933,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         private final TimerImpl syncTimer;
         private final @Nullable AsyncTimerImpl asyncTimer;
-        private final long startTick;
-        private final Object messageSupplier;
+        // these are only non-final so that synchronous query entries can be reused, see
+        // startDummyQueryEntry()
+        private long startTick;
+        private Object messageSupplier;
 
         // not volatile, so depends on memory barrier in Transaction for visibility
         private int selfNestingLevel;
@@ -922,7 +948,14 @@ public class ThreadContextImpl implements ThreadContextPlus {
         public DummyTraceEntryOrQuery(TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer,
                 long startTick, Object messageSupplier, @Nullable QueryData queryData,
                 long queryExecutionCount) {
-            super(queryData);
+            this(syncTimer, asyncTimer, startTick, messageSupplier, queryData, queryExecutionCount,
+                    null);
+        }
+
+        public DummyTraceEntryOrQuery(TimerImpl syncTimer, @Nullable AsyncTimerImpl asyncTimer,
+                long startTick, Object messageSupplier, @Nullable QueryData queryData,
+                long queryExecutionCount, @Nullable String queryText) {
+            super(queryData, queryText);
             this.syncTimer = syncTimer;
             this.asyncTimer = asyncTimer;
             this.startTick = startTick;
@@ -932,6 +965,24 @@ public class ThreadContextImpl implements ThreadContextPlus {
             }
         }
 
+        // the timer is the same instance when the timer name and the parent timer are the same
+        private boolean isReusableFor(TimerImpl syncTimer, @Nullable QueryData queryData) {
+            return initialComplete && selfNestingLevel == 0 && asyncTimer == null
+                    && this.syncTimer == syncTimer && getQueryData() == queryData;
+        }
+
+        private void restart(long startTick, Object messageSupplier, long queryExecutionCount,
+                String queryText) {
+            resetQueryEntry(queryText);
+            this.startTick = startTick;
+            this.messageSupplier = messageSupplier;
+            initialComplete = false;
+            QueryData queryData = getQueryData();
+            if (queryData != null) {
+                queryData.start(startTick, queryExecutionCount);
+            }
+        }
+
         @Override
         public void end() {
             endInternal(ticker.read());
@@ -977,7 +1028,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                         transaction.getThrowableFrameLimitCounter());
                 // entry won't be nested properly, but at least the error will get captured
                 org.glowroot.agent.impl.TraceEntryImpl entry = addErrorEntry(startTick, endTick,
-                        messageSupplier, getQueryData(), errorMessage);
+                        messageSupplier, getQueryData(), getQueryText(), errorMessage);
                 if (t == null) {
                     StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
                     // need to strip back a few stack calls:
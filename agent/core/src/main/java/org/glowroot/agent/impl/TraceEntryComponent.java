@@ -48,8 +48,8 @@ class TraceEntryComponent {
             TimerImpl timer, long startTick) {
         this.threadContext = threadContext;
         this.startTick = startTick;
-        rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
-                timer, null);
+        rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, null, 0,
+                startTick, timer, null);
         activeEntry = rootEntry;
         tailEntry = rootEntry;
     }
@@ -72,9 +72,9 @@ class TraceEntryComponent {
 
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
-            long queryExecutionCount) {
+            @Nullable String queryText, long queryExecutionCount) {
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+                queryData, queryText, queryExecutionCount, startTick, syncTimer, asyncTimer);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
@@ -100,9 +100,9 @@ class TraceEntryComponent {
     }
 
     TraceEntryImpl addErrorEntry(long startTick, long endTick, @Nullable Object messageSupplier,
-            @Nullable QueryData queryData, ErrorMessage errorMessage) {
+            @Nullable QueryData queryData, @Nullable String queryText, ErrorMessage errorMessage) {
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, 1, startTick, null, null);
+                queryData, queryText, 1, startTick, null, null);
         entry.immediateEndAsErrorEntry(errorMessage, endTick);
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
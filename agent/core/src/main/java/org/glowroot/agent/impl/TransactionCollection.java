@@ -15,74 +15,56 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.Nullable;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
+// entries are held in a concurrent map (striped by the number of processors) so that add and
+// remove are O(1) and do not take any shared lock, and iteration is weakly consistent
 class TransactionCollection implements Iterable<Transaction> {
 
     private final ReferenceQueue<Transaction> queue = new ReferenceQueue<Transaction>();
 
-    private final TransactionEntry headEntry = new TransactionEntry(null, queue);
-
-    // tail is non-volatile since only accessed under lock
-    private TransactionEntry tailEntry = headEntry;
-
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    // the map is used as a set (with identity semantics since TransactionEntry does not override
+    // equals/hashCode)
+    private final ConcurrentMap<TransactionEntry, Boolean> entries =
+            new ConcurrentHashMap<TransactionEntry, Boolean>(16, 0.75f,
+                    Runtime.getRuntime().availableProcessors());
 
     TransactionEntry add(Transaction transaction) {
-        TransactionEntry newTailEntry = new TransactionEntry(transaction, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
-        }
-        return newTailEntry;
+        expungeStaleEntries();
+        TransactionEntry entry = new TransactionEntry(transaction, queue);
+        entries.put(entry, Boolean.TRUE);
+        return entry;
     }
 
     @Override
     public Iterator<Transaction> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
-        }
+        expungeStaleEntries();
         return new TransactionIterator();
     }
 
-    // requires lock
+    // only removes the entries whose transactions have been collected, which is O(1) per entry
+    // since the reference queue hands back the entries themselves
     private void expungeStaleEntries() {
-        Reference<? extends Transaction> ref = queue.poll();
-        if (ref == null) {
-            return;
-        }
-        // drain the queue, since going to loop over and clean up everything anyways
-        while (queue.poll() != null) {
-        }
-        TransactionEntry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            if (currEntry.getTransaction() == null) {
-                currEntry.remove();
-            }
-            currEntry = currEntry.nextEntry;
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            entries.remove(ref);
         }
     }
 
     private class TransactionIterator implements Iterator<Transaction> {
 
-        private @Nullable TransactionEntry nextEntry;
+        private final Iterator<TransactionEntry> entryIterator = entries.keySet().iterator();
         private @Nullable Transaction nextTransaction;
 
         @SuppressWarnings("method.invocation.invalid")
         private TransactionIterator() {
-            nextEntry = headEntry;
             advance();
         }
 
@@ -107,61 +89,22 @@ class TransactionCollection implements Iterable<Transaction> {
         }
 
         private void advance() {
-            advanceOne();
-            while (nextTransaction == null && nextEntry != null) {
-                advanceOne();
+            nextTransaction = null;
+            while (nextTransaction == null && entryIterator.hasNext()) {
+                nextTransaction = entryIterator.next().get();
             }
         }
-
-        private void advanceOne() {
-            checkNotNull(nextEntry);
-            nextEntry = nextEntry.nextEntry;
-            nextTransaction = nextEntry == null ? null : nextEntry.getTransaction();
-        }
     }
 
-    class TransactionEntry {
-
-        private final @Nullable WeakReference<Transaction> transactionRef; // only null for head
-
-        // prev is non-volatile since only accessed under lock
-        private @Nullable TransactionEntry prevEntry; // only null for head and removed
+    class TransactionEntry extends WeakReference<Transaction> {
 
-        // next is volatile since accessed by iterator outside of lock
-        private volatile @Nullable TransactionEntry nextEntry;
-
-        private TransactionEntry(@Nullable Transaction transaction,
-                ReferenceQueue<Transaction> queue) {
-            if (transaction == null) {
-                transactionRef = null;
-            } else {
-                transactionRef = new WeakReference<Transaction>(transaction, queue);
-            }
+        private TransactionEntry(Transaction transaction, ReferenceQueue<Transaction> queue) {
+            super(transaction, queue);
         }
 
         void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                TransactionEntry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
-            }
-        }
-
-        private @Nullable Transaction getTransaction() {
-            if (transactionRef == null) {
-                return null;
-            }
-            return transactionRef.get();
+            // removing an already removed entry is a no-op
+            entries.remove(this);
         }
     }
 }
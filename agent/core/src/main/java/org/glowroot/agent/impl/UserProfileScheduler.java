@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
@@ -42,6 +43,16 @@ public class UserProfileScheduler {
 
     private static final Logger logger = LoggerFactory.getLogger(UserProfileRunnable.class);
 
+    // stack traces are captured in full by default, since truncation drops the outermost (root)
+    // frames, and profile merging is anchored at the root frame
+    private static final int MAX_STACK_TRACE_DEPTH = Integer
+            .getInteger("glowroot.internal.profiling.maxStackTraceDepth", Integer.MAX_VALUE);
+
+    // each ThreadMXBean.getThreadInfo() call brings the JVM to a safepoint, so threads are captured
+    // in batches to keep each individual pause short when there are many active threads
+    private static final int THREAD_INFO_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.profiling.threadInfoBatchSize", 100);
+
     private final ScheduledExecutorService backgroundExecutor;
     private final ConfigService configService;
     private final Random random;
@@ -85,19 +96,22 @@ public class UserProfileScheduler {
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
-        long[] threadIds = new long[threadContexts.size()];
-        for (int i = 0; i < threadContexts.size(); i++) {
-            threadIds[i] = threadContexts.get(i).getThreadId();
-        }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
         int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
-        for (int i = 0; i < threadContexts.size(); i++) {
-            ThreadContextImpl threadContext = threadContexts.get(i);
-            ThreadInfo threadInfo = threadInfos[i];
-            if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo, limit);
+        for (int from = 0; from < threadContexts.size(); from += THREAD_INFO_BATCH_SIZE) {
+            int to = Math.min(from + THREAD_INFO_BATCH_SIZE, threadContexts.size());
+            long[] threadIds = new long[to - from];
+            for (int i = from; i < to; i++) {
+                threadIds[i - from] = threadContexts.get(i).getThreadId();
+            }
+            @Nullable
+            ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIds, MAX_STACK_TRACE_DEPTH);
+            for (int i = from; i < to; i++) {
+                ThreadContextImpl threadContext = threadContexts.get(i);
+                ThreadInfo threadInfo = threadInfos[i - from];
+                if (threadInfo != null) {
+                    threadContext.captureStackTrace(threadInfo, limit);
+                }
             }
         }
     }
@@ -61,9 +61,11 @@ import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Version;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -79,6 +81,9 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", 60 * 1000);
 
+    // persistent cache of woven bytecode, see WeavingCache
+    private static final boolean WEAVING_CACHE = Boolean.getBoolean("glowroot.weaving.cache");
+
     @OnlyUsedByTests
     public static final ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader> isolatedWeavingClassLoader =
             new ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader>();
@@ -126,9 +131,17 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        if (WEAVING_CACHE && instrumentation != null) {
+            weavingCache = WeavingCache.create(baseDir, Version.getVersion(AgentModule.class),
+                    pluginCache.pluginJars(), pluginCache.pluginDescriptors(),
+                    configService.getInstrumentationConfigs(),
+                    adviceCache.getAdvisorsSupplier().get(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                configService, weavingCache);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -147,6 +160,9 @@ public class AgentModule {
                 jvmRetransformClassesSupported = false;
             }
             logRunnableCallableClassWarningIfNeeded(instrumentation);
+            if (weavingCache != null) {
+                weavingCache.start();
+            }
         }
 
         // now that instrumentation is set up, it is safe to create scheduled executor
@@ -195,6 +211,8 @@ public class AgentModule {
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(stackTraceCollector,
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
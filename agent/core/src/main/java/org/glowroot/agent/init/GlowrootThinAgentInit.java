@@ -98,8 +98,9 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
                 Collector collector;
                 if (customCollector == null) {
                     centralCollector = new CentralCollector(properties,
-                            checkNotNull(collectorHost), agentModule.getLiveJvmService(),
-                            agentModule.getLiveWeavingService(),
+                            checkNotNull(collectorHost), baseDir,
+                            agentModule.getLazyPlatformMBeanServer(),
+                            agentModule.getLiveJvmService(), agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater);
                     collector = centralCollector;
                 } else {
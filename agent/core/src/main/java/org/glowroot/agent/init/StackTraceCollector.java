@@ -33,11 +33,23 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
-class StackTraceCollector {
+class StackTraceCollector implements StackTraceCollectorMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // the profiling interval is automatically increased when the measured time spent capturing
+    // stack traces exceeds this percentage of the (wall clock) time between captures
+    private static final double CPU_BUDGET_PERCENT =
+            Double.parseDouble(System.getProperty("glowroot.internal.profiling.cpuBudgetPercent",
+                    "2"));
+
+    // weight given to the most recent measurement in the exponential moving averages below
+    private static final double SMOOTHING_FACTOR = 0.2;
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -45,6 +57,12 @@ class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    // these are only written by the processing thread
+    private volatile double averageSampleCostNanos;
+    private volatile double averageSamplePeriodNanos;
+    private volatile long lastSampleStartNanos;
+    private volatile int lastSampleThreadCount;
+
     StackTraceCollector(TransactionRegistry transactionRegistry, final ConfigService configService,
             Random random) {
         this.transactionRegistry = transactionRegistry;
@@ -73,6 +91,44 @@ class StackTraceCollector {
         });
     }
 
+    @Override
+    public int getConfiguredIntervalMillis() {
+        return configService.getTransactionConfig().profilingIntervalMillis();
+    }
+
+    @Override
+    public long getEffectiveIntervalMillis() {
+        return getEffectiveIntervalMillis(getConfiguredIntervalMillis());
+    }
+
+    @Override
+    public double getAverageSampleCostMillis() {
+        return averageSampleCostNanos / NANOSECONDS.convert(1, MILLISECONDS);
+    }
+
+    @Override
+    public double getAchievedSamplesPerSecond() {
+        double averageSamplePeriodNanos = this.averageSamplePeriodNanos;
+        if (averageSamplePeriodNanos == 0) {
+            return 0;
+        }
+        return NANOSECONDS.convert(1, SECONDS) / averageSamplePeriodNanos;
+    }
+
+    @Override
+    public int getLastSampleThreadCount() {
+        return lastSampleThreadCount;
+    }
+
+    // back off so that time spent capturing stack traces stays within the budget
+    private long getEffectiveIntervalMillis(int intervalMillis) {
+        if (intervalMillis <= 0) {
+            return intervalMillis;
+        }
+        long minIntervalNanos = (long) (averageSampleCostNanos * 100 / CPU_BUDGET_PERCENT);
+        return Math.max(intervalMillis, MILLISECONDS.convert(minIntervalNanos, NANOSECONDS));
+    }
+
     @OnlyUsedByTests
     void close() {
         runnable.closing.set(true);
@@ -103,7 +159,9 @@ class StackTraceCollector {
                         continue;
                     }
                 }
-                long randomDelayFromIntervalStart = (long) (random.nextFloat() * intervalMillis);
+                long effectiveIntervalMillis = getEffectiveIntervalMillis(intervalMillis);
+                long randomDelayFromIntervalStart =
+                        (long) (random.nextFloat() * effectiveIntervalMillis);
                 try {
                     Thread.sleep(remainingInInterval + randomDelayFromIntervalStart);
                 } catch (InterruptedException e) {
@@ -116,7 +174,7 @@ class StackTraceCollector {
                     remainingInInterval = 0;
                     continue;
                 }
-                remainingInInterval = intervalMillis - randomDelayFromIntervalStart;
+                remainingInInterval = effectiveIntervalMillis - randomDelayFromIntervalStart;
                 try {
                     runInternal();
                 } catch (Throwable t) {
@@ -126,9 +184,11 @@ class StackTraceCollector {
         }
 
         private void runInternal() {
+            long startNanos = System.nanoTime();
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
+                lastSampleThreadCount = 0;
                 return;
             }
             List<ThreadContextImpl> activeThreadContexts =
@@ -142,6 +202,21 @@ class StackTraceCollector {
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
             UserProfileScheduler.captureStackTraces(activeThreadContexts, configService);
+            long endNanos = System.nanoTime();
+            lastSampleThreadCount = activeThreadContexts.size();
+            averageSampleCostNanos = smooth(averageSampleCostNanos, endNanos - startNanos);
+            if (lastSampleStartNanos != 0) {
+                averageSamplePeriodNanos =
+                        smooth(averageSamplePeriodNanos, startNanos - lastSampleStartNanos);
+            }
+            lastSampleStartNanos = startNanos;
+        }
+
+        private double smooth(double average, long value) {
+            if (average == 0) {
+                return value;
+            }
+            return average + SMOOTHING_FACTOR * (value - average);
         }
     }
 }
@@ -16,51 +16,49 @@
 package org.glowroot.agent.model;
 
 import java.lang.management.ThreadInfo;
-import java.util.Arrays;
-import java.util.List;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.StackTraceSamples;
+import org.glowroot.wire.api.model.ProfileOuterClass;
 
+// samples are stored compactly as interned frame ids, and only materialized into a profile tree
+// when the profile is read or merged into an aggregate profile
+//
+// toProto() rebuilds the profile tree from the samples, so the result is cached until the next
+// sample is added, since the profile of an active trace is re-read each time the trace is refreshed
+// in the ui (and again when the completed trace is stored)
 public class Profile {
 
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
-    @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
-    @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private final StackTraceSamples samples = new StackTraceSamples();
     @GuardedBy("lock")
     private long sampleCount;
+    @GuardedBy("lock")
+    private @Nullable ProfileOuterClass.Profile cachedProto;
 
     @VisibleForTesting
     public Profile() {}
 
     public void mergeInto(MutableProfile profile) {
         synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
-            }
+            samples.mergeInto(profile);
         }
     }
 
-    public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+    public ProfileOuterClass.Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
+            if (cachedProto == null) {
+                MutableProfile profile = new MutableProfile();
+                samples.mergeInto(profile);
+                cachedProto = profile.toProto();
             }
-            return profile.toProto();
+            return cachedProto;
         }
     }
 
@@ -78,30 +76,9 @@ public class Profile {
             if (sampleCount >= limit) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
-                }
-            } else {
-                profile.merge(stackTrace, threadState);
-            }
+            samples.add(threadInfo.getStackTrace(), threadInfo.getThreadState());
             sampleCount++;
-        }
-    }
-
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+            cachedProto = null;
         }
     }
 }
@@ -23,15 +23,14 @@ import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
 
-import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.immutables.value.Value;
 
+import org.glowroot.agent.model.QueryTexts.TruncatedQueryText;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -103,22 +102,12 @@ public class QueryCollector {
     public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
         for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
             for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
-                String fullQueryText = entry.getKey();
-                String truncatedQueryText;
-                String fullQueryTextSha1;
-                if (fullQueryText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-                    truncatedQueryText =
-                            fullQueryText.substring(0, StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 =
-                            Hashing.sha1().hashString(fullQueryText, Charsets.UTF_8).toString();
-                } else {
-                    truncatedQueryText = fullQueryText;
-                    fullQueryTextSha1 = null;
-                }
+                TruncatedQueryText truncatedQueryText =
+                        QueryTexts.getTruncatedQueryText(entry.getKey());
                 MutableQuery query = entry.getValue();
-                collector.mergeQuery(outerEntry.getKey(), truncatedQueryText, fullQueryTextSha1,
-                        query.getTotalDurationNanos(), query.getExecutionCount(),
-                        query.hasTotalRows(), query.getTotalRows());
+                collector.mergeQuery(outerEntry.getKey(), truncatedQueryText.truncatedQueryText(),
+                        truncatedQueryText.fullQueryTextSha1(), query.getTotalDurationNanos(),
+                        query.getExecutionCount(), query.hasTotalRows(), query.getTotalRows());
             }
         }
     }
@@ -129,7 +118,7 @@ public class QueryCollector {
                 if (fullQueryText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, Charsets.UTF_8).toString();
+                String sha1 = QueryTexts.getTruncatedQueryText(fullQueryText).fullQueryTextSha1();
                 if (fullQueryTextSha1.equals(sha1)) {
                     return fullQueryText;
                 }
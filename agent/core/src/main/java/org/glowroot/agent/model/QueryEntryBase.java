@@ -26,13 +26,18 @@ public abstract class QueryEntryBase implements QueryEntry {
 
     private final @Nullable QueryData queryData;
 
+    // this is the raw query text, which can differ from the query data's (aggregate) query text
+    // when query normalization is enabled
+    private @Nullable String queryText;
+
     // row numbers start at 1
     private long currRow = -1;
 
     private long maxRow;
 
-    protected QueryEntryBase(@Nullable QueryData queryData) {
+    protected QueryEntryBase(@Nullable QueryData queryData, @Nullable String queryText) {
         this.queryData = queryData;
+        this.queryText = queryText;
     }
 
     public void extendQueryData(long startTick) {
@@ -105,11 +110,18 @@ public abstract class QueryEntryBase implements QueryEntry {
         return maxRow;
     }
 
+    // for reusing a completed query entry for another execution of the same query
+    protected void resetQueryEntry(@Nullable String queryText) {
+        this.queryText = queryText;
+        currRow = -1;
+        maxRow = 0;
+    }
+
     protected @Nullable QueryData getQueryData() {
         return queryData;
     }
 
     protected @Nullable String getQueryText() {
-        return queryData == null ? null : queryData.getQueryText();
+        return queryText;
     }
 }
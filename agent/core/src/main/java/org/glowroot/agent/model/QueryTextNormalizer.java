@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.regex.Pattern;
+
+// replaces literals in sql (and cql) query texts with placeholders, so that queries that differ
+// only by inlined literals are aggregated together
+//
+// this is a best effort lexical pass (not a parser), e.g.
+//
+// select * from t where a = 'x' and b in (1, 2, 3) --> select * from t where a = ? and b in (?)
+class QueryTextNormalizer {
+
+    // IN-lists are collapsed (after literals are replaced) so that lists of different lengths are
+    // aggregated together
+    private static final Pattern IN_LIST_PATTERN =
+            Pattern.compile("(?i)(\\bin\\s*)\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+    private QueryTextNormalizer() {}
+
+    static String normalize(String queryText) {
+        StringBuilder sb = new StringBuilder(queryText.length());
+        boolean replaced = false;
+        int length = queryText.length();
+        int i = 0;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\'') {
+                i = skipStringLiteral(queryText, i);
+                sb.append('?');
+                replaced = true;
+            } else if (c == '"' || c == '`') {
+                // quoted identifier
+                int end = queryText.indexOf(c, i + 1);
+                end = end == -1 ? length : end + 1;
+                sb.append(queryText, i, end);
+                i = end;
+            } else if (c == '-' && i + 1 < length && queryText.charAt(i + 1) == '-') {
+                int end = queryText.indexOf('\n', i);
+                end = end == -1 ? length : end;
+                sb.append(queryText, i, end);
+                i = end;
+            } else if (c == '/' && i + 1 < length && queryText.charAt(i + 1) == '*') {
+                int end = queryText.indexOf("*/", i + 2);
+                end = end == -1 ? length : end + 2;
+                sb.append(queryText, i, end);
+                i = end;
+            } else if (isDigit(c) && !isIdentifierPart(queryText, i - 1)) {
+                // numeric literal, including decimals, exponents and hex (e.g. 0x1F)
+                i++;
+                while (i < length && (Character.isLetterOrDigit(queryText.charAt(i))
+                        || queryText.charAt(i) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+                replaced = true;
+            } else if (isIdentifierStart(c)) {
+                int end = i + 1;
+                while (end < length && isIdentifierPart(queryText, end)) {
+                    end++;
+                }
+                sb.append(queryText, i, end);
+                i = end;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        if (!replaced && queryText.indexOf('?') == -1) {
+            return queryText;
+        }
+        // this also collapses IN-lists of bind parameters
+        String normalizedQueryText = IN_LIST_PATTERN.matcher(sb).replaceAll("$1(?)");
+        return normalizedQueryText.equals(queryText) ? queryText : normalizedQueryText;
+    }
+
+    // returns the index after the closing quote
+    private static int skipStringLiteral(String queryText, int start) {
+        int length = queryText.length();
+        int i = start + 1;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\\') {
+                // mysql style escape
+                i += 2;
+            } else if (c == '\'') {
+                if (i + 1 < length && queryText.charAt(i + 1) == '\'') {
+                    // escaped quote
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$' || c == '@' || c == ':';
+    }
+
+    private static boolean isIdentifierPart(String queryText, int index) {
+        if (index < 0) {
+            return false;
+        }
+        char c = queryText.charAt(index);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '@' || c == ':'
+                || c == '.';
+    }
+}
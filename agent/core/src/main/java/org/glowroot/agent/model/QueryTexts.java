@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import org.immutables.value.Value;
+
+import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.util.Styles;
+
+// caches of normalized and truncated query texts, only used when query normalization is enabled
+//
+// with normalization, the number of distinct aggregate query texts is small (one per statement
+// shape), so normalized query texts are interned (so that they share a single instance and its
+// cached hash code), and their truncation and sha1 are computed once instead of once per merge
+//
+// the caches are bounded by total characters, since query texts can be very long
+public class QueryTexts {
+
+    // replace literals in aggregate sql/cql query texts with placeholders, see QueryTextNormalizer
+    private static final boolean NORMALIZE_QUERIES =
+            Boolean.getBoolean("glowroot.aggregate.normalizeQueries");
+
+    private static final int MAX_CHARS =
+            Integer.getInteger("glowroot.internal.query.textCacheMaxChars", 1000000);
+
+    private static final @Nullable QueryTexts INSTANCE =
+            NORMALIZE_QUERIES ? new QueryTexts(MAX_CHARS) : null;
+
+    // keys are normalized query texts, values are the same (interned) instances
+    private final Cache<String, String> normalizedQueryTexts;
+
+    // keys are full query texts, only query texts longer than
+    // StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE are cached here
+    private final Cache<String, TruncatedQueryText> truncatedQueryTexts;
+
+    @VisibleForTesting
+    QueryTexts(int maxChars) {
+        normalizedQueryTexts = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<String, String>() {
+                    @Override
+                    public int weigh(String key, String value) {
+                        return key.length();
+                    }
+                })
+                .build();
+        truncatedQueryTexts = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<String, TruncatedQueryText>() {
+                    @Override
+                    public int weigh(String key, TruncatedQueryText value) {
+                        return key.length() + value.truncatedQueryText().length();
+                    }
+                })
+                .build();
+    }
+
+    // returns the query text that the query is aggregated under, this is called when the query data
+    // is looked up, so that queries which only differ by literals share a single query data
+    public static String getAggregateQueryText(String queryType, String queryText) {
+        if (INSTANCE == null || !(queryType.equals("SQL") || queryType.equals("CQL"))) {
+            return queryText;
+        }
+        return INSTANCE.normalize(queryText);
+    }
+
+    static TruncatedQueryText getTruncatedQueryText(String fullQueryText) {
+        if (INSTANCE == null) {
+            return truncateInternal(fullQueryText);
+        }
+        return INSTANCE.truncate(fullQueryText);
+    }
+
+    @VisibleForTesting
+    String normalize(String queryText) {
+        String normalizedQueryText = QueryTextNormalizer.normalize(queryText);
+        String existingQueryText =
+                normalizedQueryTexts.asMap().putIfAbsent(normalizedQueryText, normalizedQueryText);
+        return existingQueryText == null ? normalizedQueryText : existingQueryText;
+    }
+
+    @VisibleForTesting
+    TruncatedQueryText truncate(String fullQueryText) {
+        if (fullQueryText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+            return truncateInternal(fullQueryText);
+        }
+        TruncatedQueryText truncatedQueryText = truncatedQueryTexts.getIfPresent(fullQueryText);
+        if (truncatedQueryText == null) {
+            truncatedQueryText = truncateInternal(fullQueryText);
+            truncatedQueryTexts.put(fullQueryText, truncatedQueryText);
+        }
+        return truncatedQueryText;
+    }
+
+    @VisibleForTesting
+    long getCachedChars() {
+        long cachedChars = 0;
+        for (String normalizedQueryText : normalizedQueryTexts.asMap().keySet()) {
+            cachedChars += normalizedQueryText.length();
+        }
+        for (String fullQueryText : truncatedQueryTexts.asMap().keySet()) {
+            cachedChars += fullQueryText.length() + StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE;
+        }
+        return cachedChars;
+    }
+
+    private static TruncatedQueryText truncateInternal(String fullQueryText) {
+        if (fullQueryText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+            return ImmutableTruncatedQueryText.of(fullQueryText, null);
+        }
+        return ImmutableTruncatedQueryText.of(
+                fullQueryText.substring(0, StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE),
+                Hashing.sha1().hashString(fullQueryText, Charsets.UTF_8).toString());
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface TruncatedQueryText {
+        String truncatedQueryText();
+        @Nullable
+        String fullQueryTextSha1();
+    }
+}
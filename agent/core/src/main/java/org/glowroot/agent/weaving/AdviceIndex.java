@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+// index of advisors by their declaring class name, so that each class load only needs to test the
+// advisors that can possibly match the class name, instead of testing every advisor
+//
+// exact class names are looked up in a hash map, simple wildcard patterns (e.g. org.example.*) are
+// looked up in a trie by their literal prefix, and full regex patterns (and advisors with no class
+// name restriction) are always candidates
+//
+// candidates still need to be checked with AdviceMatcher.isDeclaringClassMatch(), since the index
+// only narrows them down
+//
+// not using guava collections here since this is called from inside
+// ClassFileTransformer.transform() (see PreInitializeWeavingClasses)
+class AdviceIndex {
+
+    private final List<Advice> advisors;
+
+    private final BitSet alwaysCandidates = new BitSet();
+    private final Map<String, BitSet> exactCandidates = new HashMap<String, BitSet>();
+    private final TrieNode prefixCandidates = new TrieNode();
+
+    AdviceIndex(List<Advice> advisors) {
+        this.advisors = advisors;
+        for (int i = 0; i < advisors.size(); i++) {
+            index(advisors.get(i), i);
+        }
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // returned candidates are in the same order as the advisors
+    List<Advice> getCandidates(String className) {
+        BitSet candidates = (BitSet) alwaysCandidates.clone();
+        BitSet exact = exactCandidates.get(className);
+        if (exact != null) {
+            candidates.or(exact);
+        }
+        TrieNode node = prefixCandidates;
+        for (int i = 0; i < className.length(); i++) {
+            candidates.or(node.candidates);
+            node = node.children.get(className.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
+        if (node != null) {
+            candidates.or(node.candidates);
+        }
+        List<Advice> list = new ArrayList<Advice>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            list.add(advisors.get(i));
+        }
+        return list;
+    }
+
+    private void index(Advice advice, int i) {
+        String declaringClassName = advice.pointcutMethodDeclaringClassName();
+        if (advice.pointcutMethodDeclaringClassNamePattern() == null) {
+            if (declaringClassName.isEmpty()) {
+                alwaysCandidates.set(i);
+            } else {
+                getOrCreate(declaringClassName).set(i);
+            }
+            return;
+        }
+        // see AdviceBuilder.buildPattern()
+        if (declaringClassName.startsWith("/") && declaringClassName.endsWith("/")
+                || !declaringClassName.contains("|") && !declaringClassName.contains("*")) {
+            // full regex (or some other pattern that isn't understood here)
+            alwaysCandidates.set(i);
+            return;
+        }
+        for (String part : declaringClassName.split("\\|")) {
+            int index = part.indexOf('*');
+            if (index == -1) {
+                getOrCreate(part).set(i);
+            } else {
+                prefixCandidates.getOrCreate(part.substring(0, index)).candidates.set(i);
+            }
+        }
+    }
+
+    private BitSet getOrCreate(String className) {
+        BitSet candidates = exactCandidates.get(className);
+        if (candidates == null) {
+            candidates = new BitSet();
+            exactCandidates.put(className, candidates);
+        }
+        return candidates;
+    }
+
+    private static class TrieNode {
+
+        private final Map<Character, TrieNode> children = new HashMap<Character, TrieNode>();
+        private final BitSet candidates = new BitSet();
+
+        private TrieNode getOrCreate(String prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                @Nullable
+                TrieNode child = node.children.get(c);
+                if (child == null) {
+                    child = new TrieNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+    }
+}
@@ -37,10 +37,14 @@ abstract class AdviceMatcher {
 
     private static final Logger logger = LoggerFactory.getLogger(AdviceMatcher.class);
 
+    // index for the most recently used advisors list, which only changes on reweaving (and for
+    // classes with @Instrumentation annotations)
+    private static volatile @Nullable AdviceIndex adviceIndex;
+
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
             List<String> classAnnotations, List<Advice> advisors) {
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : getAdviceIndex(advisors).getCandidates(className)) {
             if (isDeclaringClassMatch(className, classAnnotations, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
@@ -138,6 +142,15 @@ abstract class AdviceMatcher {
         }
     }
 
+    private static AdviceIndex getAdviceIndex(List<Advice> advisors) {
+        AdviceIndex index = adviceIndex;
+        if (index == null || index.advisors() != advisors) {
+            index = new AdviceIndex(advisors);
+            adviceIndex = index;
+        }
+        return index;
+    }
+
     private static boolean isDeclaringClassMatch(String className, List<String> classAnnotations,
             Advice advice) {
         if (!isAnnotationMatch(classAnnotations, advice.pointcutClassNameAnnotationPattern(),
@@ -20,11 +20,9 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -52,8 +50,15 @@ public class AnalyzedWorld {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
 
+    // number of threads expected to update a single class loader's analyzed classes concurrently
+    private static final int CONCURRENCY_LEVEL =
+            Integer.getInteger("glowroot.internal.weaving.concurrencyLevel", 16);
+
     private static final Method findLoadedClassMethod;
 
+    // ClassLoader.getClassLoadingLock() only exists in jdk 1.7+
+    private static final @Nullable Method getClassLoadingLockMethod;
+
     static {
         try {
             findLoadedClassMethod = ClassLoader.class.getDeclaredMethod("findLoadedClass",
@@ -63,18 +68,25 @@ public class AnalyzedWorld {
             // unrecoverable error
             throw new AssertionError(e);
         }
+        Method method;
+        try {
+            method = ClassLoader.class.getDeclaredMethod("getClassLoadingLock",
+                    new Class[] {String.class});
+            method.setAccessible(true);
+        } catch (Exception e) {
+            // log exception at trace level
+            logger.trace(e.getMessage(), e);
+            method = null;
+        }
+        getClassLoadingLockMethod = method;
     }
 
     // weak keys to prevent retention of class loaders
     // it's important that the weak keys point directly to the class loaders themselves (as opposed
     // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
     // while their associated class loaders are still being used
-    //
-    // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
-    // additional classes that must then be pre-initialized since this is called from inside
-    // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    private final ClassLoaderMap<ConcurrentMap<String, AnalyzedClass>> world =
+            new ClassLoaderMap<ConcurrentMap<String, AnalyzedClass>>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
@@ -117,9 +129,7 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
-        }
+        return ImmutableList.copyOf(world.keys());
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
@@ -320,8 +330,9 @@ public class AnalyzedWorld {
         if (loader == null) {
             bytes = Resources.toByteArray(url);
         } else {
-            // synchronizing on the class loader here has saved at least one deadlock
-            synchronized (loader) {
+            // synchronizing on the class loading lock here has saved at least one deadlock
+            // (the lock is the class loader itself, unless it is parallel capable)
+            synchronized (getClassLoadingLock(loader, className)) {
                 bytes = Resources.toByteArray(url);
             }
         }
@@ -401,21 +412,29 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
-                }
-                return map;
+            ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            if (map == null) {
+                map = world.putIfAbsent(loader,
+                        new ConcurrentHashMap<String, AnalyzedClass>(16, 0.75f, CONCURRENCY_LEVEL));
             }
+            return map;
         }
     }
 
     private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+        return ImmutableList.copyOf(world.values());
+    }
+
+    private static Object getClassLoadingLock(ClassLoader loader, String className) {
+        if (getClassLoadingLockMethod == null) {
+            return loader;
+        }
+        try {
+            Object lock = getClassLoadingLockMethod.invoke(loader, className);
+            return lock == null ? loader : lock;
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return loader;
         }
     }
 
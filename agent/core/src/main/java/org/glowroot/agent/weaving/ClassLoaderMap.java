@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+// concurrent map with weak class loader keys (compared by identity)
+//
+// lookups do not lock, unlike Collections.synchronizedMap(new WeakHashMap()), which serializes
+// every lookup, even when parallel capable class loaders are loading classes on many threads
+//
+// entries for collected class loaders are expunged on subsequent writes
+//
+// not using guava CacheBuilder since it uses many additional classes that must then be
+// pre-initialized since this is called from inside ClassFileTransformer.transform() (see
+// PreInitializeWeavingClasses)
+class ClassLoaderMap<V> {
+
+    private final ConcurrentMap<Key, V> map = new ConcurrentHashMap<Key, V>();
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+    @Nullable
+    V get(ClassLoader loader) {
+        return map.get(new LookupKey(loader));
+    }
+
+    // returns the existing value if there is one
+    V putIfAbsent(ClassLoader loader, V value) {
+        expungeStaleEntries();
+        V existingValue = map.putIfAbsent(new WeakKey(loader, queue), value);
+        return existingValue == null ? value : existingValue;
+    }
+
+    List<ClassLoader> keys() {
+        expungeStaleEntries();
+        List<ClassLoader> loaders = new ArrayList<ClassLoader>();
+        for (Key key : map.keySet()) {
+            ClassLoader loader = key.loader();
+            if (loader != null) {
+                loaders.add(loader);
+            }
+        }
+        return loaders;
+    }
+
+    List<V> values() {
+        expungeStaleEntries();
+        return new ArrayList<V>(map.values());
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            map.remove(ref);
+        }
+    }
+
+    private interface Key {
+        @Nullable
+        ClassLoader loader();
+    }
+
+    private static class WeakKey extends WeakReference<ClassLoader> implements Key {
+
+        // identity hash code is retained so that the entry can still be removed after the class
+        // loader has been collected
+        private final int hashCode;
+
+        private WeakKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            hashCode = System.identityHashCode(loader);
+        }
+
+        @Override
+        public @Nullable ClassLoader loader() {
+            return get();
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            ClassLoader loader = get();
+            return loader != null && loader == ((Key) obj).loader();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // used for lookups to avoid creating weak references (and registering them with the queue)
+    private static class LookupKey implements Key {
+
+        private final ClassLoader loader;
+
+        private LookupKey(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public ClassLoader loader() {
+            return loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            return obj instanceof Key && loader == ((Key) obj).loader();
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.CodeSource;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -50,6 +51,7 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
 
 public class Weaver {
@@ -65,18 +67,20 @@ public class Weaver {
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final TimerName timerName;
+    private final @Nullable WeavingCache weavingCache;
 
     private volatile boolean enabled;
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
         this.transactionRegistry = transactionRegistry;
+        this.weavingCache = weavingCache;
         configService.addConfigListener(new ConfigListener() {
             @Override
             public void onChange() {
@@ -120,7 +124,8 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> configuredAdvisors = this.advisors.get();
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(configuredAdvisors,
                 classBytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
@@ -144,6 +149,24 @@ public class Weaver {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
             return maybeFelixBytes;
         }
+        // bootstrap classes are not cached since their meta holders are initialized as a side
+        // effect of weaving (see WeavingClassVisitor.initializeBoostrapMetaHolders())
+        //
+        // ClassAnalyzer still runs on a cache hit, since pointcut matching depends on the super
+        // types (not only on the class bytes) so its results are part of the cache key, and since
+        // the analyzed class is needed in analyzedWorld for analyzing subclasses
+        String cacheKey = null;
+        if (weavingCache != null && loader != null && maybeFelixBytes == null
+                && weavingCache.isEnabled(configuredAdvisors)) {
+            cacheKey = weavingCache.getKey(className, classBytes, classAnalyzer);
+        }
+        if (cacheKey != null) {
+            byte[] cachedBytes = readFromWeavingCache(cacheKey, className, codeSource, loader);
+            if (cachedBytes != null) {
+                analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                return cachedBytes;
+            }
+        }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
         //
         // "Classfiles with version number 51 are exclusively verified using the type-checking
@@ -156,8 +179,8 @@ public class Weaver {
         // stackmap information to be consistent with the bytecode in order to pass
         // verification."
         //
-        ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
-                loader, codeSource, className);
+        ComputeFramesClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES,
+                analyzedWorld, loader, codeSource, className);
         WeavingClassVisitor cv =
                 new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
                         classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
@@ -181,9 +204,30 @@ public class Weaver {
         if (VERIFY_WEAVING) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (cacheKey != null && !cv.hasMetaHolder()) {
+            checkNotNull(weavingCache);
+            weavingCache.write(cacheKey, transformedBytes, cw.getCommonSuperClassQueries());
+        }
         return transformedBytes;
     }
 
+    private byte /*@Nullable*/[] readFromWeavingCache(String cacheKey, String className,
+            @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
+        checkNotNull(weavingCache);
+        WeavingCache.Entry entry = weavingCache.read(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        ComputeFramesClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES,
+                analyzedWorld, loader, codeSource, className);
+        if (entry.isStale(cw)) {
+            logger.debug("weaving cache entry for {} is stale", className);
+            return null;
+        }
+        logger.debug("transform(): using weaving cache for {}", className);
+        return entry.wovenBytes();
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -257,6 +301,9 @@ public class Weaver {
         private final @Nullable ClassLoader loader;
         private final ParseContext parseContext;
 
+        // triples of (type1, type2, common super class), see WeavingCache.Entry
+        private final List<String> commonSuperClassQueries = new ArrayList<String>();
+
         public ComputeFramesClassWriter(int flags, AnalyzedWorld analyzedWorld,
                 @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
             super(flags);
@@ -265,9 +312,21 @@ public class Weaver {
             this.parseContext = ImmutableParseContext.of(className, codeSource);
         }
 
-        // implements logic similar to org.objectweb.asm.ClassWriter.getCommonSuperClass()
+        List<String> getCommonSuperClassQueries() {
+            return commonSuperClassQueries;
+        }
+
         @Override
         protected String getCommonSuperClass(String type1, String type2) {
+            String commonSuperClass = getCommonSuperClassUnrecorded(type1, type2);
+            commonSuperClassQueries.add(type1);
+            commonSuperClassQueries.add(type2);
+            commonSuperClassQueries.add(commonSuperClass);
+            return commonSuperClass;
+        }
+
+        // implements logic similar to org.objectweb.asm.ClassWriter.getCommonSuperClass()
+        private String getCommonSuperClassUnrecorded(String type1, String type2) {
             if (type1.equals("java/lang/Object") || type2.equals("java/lang/Object")) {
                 return "java/lang/Object";
             }
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.config.InstrumentationConfig;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.weaving.Weaver.ComputeFramesClassWriter;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// persistent cache of woven bytecode, so that classes do not need to be re-woven on every jvm
+// startup
+//
+// entries are keyed by a hash of the class bytes together with the results of ClassAnalyzer, and
+// are stored under a directory named by a fingerprint of the cache format version, the glowroot
+// version, the plugin jar contents, the plugin descriptors and the instrumentation configs, so a
+// change to any one of them results in a new (empty) cache directory
+//
+// the methods below that are called from inside ClassFileTransformer.transform() only use jdk types
+// and types that are already pre-initialized (see PreInitializeWeavingClasses)
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    // this must be incremented whenever the entry format or the key derivation changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int ENTRY_MAGIC = 0x67727763;
+
+    private static final String IDS_FILE_NAME = "ids";
+
+    private final File cacheDir;
+    private final List<Advice> advisors;
+    private final Map<Object, Integer> indexes = new IdentityHashMap<Object, Integer>();
+
+    private volatile @Nullable ExecutorService writeExecutor;
+    private volatile boolean disabled;
+
+    // only accessed by the write executor thread
+    private int writtenNestingGroupIdCount;
+    private int writtenSuppressionKeyIdCount;
+
+    private WeavingCache(File cacheDir, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        this.cacheDir = cacheDir;
+        this.advisors = advisors;
+        addIndexes(advisors);
+        addIndexes(shimTypes);
+        addIndexes(mixinTypes);
+    }
+
+    // this must be called prior to any weaving, since it initializes the nesting group and
+    // suppression key ids that are compiled into the cached bytecode
+    public static @Nullable WeavingCache create(File baseDir, String glowrootVersion,
+            List<File> pluginJars, List<PluginDescriptor> pluginDescriptors,
+            List<InstrumentationConfig> instrumentationConfigs, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        String fingerprint;
+        try {
+            fingerprint = getFingerprint(glowrootVersion, pluginJars, pluginDescriptors,
+                    instrumentationConfigs);
+        } catch (IOException e) {
+            logger.warn("could not read plugin jar, weaving cache disabled: {}", e.getMessage(),
+                    e);
+            return null;
+        }
+        return create(new File(baseDir, "weaving-cache"), fingerprint, advisors, shimTypes,
+                mixinTypes);
+    }
+
+    @VisibleForTesting
+    static @Nullable WeavingCache create(File parentDir, String fingerprint,
+            List<Advice> advisors, List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        File cacheDir = new File(parentDir, fingerprint);
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            logger.warn("could not create weaving cache directory: {}", cacheDir);
+            return null;
+        }
+        WeavingCache weavingCache = new WeavingCache(cacheDir, advisors, shimTypes, mixinTypes);
+        try {
+            weavingCache.readIds();
+        } catch (IOException e) {
+            logger.warn("could not read weaving cache ids, clearing weaving cache: {}",
+                    e.getMessage(), e);
+            deleteRecursively(cacheDir);
+            if (!cacheDir.mkdirs()) {
+                return null;
+            }
+        }
+        return weavingCache;
+    }
+
+    // advisors are not part of the fingerprint since they are derived from the plugin jars (or
+    // from the glowroot jar for embedded plugins) and the instrumentation configs, and their
+    // toString() is not a stable representation
+    @VisibleForTesting
+    static String getFingerprint(String glowrootVersion, List<File> pluginJars,
+            List<PluginDescriptor> pluginDescriptors,
+            List<InstrumentationConfig> instrumentationConfigs) throws IOException {
+        MessageDigest digest = getSha1();
+        update(digest, Integer.toString(FORMAT_VERSION));
+        update(digest, glowrootVersion);
+        for (File pluginJar : pluginJars) {
+            update(digest, pluginJar.getName());
+            digest.update(Files.hash(pluginJar, Hashing.sha1()).asBytes());
+        }
+        for (PluginDescriptor pluginDescriptor : pluginDescriptors) {
+            update(digest, pluginDescriptor.id());
+            for (String aspect : pluginDescriptor.aspects()) {
+                update(digest, aspect);
+            }
+            for (InstrumentationConfig config : pluginDescriptor.instrumentationConfigs()) {
+                digest.update(config.toProto().toByteArray());
+            }
+        }
+        update(digest, "");
+        for (InstrumentationConfig config : instrumentationConfigs) {
+            digest.update(config.toProto().toByteArray());
+        }
+        return toHex(digest.digest());
+    }
+
+    // this should be called only after the weaving class file transformer has been registered, so
+    // that the executor classes are woven
+    public void start() {
+        writeExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Weaving-Cache")
+                .build());
+        writeExecutor.execute(new DeleteStaleCacheDirsTask(cacheDir));
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        ExecutorService writeExecutor = this.writeExecutor;
+        if (writeExecutor == null) {
+            return;
+        }
+        writeExecutor.shutdown();
+        if (!writeExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    boolean isEnabled(List<Advice> advisors) {
+        if (disabled) {
+            return false;
+        }
+        if (advisors != this.advisors) {
+            // instrumentation config has changed (via the ui) since jvm startup, cached entries
+            // will be invalidated at next jvm startup since the fingerprint will have changed
+            disabled = true;
+            return false;
+        }
+        return true;
+    }
+
+    // returns null if the analysis refers to advice that is not part of the fingerprint (e.g.
+    // advice created from @Instrument annotations)
+    @Nullable
+    String getKey(String className, byte[] classBytes, ClassAnalyzer classAnalyzer) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(className);
+        AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+        sb.append(analyzedClass.modifiers());
+        sb.append(analyzedClass.superName());
+        sb.append(analyzedClass.interfaceNames());
+        if (!appendAnalyzedMethods(sb, analyzedClass.analyzedMethods())
+                || !appendIndexes(sb, analyzedClass.shimTypes())
+                || !appendIndexes(sb, analyzedClass.mixinTypes())) {
+            return null;
+        }
+        // sorted for deterministic key
+        Map<String, List<Advice>> methodAdvisors =
+                new TreeMap<String, List<Advice>>(classAnalyzer.getMethodAdvisors());
+        for (Map.Entry<String, List<Advice>> entry : methodAdvisors.entrySet()) {
+            sb.append(entry.getKey());
+            if (!appendIndexes(sb, entry.getValue())) {
+                return null;
+            }
+        }
+        if (!appendAnalyzedMethods(sb, classAnalyzer.getMethodsThatOnlyNowFulfillAdvice())
+                || !appendIndexes(sb, classAnalyzer.getMatchedShimTypes())
+                || !appendIndexes(sb, classAnalyzer.getMatchedMixinTypes())) {
+            return null;
+        }
+        MessageDigest digest = getSha1();
+        digest.update(sb.toString().getBytes(Charsets.UTF_8));
+        digest.update(classBytes);
+        return toHex(digest.digest());
+    }
+
+    @Nullable
+    Entry read(String key) {
+        File file = new File(cacheDir, key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != ENTRY_MAGIC) {
+                    logger.debug("invalid weaving cache entry: {}", file);
+                    return null;
+                }
+                byte[] wovenBytes = new byte[in.readInt()];
+                in.readFully(wovenBytes);
+                int commonSuperClassQueryCount = in.readInt();
+                List<String> commonSuperClassQueries =
+                        new ArrayList<String>(commonSuperClassQueryCount);
+                for (int i = 0; i < commonSuperClassQueryCount; i++) {
+                    commonSuperClassQueries.add(in.readUTF());
+                }
+                return new Entry(wovenBytes, commonSuperClassQueries);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // writes are performed asynchronously, and are dropped if the cache has not been started yet
+    void write(String key, byte[] wovenBytes, List<String> commonSuperClassQueries) {
+        ExecutorService writeExecutor = this.writeExecutor;
+        if (writeExecutor != null) {
+            writeExecutor.execute(new WriteTask(key,
+                    new Entry(wovenBytes, new ArrayList<String>(commonSuperClassQueries))));
+        }
+    }
+
+    private void addIndexes(List<?> list) {
+        for (int i = 0; i < list.size(); i++) {
+            indexes.put(list.get(i), i);
+        }
+    }
+
+    private boolean appendAnalyzedMethods(StringBuilder sb, List<AnalyzedMethod> analyzedMethods) {
+        for (AnalyzedMethod analyzedMethod : analyzedMethods) {
+            sb.append(analyzedMethod.name());
+            sb.append(analyzedMethod.parameterTypes());
+            sb.append(analyzedMethod.returnType());
+            sb.append(analyzedMethod.modifiers());
+            sb.append(analyzedMethod.signature());
+            sb.append(analyzedMethod.exceptions());
+            if (!appendIndexes(sb, analyzedMethod.advisors())
+                    || !appendIndexes(sb, analyzedMethod.declaredOnlyAdvisors())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean appendIndexes(StringBuilder sb, List<?> list) {
+        sb.append('[');
+        for (Object item : list) {
+            Integer index = indexes.get(item);
+            if (index == null) {
+                return false;
+            }
+            sb.append(index);
+            sb.append(',');
+        }
+        sb.append(']');
+        return true;
+    }
+
+    private void readIds() throws IOException {
+        File file = new File(cacheDir, IDS_FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            Map<String, Integer> nestingGroupIds = readIds(in);
+            Map<String, Integer> suppressionKeyIds = readIds(in);
+            WeavingMethodVisitor.initIds(nestingGroupIds, suppressionKeyIds);
+            writtenNestingGroupIdCount = nestingGroupIds.size();
+            writtenSuppressionKeyIdCount = suppressionKeyIds.size();
+        } finally {
+            in.close();
+        }
+    }
+
+    // the ids file is always written before any entry that could refer to the new ids
+    private void writeIdsIfNeeded() throws IOException {
+        Map<String, Integer> nestingGroupIds = WeavingMethodVisitor.getNestingGroupIds();
+        Map<String, Integer> suppressionKeyIds = WeavingMethodVisitor.getSuppressionKeyIds();
+        if (nestingGroupIds.size() == writtenNestingGroupIdCount
+                && suppressionKeyIds.size() == writtenSuppressionKeyIdCount) {
+            return;
+        }
+        File tmpFile = new File(cacheDir, IDS_FILE_NAME + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            writeIds(out, nestingGroupIds);
+            writeIds(out, suppressionKeyIds);
+        } finally {
+            out.close();
+        }
+        rename(tmpFile, new File(cacheDir, IDS_FILE_NAME));
+        writtenNestingGroupIdCount = nestingGroupIds.size();
+        writtenSuppressionKeyIdCount = suppressionKeyIds.size();
+    }
+
+    private void writeEntry(String key, Entry entry) throws IOException {
+        File tmpFile = new File(cacheDir, key + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(ENTRY_MAGIC);
+            out.writeInt(entry.wovenBytes.length);
+            out.write(entry.wovenBytes);
+            out.writeInt(entry.commonSuperClassQueries.size());
+            for (String commonSuperClassQuery : entry.commonSuperClassQueries) {
+                out.writeUTF(commonSuperClassQuery);
+            }
+        } finally {
+            out.close();
+        }
+        rename(tmpFile, new File(cacheDir, key));
+    }
+
+    private static Map<String, Integer> readIds(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < count; i++) {
+            ids.put(in.readUTF(), in.readInt());
+        }
+        return ids;
+    }
+
+    private static void writeIds(DataOutputStream out, Map<String, Integer> ids)
+            throws IOException {
+        out.writeInt(ids.size());
+        for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // renameTo() does not replace existing file on windows
+            if (!to.delete() || !from.renameTo(to)) {
+                throw new IOException("Could not rename file: " + from);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        if (!file.delete()) {
+            logger.debug("could not delete: {}", file);
+        }
+    }
+
+    // each value is followed by a separator so that adjacent values cannot run together
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(Charsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest getSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is required to be supported by every java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static class Entry {
+
+        private final byte[] wovenBytes;
+        // triples of (type1, type2, common super class) that were computed during weaving, which
+        // need to be re-checked against the current class hierarchy before using the entry
+        private final List<String> commonSuperClassQueries;
+
+        private Entry(byte[] wovenBytes, List<String> commonSuperClassQueries) {
+            this.wovenBytes = wovenBytes;
+            this.commonSuperClassQueries = commonSuperClassQueries;
+        }
+
+        byte[] wovenBytes() {
+            return wovenBytes;
+        }
+
+        @VisibleForTesting
+        List<String> commonSuperClassQueries() {
+            return commonSuperClassQueries;
+        }
+
+        // stack map frames in the cached bytecode depend on the class hierarchy of other classes,
+        // which may have changed since the bytecode was cached
+        boolean isStale(ComputeFramesClassWriter cw) {
+            for (int i = 0; i < commonSuperClassQueries.size(); i += 3) {
+                String commonSuperClass = cw.getCommonSuperClass(commonSuperClassQueries.get(i),
+                        commonSuperClassQueries.get(i + 1));
+                if (!commonSuperClass.equals(commonSuperClassQueries.get(i + 2))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class WriteTask implements Runnable {
+
+        private final String key;
+        private final Entry entry;
+
+        private WriteTask(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            try {
+                writeIdsIfNeeded();
+                writeEntry(key, entry);
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static class DeleteStaleCacheDirsTask implements Runnable {
+
+        private final File cacheDir;
+
+        private DeleteStaleCacheDirsTask(File cacheDir) {
+            this.cacheDir = cacheDir;
+        }
+
+        @Override
+        public void run() {
+            File[] files = cacheDir.getParentFile().listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (!file.equals(cacheDir)) {
+                    deleteRecursively(file);
+                }
+            }
+        }
+    }
+}
@@ -183,6 +183,12 @@ class WeavingClassVisitor extends ClassVisitor {
         cw.visitEnd();
     }
 
+    // woven bytecode that refers to a meta holder cannot be re-used by WeavingCache, since the meta
+    // holder class is defined as a side effect of weaving
+    boolean hasMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     @RequiresNonNull("type")
     private void handleMetaHolders() {
         if (metaHolderInternalName != null) {
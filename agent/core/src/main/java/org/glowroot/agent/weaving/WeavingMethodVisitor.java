@@ -17,6 +17,7 @@ package org.glowroot.agent.weaving;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Modifier;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -1073,6 +1074,33 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
+    // the nesting group and suppression key ids are compiled into the woven bytecode, so they need
+    // to be the same across jvm restarts in order for WeavingCache to re-use woven bytecode
+    static Map<String, Integer> getNestingGroupIds() {
+        return new HashMap<String, Integer>(nestingGroupIds);
+    }
+
+    static Map<String, Integer> getSuppressionKeyIds() {
+        return new HashMap<String, Integer>(suppressionKeyIds);
+    }
+
+    // this must be called prior to any weaving
+    static void initIds(Map<String, Integer> initialNestingGroupIds,
+            Map<String, Integer> initialSuppressionKeyIds) {
+        initIds(initialNestingGroupIds, nestingGroupIds, nestingGroupIdCounter);
+        initIds(initialSuppressionKeyIds, suppressionKeyIds, suppressionKeyIdCounter);
+    }
+
+    private static void initIds(Map<String, Integer> initialIds, Map<String, Integer> ids,
+            AtomicInteger idCounter) {
+        ids.putAll(initialIds);
+        for (int id : initialIds.values()) {
+            if (id >= idCounter.get()) {
+                idCounter.set(id + 1);
+            }
+        }
+    }
+
     private static int getNestingGroupId(String nestingGroup) {
         Integer nullableNestingGroupId = nestingGroupIds.get(nestingGroup);
         if (nullableNestingGroupId != null) {
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.Files;
+import io.grpc.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.Record;
+import org.glowroot.agent.central.CentralSpool.RecordType;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralSpoolTest {
+
+    private static final int PAYLOAD_SIZE = 10;
+
+    // two records per segment
+    private static final int SEGMENT_SIZE = CentralSpool.HEADER_SIZE
+            + 2 * (CentralSpool.RECORD_HEADER_SIZE + PAYLOAD_SIZE);
+
+    private File dir;
+    private CentralSpool spool;
+
+    @Before
+    public void beforeEachTest() throws IOException {
+        dir = Files.createTempDir();
+        spool = new CentralSpool(dir, SEGMENT_SIZE);
+    }
+
+    @After
+    public void afterEachTest() throws IOException {
+        spool.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReplayInOrder() throws Exception {
+        // given
+        for (int i = 0; i < 5; i++) {
+            spool.append(RecordType.TRACE, payload(i));
+        }
+        // when
+        // then
+        for (int i = 0; i < 5; i++) {
+            Record record = spool.peek();
+            assertThat(record).isNotNull();
+            assertThat(record.getType()).isEqualTo(RecordType.TRACE);
+            assertThat(record.getPayload()).isEqualTo(payload(i));
+            spool.remove(record);
+        }
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.getDepth()).isEqualTo(0);
+        assertThat(spool.getSizeBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldDiscardOldestSegmentWhenFull() throws Exception {
+        // given
+        int capacity = 2 * CentralSpool.SEGMENT_COUNT;
+        // when
+        for (int i = 0; i < capacity + 3; i++) {
+            spool.append(RecordType.AGGREGATES, payload(i));
+        }
+        // then
+        // the oldest two segments (four records) have been discarded to make room
+        assertThat(spool.getDroppedCount()).isEqualTo(4);
+        assertThat(spool.getDepth()).isEqualTo(capacity - 1);
+        for (int i = 4; i < capacity + 3; i++) {
+            Record record = spool.peek();
+            assertThat(record).isNotNull();
+            assertThat(record.getPayload()).isEqualTo(payload(i));
+            spool.remove(record);
+        }
+        assertThat(spool.peek()).isNull();
+    }
+
+    @Test
+    public void shouldIgnoreRemoveOfDiscardedRecord() throws Exception {
+        // given
+        spool.append(RecordType.AGGREGATES, payload(0));
+        Record record = spool.peek();
+        for (int i = 1; i < 2 * CentralSpool.SEGMENT_COUNT + 1; i++) {
+            spool.append(RecordType.AGGREGATES, payload(i));
+        }
+        int depth = spool.getDepth();
+        // when
+        spool.remove(record);
+        // then
+        assertThat(spool.getDepth()).isEqualTo(depth);
+    }
+
+    @Test
+    public void shouldReloadAfterRestart() throws Exception {
+        // given
+        for (int i = 0; i < 5; i++) {
+            spool.append(RecordType.GAUGE_VALUES, payload(i));
+        }
+        spool.remove(spool.peek());
+        // when
+        spool.close();
+        spool = new CentralSpool(dir, SEGMENT_SIZE);
+        // then
+        assertThat(spool.getDepth()).isEqualTo(4);
+        for (int i = 1; i < 5; i++) {
+            Record record = spool.peek();
+            assertThat(record).isNotNull();
+            assertThat(record.getType()).isEqualTo(RecordType.GAUGE_VALUES);
+            assertThat(record.getPayload()).isEqualTo(payload(i));
+            spool.remove(record);
+        }
+        assertThat(spool.peek()).isNull();
+    }
+
+    @Test
+    public void shouldKeepValidRecordsOfCorruptSegment() throws Exception {
+        // given
+        spool.append(RecordType.TRACE, payload(0));
+        spool.append(RecordType.TRACE, payload(1));
+        spool.close();
+        // corrupt the payload length of the second record
+        int secondRecordPosition =
+                CentralSpool.HEADER_SIZE + CentralSpool.RECORD_HEADER_SIZE + PAYLOAD_SIZE;
+        RandomAccessFile out = new RandomAccessFile(new File(dir, "segment-0"), "rw");
+        try {
+            out.seek(secondRecordPosition);
+            out.writeInt(Integer.MAX_VALUE);
+        } finally {
+            out.close();
+        }
+        // when
+        spool = new CentralSpool(dir, SEGMENT_SIZE);
+        // then
+        assertThat(spool.getDepth()).isEqualTo(1);
+        Record record = spool.peek();
+        assertThat(record).isNotNull();
+        assertThat(record.getPayload()).isEqualTo(payload(0));
+    }
+
+    @Test
+    public void shouldIgnoreSegmentWithCorruptHeader() throws Exception {
+        // given
+        spool.append(RecordType.TRACE, payload(0));
+        spool.close();
+        // write position before read position
+        RandomAccessFile out = new RandomAccessFile(new File(dir, "segment-0"), "rw");
+        try {
+            out.seek(12);
+            out.writeInt(CentralSpool.HEADER_SIZE - 1);
+        } finally {
+            out.close();
+        }
+        // when
+        spool = new CentralSpool(dir, SEGMENT_SIZE);
+        // then
+        assertThat(spool.getDepth()).isEqualTo(0);
+        spool.append(RecordType.TRACE, payload(1));
+        Record record = spool.peek();
+        assertThat(record).isNotNull();
+        assertThat(record.getPayload()).isEqualTo(payload(1));
+    }
+
+    @Test
+    public void shouldDiscardRecordAfterMaxReplayAttempts() throws Exception {
+        // given
+        spool.append(RecordType.TRACE, payload(0));
+        Record record = spool.peek();
+        SpoolReplayer spoolReplayer = newSpoolReplayer();
+        // when
+        for (int i = 0; i < 9; i++) {
+            spoolReplayer.new ReplayObserver<EmptyMessage>(record)
+                    .onError(Status.INVALID_ARGUMENT.asRuntimeException());
+        }
+        // then
+        assertThat(spool.getDepth()).isEqualTo(1);
+        spoolReplayer.new ReplayObserver<EmptyMessage>(record)
+                .onError(Status.INVALID_ARGUMENT.asRuntimeException());
+        assertThat(spool.getDepth()).isEqualTo(0);
+        assertThat(spool.getDroppedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotDiscardRecordAfterTransientErrors() throws Exception {
+        // given
+        spool.append(RecordType.TRACE, payload(0));
+        Record record = spool.peek();
+        SpoolReplayer spoolReplayer = newSpoolReplayer();
+        // when
+        for (int i = 0; i < 20; i++) {
+            spoolReplayer.new ReplayObserver<EmptyMessage>(record)
+                    .onError(Status.UNAVAILABLE.asRuntimeException());
+            spoolReplayer.new ReplayObserver<EmptyMessage>(record)
+                    .onError(Status.DEADLINE_EXCEEDED.asRuntimeException());
+        }
+        // then
+        assertThat(spool.getDepth()).isEqualTo(1);
+        assertThat(spool.getDroppedCount()).isEqualTo(0);
+    }
+
+    @SuppressWarnings("nullness:argument.type.incompatible")
+    private SpoolReplayer newSpoolReplayer() {
+        // the collector service stub is not used by the replay observer
+        CollectorServiceStub collectorServiceStub = null;
+        return new SpoolReplayer(spool, collectorServiceStub, new AtomicBoolean(),
+                Ticker.systemTicker());
+    }
+
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        payload[0] = (byte) i;
+        return payload;
+    }
+}
@@ -17,10 +17,16 @@ package org.glowroot.agent.embedded.repo;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nullable;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,7 +40,12 @@ import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.ProfileCollector;
+import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.Result;
+import org.glowroot.common.model.ServiceCallCollector;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
@@ -60,6 +71,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepository configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -73,7 +85,7 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepository configRepository = mock(ConfigRepository.class);
+        configRepository = mock(ConfigRepository.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
@@ -133,6 +145,110 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollupSameFromAccumulatorsAsFromLowerRollupLevel() throws Exception {
+        // given
+        DataSource reReadDataSource = new DataSource();
+        File reReadCappedFile = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabase reReadCappedDatabase =
+                new CappedDatabase(reReadCappedFile, 1000000, Ticker.systemTicker());
+        try {
+            // max accumulator bytes 0 means every interval is rolled up by re-reading the lower
+            // rollup level
+            AggregateDao reReadAggregateDao =
+                    createAggregateDao(reReadDataSource, reReadCappedDatabase, 0);
+
+            // when
+            for (long captureTime = 5000; captureTime <= 20000; captureTime += 5000) {
+                aggregateDao.store(captureTime, createAggregates(captureTime));
+                reReadAggregateDao.store(captureTime, createAggregates(captureTime));
+            }
+
+            // then
+            assertSameRollup(aggregateDao, reReadAggregateDao, null);
+            assertSameRollup(aggregateDao, reReadAggregateDao, "one");
+        } finally {
+            reReadDataSource.close();
+            reReadCappedDatabase.close();
+            reReadCappedFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldRollupSameAfterRestartInTheMiddleOfInterval() throws Exception {
+        // given
+        DataSource reReadDataSource = new DataSource();
+        File reReadCappedFile = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabase reReadCappedDatabase =
+                new CappedDatabase(reReadCappedFile, 1000000, Ticker.systemTicker());
+        try {
+            AggregateDao reReadAggregateDao =
+                    createAggregateDao(reReadDataSource, reReadCappedDatabase, 0);
+            aggregateDao.store(5000, createAggregates(5000));
+            reReadAggregateDao.store(5000, createAggregates(5000));
+
+            // when
+            // simulate restart, the accumulator for the first interval is lost, so the first
+            // interval needs to be rolled up by re-reading the lower rollup level
+            AggregateDao restartedAggregateDao =
+                    createAggregateDao(dataSource, cappedDatabase, 1000000);
+            for (long captureTime = 10000; captureTime <= 35000; captureTime += 5000) {
+                restartedAggregateDao.store(captureTime, createAggregates(captureTime));
+                reReadAggregateDao.store(captureTime, createAggregates(captureTime));
+            }
+
+            // then
+            assertSameRollup(restartedAggregateDao, reReadAggregateDao, null);
+            assertSameRollup(restartedAggregateDao, reReadAggregateDao, "one");
+            List<OverviewAggregate> overviewAggregates =
+                    restartedAggregateDao.readOverviewAggregates(AGENT_ID,
+                            createRollupQuery(null));
+            assertThat(overviewAggregates).hasSize(2);
+            assertThat(overviewAggregates.get(0).transactionCount()).isEqualTo(30);
+            assertThat(overviewAggregates.get(1).transactionCount()).isEqualTo(30);
+        } finally {
+            reReadDataSource.close();
+            reReadCappedDatabase.close();
+            reReadCappedFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldKeepFourHourAccumulatorForRealisticFeed() throws Exception {
+        // given
+        // default rollup intervals: 1 minute, 5 minutes, 30 minutes and 4 hours
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        long intervalMillis = RollupConfig.buildRollupConfigs().get(0).intervalMillis();
+        long fourHourIntervalMillis = RollupConfig.buildRollupConfigs().get(3).intervalMillis();
+        // uses the default max rollup accumulator bytes
+        AggregateDao aggregateDao = new AggregateDao(dataSource,
+                ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase, cappedDatabase,
+                        cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        List<String> sharedQueryTexts = Lists.newArrayList();
+        for (int i = 0; i < 30; i++) {
+            sharedQueryTexts.add("select id, name, description, created_at, updated_at from"
+                    + " example_table_" + i + " where account_id = ? and status = ?");
+        }
+        long totalSerializedBytes = 0;
+
+        // when
+        // every level 0 interval of the four hour interval, except for the last one (since the
+        // accumulator is written and removed once the four hour interval completes)
+        for (long captureTime = intervalMillis; captureTime < fourHourIntervalMillis;
+                captureTime += intervalMillis) {
+            RealisticAggregates aggregates =
+                    new RealisticAggregates(captureTime, sharedQueryTexts);
+            aggregateDao.store(captureTime, aggregates);
+            totalSerializedBytes += aggregates.serializedBytes;
+        }
+
+        // then
+        // the serialized level 0 aggregates add up to far more than their merged state
+        assertThat(totalSerializedBytes).isGreaterThan(1024 * 1024);
+        assertThat(aggregateDao.isRollupAccumulatorComplete(3, fourHourIntervalMillis)).isTrue();
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(10000, new Aggregates() {
@@ -211,6 +327,227 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private AggregateDao createAggregateDao(DataSource dataSource, CappedDatabase cappedDatabase,
+            int maxRollupAccumulatorBytes) throws Exception {
+        return new AggregateDao(dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase,
+                cappedDatabase, cappedDatabase, cappedDatabase), configRepository,
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                maxRollupAccumulatorBytes);
+    }
+
+    private static void assertSameRollup(AggregateDao aggregateDao,
+            AggregateDao expectedAggregateDao, @Nullable String transactionName)
+            throws Exception {
+        TransactionQuery query = createRollupQuery(transactionName);
+        List<OverviewAggregate> overviewAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        assertThat(overviewAggregates).isNotEmpty();
+        assertThat(overviewAggregates)
+                .isEqualTo(expectedAggregateDao.readOverviewAggregates(AGENT_ID, query));
+        assertThat(aggregateDao.readPercentileAggregates(AGENT_ID, query))
+                .isEqualTo(expectedAggregateDao.readPercentileAggregates(AGENT_ID, query));
+
+        QueryCollector queryCollector = new QueryCollector(1000);
+        aggregateDao.mergeQueriesInto(AGENT_ID, query, queryCollector);
+        QueryCollector expectedQueryCollector = new QueryCollector(1000);
+        expectedAggregateDao.mergeQueriesInto(AGENT_ID, query, expectedQueryCollector);
+        assertThat(toStrings(queryCollector)).isNotEmpty();
+        assertThat(toStrings(queryCollector)).isEqualTo(toStrings(expectedQueryCollector));
+
+        ServiceCallCollector serviceCallCollector = new ServiceCallCollector(1000, 0);
+        aggregateDao.mergeServiceCallsInto(AGENT_ID, query, serviceCallCollector);
+        ServiceCallCollector expectedServiceCallCollector = new ServiceCallCollector(1000, 0);
+        expectedAggregateDao.mergeServiceCallsInto(AGENT_ID, query,
+                expectedServiceCallCollector);
+        assertThat(serviceCallCollector.toProto())
+                .isEqualTo(expectedServiceCallCollector.toProto());
+
+        ProfileCollector profileCollector = new ProfileCollector();
+        aggregateDao.mergeMainThreadProfilesInto(AGENT_ID, query, profileCollector);
+        ProfileCollector expectedProfileCollector = new ProfileCollector();
+        expectedAggregateDao.mergeMainThreadProfilesInto(AGENT_ID, query,
+                expectedProfileCollector);
+        assertThat(profileCollector.getProfile().getSampleCount()).isGreaterThan(0);
+        assertThat(profileCollector.getProfile().toProto())
+                .isEqualTo(expectedProfileCollector.getProfile().toProto());
+    }
+
+    private static TransactionQuery createRollupQuery(@Nullable String transactionName) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName(transactionName)
+                .from(0)
+                .to(30000)
+                .rollupLevel(1)
+                .build();
+    }
+
+    private static List<String> toStrings(QueryCollector queryCollector) {
+        List<String> strings = Lists.newArrayList();
+        for (Map.Entry<String, List<MutableQuery>> entry : queryCollector.getSortedQueries()
+                .entrySet()) {
+            for (MutableQuery query : entry.getValue()) {
+                strings.add(entry.getKey() + ":" + query.getTruncatedText() + ":"
+                        + query.getTotalDurationNanos() + ":" + query.getExecutionCount() + ":"
+                        + query.getTotalRows());
+            }
+        }
+        return strings;
+    }
+
+    // the aggregates differ by capture time, so that the rollup has something to merge
+    private static Aggregates createAggregates(final long captureTime) {
+        return new Aggregates() {
+            @Override
+            public <T extends Exception> void accept(AggregateVisitor<T> aggregateVisitor)
+                    throws T {
+                List<String> sharedQueryTexts = ImmutableList.of("select 1", "select 2");
+                aggregateVisitor.visitOverallAggregate("a type", sharedQueryTexts,
+                        createAggregate(captureTime, 10));
+                aggregateVisitor.visitTransactionAggregate("a type", "one", sharedQueryTexts,
+                        createAggregate(captureTime, 4));
+                aggregateVisitor.visitTransactionAggregate("a type", "two", sharedQueryTexts,
+                        createAggregate(captureTime, 6));
+            }
+        };
+    }
+
+    private static Aggregate createAggregate(long captureTime, int transactionCount) {
+        MutableProfile profile = new MutableProfile();
+        profile.merge(ImmutableList.of(
+                new StackTraceElement("Example", "method" + (captureTime % 10000), "Example.java",
+                        1),
+                new StackTraceElement("Example", "main", "Example.java", 2)),
+                Thread.State.RUNNABLE);
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(captureTime * transactionCount)
+                .setErrorCount(1)
+                .setTransactionCount(transactionCount)
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(captureTime)
+                        .addOrderedRawValue(captureTime * 2))
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("root")
+                        .setTotalNanos(captureTime * transactionCount)
+                        .setCount(transactionCount))
+                .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                        .setType("SQL")
+                        .addQuery(Aggregate.Query.newBuilder()
+                                .setSharedQueryTextIndex(0)
+                                .setTotalDurationNanos(captureTime)
+                                .setExecutionCount(transactionCount))
+                        .addQuery(Aggregate.Query.newBuilder()
+                                .setSharedQueryTextIndex((int) (captureTime / 5000) % 2)
+                                .setTotalDurationNanos(captureTime / 2)
+                                .setExecutionCount(1)))
+                .addServiceCallsByType(Aggregate.ServiceCallsByType.newBuilder()
+                        .setType("HTTP")
+                        .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                                .setText("GET /" + (captureTime / 5000) % 2)
+                                .setTotalDurationNanos(captureTime)
+                                .setExecutionCount(1)))
+                .setMainThreadProfile(profile.toProto())
+                .build();
+    }
+
+    // one transaction type with ten transaction names, three of which (including overall) have
+    // enough transactions to switch to an HdrHistogram in the four hour rollup
+    private static class RealisticAggregates implements Aggregates {
+
+        private static final int STACK_TRACE_POOL_SIZE = 40;
+
+        private final long captureTime;
+        private final List<String> sharedQueryTexts;
+
+        private long serializedBytes;
+
+        private RealisticAggregates(long captureTime, List<String> sharedQueryTexts) {
+            this.captureTime = captureTime;
+            this.sharedQueryTexts = sharedQueryTexts;
+        }
+
+        @Override
+        public <T extends Exception> void accept(AggregateVisitor<T> aggregateVisitor) throws T {
+            Random random = new Random(captureTime);
+            Aggregate overallAggregate = createRealisticAggregate(random, 20, 40);
+            serializedBytes += overallAggregate.getSerializedSize();
+            aggregateVisitor.visitOverallAggregate("Web", sharedQueryTexts, overallAggregate);
+            for (int i = 0; i < 10; i++) {
+                Aggregate transactionAggregate =
+                        createRealisticAggregate(random, i < 2 ? 8 : 2, 10);
+                serializedBytes += transactionAggregate.getSerializedSize();
+                aggregateVisitor.visitTransactionAggregate("Web", "/page" + i, sharedQueryTexts,
+                        transactionAggregate);
+            }
+        }
+
+        private static Aggregate createRealisticAggregate(Random random, int transactionCount,
+                int profileSampleCount) {
+            Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+            List<Long> durations = Lists.newArrayList();
+            for (int i = 0; i < transactionCount; i++) {
+                // up to 100 milliseconds
+                durations.add(1000000 + (long) random.nextInt(99000000));
+            }
+            Collections.sort(durations);
+            histogram.addAllOrderedRawValue(durations);
+            Aggregate.QueriesByType.Builder queries =
+                    Aggregate.QueriesByType.newBuilder().setType("SQL");
+            for (int i = 0; i < 20; i++) {
+                queries.addQuery(Aggregate.Query.newBuilder()
+                        .setSharedQueryTextIndex(random.nextInt(30))
+                        .setTotalDurationNanos(random.nextInt(10000000))
+                        .setExecutionCount(1 + random.nextInt(10)));
+            }
+            Aggregate.ServiceCallsByType.Builder serviceCalls =
+                    Aggregate.ServiceCallsByType.newBuilder().setType("HTTP");
+            for (int i = 0; i < 5; i++) {
+                serviceCalls.addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setText("GET http://service" + i + ".example.com/api/items")
+                        .setTotalDurationNanos(random.nextInt(10000000))
+                        .setExecutionCount(1 + random.nextInt(5)));
+            }
+            MutableProfile profile = new MutableProfile();
+            for (int i = 0; i < profileSampleCount; i++) {
+                profile.merge(createStackTrace(random.nextInt(STACK_TRACE_POOL_SIZE)),
+                        Thread.State.RUNNABLE);
+            }
+            return Aggregate.newBuilder()
+                    .setTotalDurationNanos(transactionCount * 50000000.0)
+                    .setTransactionCount(transactionCount)
+                    .setDurationNanosHistogram(histogram)
+                    .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                            .setName("http request")
+                            .setTotalNanos(transactionCount * 50000000.0)
+                            .setCount(transactionCount)
+                            .addChildTimer(Aggregate.Timer.newBuilder()
+                                    .setName("jdbc query")
+                                    .setTotalNanos(transactionCount * 10000000.0)
+                                    .setCount(transactionCount * 5)))
+                    .addQueriesByType(queries)
+                    .addServiceCallsByType(serviceCalls)
+                    .setMainThreadProfile(profile.toProto())
+                    .build();
+        }
+
+        // leaf first, with the same 10 framework frames at the root of every stack trace, and 15
+        // application frames that depend only on the index into the pool
+        private static List<StackTraceElement> createStackTrace(int index) {
+            Random random = new Random(index);
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            for (int i = 0; i < 15; i++) {
+                int k = random.nextInt(100);
+                stackTrace.add(new StackTraceElement("com.example.app.Service" + k,
+                        "method" + k, "Service" + k + ".java", 10 + i));
+            }
+            for (int i = 0; i < 10; i++) {
+                stackTrace.add(new StackTraceElement("org.example.framework.Dispatcher" + i,
+                        "dispatch", "Dispatcher" + i + ".java", 100 + i));
+            }
+            return stackTrace;
+        }
+    }
+
     private static Aggregate.Histogram getFakeHistogram() {
         return Aggregate.Histogram.newBuilder()
                 .addOrderedRawValue(123)
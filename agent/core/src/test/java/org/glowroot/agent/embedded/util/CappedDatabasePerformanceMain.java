@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// compares the memory mapped read path with the (non-mapped) positional FileChannel read path on a
+// 1gb capped database, with concurrent readers and a concurrent writer
+//
+// the memory mapped read path is off by default (see MappedFileReader.MMAP_ENABLED), the results
+// of this comparison are what should decide whether to enable it by default
+//
+// run from the agent/core test classpath, e.g. from the IDE, on a machine with at least 1gb of free
+// disk space in java.io.tmpdir, the summary is logged at the end
+public class CappedDatabasePerformanceMain {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CappedDatabasePerformanceMain.class);
+
+    private static final int SIZE_KB = 1024 * 1024;
+    private static final int READER_THREADS = 8;
+    private static final int MEASUREMENT_SECONDS = 30;
+
+    private CappedDatabasePerformanceMain() {}
+
+    public static void main(String... args) throws Exception {
+        File file = File.createTempFile("glowroot-perf-", ".capped.db");
+        try {
+            List<Long> cappedIds = populate(file);
+            long unmappedReadsPerSecond = 0;
+            long mappedReadsPerSecond = 0;
+            // the first pass of each mode is warmup, only the second pass is used for the summary
+            for (boolean mmap : new boolean[] {false, true, false, true}) {
+                CappedDatabase cappedDatabase =
+                        new CappedDatabase(file, SIZE_KB, Ticker.systemTicker(), mmap);
+                long readsPerSecond = measureReads(cappedDatabase, cappedIds) / MEASUREMENT_SECONDS;
+                logger.info("mmap: {}, reads per second: {}", mmap, readsPerSecond);
+                cappedDatabase.close();
+                if (mmap) {
+                    mappedReadsPerSecond = readsPerSecond;
+                } else {
+                    unmappedReadsPerSecond = readsPerSecond;
+                }
+            }
+            logger.info("reads per second, unmapped: {}, mapped: {}, mapped/unmapped: {}",
+                    unmappedReadsPerSecond, mappedReadsPerSecond,
+                    String.format("%.2f", mappedReadsPerSecond / (double) unmappedReadsPerSecond));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<Long> populate(File file) throws Exception {
+        CappedDatabase cappedDatabase = new CappedDatabase(file, SIZE_KB, Ticker.systemTicker());
+        List<Long> cappedIds = Lists.newArrayList();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Random random = new Random();
+        // write somewhat more than 1gb (after compression) in order to wrap around
+        while (cappedDatabase.getSmallestNonExpiredId() == 0) {
+            cappedIds.add(cappedDatabase.writeMessages(createEntries(random), "trace entries"));
+        }
+        logger.info("populated in {} millis", stopwatch.elapsed(MILLISECONDS));
+        cappedDatabase.close();
+        List<Long> nonExpiredCappedIds = Lists.newArrayList();
+        long smallestNonExpiredId = cappedDatabase.getSmallestNonExpiredId();
+        for (Long cappedId : cappedIds) {
+            if (cappedId >= smallestNonExpiredId) {
+                nonExpiredCappedIds.add(cappedId);
+            }
+        }
+        return nonExpiredCappedIds;
+    }
+
+    private static long measureReads(final CappedDatabase cappedDatabase,
+            final List<Long> cappedIds) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READER_THREADS + 1);
+        List<Future<Long>> futures = Lists.newArrayList();
+        for (int i = 0; i < READER_THREADS; i++) {
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    Random random = new Random();
+                    long count = 0;
+                    while (!stop.get()) {
+                        long cappedId = cappedIds.get(random.nextInt(cappedIds.size()));
+                        cappedDatabase.readMessages(cappedId, Trace.Entry.parser());
+                        count++;
+                    }
+                    return count;
+                }
+            }));
+        }
+        // concurrent writer, similar to trace storage while the UI is being used
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Random random = new Random();
+                while (!stop.get()) {
+                    cappedDatabase.writeMessages(createEntries(random), "trace entries");
+                    MILLISECONDS.sleep(10);
+                }
+                return null;
+            }
+        });
+        SECONDS.sleep(MEASUREMENT_SECONDS);
+        stop.set(true);
+        long reads = 0;
+        for (Future<Long> future : futures) {
+            reads += future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+        return reads;
+    }
+
+    private static List<Trace.Entry> createEntries(Random random) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 10)
+                    .setStartOffsetNanos(i * 1000L)
+                    .setDurationNanos(random.nextInt(1000000))
+                    .setMessage("select * from employee where id = " + random.nextInt())
+                    .build());
+        }
+        return entries;
+    }
+}
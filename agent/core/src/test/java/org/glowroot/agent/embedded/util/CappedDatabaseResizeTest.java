@@ -18,6 +18,9 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
@@ -75,6 +78,49 @@ public class CappedDatabaseResizeTest {
         shouldResizeAndWrap(3);
     }
 
+    @Test
+    public void shouldReadWhileResizingAndWrapping() throws Exception {
+        // given
+        final String text = createRandomText();
+        final AtomicLong lastCappedId = new AtomicLong(
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test"));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    long cappedId = lastCappedId.get();
+                    try {
+                        String text2 = cappedDatabase.read(cappedId).read();
+                        if (!text2.equals(text)) {
+                            failure.set(new AssertionError("Unexpected text: " + text2));
+                        }
+                    } catch (Throwable t) {
+                        // reads that race with the block being overwritten are expected to fail
+                        if (!cappedDatabase.isExpired(cappedId)) {
+                            failure.set(t);
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        // when
+        try {
+            for (int i = 0; i < 200; i++) {
+                lastCappedId.set(cappedDatabase
+                        .write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test"));
+                cappedDatabase.resize(1 + i % 3);
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        // then
+        assertThat(failure.get()).isNull();
+    }
+
     private void shouldWrapAndResize(int newSizeKb) throws Exception {
         // when
         // because of compression, use somewhat random text and loop until wrap occurs
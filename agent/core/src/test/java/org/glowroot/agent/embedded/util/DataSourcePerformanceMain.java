@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+import org.glowroot.agent.embedded.util.Schemas.Index;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// measures store latency (similar to TraceDao.store()) while concurrent UI queries are running
+public class DataSourcePerformanceMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(DataSourcePerformanceMain.class);
+
+    private static final int INITIAL_ROWS = 500000;
+    private static final int READER_THREADS = 4;
+    private static final int MEASUREMENT_SECONDS = 30;
+
+    private static final ImmutableList<Column> columns = ImmutableList.<Column>of(
+            ImmutableColumn.of("id", ColumnType.BIGINT),
+            ImmutableColumn.of("capture_time", ColumnType.BIGINT),
+            ImmutableColumn.of("duration_nanos", ColumnType.BIGINT),
+            ImmutableColumn.of("headline", ColumnType.VARCHAR));
+
+    private DataSourcePerformanceMain() {}
+
+    public static void main(String... args) throws Exception {
+        File dbFile = File.createTempFile("glowroot-perf-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        try {
+            dataSource.syncTable("perf", columns);
+            dataSource.syncIndexes("perf", ImmutableList.<Index>of(ImmutableIndex.of("perf_idx",
+                    ImmutableList.of("capture_time", "duration_nanos"))));
+            populate(dataSource);
+            run(dataSource);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    private static void populate(DataSource dataSource) throws Exception {
+        for (int i = 0; i < INITIAL_ROWS; i += 1000) {
+            dataSource.batchUpdate(new PerfInsert(i, 1000));
+        }
+    }
+
+    private static void run(final DataSource dataSource) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<Future<?>> readerFutures = Lists.newArrayList();
+        for (int i = 0; i < READER_THREADS; i++) {
+            readerFutures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random();
+                    while (!stop.get()) {
+                        dataSource.query(new PerfQuery(random.nextInt(INITIAL_ROWS)));
+                    }
+                    return null;
+                }
+            }));
+        }
+        long storeCount = 0;
+        long maxStoreNanos = 0;
+        long totalStoreNanos = 0;
+        long endTime = System.nanoTime() + SECONDS.toNanos(MEASUREMENT_SECONDS);
+        int id = INITIAL_ROWS;
+        while (System.nanoTime() < endTime) {
+            long startTick = System.nanoTime();
+            dataSource.batchUpdate(new PerfInsert(id, 1));
+            long nanos = System.nanoTime() - startTick;
+            maxStoreNanos = Math.max(maxStoreNanos, nanos);
+            totalStoreNanos += nanos;
+            storeCount++;
+            id++;
+            MILLISECONDS.sleep(1);
+        }
+        stop.set(true);
+        for (Future<?> future : readerFutures) {
+            future.get();
+        }
+        executor.shutdown();
+        logger.info("stores: {}, average store millis: {}, max store millis: {}", storeCount,
+                NANOSECONDS.toMillis(totalStoreNanos) / (double) storeCount,
+                NANOSECONDS.toMillis(maxStoreNanos));
+    }
+
+    private static class PerfInsert implements JdbcUpdate {
+
+        private final int startId;
+        private final int count;
+
+        private PerfInsert(int startId, int count) {
+            this.startId = startId;
+            this.count = count;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "insert into perf (id, capture_time, duration_nanos, headline)"
+                    + " values (?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (int i = startId; i < startId + count; i++) {
+                int j = 1;
+                preparedStatement.setLong(j++, i);
+                preparedStatement.setLong(j++, i);
+                preparedStatement.setLong(j++, i * 7919L % 1000000);
+                preparedStatement.setString(j++, "/some/url/" + i);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    // similar to the UI queries that do non-trivial processing of each row while iterating over
+    // the result set, e.g. reading trace entries from the capped database, or merging aggregate
+    // histograms and profiles
+    private static class PerfQuery implements JdbcRowQuery<String> {
+
+        private final int from;
+
+        private PerfQuery(int from) {
+            this.from = from;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select headline from perf where capture_time >= ? and capture_time < ?";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, from);
+            preparedStatement.setLong(2, from + 10000);
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            String headline = resultSet.getString(1);
+            // simulate processing
+            int hash = 0;
+            for (int i = 0; i < 200; i++) {
+                hash = 31 * hash + (headline + i).hashCode();
+            }
+            return headline + hash;
+        }
+    }
+}
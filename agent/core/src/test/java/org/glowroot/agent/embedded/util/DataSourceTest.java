@@ -15,11 +15,24 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.checkerframework.checker.tainting.qual.Untainted;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -93,4 +106,116 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testCloseWhileReading() throws Exception {
+        // given
+        final DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (x bigint)");
+        dataSource.update("insert into test (x) values (1)");
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch readRelease = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Long> readFuture =
+                    executor.submit(new BlockingRead(dataSource, readStarted, readRelease));
+            assertThat(readStarted.await(10, SECONDS)).isTrue();
+            // when
+            Future<Void> closeFuture = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dataSource.close();
+                    return null;
+                }
+            });
+            // then
+            // close waits for the in-flight read, but new reads and writes abort immediately
+            Thread.sleep(100);
+            assertThat(closeFuture.isDone()).isFalse();
+            assertThat(dataSource.update("insert into test (x) values (2)")).isEqualTo(0);
+            assertThat(dataSource.queryForOptionalLong("select x from test")).isNull();
+            readRelease.countDown();
+            assertThat(readFuture.get(10, SECONDS)).isEqualTo(1);
+            closeFuture.get(10, SECONDS);
+        } finally {
+            readRelease.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDefragWhileReading() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        final DataSource dataSource = new DataSource(dbFile);
+        dataSource.execute("create table test (x bigint)");
+        dataSource.update("insert into test (x) values (1)");
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch readRelease = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Long> readFuture =
+                    executor.submit(new BlockingRead(dataSource, readStarted, readRelease));
+            assertThat(readStarted.await(10, SECONDS)).isTrue();
+            // when
+            Future<Void> defragFuture = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dataSource.defrag();
+                    return null;
+                }
+            });
+            // then
+            // defrag waits for the in-flight read without holding up writes in the meantime
+            Thread.sleep(100);
+            assertThat(defragFuture.isDone()).isFalse();
+            assertThat(dataSource.update("insert into test (x) values (2)")).isEqualTo(1);
+            readRelease.countDown();
+            assertThat(readFuture.get(10, SECONDS)).isEqualTo(1);
+            defragFuture.get(10, SECONDS);
+            assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        } finally {
+            readRelease.countDown();
+            executor.shutdown();
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    private static class BlockingRead implements Callable<Long> {
+
+        private final DataSource dataSource;
+        private final CountDownLatch readStarted;
+        private final CountDownLatch readRelease;
+
+        private BlockingRead(DataSource dataSource, CountDownLatch readStarted,
+                CountDownLatch readRelease) {
+            this.dataSource = dataSource;
+            this.readStarted = readStarted;
+            this.readRelease = readRelease;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            return dataSource.query(new JdbcQuery<Long>() {
+                @Override
+                public @Untainted String getSql() {
+                    return "select x from test where x = 1";
+                }
+                @Override
+                public void bind(PreparedStatement preparedStatement) {}
+                @Override
+                public Long processResultSet(ResultSet resultSet) throws Exception {
+                    readStarted.countDown();
+                    readRelease.await();
+                    resultSet.next();
+                    return resultSet.getLong(1);
+                }
+                @Override
+                public Long valueIfDataSourceClosing() {
+                    return 0L;
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector;
+import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
+import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+public class AggregateIntervalCollectorTest {
+
+    private static final int THREAD_COUNT = 8;
+
+    @Test
+    public void shouldNotExceedMaxTransactionNamesWhenAddingConcurrently() throws Exception {
+        // given
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(10);
+        List<List<Transaction>> transactionsPerThread = Lists.newArrayList();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            List<Transaction> transactions = Lists.newArrayList();
+            for (int j = 0; j < 50; j++) {
+                transactions.add(buildTransaction("name-" + i + "-" + j));
+            }
+            transactionsPerThread.add(transactions);
+        }
+        // when
+        addConcurrently(intervalCollector, transactionsPerThread);
+        // then
+        Map<String, Long> transactionCounts = getTransactionCounts(intervalCollector);
+        assertThat(transactionCounts).hasSize(10);
+        for (Long transactionCount : transactionCounts.values()) {
+            assertThat(transactionCount).isEqualTo(1);
+        }
+        OverallSummaryCollector overallSummaryCollector = new OverallSummaryCollector();
+        intervalCollector.mergeOverallSummaryInto(overallSummaryCollector, "a type");
+        assertThat(overallSummaryCollector.getOverallSummary().transactionCount())
+                .isEqualTo(THREAD_COUNT * 50);
+    }
+
+    @Test
+    public void shouldNotLoseTransactionsWhenAddingConcurrently() throws Exception {
+        // given
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(100);
+        List<Transaction> transactions = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            transactions.add(buildTransaction("name-" + i));
+        }
+        List<List<Transaction>> transactionsPerThread = Lists.newArrayList();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            List<Transaction> list = Lists.newArrayList();
+            for (int j = 0; j < 200; j++) {
+                list.addAll(transactions);
+            }
+            transactionsPerThread.add(list);
+        }
+        // when
+        addConcurrently(intervalCollector, transactionsPerThread);
+        // then
+        Map<String, Long> transactionCounts = getTransactionCounts(intervalCollector);
+        assertThat(transactionCounts).hasSize(5);
+        for (Long transactionCount : transactionCounts.values()) {
+            assertThat(transactionCount).isEqualTo(THREAD_COUNT * 200);
+        }
+        OverallSummaryCollector overallSummaryCollector = new OverallSummaryCollector();
+        intervalCollector.mergeOverallSummaryInto(overallSummaryCollector, "a type");
+        assertThat(overallSummaryCollector.getOverallSummary().transactionCount())
+                .isEqualTo(THREAD_COUNT * 200 * 5);
+        assertThat(overallSummaryCollector.getOverallSummary().totalDurationNanos())
+                .isEqualTo(THREAD_COUNT * 200 * 5 * MILLISECONDS.toNanos(123));
+    }
+
+    @Test
+    public void shouldReadMonotonicTransactionSummariesWhileAdding() throws Exception {
+        // given
+        final AggregateIntervalCollector intervalCollector = createIntervalCollector(100);
+        final Transaction transactionA = buildTransaction("a");
+        final Transaction transactionB = buildTransaction("b");
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // when
+            Future<?> future = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    while (!done.get()) {
+                        intervalCollector.add(transactionA);
+                        intervalCollector.add(transactionB);
+                    }
+                    return null;
+                }
+            });
+            // then
+            // each name is read under its own collector's monitor, so a name's count never goes
+            // backwards between reads (there is no snapshot across names)
+            long lastCountA = 0;
+            long lastCountB = 0;
+            for (int i = 0; i < 10000; i++) {
+                Map<String, Long> transactionCounts = getTransactionCounts(intervalCollector);
+                long countA = getCountOrZero(transactionCounts, "a");
+                long countB = getCountOrZero(transactionCounts, "b");
+                assertThat(countA).isGreaterThanOrEqualTo(lastCountA);
+                assertThat(countB).isGreaterThanOrEqualTo(lastCountB);
+                lastCountA = countA;
+                lastCountB = countB;
+            }
+            done.set(true);
+            future.get(10, SECONDS);
+            Map<String, Long> transactionCounts = getTransactionCounts(intervalCollector);
+            assertThat(transactionCounts.get("a") - transactionCounts.get("b"))
+                    .isBetween(0L, 1L);
+        } finally {
+            done.set(true);
+            executor.shutdown();
+        }
+    }
+
+    private static AggregateIntervalCollector createIntervalCollector(
+            int maxAggregateTransactionsPerTransactionType) {
+        return new AggregateIntervalCollector(System.currentTimeMillis(), 60000,
+                maxAggregateTransactionsPerTransactionType, 100, 100, Clock.systemClock());
+    }
+
+    private static void addConcurrently(final AggregateIntervalCollector intervalCollector,
+            List<List<Transaction>> transactionsPerThread) throws Exception {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(transactionsPerThread.size());
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (final List<Transaction> transactions : transactionsPerThread) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startLatch.await();
+                        for (Transaction transaction : transactions) {
+                            intervalCollector.add(transaction);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            startLatch.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Map<String, Long> getTransactionCounts(
+            AggregateIntervalCollector intervalCollector) {
+        TransactionSummaryCollector collector = new TransactionSummaryCollector();
+        intervalCollector.mergeTransactionSummariesInto(collector, "a type");
+        Map<String, Long> transactionCounts = Maps.newHashMap();
+        for (TransactionSummary summary : collector
+                .getResult(SummarySortOrder.TOTAL_TIME, Integer.MAX_VALUE).records()) {
+            transactionCounts.put(summary.transactionName(), summary.transactionCount());
+        }
+        return transactionCounts;
+    }
+
+    private static long getCountOrZero(Map<String, Long> transactionCounts,
+            String transactionName) {
+        Long count = transactionCounts.get(transactionName);
+        return count == null ? 0 : count;
+    }
+
+    private static Transaction buildTransaction(String transactionName) {
+        // stub only, since invocations are not verified (and there are a lot of them)
+        Transaction transaction = mock(Transaction.class, withSettings().stubOnly());
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class, withSettings().stubOnly());
+        when(mainThreadRootTimer.getName()).thenReturn("mock timer");
+        when(transaction.getTransactionType()).thenReturn("a type");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
+        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        return transaction;
+    }
+}
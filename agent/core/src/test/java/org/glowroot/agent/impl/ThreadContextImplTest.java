@@ -15,12 +15,18 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Map;
+
 import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.glowroot.agent.model.QueryCollector;
+import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
 import org.glowroot.agent.model.TimerNameImpl;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.QueryEntry;
 import org.glowroot.agent.plugin.api.QueryMessageSupplier;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopAsyncQueryEntry;
 import org.glowroot.agent.plugin.api.internal.NopTransactionService.NopAsyncTraceEntry;
@@ -32,9 +38,11 @@ import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class ThreadContextImplTest {
 
+    private Transaction transaction;
     private ThreadContextImpl threadContext;
 
     private MessageSupplier messageSupplier = mock(MessageSupplier.class);
@@ -43,7 +51,7 @@ public class ThreadContextImplTest {
 
     @Before
     public void beforeEachTest() {
-        Transaction transaction = mock(Transaction.class);
+        transaction = mock(Transaction.class);
         MessageSupplier messageSupplier = mock(MessageSupplier.class);
         TimerNameImpl rootTimerName = mock(TimerNameImpl.class);
         Ticker ticker = mock(Ticker.class);
@@ -113,6 +121,80 @@ public class ThreadContextImplTest {
                 .getClass().getName()).endsWith("$DummyTraceEntryOrQuery");
     }
 
+    @Test
+    public void testQueryEntryBeyondLimitsEndWithError() {
+        // given
+        // trace entry limit and aggregate query limit have both been reached
+        when(transaction.allowAnotherEntry()).thenReturn(false);
+        when(transaction.allowAnotherAggregateQuery(false)).thenReturn(false);
+        when(transaction.allowAnotherErrorEntry()).thenReturn(true);
+        QueryEntry queryEntry = threadContext.startQueryEntry("SQL", "select 1",
+                QueryMessageSupplier.create("jdbc execution: "), timerName);
+        // when
+        queryEntry.endWithError("an error");
+        // then
+        TraceEntryImpl errorEntry = threadContext.getTailEntry();
+        assertThat(errorEntry).isNotSameAs(threadContext.getRootEntry());
+        assertThat(errorEntry.getErrorMessage().message()).isEqualTo("an error");
+        // the error entry has the (raw) query text even though there is no query data
+        Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        errorEntry.toProto(0, 0, 0, sharedQueryTextIndexes);
+        assertThat(sharedQueryTextIndexes.keySet()).containsOnly("select 1");
+        // but it is not aggregated
+        QueryCollector queries = new QueryCollector(100, 2, false);
+        threadContext.mergeQueriesInto(queries);
+        assertThat(queries.toAggregateProto(new SharedQueryTextCollector())).isEmpty();
+    }
+
+    @Test
+    public void testQueryEntryBeyondLimitsEnd() {
+        // given
+        when(transaction.allowAnotherEntry()).thenReturn(false);
+        when(transaction.allowAnotherAggregateQuery(false)).thenReturn(false);
+        when(transaction.allowAnotherErrorEntry()).thenReturn(true);
+        QueryEntry queryEntry = threadContext.startQueryEntry("SQL", "select 1",
+                QueryMessageSupplier.create("jdbc execution: "), timerName);
+        // when
+        queryEntry.end();
+        // then
+        assertThat(threadContext.getTailEntry()).isSameAs(threadContext.getRootEntry());
+    }
+
+    @Test
+    public void testQueryEntryBeyondLimitsIsReusedOnceCompleted() {
+        // given
+        when(transaction.allowAnotherEntry()).thenReturn(false);
+        when(transaction.allowAnotherAggregateQuery(false)).thenReturn(false);
+        when(transaction.allowAnotherErrorEntry()).thenReturn(true);
+        QueryEntry queryEntry = threadContext.startQueryEntry("SQL", "select 1",
+                QueryMessageSupplier.create("jdbc execution: "), timerName);
+        queryEntry.end();
+        // when
+        QueryEntry queryEntry2 = threadContext.startQueryEntry("SQL", "select 2",
+                QueryMessageSupplier.create("jdbc execution: "), timerName);
+        queryEntry2.endWithError("an error");
+        // then
+        assertThat(queryEntry2).isSameAs(queryEntry);
+        TraceEntryImpl errorEntry = threadContext.getTailEntry();
+        Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+        errorEntry.toProto(0, 0, 0, sharedQueryTextIndexes);
+        assertThat(sharedQueryTextIndexes.keySet()).containsOnly("select 2");
+    }
+
+    @Test
+    public void testQueryEntryBeyondLimitsIsNotReusedWhileActive() {
+        // given
+        when(transaction.allowAnotherEntry()).thenReturn(false);
+        when(transaction.allowAnotherAggregateQuery(false)).thenReturn(false);
+        QueryEntry queryEntry = threadContext.startQueryEntry("SQL", "select 1",
+                QueryMessageSupplier.create("jdbc execution: "), timerName);
+        // when
+        QueryEntry queryEntry2 = threadContext.startQueryEntry("SQL", "select 2",
+                QueryMessageSupplier.create("jdbc execution: "), timerName);
+        // then
+        assertThat(queryEntry2).isNotSameAs(queryEntry);
+    }
+
     @Test
     public void testStartAsyncQueryEntry() {
         assertThat(
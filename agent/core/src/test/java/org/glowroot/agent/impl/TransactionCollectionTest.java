@@ -39,4 +39,23 @@ public class TransactionCollectionTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void shouldIterateOverRemainingTransactions() {
+        TransactionCollection collection = new TransactionCollection();
+        List<Transaction> transactions = Lists.newArrayList();
+        List<TransactionEntry> entries = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            Transaction transaction = mock(Transaction.class);
+            transactions.add(transaction);
+            entries.add(collection.add(transaction));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            entries.get(i).remove();
+            // removing twice is a no-op
+            entries.get(i).remove();
+        }
+        assertThat(collection).containsOnly(transactions.get(1), transactions.get(3),
+                transactions.get(5), transactions.get(7), transactions.get(9));
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from employee where name = 'it''s' and age > 21 and salary < 1.5e3"))
+                        .isEqualTo("select * from employee where name = ? and age > ?"
+                                + " and salary < ?");
+        assertThat(QueryTextNormalizer.normalize("update t set x = -5, y = 0x1F where id = 7"))
+                .isEqualTo("update t set x = -?, y = ? where id = ?");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(QueryTextNormalizer
+                .normalize("select * from t where id in (1, 2, 3) or name IN ('a','b')"))
+                        .isEqualTo("select * from t where id in (?) or name IN (?)");
+        assertThat(QueryTextNormalizer.normalize("select * from t where id in (?, ?) and x = 1"))
+                .isEqualTo("select * from t where id in (?) and x = ?");
+        assertThat(QueryTextNormalizer.normalize("select * from t where id in (?, ?, ?)"))
+                .isEqualTo("select * from t where id in (?)");
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiersOrComments() {
+        String queryText = "select t1.col2, \"col 3\" from table1 t1 /* 42 */ where a = :p1"
+                + " -- 'x'\n and b = ?";
+        assertThat(QueryTextNormalizer.normalize(queryText)).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotCollapseValuesList() {
+        assertThat(QueryTextNormalizer.normalize("insert into t (a, b) values (1, 'x')"))
+                .isEqualTo("insert into t (a, b) values (?, ?)");
+    }
+}
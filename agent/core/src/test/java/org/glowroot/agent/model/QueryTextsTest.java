@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import org.glowroot.agent.model.QueryTexts.TruncatedQueryText;
+import org.glowroot.common.config.StorageConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextsTest {
+
+    @Test
+    public void shouldInternByNormalizedQueryText() {
+        // given
+        QueryTexts queryTexts = new QueryTexts(100000);
+        // when
+        String normalizedQueryText1 = queryTexts.normalize("select * from t where id = 1");
+        String normalizedQueryText2 = queryTexts.normalize("select * from t where id = 2");
+        String normalizedQueryText3 = queryTexts.normalize("select * from t where id in (3, 4)");
+        // then
+        assertThat(normalizedQueryText1).isEqualTo("select * from t where id = ?");
+        assertThat(normalizedQueryText2).isSameAs(normalizedQueryText1);
+        assertThat(normalizedQueryText3).isEqualTo("select * from t where id in (?)");
+        assertThat(queryTexts.getCachedChars())
+                .isEqualTo(normalizedQueryText1.length() + normalizedQueryText3.length());
+    }
+
+    @Test
+    public void shouldNotTruncateShortQueryText() {
+        // given
+        QueryTexts queryTexts = new QueryTexts(100000);
+        String queryText = Strings.repeat("x", StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE);
+        // when
+        TruncatedQueryText truncatedQueryText = queryTexts.truncate(queryText);
+        // then
+        assertThat(truncatedQueryText.truncatedQueryText()).isEqualTo(queryText);
+        assertThat(truncatedQueryText.fullQueryTextSha1()).isNull();
+        assertThat(queryTexts.getCachedChars()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldTruncateLongQueryText() {
+        // given
+        QueryTexts queryTexts = new QueryTexts(100000);
+        String queryText = Strings.repeat("x", StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) + "y";
+        // when
+        TruncatedQueryText truncatedQueryText = queryTexts.truncate(queryText);
+        // then
+        assertThat(truncatedQueryText.truncatedQueryText())
+                .isEqualTo(queryText.substring(0, StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE));
+        assertThat(truncatedQueryText.fullQueryTextSha1())
+                .isEqualTo(Hashing.sha1().hashString(queryText, Charsets.UTF_8).toString());
+        assertThat(queryTexts.truncate(queryText)).isSameAs(truncatedQueryText);
+    }
+
+    @Test
+    public void shouldBoundCachedChars() {
+        // given
+        int maxChars = 100000;
+        QueryTexts queryTexts = new QueryTexts(maxChars);
+        String padding = Strings.repeat("x", 1000);
+        // when
+        for (int i = 0; i < 1000; i++) {
+            queryTexts.normalize("select " + padding + " from t" + i + " where id = " + i);
+            queryTexts.truncate(padding + i);
+        }
+        // then
+        assertThat(queryTexts.getCachedChars()).isLessThanOrEqualTo(2L * maxChars);
+        assertThat(queryTexts.getCachedChars()).isGreaterThan(0L);
+    }
+}
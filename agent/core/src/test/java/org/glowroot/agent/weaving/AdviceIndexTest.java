@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private final Advice exact = advice("org.example.Foo");
+    private final Advice wildcard = advice("org.example.*");
+    private final Advice alternatives = advice("org.other.Bar|org.example.sub.*");
+    private final Advice leadingWildcard = advice("*Servlet");
+    private final Advice regex = advice("/org\\.example\\..*/");
+    private final Advice unrestricted = advice("");
+
+    private final List<Advice> advisors = ImmutableList.of(exact, wildcard, alternatives,
+            leadingWildcard, regex, unrestricted);
+
+    private final AdviceIndex adviceIndex = new AdviceIndex(advisors);
+
+    @Test
+    public void shouldFindCandidatesInOrder() {
+        assertThat(adviceIndex.getCandidates("org.example.Foo")).containsExactly(exact, wildcard,
+                leadingWildcard, regex, unrestricted);
+        assertThat(adviceIndex.getCandidates("org.example.sub.Baz")).containsExactly(wildcard,
+                alternatives, leadingWildcard, regex, unrestricted);
+        assertThat(adviceIndex.getCandidates("org.other.Bar")).containsExactly(alternatives,
+                leadingWildcard, regex, unrestricted);
+        assertThat(adviceIndex.getCandidates("org.exampl")).containsExactly(leadingWildcard,
+                regex, unrestricted);
+    }
+
+    @Test
+    public void shouldNotMissAnyMatches() {
+        for (String className : ImmutableList.of("org.example.Foo", "org.example.Foo2",
+                "org.example.", "org.example.sub.Baz", "org.other.Bar", "org.other.Bar2",
+                "com.example.MyServlet", "Servlet", "")) {
+            List<Advice> candidates = adviceIndex.getCandidates(className);
+            for (Advice advice : advisors) {
+                if (AdviceMatcher.getAdviceMatchers(className, ImmutableList.<String>of(),
+                        ImmutableList.of(advice)).size() == 1) {
+                    assertThat(candidates).contains(advice);
+                }
+            }
+        }
+    }
+
+    private static Advice advice(String declaringClassName) {
+        return ImmutableAdvice.builder()
+                .pointcut(SomePointcut.class.getAnnotation(Pointcut.class))
+                .pointcutClassName(declaringClassName)
+                .pointcutClassNamePattern(AdviceBuilder.buildPattern(declaringClassName))
+                .pointcutMethodDeclaringClassName(declaringClassName)
+                .pointcutMethodDeclaringClassNamePattern(
+                        AdviceBuilder.buildPattern(declaringClassName))
+                .adviceType(Type.getType(AdviceIndexTest.class))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    @Pointcut(className = "dummy", methodName = "dummy", methodParameterTypes = {}, timerName = "a")
+    private static class SomePointcut {}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassLoaderMapTest {
+
+    @Test
+    public void shouldPutAndGet() {
+        // given
+        ClassLoaderMap<String> map = new ClassLoaderMap<String>();
+        ClassLoader loader1 = new URLClassLoader(new URL[0]);
+        ClassLoader loader2 = new URLClassLoader(new URL[0]);
+        // when
+        String value1 = map.putIfAbsent(loader1, "a");
+        String value2 = map.putIfAbsent(loader1, "b");
+        String value3 = map.putIfAbsent(loader2, "c");
+        // then
+        assertThat(value1).isEqualTo("a");
+        assertThat(value2).isEqualTo("a");
+        assertThat(value3).isEqualTo("c");
+        assertThat(map.get(loader1)).isEqualTo("a");
+        assertThat(map.get(loader2)).isEqualTo("c");
+        assertThat(map.get(new URLClassLoader(new URL[0]))).isNull();
+        assertThat(map.keys()).containsOnly(loader1, loader2);
+        assertThat(map.values()).containsOnly("a", "c");
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ImmutableInstrumentationConfig;
+import org.glowroot.agent.config.ImmutablePluginDescriptor;
+import org.glowroot.agent.config.InstrumentationConfig;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.weaving.Weaver.ComputeFramesClassWriter;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.InstrumentationConfig.CaptureKind;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final String KEY = "0123456789abcdef";
+
+    private static final InstrumentationConfig CONFIG = ImmutableInstrumentationConfig.builder()
+            .className("a")
+            .methodName("n")
+            .addMethodParameterTypes("java.lang.String")
+            .methodReturnType("")
+            .captureKind(CaptureKind.TIMER)
+            .timerName("t")
+            .traceEntryMessageTemplate("")
+            .traceEntryCaptureSelfNested(false)
+            .transactionType("")
+            .transactionNameTemplate("")
+            .transactionUserTemplate("")
+            .enabledProperty("")
+            .traceEntryEnabledProperty("")
+            .build();
+
+    private File parentDir;
+
+    @Before
+    public void beforeEachTest() {
+        parentDir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        deleteRecursively(parentDir);
+    }
+
+    @Test
+    public void shouldMissThenHit() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        weavingCache.start();
+        // when
+        WeavingCache.Entry entry = weavingCache.read(KEY);
+        weavingCache.write(KEY, new byte[] {1, 2, 3}, ImmutableList.of("a", "b", "c"));
+        weavingCache.close();
+        // then
+        assertThat(entry).isNull();
+        // simulate jvm restart
+        WeavingCache reopened = createWeavingCache("fingerprint");
+        entry = reopened.read(KEY);
+        assertThat(entry).isNotNull();
+        assertThat(entry.wovenBytes()).isEqualTo(new byte[] {1, 2, 3});
+        assertThat(entry.commonSuperClassQueries()).containsExactly("a", "b", "c");
+        assertThat(reopened.read("fedcba9876543210")).isNull();
+    }
+
+    @Test
+    public void shouldDropWritesBeforeStart() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        // when
+        weavingCache.write(KEY, new byte[] {1, 2, 3}, ImmutableList.<String>of());
+        weavingCache.start();
+        weavingCache.close();
+        // then
+        assertThat(weavingCache.read(KEY)).isNull();
+    }
+
+    @Test
+    public void shouldMissAfterFingerprintChange() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        weavingCache.start();
+        weavingCache.write(KEY, new byte[] {1, 2, 3}, ImmutableList.<String>of());
+        weavingCache.close();
+        // when
+        WeavingCache other = createWeavingCache("other");
+        other.start();
+        other.close();
+        // then
+        assertThat(other.read(KEY)).isNull();
+        // stale cache directory is deleted on start
+        assertThat(new File(parentDir, "fingerprint").exists()).isFalse();
+        assertThat(new File(parentDir, "other").exists()).isTrue();
+    }
+
+    @Test
+    public void shouldChangeFingerprintWhenInputsChange() throws Exception {
+        // given
+        File pluginJar = new File(parentDir, "plugin.jar");
+        Files.write("abc", pluginJar, UTF_8);
+        List<File> pluginJars = ImmutableList.of(pluginJar);
+        List<PluginDescriptor> pluginDescriptors = ImmutableList.of(pluginDescriptor(CONFIG));
+        List<InstrumentationConfig> configs = ImmutableList.of(CONFIG);
+        String fingerprint =
+                WeavingCache.getFingerprint("1.0", pluginJars, pluginDescriptors, configs);
+        // when
+        String sameFingerprint =
+                WeavingCache.getFingerprint("1.0", pluginJars, pluginDescriptors, configs);
+        String newVersionFingerprint =
+                WeavingCache.getFingerprint("1.1", pluginJars, pluginDescriptors, configs);
+        String noConfigFingerprint = WeavingCache.getFingerprint("1.0", pluginJars,
+                pluginDescriptors, ImmutableList.<InstrumentationConfig>of());
+        InstrumentationConfig changedConfig =
+                ImmutableInstrumentationConfig.builder().copyFrom(CONFIG).methodName("m").build();
+        String changedConfigFingerprint = WeavingCache.getFingerprint("1.0", pluginJars,
+                pluginDescriptors, ImmutableList.of(changedConfig));
+        String changedPluginConfigFingerprint = WeavingCache.getFingerprint("1.0", pluginJars,
+                ImmutableList.of(pluginDescriptor(changedConfig)), configs);
+        Files.write("abd", pluginJar, UTF_8);
+        String changedJarFingerprint =
+                WeavingCache.getFingerprint("1.0", pluginJars, pluginDescriptors, configs);
+        // then
+        assertThat(sameFingerprint).isEqualTo(fingerprint);
+        assertThat(newVersionFingerprint).isNotEqualTo(fingerprint);
+        assertThat(noConfigFingerprint).isNotEqualTo(fingerprint);
+        assertThat(changedConfigFingerprint).isNotEqualTo(fingerprint);
+        assertThat(changedPluginConfigFingerprint).isNotEqualTo(fingerprint);
+        assertThat(changedJarFingerprint).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void shouldDetectStaleCommonSuperClass() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        weavingCache.start();
+        weavingCache.write("current", new byte[0],
+                ImmutableList.of(internalName(C.class), internalName(Y.class),
+                        internalName(B.class)));
+        weavingCache.write("stale", new byte[0],
+                ImmutableList.of(internalName(C.class), internalName(Y.class),
+                        internalName(A.class)));
+        weavingCache.close();
+        ComputeFramesClassWriter cw = createClassWriter();
+        // when
+        WeavingCache.Entry current = weavingCache.read("current");
+        WeavingCache.Entry stale = weavingCache.read("stale");
+        // then
+        assertThat(current).isNotNull();
+        assertThat(current.isStale(cw)).isFalse();
+        assertThat(stale).isNotNull();
+        assertThat(stale.isStale(cw)).isTrue();
+    }
+
+    @Test
+    public void shouldIgnoreEntryWithBadMagic() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        Files.write("garbage!", new File(new File(parentDir, "fingerprint"), KEY), UTF_8);
+        // when
+        WeavingCache.Entry entry = weavingCache.read(KEY);
+        // then
+        assertThat(entry).isNull();
+    }
+
+    @Test
+    public void shouldIgnoreTruncatedEntry() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        weavingCache.start();
+        weavingCache.write(KEY, new byte[100], ImmutableList.of("a", "b", "c"));
+        weavingCache.close();
+        File file = new File(new File(parentDir, "fingerprint"), KEY);
+        byte[] bytes = Files.toByteArray(file);
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        Files.write(truncated, file);
+        // when
+        WeavingCache.Entry entry = weavingCache.read(KEY);
+        // then
+        assertThat(entry).isNull();
+    }
+
+    @Test
+    public void shouldReadIds() throws Exception {
+        // given
+        File cacheDir = new File(parentDir, "fingerprint");
+        cacheDir.mkdirs();
+        DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(new File(cacheDir, "ids")));
+        try {
+            out.writeInt(1);
+            out.writeUTF("weaving-cache-test-nesting-group");
+            out.writeInt(1000);
+            out.writeInt(1);
+            out.writeUTF("weaving-cache-test-suppression-key");
+            out.writeInt(1001);
+        } finally {
+            out.close();
+        }
+        // when
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        // then
+        assertThat(weavingCache).isNotNull();
+        assertThat(WeavingMethodVisitor.getNestingGroupIds())
+                .containsEntry("weaving-cache-test-nesting-group", 1000);
+        assertThat(WeavingMethodVisitor.getSuppressionKeyIds())
+                .containsEntry("weaving-cache-test-suppression-key", 1001);
+    }
+
+    @Test
+    public void shouldClearCacheOnPartialIdsFile() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        weavingCache.start();
+        weavingCache.write(KEY, new byte[] {1, 2, 3}, ImmutableList.<String>of());
+        weavingCache.close();
+        File cacheDir = new File(parentDir, "fingerprint");
+        DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(new File(cacheDir, "ids")));
+        try {
+            // claims two nesting group ids but only contains one
+            out.writeInt(2);
+            out.writeUTF("weaving-cache-test-partial");
+            out.writeInt(2000);
+        } finally {
+            out.close();
+        }
+        // when
+        WeavingCache reopened = createWeavingCache("fingerprint");
+        // then
+        assertThat(reopened).isNotNull();
+        assertThat(reopened.read(KEY)).isNull();
+        assertThat(new File(cacheDir, "ids").exists()).isFalse();
+        assertThat(WeavingMethodVisitor.getNestingGroupIds())
+                .doesNotContainKey("weaving-cache-test-partial");
+    }
+
+    @Test
+    public void shouldClearCacheOnCorruptIdsFile() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("fingerprint");
+        weavingCache.start();
+        weavingCache.write(KEY, new byte[] {1, 2, 3}, ImmutableList.<String>of());
+        weavingCache.close();
+        File cacheDir = new File(parentDir, "fingerprint");
+        Files.write(new byte[] {0, 0, 0, 1, (byte) 0xff}, new File(cacheDir, "ids"));
+        // when
+        WeavingCache reopened = createWeavingCache("fingerprint");
+        // then
+        assertThat(reopened).isNotNull();
+        assertThat(reopened.read(KEY)).isNull();
+    }
+
+    private WeavingCache createWeavingCache(String fingerprint) {
+        WeavingCache weavingCache = WeavingCache.create(parentDir, fingerprint,
+                ImmutableList.<Advice>of(), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        assertThat(weavingCache).isNotNull();
+        return weavingCache;
+    }
+
+    private ComputeFramesClassWriter createClassWriter() {
+        Supplier<List<Advice>> advisors =
+                Suppliers.<List<Advice>>ofInstance(ImmutableList.<Advice>of());
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        return new ComputeFramesClassWriter(0, analyzedWorld, getClass().getClassLoader(), null,
+                WeavingCacheTest.class.getName());
+    }
+
+    private static PluginDescriptor pluginDescriptor(InstrumentationConfig config) {
+        return ImmutablePluginDescriptor.builder()
+                .id("test")
+                .name("Test")
+                .addInstrumentationConfigs(config)
+                .addAspects("org.glowroot.agent.plugin.test.TestAspect")
+                .build();
+    }
+
+    private static String internalName(Class<?> clazz) {
+        return ClassNames.toInternalName(clazz.getName());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+
+    static class A {}
+
+    static class B extends A {}
+
+    static class C extends B {}
+
+    static class X extends B {}
+
+    static class Y extends X {}
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.security.CodeSource;
@@ -26,6 +27,7 @@ import java.util.List;
 import java.util.Properties;
 
 import javax.annotation.Nullable;
+import javax.management.ObjectName;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.KeyspaceMetadata;
@@ -79,6 +81,9 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CentralModule {
 
+    private static final String ROLLUP_SERVICE_MBEAN_NAME =
+            "org.glowroot.central:type=RollupService";
+
     private static final Logger startupLogger;
 
     static {
@@ -202,8 +207,9 @@ class CentralModule {
                     checkNotNull(downstreamService).updateAgentConfigIfConnectedAndNeeded(agentId);
                 }
             });
-            rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
+            rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao, traceDao,
                     configRepository, alertingService, downstreamService, clock);
+            registerMBean(rollupService, ROLLUP_SERVICE_MBEAN_NAME);
 
             uiModule = new CreateUiModuleBuilder()
                     .embedded(false)
@@ -237,6 +243,7 @@ class CentralModule {
                 server.close();
             }
             if (rollupService != null) {
+                unregisterMBean(ROLLUP_SERVICE_MBEAN_NAME);
                 rollupService.close();
             }
             if (session != null) {
@@ -304,11 +311,30 @@ class CentralModule {
     void close() throws InterruptedException {
         uiModule.close(false);
         server.close();
+        unregisterMBean(ROLLUP_SERVICE_MBEAN_NAME);
         rollupService.close();
         session.close();
         cluster.close();
     }
 
+    private static void registerMBean(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                    ObjectName.getInstance(name));
+        } catch (Exception e) {
+            startupLogger.warn(e.getMessage(), e);
+        }
+    }
+
+    private static void unregisterMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(ObjectName.getInstance(name));
+        } catch (Exception e) {
+            startupLogger.debug(e.getMessage(), e);
+        }
+    }
+
     private static CentralConfiguration getCentralConfiguration() throws IOException {
         ImmutableCentralConfiguration.Builder builder = ImmutableCentralConfiguration.builder();
         File propFile = new File("glowroot-central.properties");
@@ -17,12 +17,21 @@ package org.glowroot.central;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +40,7 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.TraceDao;
 import org.glowroot.common.config.SmtpConfig;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 import org.glowroot.common.repo.ConfigRepository;
@@ -40,43 +50,65 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class RollupService implements Runnable {
+public class RollupService implements Runnable, RollupServiceMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    // this also limits the number of concurrent rollups hitting cassandra
+    private static final int ROLLUP_THREADS =
+            Math.max(Integer.getInteger("glowroot.internal.central.rollupThreads", 8), 1);
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
+    private final TraceDao traceDao;
     private final ConfigRepository configRepository;
     private final AlertingService alertingService;
     private final DownstreamServiceImpl downstreamService;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    // agent rollup id -> start time of the most recent rollup pass that completed for the agent
+    // rollup
+    private final Map<String, Long> lastRollupPassTimes = Maps.newConcurrentMap();
+
+    private volatile long lastPassDurationMillis;
 
     private volatile boolean stopped;
 
     public RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            ConfigRepository configRepository, AlertingService alertingService,
+            TraceDao traceDao, ConfigRepository configRepository, AlertingService alertingService,
             DownstreamServiceImpl downstreamService, Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
+        this.traceDao = traceDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
         this.clock = clock;
+        workerExecutor = Executors.newFixedThreadPool(ROLLUP_THREADS,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Rollup-%d")
+                        .build());
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
 
     public void close() throws InterruptedException {
         stopped = true;
-        // shutdownNow() is needed here to send interrupt to RollupService thread
+        // shutdownNow() is needed here to send interrupt to RollupService threads
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Override
@@ -95,107 +127,175 @@ public class RollupService implements Runnable {
         }
     }
 
+    @Override
+    public Map<String, Long> getRollupLagMillis() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        Map<String, Long> rollupLagMillis = Maps.newTreeMap();
+        for (Entry<String, Long> entry : lastRollupPassTimes.entrySet()) {
+            rollupLagMillis.put(entry.getKey(), currentTimeMillis - entry.getValue());
+        }
+        return rollupLagMillis;
+    }
+
+    @Override
+    public long getMaxRollupLagMillis() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        long maxRollupLagMillis = 0;
+        for (long lastRollupPassTime : lastRollupPassTimes.values()) {
+            maxRollupLagMillis =
+                    Math.max(maxRollupLagMillis, currentTimeMillis - lastRollupPassTime);
+        }
+        return maxRollupLagMillis;
+    }
+
+    @Override
+    public long getLastPassDurationMillis() {
+        return lastPassDurationMillis;
+    }
+
+    @VisibleForTesting
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws InterruptedException {
+    void runInternal() throws Exception {
         Glowroot.setOuterTransaction();
-        for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            checkTransactionAlerts(agentRollup);
-            checkGaugeAlerts(agentRollup);
-            updateAgentConfigIfConnectedAndNeeded(agentRollup);
+        long passTime = clock.currentTimeMillis();
+        List<AgentRollup> agentRollups = agentDao.readAgentRollups();
+        // remove agent rollups that no longer exist from the rollup lag metric
+        Set<String> agentRollupIds = Sets.newHashSet();
+        addAgentRollupIds(agentRollups, agentRollupIds);
+        lastRollupPassTimes.keySet().retainAll(agentRollupIds);
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
+        for (AgentRollup agentRollup : agentRollups) {
+            futures.add(rollup(agentRollup, null, passTime));
         }
+        CompletableFuture.allOf(Iterables.toArray(futures, CompletableFuture.class)).get();
+        lastPassDurationMillis = clock.currentTimeMillis() - passTime;
     }
 
-    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
+    // independent agent rollups are rolled up in parallel, but children are always rolled up
+    // before their parent, since the initial roll up of the parent is done from the 1-min
+    // aggregates and gauge values of the children
+    //
+    // the returned future completes with false if gauge values could not be rolled up for this
+    // agent rollup or any of its descendants
+    private CompletableFuture<Boolean> rollup(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId, long passTime) {
+        List<CompletableFuture<Boolean>> childFutures = Lists.newArrayList();
         for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupAggregates(childAgentRollup, agentRollup.id());
+            childFutures.add(rollup(childAgentRollup, agentRollup.id(), passTime));
         }
+        return CompletableFuture.allOf(Iterables.toArray(childFutures, CompletableFuture.class))
+                .thenApplyAsync(ignored -> {
+                    boolean childrenGaugeSuccess = true;
+                    for (CompletableFuture<Boolean> childFuture : childFutures) {
+                        childrenGaugeSuccess = childrenGaugeSuccess && childFuture.join();
+                    }
+                    return rollup(agentRollup, parentAgentRollupId, childrenGaugeSuccess,
+                            passTime);
+                }, workerExecutor);
+    }
+
+    // returns true if gauge values were rolled up successfully
+    //
+    // each step catches and logs its own exceptions (other than InterruptedException), so that a
+    // failure for one agent rollup does not prevent the rest of the steps for it, or the roll up of
+    // its ancestors
+    private boolean rollup(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+            boolean childrenGaugeSuccess, long passTime) {
+        String agentRollupId = agentRollup.id();
+        boolean leaf = agentRollup.children().isEmpty();
         try {
-            aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
-                    agentRollup.children().isEmpty());
+            rollupAggregates(agentRollupId, parentAgentRollupId, leaf);
+            // important to not roll up parent if exception occurs while rolling up a child, since
+            // gauge values initial roll up from children is done on the 1-min aggregates of the
+            // children
+            boolean gaugeSuccess =
+                    childrenGaugeSuccess && rollupGauges(agentRollupId, parentAgentRollupId, leaf);
+            rollupErrorMessages(agentRollupId);
+            checkTransactionAlerts(agentRollupId);
+            checkGaugeAlerts(agentRollupId);
+            if (leaf) {
+                updateAgentConfigIfConnectedAndNeeded(agentRollupId);
+            }
+            lastRollupPassTimes.put(agentRollupId, passTime);
+            return gaugeSuccess;
+        } catch (InterruptedException e) {
+            // shutdown requested
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void rollupAggregates(String agentRollupId, @Nullable String parentAgentRollupId,
+            boolean leaf) throws InterruptedException {
+        try {
+            aggregateDao.rollup(agentRollupId, parentAgentRollupId, leaf);
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
         } catch (Exception e) {
-            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+            logger.error("{} - {}", agentRollupId, e.getMessage(), e);
         }
     }
 
     // returns true on success, false on failure
-    private boolean rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
-        // important to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup, agentRollup.id());
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // also important to not roll up parent if exception occurs while rolling up a child,
-            // since gauge values initial roll up from children is done on the 1-min aggregates of
-            // the children
-            return false;
-        }
+    private boolean rollupGauges(String agentRollupId, @Nullable String parentAgentRollupId,
+            boolean leaf) throws InterruptedException {
         try {
-            gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
-                    agentRollup.children().isEmpty());
+            gaugeValueDao.rollup(agentRollupId, parentAgentRollupId, leaf);
             return true;
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
         } catch (Exception e) {
-            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+            logger.error("{} - {}", agentRollupId, e.getMessage(), e);
             return false;
         }
     }
 
-    private void checkTransactionAlerts(AgentRollup agentRollup) throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkTransactionAlerts(childAgentRollup);
-        }
+    private void rollupErrorMessages(String agentRollupId) throws InterruptedException {
         try {
-            checkTransactionAlerts(agentRollup.id(), clock.currentTimeMillis());
+            traceDao.rollup(agentRollupId);
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
         } catch (Exception e) {
-            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+            logger.error("{} - {}", agentRollupId, e.getMessage(), e);
         }
     }
 
-    private void checkGaugeAlerts(AgentRollup agentRollup) throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkGaugeAlerts(childAgentRollup);
-        }
+    private void updateAgentConfigIfConnectedAndNeeded(String agentId)
+            throws InterruptedException {
         try {
-            checkGaugeAlerts(agentRollup.id(), clock.currentTimeMillis());
+            downstreamService.updateAgentConfigIfConnectedAndNeeded(agentId);
         } catch (InterruptedException e) {
             // shutdown requested
             throw e;
         } catch (Exception e) {
-            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+            logger.error("{} - {}", agentId, e.getMessage(), e);
         }
     }
 
-    private void updateAgentConfigIfConnectedAndNeeded(AgentRollup agentRollup)
-            throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            updateAgentConfigIfConnectedAndNeeded(childAgentRollup);
+    private void checkTransactionAlerts(String agentRollupId) throws InterruptedException {
+        try {
+            checkTransactionAlerts(agentRollupId, clock.currentTimeMillis());
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollupId, e.getMessage(), e);
         }
-        if (agentRollup.children().isEmpty()) {
-            try {
-                downstreamService.updateAgentConfigIfConnectedAndNeeded(agentRollup.id());
-            } catch (InterruptedException e) {
-                // shutdown requested
-                throw e;
-            } catch (Exception e) {
-                logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
-            }
+    }
+
+    private void checkGaugeAlerts(String agentRollupId) throws InterruptedException {
+        try {
+            checkGaugeAlerts(agentRollupId, clock.currentTimeMillis());
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollupId, e.getMessage(), e);
         }
     }
 
@@ -270,6 +370,14 @@ public class RollupService implements Runnable {
         alertingService.checkGaugeAlert(agentId, alertConfig, captureTime, smtpConfig);
     }
 
+    private static void addAgentRollupIds(List<AgentRollup> agentRollups,
+            Set<String> agentRollupIds) {
+        for (AgentRollup agentRollup : agentRollups) {
+            agentRollupIds.add(agentRollup.id());
+            addAgentRollupIds(agentRollup.children(), agentRollupIds);
+        }
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
@@ -54,8 +54,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.util.ConcurrentReads;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.PartitionBatcher;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
@@ -106,7 +108,14 @@ public class AggregateDao implements AggregateRepository {
 
     private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
 
-    private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
+    static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    // number of rollup intervals read by each query when reading long time ranges
+    private static final int READ_CHUNK_INTERVALS =
+            Integer.getInteger("glowroot.internal.central.readChunkIntervals", 120);
+
+    private static final int MAX_CONCURRENT_CHUNK_READS =
+            Integer.getInteger("glowroot.internal.central.maxConcurrentChunkReads", 8);
 
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
@@ -433,19 +442,24 @@ public class AggregateDao implements AggregateRepository {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // rows are grouped by partition into unlogged batches, since agents can report thousands
+        // of transaction names per interval
+        PartitionBatcher batcher = new PartitionBatcher(session);
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+            storeOverallAggregate(agentId, transactionType, captureTime, overallAggregate,
+                    sharedQueryTexts, adjustedTTL, batcher);
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                        batcher);
             }
             futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
         }
+        futures.addAll(batcher.execute());
         futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
         // wait for success before inserting "needs rollup" records
         MoreFutures.waitForAll(futures);
@@ -564,7 +578,7 @@ public class AggregateDao implements AggregateRepository {
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             TransactionQuery query)
             throws IOException {
-        ResultSet results = executeQuery(agentRollupId, query, overviewTable);
+        Iterable<Row> results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
         for (Row row : results) {
             int i = 0;
@@ -615,7 +629,7 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             TransactionQuery query) throws InvalidProtocolBufferException {
-        ResultSet results = executeQuery(agentRollupId, query, histogramTable);
+        Iterable<Row> results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = Lists.newArrayList();
         for (Row row : results) {
             long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
@@ -638,7 +652,7 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             TransactionQuery query) throws IOException {
-        ResultSet results = executeQuery(agentRollupId, query, throughputTable);
+        Iterable<Row> results = executeQuery(agentRollupId, query, throughputTable);
         List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
         for (Row row : results) {
             long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
@@ -651,6 +665,24 @@ public class AggregateDao implements AggregateRepository {
         return throughputAggregates;
     }
 
+    // an interval at a given rollup level is complete once it is in the past, once every interval
+    // that it is rolled up from is complete, and once it has no pending "needs rollup" record
+    @Override
+    public long readRollupCompleteTime(String agentRollupId, int rollupLevel) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        // level 0 aggregates for the most recent interval may still be arriving from the agent
+        long completeTime = clock.currentTimeMillis() - rollupConfigs.get(0).intervalMillis();
+        completeTime = Math.min(completeTime,
+                readFirstNeedsRollupCaptureTime(readNeedsRollupFromChild, agentRollupId) - 1);
+        for (int i = 1; i <= rollupLevel; i++) {
+            long intervalMillis = rollupConfigs.get(i).intervalMillis();
+            completeTime = (completeTime / intervalMillis) * intervalMillis;
+            completeTime = Math.min(completeTime, readFirstNeedsRollupCaptureTime(
+                    readNeedsRollup.get(i - 1), agentRollupId) - 1);
+        }
+        return completeTime;
+    }
+
     @Override
     public @Nullable String readFullQueryText(String agentRollupId, String fullQueryTextSha1)
             throws Exception {
@@ -661,7 +693,7 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void mergeQueriesInto(String agentRollupId, TransactionQuery query,
             QueryCollector collector) throws IOException {
-        ResultSet results = executeQuery(agentRollupId, query, queryTable);
+        Iterable<Row> results = executeQuery(agentRollupId, query, queryTable);
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
             int i = 0;
@@ -684,7 +716,7 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public void mergeServiceCallsInto(String agentRollupId, TransactionQuery query,
             ServiceCallCollector collector) throws IOException {
-        ResultSet results = executeQuery(agentRollupId, query, serviceCallTable);
+        Iterable<Row> results = executeQuery(agentRollupId, query, serviceCallTable);
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
             int i = 0;
@@ -1414,7 +1446,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCalls(RollupParams rollup, TransactionQuery query)
-            throws IOException {
+            throws Exception {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, serviceCallTable);
         if (results.isExhausted()) {
             return ImmutableList.of();
@@ -1423,7 +1455,8 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCallsFromChildren(RollupParams rollup,
-            TransactionQuery query, Collection<String> childAgentRollups) {
+            TransactionQuery query, Collection<String> childAgentRollups)
+            throws InterruptedException {
         List<Row> rows = getRowsForRollupFromChildren(query, childAgentRollups, serviceCallTable);
         if (rows.isEmpty()) {
             return ImmutableList.of();
@@ -1432,7 +1465,7 @@ public class AggregateDao implements AggregateRepository {
     }
 
     private List<ResultSetFuture> rollupServiceCallsFromRows(RollupParams rollup,
-            TransactionQuery query, Iterable<Row> rows) {
+            TransactionQuery query, Iterable<Row> rows) throws InterruptedException {
         ServiceCallCollector collector =
                 new ServiceCallCollector(rollup.maxAggregateServiceCallsPerType(), 0);
         for (Row row : rows) {
@@ -1444,8 +1477,11 @@ public class AggregateDao implements AggregateRepository {
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
                     executionCount);
         }
-        return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+        PartitionBatcher batcher = new PartitionBatcher(session);
+        insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
+                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL(),
+                batcher);
+        return batcher.execute();
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
@@ -1516,14 +1552,12 @@ public class AggregateDao implements AggregateRepository {
         return rows;
     }
 
-    private List<ResultSetFuture> storeOverallAggregate(String agentRollupId,
-            String transactionType,
+    private void storeOverallAggregate(String agentRollupId, String transactionType,
             long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
-            int adjustedTTL) throws Exception {
+            int adjustedTTL, PartitionBatcher batcher) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1532,7 +1566,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1543,7 +1577,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1552,7 +1586,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1563,7 +1597,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1572,7 +1606,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1583,7 +1617,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1594,22 +1628,21 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(boundStatement);
         }
-        futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
-                rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
+                agentRollupId, transactionType, null, captureTime, adjustedTTL, batcher);
+        insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, batcher);
     }
 
-    private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
-            String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
+    private void storeTransactionAggregate(String agentRollupId, String transactionType,
+            String transactionName, long captureTime, Aggregate aggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL,
+            PartitionBatcher batcher) throws IOException {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1619,7 +1652,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1631,7 +1664,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(boundStatement);
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -1641,7 +1674,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1653,7 +1686,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1663,7 +1696,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batcher.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1675,7 +1708,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1687,21 +1720,19 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batcher.add(boundStatement);
         }
-        futures.addAll(
-                insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
-                        agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL,
+                batcher);
+        insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, batcher);
     }
 
-    private List<ResultSetFuture> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
+    private void insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
-            int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+            int adjustedTTL, PartitionBatcher batcher) {
         for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
             for (Aggregate.Query query : queriesByType.getQueryList()) {
                 Aggregate.SharedQueryText sharedQueryText =
@@ -1737,10 +1768,9 @@ public class AggregateDao implements AggregateRepository {
                     boundStatement.setToNull(i++);
                 }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(boundStatement);
             }
         }
-        return futures;
     }
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
@@ -1785,11 +1815,10 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
-    private List<ResultSetFuture> insertServiceCalls(
-            List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
-            String agentRollupId, String transactionType, @Nullable String transactionName,
-            long captureTime, int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+    private void insertServiceCalls(List<Aggregate.ServiceCallsByType> serviceCallsByTypeList,
+            int rollupLevel, String agentRollupId, String transactionType,
+            @Nullable String transactionName, long captureTime, int adjustedTTL,
+            PartitionBatcher batcher) {
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                 BoundStatement boundStatement;
@@ -1810,10 +1839,9 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                batcher.add(boundStatement);
             }
         }
-        return futures;
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
@@ -1900,16 +1928,35 @@ public class AggregateDao implements AggregateRepository {
         return session.execute(boundStatement);
     }
 
-    private ResultSet executeQuery(String agentRollupId, TransactionQuery query, Table table) {
-        BoundStatement boundStatement;
+    // long time ranges are split into chunks which are read concurrently, since otherwise a single
+    // query (over a single partition) has to be read serially from a single replica
+    private Iterable<Row> executeQuery(String agentRollupId, TransactionQuery query, Table table) {
+        PreparedStatement preparedStatement;
         if (query.transactionName() == null) {
-            boundStatement = checkNotNull(readOverallPS.get(table)).get(query.rollupLevel()).bind();
+            preparedStatement = checkNotNull(readOverallPS.get(table)).get(query.rollupLevel());
         } else {
-            boundStatement =
-                    checkNotNull(readTransactionPS.get(table)).get(query.rollupLevel()).bind();
+            preparedStatement = checkNotNull(readTransactionPS.get(table)).get(query.rollupLevel());
+        }
+        long chunkMillis = configRepository.getRollupConfigs().get(query.rollupLevel())
+                .intervalMillis() * READ_CHUNK_INTERVALS;
+        List<BoundStatement> boundStatements = Lists.newArrayList();
+        long chunkFrom = query.from();
+        while (true) {
+            long chunkTo = Math.min(chunkFrom + chunkMillis, query.to());
+            BoundStatement boundStatement = preparedStatement.bind();
+            bindQuery(boundStatement, agentRollupId, ImmutableTransactionQuery.builder()
+                    .copyFrom(query)
+                    .from(chunkFrom)
+                    .to(chunkTo)
+                    .build());
+            boundStatements.add(boundStatement);
+            if (chunkTo == query.to()) {
+                break;
+            }
+            // chunk "to" is inclusive, so the next chunk needs to start after it
+            chunkFrom = table.fromInclusive() ? chunkTo + 1 : chunkTo;
         }
-        bindQuery(boundStatement, agentRollupId, query);
-        return session.execute(boundStatement);
+        return ConcurrentReads.execute(session, boundStatements, MAX_CONCURRENT_CHUNK_READS);
     }
 
     private ResultSet executeQueryForRollup(String agentRollupId, TransactionQuery query,
@@ -1940,7 +1987,7 @@ public class AggregateDao implements AggregateRepository {
 
     private void mergeProfilesInto(String agentRollupId, TransactionQuery query, Table profileTable,
             ProfileCollector collector) throws InvalidProtocolBufferException {
-        ResultSet results = executeQuery(agentRollupId, query, profileTable);
+        Iterable<Row> results = executeQuery(agentRollupId, query, profileTable);
         long captureTime = Long.MIN_VALUE;
         for (Row row : results) {
             captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(0)).getTime());
@@ -2010,6 +2057,18 @@ public class AggregateDao implements AggregateRepository {
         return Math.max(needsRollupAdjustedTTL, 60);
     }
 
+    // "needs rollup" records are clustered by capture time
+    private long readFirstNeedsRollupCaptureTime(PreparedStatement readNeedsRollup,
+            String agentRollupId) {
+        BoundStatement boundStatement = readNeedsRollup.bind();
+        boundStatement.setString(0, agentRollupId);
+        Row row = session.execute(boundStatement).one();
+        if (row == null) {
+            return Long.MAX_VALUE;
+        }
+        return checkNotNull(row.getTimestamp(0)).getTime();
+    }
+
     static List<NeedsRollup> getNeedsRollupList(String agentRollupId, int rollupLevel,
             long rollupIntervalMillis, List<PreparedStatement> readNeedsRollup, Session session,
             Clock clock) {
@@ -36,8 +36,10 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
@@ -61,8 +63,10 @@ import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
@@ -101,6 +105,11 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
+    private final PreparedStatement insertOverallErrorMessageRollup;
+    private final PreparedStatement insertTransactionErrorMessageRollup;
+
+    private final PreparedStatement insertErrorMessageNeedsRollup;
+
     private final PreparedStatement insertHeader;
     private final PreparedStatement insertEntry;
     private final PreparedStatement insertSharedQueryText;
@@ -117,6 +126,12 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    private final PreparedStatement readOverallErrorMessageRollup;
+    private final PreparedStatement readTransactionErrorMessageRollup;
+
+    private final PreparedStatement readErrorMessageNeedsRollup;
+    private final PreparedStatement deleteErrorMessageNeedsRollup;
+
     private final PreparedStatement readHeader;
     private final PreparedStatement readEntries;
     private final PreparedStatement readSharedQueryTexts;
@@ -129,6 +144,8 @@ public class TraceDao implements TraceRepository {
     private final PreparedStatement deletePartialOverallSlowCount;
     private final PreparedStatement deletePartialTransactionSlowCount;
 
+    private final long errorMessageRollupStartTime;
+
     public TraceDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock) {
         this.session = session;
@@ -186,6 +203,38 @@ public class TraceDao implements TraceRepository {
                 + " error_message varchar, primary key ((agent_rollup, transaction_type,"
                 + " transaction_name), capture_time, agent_id, trace_id))", expirationHours);
 
+        // error message counts per rollup interval, so that the errors page does not need to read
+        // every error message row over long time ranges
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_error_message_rollup (agent_rollup varchar, transaction_type varchar,"
+                + " capture_time timestamp, error_message varchar, count bigint, primary key"
+                + " ((agent_rollup, transaction_type), capture_time, error_message))",
+                expirationHours);
+
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_error_message_rollup (agent_rollup varchar, transaction_type varchar,"
+                + " transaction_name varchar, capture_time timestamp, error_message varchar,"
+                + " count bigint, primary key ((agent_rollup, transaction_type, transaction_name),"
+                + " capture_time, error_message))", expirationHours);
+
+        // at most one record per rollup interval and transaction name (records are upserted),
+        // capture_time is the end of the rollup interval
+        //
+        // the write time of the "marker" column is used when deleting the record after roll up,
+        // so that the record is not deleted if it has been re-written in the meantime
+        session.execute("create table if not exists trace_error_message_needs_rollup"
+                + " (agent_rollup varchar, capture_time timestamp, transaction_type varchar,"
+                + " transaction_name varchar, marker boolean, primary key (agent_rollup,"
+                + " capture_time, transaction_type, transaction_name)) with gc_grace_seconds = "
+                + HOURS.toSeconds(3) + " and " + AggregateDao.LCS);
+
+        // error messages captured prior to this time were not recorded in the needs rollup table
+        // (e.g. prior to upgrade), so they are always read from the raw error messages instead of
+        // being rolled up (this avoids having to scan all of the existing error messages during
+        // upgrade), and they will expire in time
+        session.execute("create table if not exists trace_error_message_rollup_start (one int,"
+                + " start_time timestamp, primary key (one)) with " + AggregateDao.LCS);
+
         Sessions.createTableWithTWCS(session, "create table if not exists trace_header"
                 + " (agent_id varchar, trace_id varchar, header blob, primary key (agent_id,"
                 + " trace_id))", expirationHours);
@@ -285,6 +334,20 @@ public class TraceDao implements TraceRepository {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id, error_message) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallErrorMessageRollup = session.prepare("insert into"
+                + " trace_tt_error_message_rollup (agent_rollup, transaction_type, capture_time,"
+                + " error_message, count) values (?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorMessageRollup = session.prepare("insert into"
+                + " trace_tn_error_message_rollup (agent_rollup, transaction_type,"
+                + " transaction_name, capture_time, error_message, count) values"
+                + " (?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertErrorMessageNeedsRollup = session.prepare("insert into"
+                + " trace_error_message_needs_rollup (agent_rollup, capture_time,"
+                + " transaction_type, transaction_name, marker) values (?, ?, ?, ?, true)"
+                + " using ttl ?");
+
         insertHeader = session.prepare("insert into trace_header (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
@@ -334,6 +397,23 @@ public class TraceDao implements TraceRepository {
                 + " from trace_tn_error_message where agent_rollup = ? and transaction_type = ?"
                 + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallErrorMessageRollup = session.prepare("select capture_time, error_message,"
+                + " count from trace_tt_error_message_rollup where agent_rollup = ?"
+                + " and transaction_type = ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorMessageRollup = session.prepare("select capture_time, error_message,"
+                + " count from trace_tn_error_message_rollup where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and capture_time > ?"
+                + " and capture_time <= ?");
+
+        readErrorMessageNeedsRollup = session.prepare("select capture_time, transaction_type,"
+                + " transaction_name, writetime(marker) from trace_error_message_needs_rollup"
+                + " where agent_rollup = ? and capture_time > ? and capture_time <= ?");
+
+        deleteErrorMessageNeedsRollup = session.prepare("delete from"
+                + " trace_error_message_needs_rollup using timestamp ? where agent_rollup = ?"
+                + " and capture_time = ? and transaction_type = ? and transaction_name = ?");
+
         readHeader = session
                 .prepare("select header from trace_header where agent_id = ? and trace_id = ?");
 
@@ -367,6 +447,12 @@ public class TraceDao implements TraceRepository {
         deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        session.execute("insert into trace_error_message_rollup_start (one, start_time) values"
+                + " (1, ?) if not exists", new Date(clock.currentTimeMillis()));
+        Row row = checkNotNull(session.execute(
+                "select start_time from trace_error_message_rollup_start where one = 1").one());
+        errorMessageRollupStartTime = checkNotNull(row.getTimestamp(0)).getTime();
     }
 
     public void store(String agentId, Trace trace) throws Exception {
@@ -560,6 +646,16 @@ public class TraceDao implements TraceRepository {
                 boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
 
+                boundStatement = insertErrorMessageNeedsRollup.bind();
+                i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setTimestamp(i++, new Date(Utils.getRollupCaptureTime(
+                        header.getCaptureTime(), getErrorMessageRollupIntervalMillis())));
+                boundStatement.setString(i++, header.getTransactionType());
+                boundStatement.setString(i++, header.getTransactionName());
+                boundStatement.setInt(i++, adjustedTTL);
+                futures.add(session.executeAsync(boundStatement));
+
                 boundStatement = insertOverallErrorPoint.bind();
                 i = 0;
                 boundStatement.setString(i++, agentRollupId);
@@ -830,37 +926,79 @@ public class TraceDao implements TraceRepository {
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollupId, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupId);
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setTimestamp(i++, new Date(query.from()));
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-        } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            int i = 0;
-            boundStatement.setString(i++, agentRollupId);
-            boundStatement.setString(i++, query.transactionType());
-            boundStatement.setString(i++, transactionName);
-            boundStatement.setTimestamp(i++, new Date(query.from()));
-            boundStatement.setTimestamp(i++, new Date(query.to()));
-        }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
-        Map<Long, MutableLong> pointCounts = Maps.newLinkedHashMap();
+        long rollupIntervalMillis = getErrorMessageRollupIntervalMillis();
+        Map<Long, MutableLong> pointCounts = Maps.newHashMap();
         Map<String, MutableLong> messageCounts = Maps.newHashMap();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            String errorMessage = checkNotNull(row.getString(1));
-            if (!matches(filter, errorMessage)) {
-                continue;
+        if (resolutionMillis % rollupIntervalMillis != 0) {
+            // rolled up counts are too coarse for the requested resolution
+            ResultSet results = session.execute(
+                    bindReadErrorMessages(agentRollupId, query, query.from(), query.to()));
+            mergeErrorMessages(results, filter, resolutionMillis, pointCounts, messageCounts);
+        } else {
+            // intervals prior to the error message rollup start time are never rolled up
+            long rolledUpFrom =
+                    Math.max(Utils.getRollupCaptureTime(query.from(), rollupIntervalMillis),
+                            Utils.getRollupCaptureTime(errorMessageRollupStartTime,
+                                    rollupIntervalMillis));
+            long rolledUpTo = RollupLevelService.getSafeRollupTime(query.to(),
+                    rollupIntervalMillis);
+            List<ResultSetFuture> rawFutures = Lists.newArrayList();
+            if (rolledUpFrom >= rolledUpTo) {
+                rawFutures.add(session.executeAsync(
+                        bindReadErrorMessages(agentRollupId, query, query.from(), query.to())));
+            } else {
+                // intervals that have not been rolled up yet (including any that are being rolled
+                // up concurrently) are read from the raw error messages, and their rolled up
+                // counts (if any) are ignored, reading the needs rollup records before the rolled
+                // up counts ensures that no interval is counted twice
+                Set<Long> needsRollupCaptureTimes = Sets.newHashSet();
+                for (ErrorMessageNeedsRollup needsRollup : readErrorMessageNeedsRollups(
+                        agentRollupId, rolledUpFrom, rolledUpTo)) {
+                    if (needsRollup.transactionType.equals(query.transactionType())
+                            && (query.transactionName() == null || needsRollup.transactionName
+                                    .equals(query.transactionName()))) {
+                        needsRollupCaptureTimes.add(needsRollup.captureTime);
+                    }
+                }
+                // partial intervals at either end of the query range
+                if (query.from() < rolledUpFrom) {
+                    rawFutures.add(session.executeAsync(bindReadErrorMessages(agentRollupId,
+                            query, query.from(), rolledUpFrom)));
+                }
+                if (rolledUpTo < query.to()) {
+                    rawFutures.add(session.executeAsync(bindReadErrorMessages(agentRollupId,
+                            query, rolledUpTo, query.to())));
+                }
+                for (long captureTime : needsRollupCaptureTimes) {
+                    if (captureTime > rolledUpFrom && captureTime <= rolledUpTo) {
+                        rawFutures.add(session.executeAsync(bindReadErrorMessages(agentRollupId,
+                                query, captureTime - rollupIntervalMillis, captureTime)));
+                    }
+                }
+                ResultSet results = session.execute(bindReadErrorMessageRollups(agentRollupId,
+                        query, rolledUpFrom, rolledUpTo));
+                for (Row row : results) {
+                    int i = 0;
+                    long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+                    if (needsRollupCaptureTimes.contains(captureTime)) {
+                        continue;
+                    }
+                    String errorMessage = checkNotNull(row.getString(i++));
+                    if (!matches(filter, errorMessage)) {
+                        continue;
+                    }
+                    long count = row.getLong(i++);
+                    long rollupCaptureTime =
+                            Utils.getRollupCaptureTime(captureTime, resolutionMillis);
+                    pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong())
+                            .add(count);
+                    messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).add(count);
+                }
+            }
+            for (ResultSetFuture rawFuture : rawFutures) {
+                mergeErrorMessages(rawFuture.get(), filter, resolutionMillis, pointCounts,
+                        messageCounts);
             }
-            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
-            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
-            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
         }
         List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
@@ -870,7 +1008,6 @@ public class TraceDao implements TraceRepository {
                 .collect(Collectors.<ErrorMessagePoint>toList());
         List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessageCount.of(e.getKey(), e.getValue().value))
-                // points above are already ordered by cassandra, but need to reverse sort counts
                 .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
                 // explicit type on this line is needed for Checker Framework
                 // see https://github.com/typetools/checker-framework/issues/531
@@ -889,6 +1026,67 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    // rolls up the error message counts for each completed interval that has new error traces
+    //
+    // rolling up an interval is idempotent (the counts are re-computed from the raw error
+    // messages), so an interval is simply rolled up again if error traces arrive late
+    public void rollup(String agentRollupId) throws Exception {
+        long rollupIntervalMillis = getErrorMessageRollupIntervalMillis();
+        long currentTimeMillis = clock.currentTimeMillis();
+        // needs rollup records for intervals that are still being added to are not read, and
+        // records older than the trace expiration have already expired
+        long from = currentTimeMillis
+                - HOURS.toMillis(configRepository.getStorageConfig().traceExpirationHours());
+        // records are ordered by capture time
+        ListMultimap<Long, ErrorMessageNeedsRollup> needsRollups =
+                MultimapBuilder.linkedHashKeys().arrayListValues().build();
+        for (ErrorMessageNeedsRollup needsRollup : readErrorMessageNeedsRollups(agentRollupId,
+                from, currentTimeMillis)) {
+            needsRollups.put(needsRollup.captureTime, needsRollup);
+        }
+        for (long captureTime : needsRollups.keySet()) {
+            List<ErrorMessageNeedsRollup> list = needsRollups.get(captureTime);
+            int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), captureTime, clock);
+            long intervalFrom = captureTime - rollupIntervalMillis;
+            Set<String> transactionTypes = Sets.newHashSet();
+            List<ResultSetFuture> futures = Lists.newArrayList();
+            for (ErrorMessageNeedsRollup needsRollup : list) {
+                if (transactionTypes.add(needsRollup.transactionType)) {
+                    TraceQuery query = ImmutableTraceQuery.builder()
+                            .transactionType(needsRollup.transactionType)
+                            .from(intervalFrom)
+                            .to(captureTime)
+                            .build();
+                    futures.addAll(rollupOne(agentRollupId, query, captureTime, adjustedTTL));
+                }
+                TraceQuery query = ImmutableTraceQuery.builder()
+                        .transactionType(needsRollup.transactionType)
+                        .transactionName(needsRollup.transactionName)
+                        .from(intervalFrom)
+                        .to(captureTime)
+                        .build();
+                futures.addAll(rollupOne(agentRollupId, query, captureTime, adjustedTTL));
+            }
+            // wait for above async work to ensure rollup complete before deleting the "needs
+            // rollup" records
+            MoreFutures.waitForAll(futures);
+            futures.clear();
+            for (ErrorMessageNeedsRollup needsRollup : list) {
+                // deleting using the write time of the record, so that the record is not deleted
+                // if it was re-written (by a late error trace) after it was read above
+                BoundStatement boundStatement = deleteErrorMessageNeedsRollup.bind();
+                int i = 0;
+                boundStatement.setLong(i++, needsRollup.writeTime);
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setTimestamp(i++, new Date(captureTime));
+                boundStatement.setString(i++, needsRollup.transactionType);
+                boundStatement.setString(i++, needsRollup.transactionName);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            MoreFutures.waitForAll(futures);
+        }
+    }
+
     @Override
     public @Nullable HeaderPlus readHeaderPlus(String agentRollupId, String agentId, String traceId)
             throws InvalidProtocolBufferException {
@@ -1081,6 +1279,80 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTexts;
     }
 
+    private List<ResultSetFuture> rollupOne(String agentRollupId, TraceQuery query,
+            long captureTime, int adjustedTTL) throws Exception {
+        ResultSet results = session.execute(
+                bindReadErrorMessages(agentRollupId, query, query.from(), query.to()));
+        Map<String, MutableLong> messageCounts = Maps.newHashMap();
+        for (Row row : results) {
+            String errorMessage = checkNotNull(row.getString(1));
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        String transactionName = query.transactionName();
+        for (Map.Entry<String, MutableLong> entry : messageCounts.entrySet()) {
+            BoundStatement boundStatement;
+            int i = 0;
+            if (transactionName == null) {
+                boundStatement = insertOverallErrorMessageRollup.bind();
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setString(i++, query.transactionType());
+            } else {
+                boundStatement = insertTransactionErrorMessageRollup.bind();
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setString(i++, query.transactionType());
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setString(i++, entry.getKey());
+            boundStatement.setLong(i++, entry.getValue().value);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
+    // from is non-inclusive
+    private BoundStatement bindReadErrorMessages(String agentRollupId, TraceQuery query,
+            long from, long to) {
+        return bindErrorMessageQuery(readOverallErrorMessage, readTransactionErrorMessage,
+                agentRollupId, query, from, to);
+    }
+
+    // from is non-inclusive
+    private BoundStatement bindReadErrorMessageRollups(String agentRollupId, TraceQuery query,
+            long from, long to) {
+        return bindErrorMessageQuery(readOverallErrorMessageRollup,
+                readTransactionErrorMessageRollup, agentRollupId, query, from, to);
+    }
+
+    // from is non-inclusive
+    private List<ErrorMessageNeedsRollup> readErrorMessageNeedsRollups(String agentRollupId,
+            long from, long to) {
+        BoundStatement boundStatement = readErrorMessageNeedsRollup.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        ResultSet results = session.execute(boundStatement);
+        List<ErrorMessageNeedsRollup> needsRollups = Lists.newArrayList();
+        for (Row row : results) {
+            i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            String transactionType = checkNotNull(row.getString(i++));
+            String transactionName = checkNotNull(row.getString(i++));
+            long writeTime = row.getLong(i++);
+            needsRollups.add(new ErrorMessageNeedsRollup(captureTime, transactionType,
+                    transactionName, writeTime));
+        }
+        return needsRollups;
+    }
+
+    private long getErrorMessageRollupIntervalMillis() {
+        // same interval as the first level of aggregate rollups
+        return configRepository.getRollupConfigs().get(1).intervalMillis();
+    }
+
     private int getTTL() {
         return Ints.saturatedCast(
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
@@ -1148,6 +1420,45 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static BoundStatement bindErrorMessageQuery(PreparedStatement readOverall,
+            PreparedStatement readTransaction, String agentRollupId, TraceQuery query, long from,
+            long to) {
+        BoundStatement boundStatement;
+        String transactionName = query.transactionName();
+        if (transactionName == null) {
+            boundStatement = readOverall.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            boundStatement.setTimestamp(i++, new Date(from));
+            boundStatement.setTimestamp(i++, new Date(to));
+        } else {
+            boundStatement = readTransaction.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            boundStatement.setString(i++, transactionName);
+            boundStatement.setTimestamp(i++, new Date(from));
+            boundStatement.setTimestamp(i++, new Date(to));
+        }
+        return boundStatement;
+    }
+
+    private static void mergeErrorMessages(ResultSet results, ErrorMessageFilter filter,
+            long resolutionMillis, Map<Long, MutableLong> pointCounts,
+            Map<String, MutableLong> messageCounts) {
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            String errorMessage = checkNotNull(row.getString(1));
+            if (!matches(filter, errorMessage)) {
+                continue;
+            }
+            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+        }
+    }
+
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
         String upper = errorMessage.toUpperCase(Locale.ENGLISH);
         for (String include : filter.includes()) {
@@ -1175,5 +1486,25 @@ public class TraceDao implements TraceRepository {
         private void increment() {
             value++;
         }
+        private void add(long delta) {
+            value += delta;
+        }
+    }
+
+    private static class ErrorMessageNeedsRollup {
+
+        private final long captureTime;
+        private final String transactionType;
+        private final String transactionName;
+        // cassandra write time (in microseconds)
+        private final long writeTime;
+
+        private ErrorMessageNeedsRollup(long captureTime, String transactionType,
+                String transactionName, long writeTime) {
+            this.captureTime = captureTime;
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            this.writeTime = writeTime;
+        }
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+
+// executes read statements concurrently, keeping at most maxConcurrent of them in flight, and
+// returns their rows in statement order, so the caller can merge the rows of one statement while
+// the following statements are still executing
+public class ConcurrentReads {
+
+    private ConcurrentReads() {}
+
+    // the returned iterable can only be iterated once
+    public static Iterable<Row> execute(Session session, List<? extends Statement> statements,
+            int maxConcurrent) {
+        if (statements.size() == 1) {
+            return session.execute(statements.get(0));
+        }
+        Iterator<Row> iterator = new RowIterator(session, statements, maxConcurrent);
+        return new Iterable<Row>() {
+            @Override
+            public Iterator<Row> iterator() {
+                return iterator;
+            }
+        };
+    }
+
+    private static class RowIterator extends AbstractIterator<Row> {
+
+        private final Session session;
+        private final ImmutableList<Statement> statements;
+
+        private final Deque<ResultSetFuture> inFlight = new ArrayDeque<>();
+        private int nextStatementIndex;
+
+        private Iterator<Row> currRows = ImmutableList.<Row>of().iterator();
+
+        private RowIterator(Session session, List<? extends Statement> statements,
+                int maxConcurrent) {
+            this.session = session;
+            this.statements = ImmutableList.copyOf(statements);
+            while (nextStatementIndex < this.statements.size()
+                    && inFlight.size() < maxConcurrent) {
+                executeNext();
+            }
+        }
+
+        @Override
+        protected Row computeNext() {
+            while (!currRows.hasNext()) {
+                ResultSetFuture future = inFlight.poll();
+                if (future == null) {
+                    return endOfData();
+                }
+                // subsequent pages (if any) of this result set are fetched synchronously while
+                // iterating, which is fine since the other statements are still in flight
+                currRows = future.getUninterruptibly().iterator();
+                if (nextStatementIndex < statements.size()) {
+                    executeNext();
+                }
+            }
+            return currRows.next();
+        }
+
+        private void executeNext() {
+            inFlight.add(session.executeAsync(statements.get(nextStatementIndex++)));
+        }
+    }
+}
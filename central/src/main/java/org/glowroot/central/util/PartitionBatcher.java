@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+// groups statements by partition into unlogged batches, so that storing many small rows in the same
+// partition (e.g. the summary rows for thousands of transaction names) is one request per partition
+// instead of one request per row
+//
+// a partition is identified by the table together with the routing key, since rows in different
+// tables are in different partitions even when their partition key values are the same (e.g. the
+// overall and transaction tables for the same agent rollup and transaction type), and batching them
+// together would result in a multi-partition batch
+//
+// since each batch only contains a single partition, the (default) token aware load balancing
+// policy sends it directly to a replica
+//
+// not thread safe, a new instance should be used for each group of writes
+public class PartitionBatcher {
+
+    // cassandra logs a warning for batches over batch_size_warn_threshold_in_kb (default 5kb), and
+    // fails batches over batch_size_fail_threshold_in_kb (default 50kb)
+    private static final int MAX_BATCH_BYTES =
+            Integer.getInteger("glowroot.internal.central.maxBatchBytes", 5 * 1024);
+
+    private static final int MAX_BATCH_STATEMENTS =
+            Integer.getInteger("glowroot.internal.central.maxBatchStatements", 100);
+
+    // global limit on the number of in-flight batched writes, to prevent a large burst of writes
+    // (e.g. many agents reporting aggregates at the same time) from overloading cassandra
+    private static final Semaphore inFlightPermits = new Semaphore(
+            Integer.getInteger("glowroot.internal.central.maxInFlightBatchedWrites", 1024));
+
+    private final Session session;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+
+    // linked hash map to preserve statement order (which doesn't matter for correctness, but makes
+    // debugging easier)
+    private final Map<PartitionKey, List<BoundStatement>> statementsByPartition =
+            Maps.newLinkedHashMap();
+    private final List<BoundStatement> unroutedStatements = Lists.newArrayList();
+
+    public PartitionBatcher(Session session) {
+        this.session = session;
+        Configuration configuration = session.getCluster().getConfiguration();
+        protocolVersion = configuration.getProtocolOptions().getProtocolVersion();
+        codecRegistry = configuration.getCodecRegistry();
+    }
+
+    public void add(BoundStatement boundStatement) {
+        ByteBuffer routingKey = boundStatement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null) {
+            unroutedStatements.add(boundStatement);
+            return;
+        }
+        // routing key is non-null, so there is at least one bound variable
+        ColumnDefinitions variables = boundStatement.preparedStatement().getVariables();
+        PartitionKey partitionKey = ImmutablePartitionKey.of(variables.getKeyspace(0),
+                variables.getTable(0), routingKey);
+        List<BoundStatement> statements = statementsByPartition.get(partitionKey);
+        if (statements == null) {
+            statements = Lists.newArrayList();
+            statementsByPartition.put(partitionKey, statements);
+        }
+        statements.add(boundStatement);
+    }
+
+    // executes and clears the added statements
+    public List<ResultSetFuture> execute() throws InterruptedException {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (List<BoundStatement> statements : statementsByPartition.values()) {
+            BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            int batchBytes = 0;
+            for (BoundStatement statement : statements) {
+                int statementBytes = estimateSize(statement);
+                if (batchStatement.size() > 0 && (batchBytes + statementBytes > MAX_BATCH_BYTES
+                        || batchStatement.size() == MAX_BATCH_STATEMENTS)) {
+                    futures.add(executeAsync(batchStatement));
+                    batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batchBytes = 0;
+                }
+                batchStatement.add(statement);
+                batchBytes += statementBytes;
+            }
+            futures.add(executeAsync(batchStatement));
+        }
+        for (BoundStatement statement : unroutedStatements) {
+            futures.add(executeAsync(statement));
+        }
+        statementsByPartition.clear();
+        unroutedStatements.clear();
+        return futures;
+    }
+
+    private ResultSetFuture executeAsync(Statement statement) throws InterruptedException {
+        if (statement instanceof BatchStatement && ((BatchStatement) statement).size() == 1) {
+            // no need for batch overhead
+            statement = ((BatchStatement) statement).getStatements().iterator().next();
+        }
+        inFlightPermits.acquire();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlightPermits.release();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    // the bound values make up nearly all of the size of the statement in the batch
+    private static int estimateSize(BoundStatement statement) {
+        int size = 0;
+        int count = statement.preparedStatement().getVariables().size();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer value = statement.getBytesUnsafe(i);
+            if (value != null) {
+                size += value.remaining();
+            }
+        }
+        return size;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PartitionKey {
+        String keyspace();
+        String table();
+        ByteBuffer routingKey();
+    }
+}
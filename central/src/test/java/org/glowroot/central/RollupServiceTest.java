@@ -15,11 +15,27 @@
  */
 package org.glowroot.central;
 
+import java.util.Date;
+
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 
-import org.glowroot.central.RollupService;
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.common.config.ImmutableSmtpConfig;
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+import org.glowroot.common.repo.util.AlertingService;
+import org.glowroot.common.util.Clock;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class RollupServiceTest {
 
@@ -30,4 +46,47 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldRollupParentWhenChildFails() throws Exception {
+        // given
+        AgentRollup child1 =
+                ImmutableAgentRollup.of("child1", "child1", true, new Date(), ImmutableList.of());
+        AgentRollup child2 =
+                ImmutableAgentRollup.of("child2", "child2", true, new Date(), ImmutableList.of());
+        AgentRollup parent = ImmutableAgentRollup.of("parent", "parent", false, new Date(),
+                ImmutableList.of(child1, child2));
+        AgentDao agentDao = mock(AgentDao.class);
+        when(agentDao.readAgentRollups()).thenReturn(ImmutableList.of(parent));
+        AggregateDao aggregateDao = mock(AggregateDao.class);
+        GaugeValueDao gaugeValueDao = mock(GaugeValueDao.class);
+        TraceDao traceDao = mock(TraceDao.class);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getSmtpConfig())
+                .thenReturn(ImmutableSmtpConfig.builder().host("localhost").build());
+        // unchecked exception from a step that is not expected to fail
+        when(configRepository.getTransactionAlertConfigs("child1"))
+                .thenThrow(new IllegalStateException("test"));
+        doThrow(new IllegalStateException("test")).when(aggregateDao).rollup("child2", "parent",
+                true);
+        Clock clock = mock(Clock.class);
+        RollupService rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
+                traceDao, configRepository, mock(AlertingService.class),
+                mock(DownstreamServiceImpl.class), clock);
+        try {
+            // when
+            rollupService.runInternal();
+            // then
+            verify(gaugeValueDao).rollup("child1", "parent", true);
+            verify(configRepository).getGaugeAlertConfigs("child1");
+            verify(gaugeValueDao).rollup("child2", "parent", true);
+            verify(aggregateDao).rollup("parent", null, false);
+            verify(gaugeValueDao).rollup("parent", null, false);
+            verify(configRepository).getTransactionAlertConfigs("parent");
+            assertThat(rollupService.getRollupLagMillis().keySet()).containsOnly("child1",
+                    "child2", "parent");
+        } finally {
+            rollupService.close();
+        }
+    }
 }
@@ -625,6 +625,72 @@ public class AggregateDaoIT {
         assertThat(query.getExecutionCount()).isEqualTo(4);
     }
 
+    @Test
+    public void shouldStoreManyTransactionNames() throws Exception {
+        // exercises batches that are split by size and statement count
+        aggregateDao.truncateAll();
+        OldAggregatesByType.Builder aggregatesByType = OldAggregatesByType.newBuilder()
+                .setTransactionType("tt1")
+                .setOverallAggregate(createOverallAggregate());
+        for (int i = 0; i < 1000; i++) {
+            aggregatesByType.addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                    .setTransactionName("tn" + i)
+                    .setAggregate(Aggregate.newBuilder()
+                            .setTotalDurationNanos(i)
+                            .setTransactionCount(1)));
+        }
+        List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
+                .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
+        aggregateDao.store("one", 60000, ImmutableList.of(aggregatesByType.build()),
+                sharedQueryText);
+
+        OverallQuery overallQuery = ImmutableOverallQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(300000)
+                .rollupLevel(0)
+                .build();
+        TransactionSummaryCollector transactionSummaryCollector = new TransactionSummaryCollector();
+        SummarySortOrder sortOrder = SummarySortOrder.TOTAL_TIME;
+        aggregateDao.mergeTransactionSummariesInto("one", overallQuery, sortOrder, 2000,
+                transactionSummaryCollector);
+        Result<TransactionSummary> result = transactionSummaryCollector.getResult(sortOrder, 2000);
+        assertThat(result.records()).hasSize(1000);
+        assertThat(result.records().get(0).transactionName()).isEqualTo("tn999");
+        assertThat(result.records().get(0).totalDurationNanos()).isEqualTo(999);
+    }
+
+    @Test
+    public void shouldReadLongTimeRangeInChunks() throws Exception {
+        aggregateDao.truncateAll();
+        List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
+                .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
+        // one aggregate per day for 90 days, with each capture time on a read chunk boundary
+        long oneDay = 24 * 3600000L;
+        for (int i = 1; i <= 90; i++) {
+            aggregateDao.store("one", i * oneDay, createData(), sharedQueryText);
+        }
+
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("tt1")
+                .from(oneDay)
+                .to(90 * oneDay)
+                .rollupLevel(0)
+                .build();
+        // from is inclusive
+        List<ThroughputAggregate> throughputAggregates =
+                aggregateDao.readThroughputAggregates("one", query);
+        assertThat(throughputAggregates).hasSize(90);
+        for (int i = 0; i < 90; i++) {
+            assertThat(throughputAggregates.get(i).captureTime()).isEqualTo((i + 1) * oneDay);
+        }
+        // from is non-inclusive
+        QueryCollector queryCollector = new QueryCollector(1000);
+        aggregateDao.mergeQueriesInto("one", query, queryCollector);
+        Map<String, List<MutableQuery>> queries = queryCollector.getSortedQueries();
+        assertThat(queries.get("sqlo").get(0).getExecutionCount()).isEqualTo(89 * 2);
+    }
+
     private static List<OldAggregatesByType> createData() {
         List<OldAggregatesByType> aggregatesByType = Lists.newArrayList();
         aggregatesByType.add(OldAggregatesByType.newBuilder()
@@ -15,6 +15,8 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.List;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
 import org.junit.AfterClass;
@@ -29,11 +31,19 @@ import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableErrorMessageCount;
+import org.glowroot.common.repo.ImmutableErrorMessageFilter;
 import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageCount;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageFilter;
+import org.glowroot.common.repo.TraceRepository.ErrorMessagePoint;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageResult;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -290,4 +300,134 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadErrorMessagesBeforeAndAfterRollup() throws Exception {
+        // given
+        long intervalMillis = MINUTES.toMillis(5);
+        // needs to be after the error message rollup start time, which was set when the tables
+        // were created
+        long captureTime = (System.currentTimeMillis() / intervalMillis + 2) * intervalMillis;
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(captureTime);
+        TraceDao traceDao = createTraceDaoForErrorMessages(clock);
+        traceDao.store("err", createErrorTrace(captureTime + 1000, "one", "abc"));
+        traceDao.store("err", createErrorTrace(captureTime + 2000, "one", "abc"));
+        traceDao.store("err", createErrorTrace(captureTime + 3000, "two", "xyz"));
+        // different interval
+        traceDao.store("err",
+                createErrorTrace(captureTime + intervalMillis + 1000, "one", "abc"));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(captureTime)
+                .to(captureTime + 2 * intervalMillis)
+                .build();
+        TraceQuery transactionQuery = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .transactionName("one")
+                .from(captureTime)
+                .to(captureTime + 2 * intervalMillis)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder().build();
+
+        // when
+        ErrorMessageResult beforeRollup =
+                traceDao.readErrorMessages("err", query, filter, intervalMillis, 10);
+        when(clock.currentTimeMillis()).thenReturn(captureTime + 2 * intervalMillis);
+        traceDao.rollup("err");
+        ErrorMessageResult afterRollup =
+                traceDao.readErrorMessages("err", query, filter, intervalMillis, 10);
+        ErrorMessageResult transactionAfterRollup =
+                traceDao.readErrorMessages("err", transactionQuery, filter, intervalMillis, 10);
+
+        // then
+        assertErrorMessages(beforeRollup, captureTime, intervalMillis, 3, 1);
+        assertThat(beforeRollup.counts().records()).containsExactly(errorMessageCount("abc", 3),
+                errorMessageCount("xyz", 1));
+        assertErrorMessages(afterRollup, captureTime, intervalMillis, 3, 1);
+        assertThat(afterRollup.counts().records()).containsExactly(errorMessageCount("abc", 3),
+                errorMessageCount("xyz", 1));
+        assertErrorMessages(transactionAfterRollup, captureTime, intervalMillis, 2, 1);
+        assertThat(transactionAfterRollup.counts().records())
+                .containsExactly(errorMessageCount("abc", 3));
+        assertThat(session.execute("select count from trace_tt_error_message_rollup where"
+                + " agent_rollup = 'err' and transaction_type = 'unit test'").all()).hasSize(3);
+        assertThat(session.execute("select capture_time from trace_error_message_needs_rollup"
+                + " where agent_rollup = 'err'").all()).isEmpty();
+    }
+
+    @Test
+    public void shouldRollupLateErrorMessages() throws Exception {
+        // given
+        long intervalMillis = MINUTES.toMillis(5);
+        // needs to be after the error message rollup start time, which was set when the tables
+        // were created (and different from the test above)
+        long captureTime = (System.currentTimeMillis() / intervalMillis + 10) * intervalMillis;
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(captureTime + intervalMillis);
+        TraceDao traceDao = createTraceDaoForErrorMessages(clock);
+        // multiple error traces in the same interval only write a single needs rollup record
+        traceDao.store("late", createErrorTrace(captureTime + 1000, "one", "abc"));
+        traceDao.store("late", createErrorTrace(captureTime + 2000, "one", "abc"));
+        assertThat(session.execute("select capture_time from trace_error_message_needs_rollup"
+                + " where agent_rollup = 'late'").all()).hasSize(1);
+        traceDao.rollup("late");
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(captureTime)
+                .to(captureTime + intervalMillis)
+                .build();
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder().build();
+
+        // when
+        traceDao.store("late", createErrorTrace(captureTime + 3000, "one", "abc"));
+        ErrorMessageResult beforeRollup =
+                traceDao.readErrorMessages("late", query, filter, intervalMillis, 10);
+        traceDao.rollup("late");
+        ErrorMessageResult afterRollup =
+                traceDao.readErrorMessages("late", query, filter, intervalMillis, 10);
+
+        // then
+        assertThat(beforeRollup.counts().records()).containsExactly(errorMessageCount("abc", 3));
+        assertThat(afterRollup.counts().records()).containsExactly(errorMessageCount("abc", 3));
+        assertThat(session.execute("select count from trace_tn_error_message_rollup where"
+                + " agent_rollup = 'late' and transaction_type = 'unit test'"
+                + " and transaction_name = 'one'").one().getLong(0)).isEqualTo(3);
+    }
+
+    private static TraceDao createTraceDaoForErrorMessages(Clock clock) throws Exception {
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        return new TraceDao(session, new AgentDao(session), mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class), configRepository, clock);
+    }
+
+    private static Trace createErrorTrace(long captureTime, String transactionName,
+            String errorMessage) {
+        Trace trace = TraceTestData.createTrace();
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setStartTime(captureTime - 10)
+                        .setCaptureTime(captureTime)
+                        .setTransactionName(transactionName)
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage(errorMessage)))
+                .build();
+    }
+
+    private static void assertErrorMessages(ErrorMessageResult result, long captureTime,
+            long intervalMillis, long firstIntervalCount, long secondIntervalCount) {
+        List<ErrorMessagePoint> points = result.points();
+        assertThat(points).hasSize(2);
+        assertThat(points.get(0).captureTime()).isEqualTo(captureTime + intervalMillis);
+        assertThat(points.get(0).errorCount()).isEqualTo(firstIntervalCount);
+        assertThat(points.get(1).captureTime()).isEqualTo(captureTime + 2 * intervalMillis);
+        assertThat(points.get(1).errorCount()).isEqualTo(secondIntervalCount);
+    }
+
+    private static ErrorMessageCount errorMessageCount(String message, long count) {
+        return ImmutableErrorMessageCount.of(message, count);
+    }
 }
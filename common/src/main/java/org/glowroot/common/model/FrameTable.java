@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+// process wide table of interned stack trace frames, so that the (relatively expensive) splitting
+// of class names and hashing of strings is done once per distinct frame instead of once per
+// captured stack trace element
+//
+// the number of distinct frames is bounded by the amount of code in the JVM, but a hard limit is
+// applied anyways in case of dynamically generated classes, after which frames are no longer
+// interned (see Frame.getId())
+public class FrameTable {
+
+    public static final int NOT_INTERNED = -1;
+
+    private static final int MAX_FRAMES =
+            Integer.getInteger("glowroot.internal.profile.maxInternedFrames", 200000);
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final ConcurrentMap<StackTraceElement, Frame> frames =
+            Maps.newConcurrentMap();
+
+    private static final Object lock = new Object();
+
+    // frames are also stored by id in chunks, so they can be looked up by id without locking
+    private static volatile Frame[][] chunks = new Frame[0][];
+
+    @GuardedBy("lock")
+    private static int frameCount;
+
+    private FrameTable() {}
+
+    public static Frame getFrame(StackTraceElement stackTraceElement) {
+        Frame frame = frames.get(stackTraceElement);
+        if (frame != null) {
+            return frame;
+        }
+        synchronized (lock) {
+            frame = frames.get(stackTraceElement);
+            if (frame != null) {
+                return frame;
+            }
+            if (frameCount >= MAX_FRAMES) {
+                return new Frame(NOT_INTERNED, stackTraceElement);
+            }
+            int id = frameCount++;
+            frame = new Frame(id, stackTraceElement);
+            int chunkIndex = id >>> CHUNK_SHIFT;
+            Frame[][] localChunks = chunks;
+            if (chunkIndex == localChunks.length) {
+                Frame[][] newChunks = new Frame[chunkIndex + 1][];
+                System.arraycopy(localChunks, 0, newChunks, 0, localChunks.length);
+                newChunks[chunkIndex] = new Frame[CHUNK_SIZE];
+                localChunks = newChunks;
+            }
+            localChunks[chunkIndex][id & (CHUNK_SIZE - 1)] = frame;
+            // volatile write publishes the new frame to getFrame(int)
+            chunks = localChunks;
+            frames.put(stackTraceElement, frame);
+            return frame;
+        }
+    }
+
+    public static Frame getFrame(int id) {
+        Frame[][] localChunks = chunks;
+        int chunkIndex = id >>> CHUNK_SHIFT;
+        Frame frame = id < 0 || chunkIndex >= localChunks.length ? null
+                : localChunks[chunkIndex][id & (CHUNK_SIZE - 1)];
+        if (frame == null) {
+            throw new IllegalArgumentException("Frame id not found: " + id);
+        }
+        return frame;
+    }
+
+    public static class Frame {
+
+        private final int id;
+        private final String packageName;
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+
+        private Frame(int id, StackTraceElement stackTraceElement) {
+            this.id = id;
+            String fullClassName = stackTraceElement.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            methodName = Strings.nullToEmpty(stackTraceElement.getMethodName());
+            fileName = Strings.nullToEmpty(stackTraceElement.getFileName());
+            lineNumber = stackTraceElement.getLineNumber();
+        }
+
+        // returns NOT_INTERNED if the frame table was full
+        public int getId() {
+            return id;
+        }
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
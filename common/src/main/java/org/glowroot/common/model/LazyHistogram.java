@@ -57,6 +57,17 @@ public class LazyHistogram {
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
+        return toProto(scratchBuffer, true);
+    }
+
+    // for live aggregates whose interval is still in progress, so that the sketch is only computed
+    // once per interval when the aggregate is stored, instead of again on every live read (readers
+    // fall back to the encoded histogram when there is no sketch, see PercentileSketch.merge())
+    public Aggregate.Histogram toProtoWithoutSketch(ScratchBuffer scratchBuffer) {
+        return toProto(scratchBuffer, false);
+    }
+
+    private Aggregate.Histogram toProto(ScratchBuffer scratchBuffer, boolean includeSketch) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
         if (histogram == null) {
             if (!sorted) {
@@ -74,6 +85,12 @@ public class LazyHistogram {
             int size = buffer.position();
             buffer.flip();
             builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
+            if (includeSketch) {
+                // the sketch is what the percentile charts read, see PercentileSketch
+                PercentileSketch sketch = new PercentileSketch();
+                sketch.addAll(histogram);
+                builder.setSketch(sketch.toProto());
+            }
         }
         return builder.build();
     }
@@ -123,6 +140,14 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
+    // rough estimate of the heap retained by this histogram
+    public long getRetainedSizeEstimate() {
+        if (histogram == null) {
+            return 8L * values.length;
+        }
+        return histogram.getEstimatedFootprintInBytes();
+    }
+
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
@@ -16,9 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -27,27 +25,46 @@ import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.common.model.FrameTable.Frame;
+import org.glowroot.common.util.LongIntHashMap;
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// the profile tree is stored in parallel arrays indexed by node (struct-of-arrays), and each node
+// refers to a "local frame" (its package/class/method/file name indexes and line number), so that
+// merging a stack trace is a primitive hash lookup per frame instead of string hashing and a linear
+// scan of child nodes
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    // TODO use primitive maps, e.g. from GS collections
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    // node 0 is a virtual root node whose children are the profile's root nodes
+    private static final int ROOT_NODE = 0;
+    private static final int NO_NODE = -1;
+
+    // leaf thread state ordinal is stored in the lower 3 bits of the child index key
+    private static final int LEAF_THREAD_STATE_BITS = 3;
+
+    // rough per slot sizes used by getRetainedSizeEstimate(), node slots are the node arrays plus
+    // the child index entry, frame slots are the frame arrays plus the frame index entries, and
+    // names are the string plus the name index entry
+    private static final int NODE_SLOT_BYTES = 56;
+    private static final int FRAME_SLOT_BYTES = 96;
+    private static final int NAME_BYTES = 112;
+
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
@@ -58,11 +75,49 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // local frames
+    private int frameCount;
+    private int[] framePackageNameIndexes = new int[16];
+    private int[] frameClassNameIndexes = new int[16];
+    private int[] frameMethodNameIndexes = new int[16];
+    private int[] frameFileNameIndexes = new int[16];
+    private int[] frameLineNumbers = new int[16];
+    // these are only used for json output and filtering
+    private @Nullable String[] frameTexts;
+    private @Nullable String[] frameTextUppers;
+
+    // local frame lookup, keyed by its name indexes and line number (only used when a frame is
+    // first seen by this profile, and when merging protobuf profiles)
+    private final Map<FrameKey, Integer> frameIndexes = Maps.newHashMap();
+    // local frame lookup, keyed by interned frame id
+    private final LongIntHashMap internedFrameIndexes = new LongIntHashMap();
+
+    // nodes
+    private int nodeCount;
+    private int[] nodeFrames = new int[64];
+    private byte[] nodeLeafThreadStates = new byte[64];
+    private long[] nodeSampleCounts = new long[64];
+    private int[] nodeParents = new int[64];
+    private int[] nodeFirstChilds = new int[64];
+    private int[] nodeLastChilds = new int[64];
+    private int[] nodeNextSiblings = new int[64];
+    // these are only used after filtering and truncating
+    private @Nullable long[] nodeEllipsedSampleCounts;
+    private @Nullable boolean[] nodeMatched;
+
+    // child lookup, keyed by parent node and child's local frame and leaf thread state
+    private final LongIntHashMap childIndexes = new LongIntHashMap(64);
+    // set when nodes are removed from the tree (filter and truncate), in which case the child
+    // lookup is rebuilt lazily if merging continues afterwards
+    private boolean childIndexesStale;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
+    public MutableProfile() {
+        createNode(NO_NODE, 0, 0);
+    }
+
     // this method is not used that often (only for traces with > 20 stack trace samples) so ok
     // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
@@ -71,124 +126,141 @@ public class MutableProfile {
 
     public void merge(Profile profile) {
         Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        merger.merge(profile.getNodeList());
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-
-        for (StackTraceElement stackTraceElement : stackTraceElements) {
-            if (stackTraceElement.getMethodName() == null) {
+        int size = stackTraceElements.size();
+        for (int i = 0; i < size; i++) {
+            if (stackTraceElements.get(i).getMethodName() == null) {
                 // methodName can be null after hotswapping under Eclipse debugger
                 // in which case seems best to just ignore the stack trace capture altogether
                 return;
             }
         }
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int leafThreadState = getThreadState(threadState).ordinal();
+        int parentNode = ROOT_NODE;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
-            int methodNameIndex =
-                    getNameIndex(Strings.nullToEmpty(stackTraceElement.getMethodName()),
-                            methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
-            int lineNumber = stackTraceElement.getLineNumber();
-            Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+        for (int i = size - 1; i >= 0; i--) {
+            int frameIndex = getFrameIndex(FrameTable.getFrame(stackTraceElements.get(i)));
+            int nodeLeafThreadState = i == 0 ? leafThreadState : 0;
+            int node = NO_NODE;
+            if (lookingForMatch) {
+                node = getChild(parentNode, frameIndex, nodeLeafThreadState);
+            }
+            if (node == NO_NODE) {
+                lookingForMatch = false;
+                node = addChild(parentNode, frameIndex, nodeLeafThreadState);
+            }
+            nodeSampleCounts[node]++;
+            parentNode = node;
+        }
+    }
 
-            ProfileNode node = null;
+    // frameIds are interned frame ids (see FrameTable), ordered from root to leaf (which is the
+    // reverse of stack trace element order), and must not include FrameTable.NOT_INTERNED
+    public void merge(int[] frameIds, int depth, Thread.State threadState) {
+        int leafThreadState = getThreadState(threadState).ordinal();
+        int parentNode = ROOT_NODE;
+        boolean lookingForMatch = true;
+        for (int i = 0; i < depth; i++) {
+            int frameIndex = getFrameIndex(frameIds[i]);
+            int nodeLeafThreadState = i == depth - 1 ? leafThreadState : 0;
+            int node = NO_NODE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = getChild(parentNode, frameIndex, nodeLeafThreadState);
             }
-            if (node == null) {
+            if (node == NO_NODE) {
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                node = addChild(parentNode, frameIndex, nodeLeafThreadState);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            nodeSampleCounts[node]++;
+            parentNode = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        boolean[] nodeMatched = this.nodeMatched;
+        if (nodeMatched == null) {
+            nodeMatched = new boolean[nodeFrames.length];
+            this.nodeMatched = nodeMatched;
+        }
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            String includeUpper = include.toUpperCase(Locale.ENGLISH);
+            int rootNode = nodeFirstChilds[ROOT_NODE];
+            while (rootNode != NO_NODE) {
+                int nextRootNode = nodeNextSiblings[rootNode];
+                traverse(rootNode, new ProfileFilterer(includeUpper, false));
+                if (nodeMatched[rootNode]) {
+                    traverse(rootNode, new ProfileResetMatches());
                 } else {
-                    i.remove();
+                    removeChild(ROOT_NODE, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            String excludeUpper = exclude.toUpperCase(Locale.ENGLISH);
+            int rootNode = nodeFirstChilds[ROOT_NODE];
+            while (rootNode != NO_NODE) {
+                int nextRootNode = nodeNextSiblings[rootNode];
+                traverse(rootNode, new ProfileFilterer(excludeUpper, true));
+                if (nodeMatched[rootNode]) {
+                    removeChild(ROOT_NODE, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
     }
 
     public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
+        long[] nodeEllipsedSampleCounts = getNodeEllipsedSampleCounts();
+        // breadth first, using an array as the queue since each node is visited at most once
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = nodeFirstChilds[ROOT_NODE]; rootNode != NO_NODE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NO_NODE) {
+                int nextChildNode = nodeNextSiblings[childNode];
+                if (nodeSampleCounts[childNode] < minSamples) {
+                    removeChild(node, childNode);
                     // TODO capture sampleCount per timerName of non-ellipsed structure
                     // and use this in UI dropdown filter of timer names
                     // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
+                    nodeEllipsedSampleCounts[node] += nodeSampleCounts[childNode];
                 } else {
-                    toBeVisited.add(childNode);
+                    toBeVisited[tail++] = childNode;
                 }
+                childNode = nextChildNode;
             }
         }
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        for (int rootNode = nodeFirstChilds[ROOT_NODE]; rootNode != NO_NODE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            sampleCount += nodeSampleCounts[rootNode];
         }
         return sampleCount;
     }
 
+    // rough estimate of the heap retained by this profile, based on the (doubling) array capacities
+    public long getRetainedSizeEstimate() {
+        int nameCount = packageNames.size() + classNames.size() + methodNames.size()
+                + fileNames.size();
+        return (long) nodeFrames.length * NODE_SLOT_BYTES
+                + (long) frameLineNumbers.length * FRAME_SLOT_BYTES
+                + (long) nameCount * NAME_BYTES;
+    }
+
     public long getUnfilteredSampleCount() {
         if (unfilteredSampleCount == -1) {
             return getSampleCount();
@@ -198,9 +270,29 @@ public class MutableProfile {
     }
 
     public Profile toProto() {
-        List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        final List<Profile.ProfileNode> nodes = Lists.newArrayList();
+        NodeVisitor<RuntimeException> collector = new NodeVisitor<RuntimeException>() {
+            @Override
+            public boolean visit(int node, int depth) {
+                int frameIndex = nodeFrames[node];
+                nodes.add(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(framePackageNameIndexes[frameIndex])
+                        .setClassNameIndex(frameClassNameIndexes[frameIndex])
+                        .setMethodNameIndex(frameMethodNameIndexes[frameIndex])
+                        .setFileNameIndex(frameFileNameIndexes[frameIndex])
+                        .setLineNumber(frameLineNumbers[frameIndex])
+                        .setLeafThreadState(LEAF_THREAD_STATES[nodeLeafThreadStates[node]])
+                        .setSampleCount(nodeSampleCounts[node])
+                        .build());
+                return true;
+            }
+            @Override
+            public void revisitAfterChildren(int node) {}
+        };
+        for (int rootNode = nodeFirstChilds[ROOT_NODE]; rootNode != NO_NODE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            traverse(rootNode, collector);
         }
         return Profile.newBuilder()
                 .addAllPackageName(packageNames)
@@ -220,14 +312,32 @@ public class MutableProfile {
     }
 
     public void writeJson(JsonGenerator jg) throws IOException {
+        newChunkedJsonWriter(jg).writeNext(Integer.MAX_VALUE);
+    }
+
+    // this is the recursive writer that ChunkedJsonWriter replaced, kept so that tests can verify
+    // that chunked writing produces the same json
+    @OnlyUsedByTests
+    String toJsonUsingTraverse() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        ProfileWriter profileWriter = new ProfileWriter(jg);
+        for (int rootNode = nodeFirstChilds[ROOT_NODE]; rootNode != NO_NODE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            traverse(rootNode, profileWriter);
         }
         jg.writeEndArray();
         jg.writeEndObject();
+        jg.close();
+        return sb.toString();
+    }
+
+    // the profile must not be modified while the chunked json writer is in use
+    public ChunkedJsonWriter newChunkedJsonWriter(JsonGenerator jg) {
+        return new ChunkedJsonWriter(jg);
     }
 
     public String toFlameGraphJson() throws IOException {
@@ -237,10 +347,11 @@ public class MutableProfile {
         jg.writeNumberField("totalSampleCount", getSampleCount());
         jg.writeArrayFieldStart("rootNodes");
         int height = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                flameGraphWriter.traverse();
+        for (int rootNode = nodeFirstChilds[ROOT_NODE]; rootNode != NO_NODE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            if (nodeSampleCounts[rootNode] > getEllipsedSampleCount(rootNode)) {
+                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+                traverse(rootNode, flameGraphWriter);
                 height = Math.max(height, flameGraphWriter.height);
             }
         }
@@ -251,6 +362,234 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    private int getFrameIndex(int frameId) {
+        int frameIndex = internedFrameIndexes.get(frameId);
+        if (frameIndex != LongIntHashMap.NOT_FOUND) {
+            return frameIndex;
+        }
+        return getFrameIndex(FrameTable.getFrame(frameId));
+    }
+
+    private int getFrameIndex(Frame frame) {
+        int frameId = frame.getId();
+        if (frameId != FrameTable.NOT_INTERNED) {
+            int frameIndex = internedFrameIndexes.get(frameId);
+            if (frameIndex != LongIntHashMap.NOT_FOUND) {
+                return frameIndex;
+            }
+        }
+        int frameIndex = getFrameIndex(
+                getNameIndex(frame.getPackageName(), packageNameIndexes, packageNames),
+                getNameIndex(frame.getClassName(), classNameIndexes, classNames),
+                getNameIndex(frame.getMethodName(), methodNameIndexes, methodNames),
+                getNameIndex(frame.getFileName(), fileNameIndexes, fileNames),
+                frame.getLineNumber());
+        if (frameId != FrameTable.NOT_INTERNED) {
+            internedFrameIndexes.put(frameId, frameIndex);
+        }
+        return frameIndex;
+    }
+
+    private int getFrameIndex(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber) {
+        FrameKey frameKey = new FrameKey(packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, lineNumber);
+        Integer frameIndex = frameIndexes.get(frameKey);
+        if (frameIndex != null) {
+            return frameIndex;
+        }
+        if (frameCount == framePackageNameIndexes.length) {
+            int newLength = frameCount * 2;
+            framePackageNameIndexes = Arrays.copyOf(framePackageNameIndexes, newLength);
+            frameClassNameIndexes = Arrays.copyOf(frameClassNameIndexes, newLength);
+            frameMethodNameIndexes = Arrays.copyOf(frameMethodNameIndexes, newLength);
+            frameFileNameIndexes = Arrays.copyOf(frameFileNameIndexes, newLength);
+            frameLineNumbers = Arrays.copyOf(frameLineNumbers, newLength);
+        }
+        int newFrameIndex = frameCount++;
+        framePackageNameIndexes[newFrameIndex] = packageNameIndex;
+        frameClassNameIndexes[newFrameIndex] = classNameIndex;
+        frameMethodNameIndexes[newFrameIndex] = methodNameIndex;
+        frameFileNameIndexes[newFrameIndex] = fileNameIndex;
+        frameLineNumbers[newFrameIndex] = lineNumber;
+        frameIndexes.put(frameKey, newFrameIndex);
+        return newFrameIndex;
+    }
+
+    private int getChild(int parentNode, int frameIndex, int leafThreadState) {
+        if (childIndexesStale) {
+            rebuildChildIndexes();
+        }
+        return childIndexes.get(getChildKey(parentNode, frameIndex, leafThreadState));
+    }
+
+    private int addChild(int parentNode, int frameIndex, int leafThreadState) {
+        int node = createNode(parentNode, frameIndex, leafThreadState);
+        int lastChild = nodeLastChilds[parentNode];
+        if (lastChild == NO_NODE) {
+            nodeFirstChilds[parentNode] = node;
+        } else {
+            nodeNextSiblings[lastChild] = node;
+        }
+        nodeLastChilds[parentNode] = node;
+        childIndexes.put(getChildKey(parentNode, frameIndex, leafThreadState), node);
+        return node;
+    }
+
+    private int createNode(int parentNode, int frameIndex, int leafThreadState) {
+        if (nodeCount == nodeFrames.length) {
+            int newLength = nodeCount * 2;
+            nodeFrames = Arrays.copyOf(nodeFrames, newLength);
+            nodeLeafThreadStates = Arrays.copyOf(nodeLeafThreadStates, newLength);
+            nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newLength);
+            nodeParents = Arrays.copyOf(nodeParents, newLength);
+            nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, newLength);
+            nodeLastChilds = Arrays.copyOf(nodeLastChilds, newLength);
+            nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, newLength);
+            if (nodeEllipsedSampleCounts != null) {
+                nodeEllipsedSampleCounts = Arrays.copyOf(nodeEllipsedSampleCounts, newLength);
+            }
+            if (nodeMatched != null) {
+                nodeMatched = Arrays.copyOf(nodeMatched, newLength);
+            }
+        }
+        int node = nodeCount++;
+        nodeFrames[node] = frameIndex;
+        nodeLeafThreadStates[node] = (byte) leafThreadState;
+        nodeParents[node] = parentNode;
+        nodeFirstChilds[node] = NO_NODE;
+        nodeLastChilds[node] = NO_NODE;
+        nodeNextSiblings[node] = NO_NODE;
+        return node;
+    }
+
+    // unlinks the node from its parent, the node's storage is not reclaimed
+    private void removeChild(int parentNode, int node) {
+        int prevNode = NO_NODE;
+        int currNode = nodeFirstChilds[parentNode];
+        while (currNode != node) {
+            prevNode = currNode;
+            currNode = nodeNextSiblings[currNode];
+        }
+        int nextNode = nodeNextSiblings[node];
+        if (prevNode == NO_NODE) {
+            nodeFirstChilds[parentNode] = nextNode;
+        } else {
+            nodeNextSiblings[prevNode] = nextNode;
+        }
+        if (nodeLastChilds[parentNode] == node) {
+            nodeLastChilds[parentNode] = prevNode;
+        }
+        nodeNextSiblings[node] = NO_NODE;
+        childIndexesStale = true;
+    }
+
+    private void rebuildChildIndexes() {
+        childIndexes.clear();
+        int[] toBeVisited = new int[nodeCount];
+        int size = 0;
+        toBeVisited[size++] = ROOT_NODE;
+        while (size > 0) {
+            int node = toBeVisited[--size];
+            for (int childNode = nodeFirstChilds[node]; childNode != NO_NODE;
+                    childNode = nodeNextSiblings[childNode]) {
+                childIndexes.put(getChildKey(node, nodeFrames[childNode],
+                        nodeLeafThreadStates[childNode]), childNode);
+                toBeVisited[size++] = childNode;
+            }
+        }
+        childIndexesStale = false;
+    }
+
+    private long getEllipsedSampleCount(int node) {
+        return nodeEllipsedSampleCounts == null ? 0 : nodeEllipsedSampleCounts[node];
+    }
+
+    private long[] getNodeEllipsedSampleCounts() {
+        long[] nodeEllipsedSampleCounts = this.nodeEllipsedSampleCounts;
+        if (nodeEllipsedSampleCounts == null) {
+            nodeEllipsedSampleCounts = new long[nodeFrames.length];
+            this.nodeEllipsedSampleCounts = nodeEllipsedSampleCounts;
+        }
+        return nodeEllipsedSampleCounts;
+    }
+
+    private String getText(int node) {
+        int frameIndex = nodeFrames[node];
+        String[] frameTexts = this.frameTexts;
+        if (frameTexts == null || frameTexts.length < frameCount) {
+            frameTexts = frameTexts == null ? new String[frameCount]
+                    : Arrays.copyOf(frameTexts, frameCount);
+            this.frameTexts = frameTexts;
+        }
+        String text = frameTexts[frameIndex];
+        if (text == null) {
+            String packageName = packageNames.get(framePackageNameIndexes[frameIndex]);
+            String className = classNames.get(frameClassNameIndexes[frameIndex]);
+            String fullClassName;
+            if (packageName.isEmpty()) {
+                fullClassName = className;
+            } else {
+                fullClassName = packageName + '.' + className;
+            }
+            text = new StackTraceElement(fullClassName,
+                    methodNames.get(frameMethodNameIndexes[frameIndex]),
+                    fileNames.get(frameFileNameIndexes[frameIndex]), frameLineNumbers[frameIndex])
+                            .toString();
+            frameTexts[frameIndex] = text;
+        }
+        return text;
+    }
+
+    private String getTextUpper(int node) {
+        int frameIndex = nodeFrames[node];
+        String[] frameTextUppers = this.frameTextUppers;
+        if (frameTextUppers == null || frameTextUppers.length < frameCount) {
+            frameTextUppers = frameTextUppers == null ? new String[frameCount]
+                    : Arrays.copyOf(frameTextUppers, frameCount);
+            this.frameTextUppers = frameTextUppers;
+        }
+        String textUpper = frameTextUppers[frameIndex];
+        if (textUpper == null) {
+            textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+            frameTextUppers[frameIndex] = textUpper;
+        }
+        return textUpper;
+    }
+
+    // iterative (to avoid StackOverflowError caused by a recursive algorithm) pre-order traversal
+    // of the subtree rooted at the given node, using the parent and sibling links
+    private <E extends Exception> void traverse(int subtreeRootNode, NodeVisitor<E> visitor)
+            throws E {
+        int node = subtreeRootNode;
+        int depth = 0;
+        while (true) {
+            if (visitor.visit(node, depth)) {
+                int firstChild = nodeFirstChilds[node];
+                if (firstChild != NO_NODE) {
+                    node = firstChild;
+                    depth++;
+                    continue;
+                }
+            }
+            visitor.revisitAfterChildren(node);
+            while (node != subtreeRootNode && nodeNextSiblings[node] == NO_NODE) {
+                node = nodeParents[node];
+                depth--;
+                visitor.revisitAfterChildren(node);
+            }
+            if (node == subtreeRootNode) {
+                return;
+            }
+            node = nodeNextSiblings[node];
+        }
+    }
+
+    private static long getChildKey(int parentNode, int frameIndex, int leafThreadState) {
+        return ((long) parentNode << 32) | ((long) frameIndex << LEAF_THREAD_STATE_BITS)
+                | leafThreadState;
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -285,18 +624,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -315,56 +642,51 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
+    private interface NodeVisitor<E extends Exception> {
+        // return false to skip visiting the node's children
+        boolean visit(int node, int depth) throws E;
+        void revisitAfterChildren(int node) throws E;
+    }
+
+    private static class FrameKey {
 
         private final int packageNameIndex;
         private final int classNameIndex;
         private final int methodNameIndex;
         private final int fileNameIndex;
         private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
 
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+        private FrameKey(int packageNameIndex, int classNameIndex, int methodNameIndex,
+                int fileNameIndex, int lineNumber) {
             this.packageNameIndex = packageNameIndex;
             this.classNameIndex = classNameIndex;
             this.methodNameIndex = methodNameIndex;
             this.fileNameIndex = fileNameIndex;
             this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
         }
 
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
-                }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof FrameKey)) {
+                return false;
             }
-            return text;
+            FrameKey that = (FrameKey) obj;
+            // checking line number first since most likely to be different
+            return lineNumber == that.lineNumber
+                    && fileNameIndex == that.fileNameIndex
+                    && methodNameIndex == that.methodNameIndex
+                    && classNameIndex == that.classNameIndex
+                    && packageNameIndex == that.packageNameIndex;
         }
 
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
-            }
-            return textUpper;
+        @Override
+        public int hashCode() {
+            int result = packageNameIndex;
+            result = 31 * result + classNameIndex;
+            result = 31 * result + methodNameIndex;
+            result = 31 * result + fileNameIndex;
+            result = 31 * result + lineNumber;
+            return result;
         }
     }
 
@@ -375,7 +697,8 @@ public class MutableProfile {
         private final int[] methodNameIndexMapping;
         private final int[] fileNameIndexMapping;
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        private int[] destinationStack = new int[16];
+        private int destinationStackSize;
 
         private Merger(Profile toBeMergedProfile) {
             packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
@@ -388,154 +711,119 @@ public class MutableProfile {
                     fileNameIndexes, fileNames);
         }
 
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
+        private void merge(List<Profile.ProfileNode> flatNodes) {
+            push(ROOT_NODE);
+            int size = flatNodes.size();
+            for (int i = 0; i < size; i++) {
+                Profile.ProfileNode flatNode = flatNodes.get(i);
+                int destinationDepth = destinationStackSize - 1;
+                int depth = flatNode.getDepth();
+                if (destinationDepth > depth) {
+                    destinationStackSize -= destinationDepth - depth;
                 }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+                int destinationNode =
+                        mergeOne(flatNode, destinationStack[destinationStackSize - 1]);
+                if (i + 1 < size && flatNodes.get(i + 1).getDepth() > depth) {
+                    push(destinationNode);
                 }
             }
         }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+        private int mergeOne(Profile.ProfileNode toBeMergedNode, int destinationParentNode) {
+            int frameIndex = getFrameIndex(
+                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber());
+            int leafThreadState = toBeMergedNode.getLeafThreadState().ordinal();
+            int destinationNode = getChild(destinationParentNode, frameIndex, leafThreadState);
+            if (destinationNode == NO_NODE) {
+                // no match found
+                destinationNode = addChild(destinationParentNode, frameIndex, leafThreadState);
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
+            nodeSampleCounts[destinationNode] += toBeMergedNode.getSampleCount();
             return destinationNode;
         }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
-    }
-
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
-
-        private final List<Profile.ProfileNode> nodes;
-
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
+        private void push(int node) {
+            if (destinationStackSize == destinationStack.length) {
+                destinationStack = Arrays.copyOf(destinationStack, destinationStackSize * 2);
+            }
+            destinationStack[destinationStackSize++] = node;
         }
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer implements NodeVisitor<RuntimeException> {
 
         private final String filterTextUpper;
         private final boolean exclusion;
+        private final boolean[] nodeMatched;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
-            this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
+        private ProfileFilterer(String filterTextUpper, boolean exclusion) {
+            this.filterTextUpper = filterTextUpper;
             this.exclusion = exclusion;
+            // only called from filter(), after nodeMatched is allocated
+            this.nodeMatched = checkNotNull(MutableProfile.this.nodeMatched);
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        public boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                nodeMatched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        public void revisitAfterChildren(int node) {
+            if (nodeMatched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (nodeFirstChilds[node] == NO_NODE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    nodeMatched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                nodeMatched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NO_NODE) {
+                int nextChildNode = nodeNextSiblings[childNode];
+                if (exclusion == !nodeMatched[childNode]) {
+                    filteredSampleCount += nodeSampleCounts[childNode];
                 } else {
-                    i.remove();
+                    removeChild(node, childNode);
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            nodeSampleCounts[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = getTextUpper(node);
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+            Profile.LeafThreadState leafThreadState =
+                    LEAF_THREAD_STATES[nodeLeafThreadStates[node]];
+            String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -543,18 +831,20 @@ public class MutableProfile {
             }
         }
 
-        private boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            for (int childNode = nodeFirstChilds[node]; childNode != NO_NODE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (!nodeMatched[childNode]) {
                     return false;
                 }
             }
             return true;
         }
 
-        private boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            for (int childNode = nodeFirstChilds[node]; childNode != NO_NODE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (nodeMatched[childNode]) {
                     return false;
                 }
             }
@@ -562,82 +852,135 @@ public class MutableProfile {
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileResetMatches implements NodeVisitor<RuntimeException> {
 
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
+        @Override
+        public boolean visit(int node, int depth) {
+            checkNotNull(nodeMatched)[node] = false;
+            return true;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
-        }
+        public void revisitAfterChildren(int node) {}
     }
 
-    private class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter implements NodeVisitor<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        public boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState =
+                    LEAF_THREAD_STATES[nodeLeafThreadStates[node]];
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", nodeSampleCounts[node]);
+            long ellipsedSampleCount = getEllipsedSampleCount(node);
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (nodeFirstChilds[node] != NO_NODE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        public void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChilds[node] != NO_NODE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    // same output as writeJson(), but can be written a limited number of nodes at a time so that
+    // large profiles can be streamed without building the entire json in memory (this is the same
+    // iteration as traverse(), but with the iteration state held in fields between calls)
+    public class ChunkedJsonWriter {
+
+        private final JsonGenerator jg;
+        private final ProfileWriter profileWriter;
+
+        private boolean started;
+        private int rootNode;
+        private int node;
+
+        private ChunkedJsonWriter(JsonGenerator jg) {
+            this.jg = jg;
+            profileWriter = new ProfileWriter(jg);
+        }
+
+        // returns false when there is nothing left to write
+        public boolean writeNext(int maxNodes) throws IOException {
+            if (!started) {
+                jg.writeStartObject();
+                jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
+                jg.writeArrayFieldStart("rootNodes");
+                rootNode = nodeFirstChilds[ROOT_NODE];
+                node = rootNode;
+                started = true;
+            } else if (rootNode == NO_NODE) {
+                return false;
+            }
+            for (int count = 0; count < maxNodes && rootNode != NO_NODE; count++) {
+                profileWriter.visit(node, 0);
+                int firstChild = nodeFirstChilds[node];
+                if (firstChild != NO_NODE) {
+                    node = firstChild;
+                    continue;
+                }
+                profileWriter.revisitAfterChildren(node);
+                while (node != rootNode && nodeNextSiblings[node] == NO_NODE) {
+                    node = nodeParents[node];
+                    profileWriter.revisitAfterChildren(node);
+                }
+                if (node == rootNode) {
+                    rootNode = nodeNextSiblings[rootNode];
+                    node = rootNode;
+                } else {
+                    node = nodeNextSiblings[node];
+                }
+            }
+            if (rootNode == NO_NODE) {
+                jg.writeEndArray();
+                jg.writeEndObject();
+            }
+            return true;
+        }
+    }
+
+    private class FlameGraphWriter implements NodeVisitor<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        public boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", nodeSampleCounts[node]);
+            if (nodeFirstChilds[node] != NO_NODE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        public void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChilds[node] != NO_NODE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
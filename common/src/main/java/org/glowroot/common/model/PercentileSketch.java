@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// mergeable log-bucketed quantile sketch (along the lines of DDSketch) with relative accuracy of 1%
+//
+// this is used for percentile charts, which can span thousands of aggregate intervals, and where
+// decoding and merging the full HdrHistogram for each interval is expensive relative to the
+// accuracy needed
+public class PercentileSketch {
+
+    private static final double RELATIVE_ACCURACY = 0.01;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // values less than 1 (nanosecond) are not bucketed
+    private long zeroCount;
+
+    // counts[i] is the count of values in bucket (firstBucketIndex + i), where bucket index n
+    // covers values in the range (GAMMA^(n-1), GAMMA^n]
+    private long[] counts = new long[0];
+    private int firstBucketIndex;
+
+    private long totalCount;
+
+    public void add(long value) {
+        add(value, 1);
+    }
+
+    public void merge(Aggregate.Histogram histogram) {
+        if (histogram.hasSketch()) {
+            merge(histogram.getSketch());
+            return;
+        }
+        ByteString encodedBytes = histogram.getEncodedBytes();
+        if (encodedBytes.isEmpty()) {
+            for (long rawValue : histogram.getOrderedRawValueList()) {
+                add(rawValue);
+            }
+        } else {
+            // histogram stored prior to sketches being added
+            addAll(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+        }
+    }
+
+    public void merge(PercentileSketch sketch) {
+        zeroCount += sketch.zeroCount;
+        totalCount += sketch.zeroCount;
+        if (sketch.counts.length == 0) {
+            return;
+        }
+        ensureBuckets(sketch.firstBucketIndex, sketch.firstBucketIndex + sketch.counts.length - 1);
+        for (int i = 0; i < sketch.counts.length; i++) {
+            counts[sketch.firstBucketIndex - firstBucketIndex + i] += sketch.counts[i];
+            totalCount += sketch.counts[i];
+        }
+    }
+
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        // support "0th" percentile to mean the smallest tracked percentile
+        long rank = Math.max((long) Math.ceil(totalCount * percentile / 100), 1);
+        long count = zeroCount;
+        if (count >= rank) {
+            return 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= rank) {
+                return getBucketValue(firstBucketIndex + i);
+            }
+        }
+        return getBucketValue(firstBucketIndex + counts.length - 1);
+    }
+
+    public Aggregate.Histogram.Sketch toProto() {
+        Aggregate.Histogram.Sketch.Builder builder = Aggregate.Histogram.Sketch.newBuilder()
+                .setZeroCount(zeroCount);
+        int from = 0;
+        while (from < counts.length && counts[from] == 0) {
+            from++;
+        }
+        int to = counts.length;
+        while (to > from && counts[to - 1] == 0) {
+            to--;
+        }
+        if (from < to) {
+            builder.setFirstBucketIndex(firstBucketIndex + from);
+            for (int i = from; i < to; i++) {
+                builder.addBucketCount(counts[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    void addAll(Histogram histogram) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            add(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
+    private void add(long value, long count) {
+        if (value < 1) {
+            zeroCount += count;
+        } else {
+            int bucketIndex = getBucketIndex(value);
+            ensureBuckets(bucketIndex, bucketIndex);
+            counts[bucketIndex - firstBucketIndex] += count;
+        }
+        totalCount += count;
+    }
+
+    private void merge(Aggregate.Histogram.Sketch sketch) {
+        zeroCount += sketch.getZeroCount();
+        totalCount += sketch.getZeroCount();
+        int bucketCount = sketch.getBucketCountCount();
+        if (bucketCount == 0) {
+            return;
+        }
+        int sketchFirstBucketIndex = sketch.getFirstBucketIndex();
+        ensureBuckets(sketchFirstBucketIndex, sketchFirstBucketIndex + bucketCount - 1);
+        for (int i = 0; i < bucketCount; i++) {
+            long count = sketch.getBucketCount(i);
+            counts[sketchFirstBucketIndex - firstBucketIndex + i] += count;
+            totalCount += count;
+        }
+    }
+
+    private void ensureBuckets(int minBucketIndex, int maxBucketIndex) {
+        if (counts.length == 0) {
+            counts = new long[maxBucketIndex - minBucketIndex + 1];
+            firstBucketIndex = minBucketIndex;
+            return;
+        }
+        int lastBucketIndex = firstBucketIndex + counts.length - 1;
+        if (minBucketIndex >= firstBucketIndex && maxBucketIndex <= lastBucketIndex) {
+            return;
+        }
+        int newFirstBucketIndex = Math.min(minBucketIndex, firstBucketIndex);
+        int newLastBucketIndex = Math.max(maxBucketIndex, lastBucketIndex);
+        long[] temp = new long[newLastBucketIndex - newFirstBucketIndex + 1];
+        System.arraycopy(counts, 0, temp, firstBucketIndex - newFirstBucketIndex, counts.length);
+        counts = temp;
+        firstBucketIndex = newFirstBucketIndex;
+    }
+
+    private static int getBucketIndex(long value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    // the value with the smallest maximum relative error across the bucket's range
+    private static long getBucketValue(int bucketIndex) {
+        return Math.round(2 * Math.pow(GAMMA, bucketIndex) / (GAMMA + 1));
+    }
+}
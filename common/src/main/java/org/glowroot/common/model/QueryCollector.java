@@ -26,6 +26,9 @@ import com.google.common.collect.Maps;
 
 public class QueryCollector {
 
+    // rough per query overhead (MutableQuery and hash map entry), excluding the query text
+    private static final int QUERY_OVERHEAD_BYTES = 128;
+
     // first key is query type, second key is either full query text (if query text is relatively
     // short) or sha1 of full query text (if query text is long)
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
@@ -34,6 +37,8 @@ public class QueryCollector {
     // this is only used by UI
     private long lastCaptureTime;
 
+    private long retainedSizeEstimate;
+
     public QueryCollector(int limitPerQueryType) {
         this.limitPerQueryType = limitPerQueryType;
     }
@@ -46,6 +51,11 @@ public class QueryCollector {
         return lastCaptureTime;
     }
 
+    // rough estimate of the heap retained by the collected queries
+    public long getRetainedSizeEstimate() {
+        return retainedSizeEstimate;
+    }
+
     public Map<String, List<MutableQuery>> getSortedQueries() {
         Map<String, List<MutableQuery>> sortedQueries = Maps.newHashMap();
         for (Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
@@ -78,6 +88,7 @@ public class QueryCollector {
         if (aggregateQuery == null) {
             aggregateQuery = new MutableQuery(truncatedText, fullTextSha1);
             queriesForType.put(queryKey, aggregateQuery);
+            retainedSizeEstimate += QUERY_OVERHEAD_BYTES + 2L * truncatedText.length();
         }
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
@@ -31,6 +31,9 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 public class ServiceCallCollector {
 
+    // rough per service call overhead (MutableServiceCall and hash map entry), excluding the text
+    private static final int SERVICE_CALL_OVERHEAD_BYTES = 96;
+
     private final Map<String, Map<String, MutableServiceCall>> serviceCalls = Maps.newHashMap();
     private final int limit;
     private final int maxMultiplierWhileBuilding;
@@ -38,6 +41,8 @@ public class ServiceCallCollector {
     // this is only used by UI
     private long lastCaptureTime;
 
+    private long retainedSizeEstimate;
+
     public ServiceCallCollector(int limit, int maxMultiplierWhileBuilding) {
         this.limit = limit;
         this.maxMultiplierWhileBuilding = maxMultiplierWhileBuilding;
@@ -51,6 +56,11 @@ public class ServiceCallCollector {
         return lastCaptureTime;
     }
 
+    // rough estimate of the heap retained by the collected service calls
+    public long getRetainedSizeEstimate() {
+        return retainedSizeEstimate;
+    }
+
     public List<Aggregate.ServiceCallsByType> toProto() {
         if (serviceCalls.isEmpty()) {
             return ImmutableList.of();
@@ -110,6 +120,8 @@ public class ServiceCallCollector {
             }
             aggregateServiceCall = new MutableServiceCall(serviceCall.getText());
             serviceCallsForType.put(serviceCall.getText(), aggregateServiceCall);
+            retainedSizeEstimate +=
+                    SERVICE_CALL_OVERHEAD_BYTES + 2L * serviceCall.getText().length();
         }
         aggregateServiceCall.addToTotalDurationNanos(serviceCall.getTotalDurationNanos());
         aggregateServiceCall.addToExecutionCount(serviceCall.getExecutionCount());
@@ -125,6 +137,7 @@ public class ServiceCallCollector {
             }
             aggregateServiceCall = new MutableServiceCall(text);
             serviceCallsForType.put(text, aggregateServiceCall);
+            retainedSizeEstimate += SERVICE_CALL_OVERHEAD_BYTES + 2L * text.length();
         }
         aggregateServiceCall.addToTotalDurationNanos(totalDurationNanos);
         aggregateServiceCall.addToExecutionCount(executionCount);
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+
+// compact storage of stack trace samples as interned frame ids (see FrameTable), used for per
+// transaction profiles, which are typically small and numerous, and only need to be materialized
+// into a profile tree when they are read or merged into an aggregate profile
+//
+// each sample is encoded (root to leaf) as the number of frames it shares with the previous sample
+// (packed together with its thread state), followed by the number of remaining frames and their
+// frame ids, since consecutive samples from the same thread typically share most of their frames
+//
+// this class is not thread safe
+public class StackTraceSamples {
+
+    private static final int MAX_ENCODED_LENGTH =
+            Integer.getInteger("glowroot.internal.profile.maxCompactSampleInts", 16384);
+
+    private static final Thread.State[] THREAD_STATES = Thread.State.values();
+
+    // thread state ordinal is stored in the lower 3 bits of the first int of each encoded sample
+    private static final int THREAD_STATE_BITS = 3;
+    private static final int THREAD_STATE_MASK = (1 << THREAD_STATE_BITS) - 1;
+
+    // these are sized lazily since many transactions only ever capture a single sample
+    private int[] encoded = new int[0];
+    private int encodedLength;
+
+    // frame ids of the previous sample (root to leaf)
+    private int[] previousFrameIds = new int[0];
+    private int previousDepth;
+
+    // samples are folded into this tree once the encoded samples exceed MAX_ENCODED_LENGTH, and
+    // samples with frames that could not be interned are merged directly into this tree
+    private @MonotonicNonNull MutableProfile profile;
+
+    public void add(StackTraceElement[] stackTrace, Thread.State threadState) {
+        for (StackTraceElement stackTraceElement : stackTrace) {
+            if (stackTraceElement.getMethodName() == null) {
+                // methodName can be null after hotswapping under Eclipse debugger
+                // in which case seems best to just ignore the stack trace capture altogether
+                return;
+            }
+        }
+        int depth = stackTrace.length;
+        if (encodedLength + depth + 2 > MAX_ENCODED_LENGTH && encodedLength > 0) {
+            fold();
+        }
+        ensureEncodedCapacity(encodedLength + depth + 2);
+        if (previousFrameIds.length < depth) {
+            previousFrameIds = Arrays.copyOf(previousFrameIds, Math.max(depth,
+                    previousFrameIds.length * 2));
+        }
+        int sampleStart = encodedLength;
+        int sharedDepth = 0;
+        int newFrameCountIndex = sampleStart + 1;
+        int index = sampleStart + 2;
+        boolean matching = true;
+        for (int i = 0; i < depth; i++) {
+            int frameId = FrameTable.getFrame(stackTrace[depth - 1 - i]).getId();
+            if (frameId == FrameTable.NOT_INTERNED) {
+                // frame table is full, so discard the partially encoded sample, and fold the prior
+                // samples first in order to preserve sample order in the profile tree
+                encodedLength = sampleStart;
+                fold();
+                getOrCreateProfile().merge(Arrays.asList(stackTrace), threadState);
+                return;
+            }
+            if (matching && i < previousDepth && previousFrameIds[i] == frameId) {
+                sharedDepth++;
+                continue;
+            }
+            matching = false;
+            previousFrameIds[i] = frameId;
+            encoded[index++] = frameId;
+        }
+        encoded[sampleStart] = sharedDepth << THREAD_STATE_BITS | threadState.ordinal();
+        encoded[newFrameCountIndex] = depth - sharedDepth;
+        encodedLength = index;
+        previousDepth = depth;
+    }
+
+    public void mergeInto(MutableProfile profile) {
+        if (this.profile != null) {
+            profile.merge(this.profile);
+        }
+        mergeEncodedInto(profile);
+    }
+
+    private void fold() {
+        mergeEncodedInto(getOrCreateProfile());
+        encodedLength = 0;
+        previousDepth = 0;
+    }
+
+    private void mergeEncodedInto(MutableProfile profile) {
+        int[] frameIds = new int[previousFrameIds.length];
+        int index = 0;
+        while (index < encodedLength) {
+            int header = encoded[index++];
+            int sharedDepth = header >>> THREAD_STATE_BITS;
+            Thread.State threadState = THREAD_STATES[header & THREAD_STATE_MASK];
+            int newFrameCount = encoded[index++];
+            int depth = sharedDepth + newFrameCount;
+            if (frameIds.length < depth) {
+                frameIds = Arrays.copyOf(frameIds, depth);
+            }
+            System.arraycopy(encoded, index, frameIds, sharedDepth, newFrameCount);
+            index += newFrameCount;
+            profile.merge(frameIds, depth, threadState);
+        }
+    }
+
+    private MutableProfile getOrCreateProfile() {
+        if (profile == null) {
+            profile = new MutableProfile();
+        }
+        return profile;
+    }
+
+    private void ensureEncodedCapacity(int capacity) {
+        if (encoded.length < capacity) {
+            encoded = Arrays.copyOf(encoded, Math.max(capacity, encoded.length * 2));
+        }
+    }
+}
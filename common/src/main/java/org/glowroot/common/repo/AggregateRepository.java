@@ -75,6 +75,11 @@ public interface AggregateRepository {
     List<ThroughputAggregate> readThroughputAggregates(String agentRollupId, TransactionQuery query)
             throws Exception;
 
+    // aggregates at the given rollup level with capture time less than or equal to the returned
+    // value are complete, meaning they will not be added to or rewritten by a rollup (other than
+    // by agent data that arrives late, e.g. after a central collector outage)
+    long readRollupCompleteTime(String agentRollupId, int rollupLevel) throws Exception;
+
     @Nullable
     String readFullQueryText(String agentRollupId, String fullQueryTextSha1) throws Exception;
 
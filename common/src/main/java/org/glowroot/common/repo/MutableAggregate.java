@@ -41,6 +41,10 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 @Styles.Private
 public class MutableAggregate {
 
+    // rough sizes used by getRetainedSizeEstimate()
+    private static final int BASE_BYTES = 512;
+    private static final int TIMER_BYTES = 96;
+
     private double totalDurationNanos;
     private long transactionCount;
     private long errorCount;
@@ -127,6 +131,28 @@ public class MutableAggregate {
         return auxThreadProfile;
     }
 
+    // rough estimate of the heap retained by this aggregate, this is bounded by the aggregate
+    // query and service call limits, except for the profiles which grow with the number of
+    // distinct stack trace nodes
+    public long getRetainedSizeEstimate() {
+        long size = BASE_BYTES + durationNanosHistogram.getRetainedSizeEstimate();
+        size += TIMER_BYTES * (getTimerCount(mainThreadRootTimers)
+                + getTimerCount(auxThreadRootTimers) + getTimerCount(asyncTimers));
+        if (queries != null) {
+            size += queries.getRetainedSizeEstimate();
+        }
+        if (serviceCalls != null) {
+            size += serviceCalls.getRetainedSizeEstimate();
+        }
+        if (mainThreadProfile != null) {
+            size += mainThreadProfile.getRetainedSizeEstimate();
+        }
+        if (auxThreadProfile != null) {
+            size += auxThreadProfile.getRetainedSizeEstimate();
+        }
+        return size;
+    }
+
     public boolean isEmpty() {
         return transactionCount == 0;
     }
@@ -281,6 +307,14 @@ public class MutableAggregate {
         return protobufRootTimers;
     }
 
+    private static long getTimerCount(List<MutableTimer> timers) {
+        long count = timers.size();
+        for (MutableTimer timer : timers) {
+            count += getTimerCount(timer.getChildTimers());
+        }
+        return count;
+    }
+
     private static void mergeRootTimer(Aggregate.Timer toBeMergedRootTimer,
             List<MutableTimer> rootTimers) {
         for (MutableTimer rootTimer : rootTimers) {
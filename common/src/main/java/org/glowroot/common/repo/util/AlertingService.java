@@ -22,8 +22,12 @@ import java.net.InetAddress;
 import java.text.NumberFormat;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Properties;
+import java.util.SortedMap;
+import java.util.zip.DataFormatException;
 
+import javax.annotation.Nullable;
 import javax.crypto.SecretKey;
 import javax.mail.Address;
 import javax.mail.Authenticator;
@@ -34,6 +38,12 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,8 +59,10 @@ import org.glowroot.common.repo.TriggeredAlertRepository;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Versions;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -58,6 +70,10 @@ public class AlertingService {
 
     private static final Logger logger = LoggerFactory.getLogger(AlertingService.class);
 
+    // bounds the heap retained by the transaction alert windows across all agents and alert configs
+    private static final long MAX_ALERT_WINDOW_BYTES =
+            Long.getLong("glowroot.internal.alert.maxWindowBytes", 64 * 1024 * 1024);
+
     private final ConfigRepository configRepository;
     private final TriggeredAlertRepository triggeredAlertRepository;
     private final AggregateRepository aggregateRepository;
@@ -65,6 +81,26 @@ public class AlertingService {
     private final RollupLevelService rollupLevelService;
     private final MailService mailService;
 
+    // keyed by agent rollup id and alert config version, so a window is discarded (eventually)
+    // once its alert config is changed or deleted
+    private final LoadingCache<String, TransactionAlertWindow> transactionAlertWindows =
+            CacheBuilder.newBuilder()
+                    .maximumWeight(MAX_ALERT_WINDOW_BYTES)
+                    .weigher(new Weigher<String, TransactionAlertWindow>() {
+                        @Override
+                        public int weigh(String key, TransactionAlertWindow value) {
+                            return (int) Math.min(value.getRetainedSizeEstimate(),
+                                    Integer.MAX_VALUE);
+                        }
+                    })
+                    .expireAfterAccess(1, HOURS)
+                    .build(new CacheLoader<String, TransactionAlertWindow>() {
+                        @Override
+                        public TransactionAlertWindow load(String key) {
+                            return new TransactionAlertWindow();
+                        }
+                    });
+
     public AlertingService(ConfigRepository configRepository,
             TriggeredAlertRepository triggeredAlertRepository,
             AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
@@ -103,27 +139,25 @@ public class AlertingService {
         // don't want to include the aggregate at startTime, so add 1
         startTime++;
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        List<PercentileAggregate> percentileAggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(alertConfig.getTransactionType())
-                                .from(startTime)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
-        long transactionCount = 0;
-        LazyHistogram durationNanosHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : percentileAggregates) {
-            transactionCount += aggregate.transactionCount();
-            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
+        String version = Versions.getVersion(alertConfig);
+        String windowKey = agentRollupId + ":" + version;
+        TransactionAlertWindow window = transactionAlertWindows.getUnchecked(windowKey);
+        long transactionCount;
+        long valueAtPercentile;
+        synchronized (window) {
+            window.update(agentRollupId, alertConfig.getTransactionType(), startTime, endTime,
+                    rollupLevel);
+            transactionCount = window.getTransactionCount();
+            valueAtPercentile = transactionCount < minTransactionCount ? 0
+                    : window.getDurationNanosHistogram().getValueAtPercentile(percentile);
+            // re-put so that the cache re-weighs the window
+            transactionAlertWindows.put(windowKey, window);
         }
         if (transactionCount < minTransactionCount) {
             // don't clear existing triggered alert
             return;
         }
-        String version = Versions.getVersion(alertConfig);
         boolean previouslyTriggered = triggeredAlertRepository.exists(agentRollupId, version);
-        long valueAtPercentile = durationNanosHistogram.getValueAtPercentile(percentile);
         boolean currentlyTriggered = valueAtPercentile >= MILLISECONDS.toNanos(thresholdMillis);
         if (previouslyTriggered && !currentlyTriggered) {
             triggeredAlertRepository.delete(agentRollupId, version);
@@ -260,6 +294,129 @@ public class AlertingService {
         mailService.send(message);
     }
 
+    // sliding window of the percentile aggregates for a single transaction alert, so that each
+    // check only needs to read the aggregates that have been stored since the prior check, instead
+    // of re-reading the entire alert time period
+    //
+    // the window is empty after restart (or after the rollup level changes), in which case it is
+    // rebuilt from storage on the next check
+    //
+    // intervals are kept in their (compact) encoded form, and only the running merged histogram is
+    // decoded, which is merged into as new intervals are read, and only rebuilt from the encoded
+    // intervals when an interval slides out of the window (or is re-read)
+    private class TransactionAlertWindow {
+
+        private int rollupLevel = -1;
+
+        // intervals after this were not yet complete when they were read, so they may since have
+        // been added to or rewritten by a rollup (e.g. agent rollups that are still receiving data
+        // from child agents)
+        private long rollupCompleteTime;
+
+        private final NavigableMap<Long, AlertInterval> intervals = Maps.newTreeMap();
+
+        // null when it needs to be rebuilt from the intervals
+        private @Nullable LazyHistogram durationNanosHistogram;
+
+        private void update(String agentRollupId, String transactionType, long startTime,
+                long endTime, int rollupLevel) throws Exception {
+            List<AlertInterval> addedIntervals = Lists.newArrayList();
+            long readFrom;
+            if (rollupLevel != this.rollupLevel || intervals.isEmpty()) {
+                removeIntervals(intervals);
+                this.rollupLevel = rollupLevel;
+                readFrom = startTime;
+            } else {
+                readFrom = Math.max(startTime,
+                        Math.min(intervals.lastKey(), rollupCompleteTime) + 1);
+            }
+            if (readFrom <= endTime) {
+                // the rollup complete time must be read before the aggregates, otherwise
+                // aggregates that were completed in between would not be re-read next time
+                long rollupCompleteTime =
+                        aggregateRepository.readRollupCompleteTime(agentRollupId, rollupLevel);
+                List<PercentileAggregate> percentileAggregates =
+                        aggregateRepository.readPercentileAggregates(agentRollupId,
+                                ImmutableTransactionQuery.builder()
+                                        .transactionType(transactionType)
+                                        .from(readFrom)
+                                        .to(endTime)
+                                        .rollupLevel(rollupLevel)
+                                        .build());
+                // re-read intervals replace (or remove) the prior ones
+                removeIntervals(intervals.tailMap(readFrom, true));
+                for (PercentileAggregate aggregate : percentileAggregates) {
+                    // the sketch is not needed for exact percentiles
+                    AlertInterval interval = new AlertInterval(aggregate.transactionCount(),
+                            aggregate.durationNanosHistogram().toBuilder()
+                                    .clearSketch()
+                                    .build());
+                    intervals.put(aggregate.captureTime(), interval);
+                    addedIntervals.add(interval);
+                }
+                this.rollupCompleteTime = rollupCompleteTime;
+            }
+            // evict the intervals that have slid out of the window
+            removeIntervals(intervals.headMap(startTime, false));
+            removeIntervals(intervals.tailMap(endTime, false));
+            if (durationNanosHistogram != null) {
+                for (AlertInterval interval : addedIntervals) {
+                    durationNanosHistogram.merge(interval.durationNanosHistogram);
+                }
+            }
+        }
+
+        private void removeIntervals(SortedMap<Long, AlertInterval> toBeRemoved) {
+            if (!toBeRemoved.isEmpty()) {
+                toBeRemoved.clear();
+                durationNanosHistogram = null;
+            }
+        }
+
+        private long getTransactionCount() {
+            long transactionCount = 0;
+            for (AlertInterval interval : intervals.values()) {
+                transactionCount += interval.transactionCount;
+            }
+            return transactionCount;
+        }
+
+        private LazyHistogram getDurationNanosHistogram() throws DataFormatException {
+            LazyHistogram durationNanosHistogram = this.durationNanosHistogram;
+            if (durationNanosHistogram == null) {
+                durationNanosHistogram = new LazyHistogram();
+                for (AlertInterval interval : intervals.values()) {
+                    durationNanosHistogram.merge(interval.durationNanosHistogram);
+                }
+                this.durationNanosHistogram = durationNanosHistogram;
+            }
+            return durationNanosHistogram;
+        }
+
+        // rough estimate of the heap retained by this window
+        private long getRetainedSizeEstimate() {
+            long size = 128;
+            for (AlertInterval interval : intervals.values()) {
+                size += 64 + interval.durationNanosHistogram.getSerializedSize();
+            }
+            if (durationNanosHistogram != null) {
+                size += durationNanosHistogram.getRetainedSizeEstimate();
+            }
+            return size;
+        }
+    }
+
+    private static class AlertInterval {
+
+        private final long transactionCount;
+        private final Aggregate.Histogram durationNanosHistogram;
+
+        private AlertInterval(long transactionCount, Aggregate.Histogram durationNanosHistogram) {
+            this.transactionCount = transactionCount;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+    }
+
     private static String displaySixDigitsOfPrecision(double value) {
         return displaySixDigitsOfPrecision(value, NumberFormat.getNumberInstance());
     }
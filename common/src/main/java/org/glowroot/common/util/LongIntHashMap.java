@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+import java.util.Arrays;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// open addressing (linear probing) map from non-negative long keys to non-negative int values,
+// which avoids boxing on hot paths
+//
+// not thread safe
+public class LongIntHashMap {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final long EMPTY_KEY = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int get(long key) {
+        if (key < 0) {
+            // negative keys are never stored (and EMPTY_KEY would otherwise match an empty slot)
+            return NOT_FOUND;
+        }
+        int index = indexOf(key);
+        while (true) {
+            long k = keys[index];
+            if (k == key) {
+                return values[index];
+            }
+            if (k == EMPTY_KEY) {
+                return NOT_FOUND;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public void put(long key, int value) {
+        checkArgument(key >= 0, "key must be non-negative");
+        int index = indexOf(key);
+        while (true) {
+            long k = keys[index];
+            if (k == key) {
+                values[index] = value;
+                return;
+            }
+            if (k == EMPTY_KEY) {
+                keys[index] = key;
+                values[index] = value;
+                // keep load factor at or below 0.5
+                if (++size > (mask + 1) >> 1) {
+                    rehash();
+                }
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY_KEY);
+        size = 0;
+    }
+
+    @VisibleForTesting
+    int indexOf(long key) {
+        // fibonacci hashing spreads sequential keys across the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != EMPTY_KEY) {
+                int index = indexOf(key);
+                while (keys[index] != EMPTY_KEY) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+}
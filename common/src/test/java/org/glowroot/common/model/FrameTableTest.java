@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.model.FrameTable.Frame;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FrameTableTest {
+
+    @Test
+    public void shouldReturnSameFrameForEqualStackTraceElements() {
+        // given
+        StackTraceElement element = new StackTraceElement("a.b.FrameTableTest1", "m", "F.java", 1);
+        StackTraceElement equalElement =
+                new StackTraceElement("a.b.FrameTableTest1", "m", "F.java", 1);
+        // when
+        Frame frame = FrameTable.getFrame(element);
+        Frame equalFrame = FrameTable.getFrame(equalElement);
+        // then
+        assertThat(equalFrame).isSameAs(frame);
+        assertThat(frame.getId()).isNotEqualTo(FrameTable.NOT_INTERNED);
+    }
+
+    @Test
+    public void shouldReturnDifferentFramesForDifferentLineNumbers() {
+        // given
+        StackTraceElement element = new StackTraceElement("a.b.FrameTableTest2", "m", "F.java", 1);
+        StackTraceElement otherElement =
+                new StackTraceElement("a.b.FrameTableTest2", "m", "F.java", 2);
+        // when
+        Frame frame = FrameTable.getFrame(element);
+        Frame otherFrame = FrameTable.getFrame(otherElement);
+        // then
+        assertThat(otherFrame).isNotSameAs(frame);
+        assertThat(otherFrame.getId()).isNotEqualTo(frame.getId());
+    }
+
+    @Test
+    public void shouldLookUpFrameById() {
+        // given
+        List<Frame> frames = Lists.newArrayList();
+        // enough frames to span more than one chunk
+        for (int i = 0; i < 3000; i++) {
+            frames.add(FrameTable.getFrame(
+                    new StackTraceElement("a.b.FrameTableTest3", "m", "F.java", i)));
+        }
+        // when
+        // then
+        for (Frame frame : frames) {
+            assertThat(FrameTable.getFrame(frame.getId())).isSameAs(frame);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowForUnknownId() {
+        FrameTable.getFrame(Integer.MAX_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowForNegativeId() {
+        FrameTable.getFrame(FrameTable.NOT_INTERNED);
+    }
+
+    @Test
+    public void shouldSplitClassName() {
+        // when
+        Frame frame = FrameTable.getFrame(
+                new StackTraceElement("a.b.FrameTableTest4", "m", "FrameTableTest4.java", 12));
+        Frame defaultPackageFrame =
+                FrameTable.getFrame(new StackTraceElement("FrameTableTest4", "m", null, -2));
+        // then
+        assertThat(frame.getPackageName()).isEqualTo("a.b");
+        assertThat(frame.getClassName()).isEqualTo("FrameTableTest4");
+        assertThat(frame.getMethodName()).isEqualTo("m");
+        assertThat(frame.getFileName()).isEqualTo("FrameTableTest4.java");
+        assertThat(frame.getLineNumber()).isEqualTo(12);
+        assertThat(defaultPackageFrame.getPackageName()).isEmpty();
+        assertThat(defaultPackageFrame.getClassName()).isEqualTo("FrameTableTest4");
+        assertThat(defaultPackageFrame.getFileName()).isEmpty();
+        assertThat(defaultPackageFrame.getLineNumber()).isEqualTo(-2);
+    }
+
+    @Test
+    public void shouldReturnSameFrameAcrossThreads() throws Exception {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<Frame>>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<List<Frame>>() {
+                @Override
+                public List<Frame> call() {
+                    List<Frame> frames = Lists.newArrayList();
+                    for (int j = 0; j < 2000; j++) {
+                        frames.add(FrameTable.getFrame(
+                                new StackTraceElement("a.b.FrameTableTest5", "m", "F.java", j)));
+                    }
+                    return frames;
+                }
+            }));
+        }
+        List<List<Frame>> results = Lists.newArrayList();
+        for (Future<List<Frame>> future : futures) {
+            results.add(future.get());
+        }
+        executor.shutdown();
+        // then
+        List<Frame> expected = results.get(0);
+        for (List<Frame> frames : results) {
+            for (int j = 0; j < frames.size(); j++) {
+                assertThat(frames.get(j)).isSameAs(expected.get(j));
+            }
+        }
+        for (Frame frame : expected) {
+            assertThat(FrameTable.getFrame(frame.getId())).isSameAs(frame);
+        }
+    }
+}
@@ -78,6 +78,31 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldOnlyIncludeSketchWhenRequested() {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            lazyHistogram.add(i * 1000L);
+        }
+        // when
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        Aggregate.Histogram liveHistogram =
+                lazyHistogram.toProtoWithoutSketch(new ScratchBuffer());
+        // then
+        assertThat(histogram.hasSketch()).isTrue();
+        assertThat(liveHistogram.hasSketch()).isFalse();
+        assertThat(liveHistogram.getEncodedBytes()).isEqualTo(histogram.getEncodedBytes());
+        PercentileSketch sketch = new PercentileSketch();
+        sketch.merge(histogram);
+        PercentileSketch liveSketch = new PercentileSketch();
+        liveSketch.merge(liveHistogram);
+        for (double percentile : new double[] {50, 95, 99}) {
+            assertThat(liveSketch.getValueAtPercentile(percentile))
+                    .isEqualTo(sketch.getValueAtPercentile(percentile));
+        }
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -17,6 +17,7 @@ package org.glowroot.common.model;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
@@ -164,6 +165,54 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void shouldWriteSameJsonInChunks() throws IOException {
+        // given
+        MutableProfile emptyProfile = new MutableProfile();
+        MutableProfile singleNodeProfile = new MutableProfile();
+        singleNodeProfile.merge(
+                Lists.newArrayList(new StackTraceElement("a.A", "m", "A.java", 1)),
+                Thread.State.RUNNABLE);
+        MutableProfile randomProfile = new MutableProfile();
+        Random random = new Random(0);
+        Thread.State[] threadStates = Thread.State.values();
+        for (int i = 0; i < 200; i++) {
+            List<StackTraceElement> stackTrace = Lists.newArrayList();
+            int depth = 1 + random.nextInt(15);
+            for (int j = 0; j < depth; j++) {
+                // small number of distinct frames so that there are deep and branching subtrees
+                int k = random.nextInt(4);
+                stackTrace.add(new StackTraceElement("r.R" + k, "m" + k, "R.java", j));
+            }
+            randomProfile.merge(stackTrace, threadStates[random.nextInt(threadStates.length)]);
+        }
+        // when
+        // then
+        for (MutableProfile profile : Lists.newArrayList(emptyProfile, singleNodeProfile,
+                randomProfile)) {
+            String expected = profile.toJsonUsingTraverse();
+            assertThat(profile.toJson()).isEqualTo(expected);
+            for (int maxNodes : new int[] {1, 2, 3, 7, 1000}) {
+                assertThat(toJsonInChunks(profile, maxNodes)).isEqualTo(expected);
+            }
+        }
+    }
+
+    private static String toJsonInChunks(MutableProfile profile, int maxNodes)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = new ObjectMapper().getFactory()
+                .createGenerator(CharStreams.asWriter(sb));
+        MutableProfile.ChunkedJsonWriter writer = profile.newChunkedJsonWriter(jg);
+        while (writer.writeNext(maxNodes)) {
+            jg.flush();
+        }
+        // nothing more is written once it has returned false
+        assertThat(writer.writeNext(maxNodes)).isFalse();
+        jg.close();
+        return sb.toString();
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PercentileSketchTest {
+
+    private static final double[] PERCENTILES = {0, 50, 95, 99, 99.9, 100};
+
+    @Test
+    public void shouldBeEmpty() {
+        PercentileSketch sketch = new PercentileSketch();
+        assertThat(sketch.getValueAtPercentile(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldMatchHistogramFromRawValues() {
+        LazyHistogram histogram = new LazyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i * 1000000L);
+        }
+        shouldMatchHistogram(histogram);
+    }
+
+    @Test
+    public void shouldMatchHistogramFromEncodedBytes() {
+        Random random = new Random(0);
+        LazyHistogram histogram = new LazyHistogram();
+        for (int i = 0; i < 100000; i++) {
+            // log-normal is a reasonable approximation of response times
+            histogram.add((long) Math.exp(16 + random.nextGaussian()));
+        }
+        shouldMatchHistogram(histogram);
+    }
+
+    @Test
+    public void shouldEncodeSketchWithEncodedBytes() {
+        LazyHistogram histogram = new LazyHistogram();
+        for (int i = 0; i < 2000; i++) {
+            histogram.add(i * 1000000L);
+        }
+        Aggregate.Histogram proto = histogram.toProto(new ScratchBuffer());
+        assertThat(proto.getEncodedBytes().isEmpty()).isFalse();
+        assertThat(proto.hasSketch()).isTrue();
+        assertThat(proto.getSketch().getBucketCountCount()).isGreaterThan(0);
+    }
+
+    @Test
+    public void shouldMerge() {
+        LazyHistogram histogram = new LazyHistogram();
+        PercentileSketch mergedSketch = new PercentileSketch();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (int i = 0; i < 10; i++) {
+            LazyHistogram intervalHistogram = new LazyHistogram();
+            // alternate between raw values and encoded bytes
+            int count = i % 2 == 0 ? 100 : 5000;
+            for (int j = 0; j < count; j++) {
+                long value = (i + 1) * (j + 1) * 1000L;
+                histogram.add(value);
+                intervalHistogram.add(value);
+            }
+            PercentileSketch intervalSketch = new PercentileSketch();
+            intervalSketch.merge(intervalHistogram.toProto(scratchBuffer));
+            mergedSketch.merge(intervalSketch);
+        }
+        for (double percentile : PERCENTILES) {
+            assertWithinOnePercent(mergedSketch.getValueAtPercentile(percentile),
+                    histogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    private static void shouldMatchHistogram(LazyHistogram histogram) {
+        PercentileSketch sketch = new PercentileSketch();
+        sketch.merge(histogram.toProto(new ScratchBuffer()));
+        for (double percentile : PERCENTILES) {
+            assertWithinOnePercent(sketch.getValueAtPercentile(percentile),
+                    histogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    private static void assertWithinOnePercent(long actual, long expected) {
+        assertThat((double) Math.abs(actual - expected)).isLessThanOrEqualTo(expected * 0.01 + 1);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// compares against merging each sample directly into a MutableProfile, which is how per
+// transaction profiles were stored before StackTraceSamples
+public class StackTraceSamplesTest {
+
+    @Test
+    public void shouldMatchForNoSamples() throws Exception {
+        assertSame(new StackTraceSamples(), new MutableProfile());
+    }
+
+    @Test
+    public void shouldMatchForSingleSample() throws Exception {
+        // given
+        StackTraceSamples samples = new StackTraceSamples();
+        MutableProfile expected = new MutableProfile();
+        StackTraceElement[] stackTrace = stackTrace("a", 3);
+        // when
+        add(samples, expected, stackTrace, Thread.State.RUNNABLE);
+        // then
+        assertSame(samples, expected);
+    }
+
+    @Test
+    public void shouldMatchForRepeatedSamples() throws Exception {
+        // given
+        StackTraceSamples samples = new StackTraceSamples();
+        MutableProfile expected = new MutableProfile();
+        StackTraceElement[] stackTrace = stackTrace("a", 5);
+        // when
+        for (int i = 0; i < 10; i++) {
+            add(samples, expected, stackTrace, Thread.State.RUNNABLE);
+        }
+        // then
+        assertSame(samples, expected);
+    }
+
+    @Test
+    public void shouldMatchForSamplesThatShareFrames() throws Exception {
+        // given
+        StackTraceSamples samples = new StackTraceSamples();
+        MutableProfile expected = new MutableProfile();
+        StackTraceElement[] stackTrace = stackTrace("a", 6);
+        // when
+        // deeper
+        add(samples, expected, stackTrace, Thread.State.RUNNABLE);
+        // shallower (proper prefix of the previous sample, root to leaf)
+        add(samples, expected, Arrays.copyOfRange(stackTrace, 2, 6), Thread.State.BLOCKED);
+        // same depth, different leaf
+        StackTraceElement[] differentLeaf = stackTrace.clone();
+        differentLeaf[0] = new StackTraceElement("b.B", "leaf", "B.java", 1);
+        add(samples, expected, differentLeaf, Thread.State.WAITING);
+        // same frames, different thread state
+        add(samples, expected, differentLeaf, Thread.State.TIMED_WAITING);
+        // different root
+        add(samples, expected, stackTrace("c", 4), Thread.State.RUNNABLE);
+        // back to the first sample
+        add(samples, expected, stackTrace, Thread.State.RUNNABLE);
+        // then
+        assertSame(samples, expected);
+    }
+
+    @Test
+    public void shouldMatchForRandomSamples() throws Exception {
+        // given
+        StackTraceSamples samples = new StackTraceSamples();
+        MutableProfile expected = new MutableProfile();
+        Random random = new Random(0);
+        Thread.State[] threadStates = Thread.State.values();
+        // when
+        for (int i = 0; i < 500; i++) {
+            // small number of distinct frames so that samples share prefixes
+            int depth = 1 + random.nextInt(20);
+            StackTraceElement[] stackTrace = new StackTraceElement[depth];
+            for (int j = 0; j < depth; j++) {
+                stackTrace[j] = new StackTraceElement("r.R" + random.nextInt(3), "m",
+                        "R.java", random.nextInt(3));
+            }
+            add(samples, expected, stackTrace,
+                    threadStates[random.nextInt(threadStates.length)]);
+        }
+        // then
+        assertSame(samples, expected);
+    }
+
+    @Test
+    public void shouldMatchAfterFoldingIntoProfileTree() throws Exception {
+        // given
+        StackTraceSamples samples = new StackTraceSamples();
+        MutableProfile expected = new MutableProfile();
+        // when
+        // enough distinct deep samples to exceed the default max encoded length of 16384 ints
+        for (int i = 0; i < 500; i++) {
+            add(samples, expected, stackTrace("fold" + (i % 50), 50), Thread.State.RUNNABLE);
+        }
+        // then
+        assertSame(samples, expected);
+    }
+
+    @Test
+    public void shouldMergeIntoNonEmptyProfile() throws Exception {
+        // given
+        StackTraceSamples samples = new StackTraceSamples();
+        MutableProfile expected = new MutableProfile();
+        MutableProfile profile = new MutableProfile();
+        StackTraceElement[] existing = stackTrace("e", 3);
+        expected.merge(Arrays.asList(existing), Thread.State.RUNNABLE);
+        profile.merge(Arrays.asList(existing), Thread.State.RUNNABLE);
+        // when
+        add(samples, expected, stackTrace("e", 4), Thread.State.RUNNABLE);
+        add(samples, expected, existing, Thread.State.RUNNABLE);
+        samples.mergeInto(profile);
+        // then
+        assertThat(profile.toJson()).isEqualTo(expected.toJson());
+    }
+
+    private static void add(StackTraceSamples samples, MutableProfile expected,
+            StackTraceElement[] stackTrace, Thread.State threadState) {
+        samples.add(stackTrace, threadState);
+        expected.merge(Arrays.asList(stackTrace), threadState);
+    }
+
+    private static void assertSame(StackTraceSamples samples, MutableProfile expected)
+            throws Exception {
+        MutableProfile profile = new MutableProfile();
+        samples.mergeInto(profile);
+        assertThat(profile.toJson()).isEqualTo(expected.toJson());
+        // merging again must not change the result
+        MutableProfile profile2 = new MutableProfile();
+        samples.mergeInto(profile2);
+        assertThat(profile2.toJson()).isEqualTo(expected.toJson());
+    }
+
+    // leaf first, like Thread.getStackTrace()
+    private static StackTraceElement[] stackTrace(String prefix, int depth) {
+        StackTraceElement[] stackTrace = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            stackTrace[i] = new StackTraceElement(prefix + ".C" + i, "m" + i, "C.java", i);
+        }
+        return stackTrace;
+    }
+}
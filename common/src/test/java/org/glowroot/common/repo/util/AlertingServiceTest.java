@@ -43,6 +43,7 @@ import org.glowroot.common.repo.GaugeValueRepository;
 import org.glowroot.common.repo.ImmutableAgentRollup;
 import org.glowroot.common.repo.TriggeredAlertRepository;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Versions;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
@@ -51,6 +52,8 @@ import org.glowroot.wire.api.model.Proto.OptionalInt32;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class AlertingServiceTest {
@@ -161,6 +164,96 @@ public class AlertingServiceTest {
         assertThat(mailService.getMessage()).isNull();
     }
 
+    @Test
+    public void shouldOnlyReadNewAggregatesForSubsequentTransactionAlertCheck()
+            throws Exception {
+        // given
+        setupForTransaction(1000000);
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(120000L);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService);
+        alertingService.checkTransactionAlert("", TRANSACTION_ALERT_CONFIG, 120000, SMTP_CONFIG);
+        mailService.clear();
+        // when
+        alertingService.checkTransactionAlert("", TRANSACTION_ALERT_CONFIG, 150000, SMTP_CONFIG);
+        // then
+        verify(aggregateRepository).readPercentileAggregates(AGENT_ID,
+                ImmutableTransactionQuery.builder()
+                        .transactionType("tt")
+                        .from(120001)
+                        .to(150000)
+                        .rollupLevel(0)
+                        .build());
+        verify(aggregateRepository, never()).readPercentileAggregates(AGENT_ID,
+                ImmutableTransactionQuery.builder()
+                        .transactionType("tt")
+                        .from(90001)
+                        .to(150000)
+                        .rollupLevel(0)
+                        .build());
+        // aggregate at 120000 is still in the window
+        assertThat(mailService.getMessage()).isNotNull();
+    }
+
+    @Test
+    public void shouldReReadIntervalsThatWereNotCompleteForSubsequentTransactionAlertCheck()
+            throws Exception {
+        // given
+        setupForTransaction(999000);
+        // aggregate at 120000 is not complete yet when first read
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(60000L);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService);
+        alertingService.checkTransactionAlert("", TRANSACTION_ALERT_CONFIG, 120000, SMTP_CONFIG);
+        assertThat(mailService.getMessage()).isNull();
+        // aggregate at 120000 has since been rewritten by a rollup
+        when(aggregateRepository.readPercentileAggregates(AGENT_ID,
+                ImmutableTransactionQuery.builder()
+                        .transactionType("tt")
+                        .from(90001)
+                        .to(150000)
+                        .rollupLevel(0)
+                        .build()))
+                .thenReturn(ImmutableList.of(percentileAggregate(999000, 1000000)));
+        // when
+        alertingService.checkTransactionAlert("", TRANSACTION_ALERT_CONFIG, 150000, SMTP_CONFIG);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+    }
+
+    @Test
+    public void shouldNotIncludeIntervalsThatSlidOutOfWindowForSubsequentTransactionAlertCheck()
+            throws Exception {
+        // given
+        setupForTransaction(1000000);
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(120000L);
+        when(triggeredAlertRepository.exists(AGENT_ID,
+                Versions.getVersion(TRANSACTION_ALERT_CONFIG))).thenReturn(false, true);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService);
+        alertingService.checkTransactionAlert("", TRANSACTION_ALERT_CONFIG, 120000, SMTP_CONFIG);
+        assertThat(mailService.getMessage()).isNotNull();
+        mailService.clear();
+        when(aggregateRepository.readPercentileAggregates(AGENT_ID,
+                ImmutableTransactionQuery.builder()
+                        .transactionType("tt")
+                        .from(120001)
+                        .to(180000)
+                        .rollupLevel(0)
+                        .build()))
+                .thenReturn(ImmutableList.of(percentileAggregateAt(180000, 999000)));
+        // when
+        alertingService.checkTransactionAlert("", TRANSACTION_ALERT_CONFIG, 180000, SMTP_CONFIG);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+        assertThat(((String) mailService.getMessage().getContent()).trim())
+                .isEqualTo("95th percentile over the last 1 minute has dropped back below alert"
+                        + " threshold of 1 millisecond.");
+    }
+
     @Test
     public void shouldSendMailForGaugeAlert() throws Exception {
         // given
@@ -283,16 +376,7 @@ public class AlertingServiceTest {
     }
 
     private void setupForTransaction(long... histogramValues) throws Exception {
-        LazyHistogram lazyHistogram = new LazyHistogram();
-        for (long histogramValue : histogramValues) {
-            lazyHistogram.add(histogramValue);
-        }
-        PercentileAggregate aggregate = ImmutablePercentileAggregate.builder()
-                .captureTime(120000)
-                .totalDurationNanos(1000000)
-                .transactionCount(1)
-                .durationNanosHistogram(lazyHistogram.toProto(new ScratchBuffer()))
-                .build();
+        PercentileAggregate aggregate = percentileAggregate(histogramValues);
         ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
                 .transactionType("tt")
                 .from(60001)
@@ -303,6 +387,24 @@ public class AlertingServiceTest {
                 .thenReturn(ImmutableList.of(aggregate));
     }
 
+    private static PercentileAggregate percentileAggregate(long... histogramValues) {
+        return percentileAggregateAt(120000, histogramValues);
+    }
+
+    private static PercentileAggregate percentileAggregateAt(long captureTime,
+            long... histogramValues) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (long histogramValue : histogramValues) {
+            lazyHistogram.add(histogramValue);
+        }
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(1000000)
+                .transactionCount(histogramValues.length)
+                .durationNanosHistogram(lazyHistogram.toProto(new ScratchBuffer()))
+                .build();
+    }
+
     private void setupForGauge(double value) throws Exception {
         GaugeValue gaugeValue = GaugeValue.newBuilder()
                 .setGaugeName("abc")
@@ -332,5 +434,9 @@ public class AlertingServiceTest {
         public Message getMessage() {
             return msg;
         }
+
+        public void clear() {
+            msg = null;
+        }
     }
 }
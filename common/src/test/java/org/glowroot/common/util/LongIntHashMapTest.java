@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void shouldPutAndGet() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        // when
+        map.put(0, 10);
+        map.put(1, 11);
+        map.put(Long.MAX_VALUE, 12);
+        // then
+        assertThat(map.get(0)).isEqualTo(10);
+        assertThat(map.get(1)).isEqualTo(11);
+        assertThat(map.get(Long.MAX_VALUE)).isEqualTo(12);
+        assertThat(map.get(2)).isEqualTo(LongIntHashMap.NOT_FOUND);
+        assertThat(map.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldNotFindNegativeKey() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        map.put(0, 10);
+        // when
+        // then
+        assertThat(map.get(-1)).isEqualTo(LongIntHashMap.NOT_FOUND);
+        assertThat(map.get(Long.MIN_VALUE)).isEqualTo(LongIntHashMap.NOT_FOUND);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotPutNegativeKey() {
+        new LongIntHashMap().put(-1, 10);
+    }
+
+    @Test
+    public void shouldReplaceValue() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        map.put(5, 10);
+        // when
+        map.put(5, 20);
+        // then
+        assertThat(map.get(5)).isEqualTo(20);
+        assertThat(map.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldHandleCollisions() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        long[] keys = findCollidingKeys(map, 4, map.indexOf(0));
+        // when
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        map.put(keys[1], 100);
+        // then
+        assertThat(map.get(keys[0])).isEqualTo(0);
+        assertThat(map.get(keys[1])).isEqualTo(100);
+        assertThat(map.get(keys[2])).isEqualTo(2);
+        assertThat(map.get(keys[3])).isEqualTo(3);
+        assertThat(map.size()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldWrapAroundWhenProbingPastEndOfTable() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        // find the last slot by probing all slots of the initial table
+        int lastSlot = 0;
+        for (long key = 0; key < 1000; key++) {
+            lastSlot = Math.max(lastSlot, map.indexOf(key));
+        }
+        long[] keys = findCollidingKeys(map, 3, lastSlot);
+        // when
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        // then
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(map.get(keys[i])).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void shouldResize() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        // when
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 31L, i);
+        }
+        // then
+        assertThat(map.size()).isEqualTo(10000);
+        for (int i = 0; i < 10000; i++) {
+            assertThat(map.get(i * 31L)).isEqualTo(i);
+        }
+        assertThat(map.get(1)).isEqualTo(LongIntHashMap.NOT_FOUND);
+    }
+
+    @Test
+    public void shouldMatchHashMapForRandomKeys() {
+        // given
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = Maps.newHashMap();
+        Random random = new Random(0);
+        // when
+        for (int i = 0; i < 50000; i++) {
+            // small key range, so that there are many replaced values as well
+            long key = random.nextInt(20000);
+            int value = random.nextInt(Integer.MAX_VALUE);
+            map.put(key, value);
+            expected.put(key, value);
+        }
+        // then
+        assertThat(map.size()).isEqualTo(expected.size());
+        for (long key = 0; key < 20000; key++) {
+            Integer value = expected.get(key);
+            assertThat(map.get(key)).isEqualTo(value == null ? LongIntHashMap.NOT_FOUND : value);
+        }
+    }
+
+    @Test
+    public void shouldClear() {
+        // given
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        // when
+        map.clear();
+        // then
+        assertThat(map.size()).isZero();
+        assertThat(map.get(1)).isEqualTo(LongIntHashMap.NOT_FOUND);
+        map.put(1, 2);
+        assertThat(map.get(1)).isEqualTo(2);
+    }
+
+    // the keys are found using the initial (empty) table size, so count must be small enough that
+    // putting them does not trigger a resize
+    private static long[] findCollidingKeys(LongIntHashMap map, int count, int slot) {
+        long[] keys = new long[count];
+        int found = 0;
+        for (long key = 0; found < count; key++) {
+            if (map.indexOf(key) == slot) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+}
@@ -83,18 +83,20 @@ class AdminJsonService {
     private final ConfigRepository configRepository;
     private final RepoAdmin repoAdmin;
     private final LiveAggregateRepository liveAggregateRepository;
+    private final AggregateCache aggregateCache;
     private final MailService mailService;
 
     private volatile @MonotonicNonNull HttpServer httpServer;
 
     AdminJsonService(boolean embedded, File glowrootDir, ConfigRepository configRepository,
             RepoAdmin repoAdmin, LiveAggregateRepository liveAggregateRepository,
-            MailService mailService) {
+            AggregateCache aggregateCache, MailService mailService) {
         this.embedded = embedded;
         this.glowrootDir = glowrootDir;
         this.configRepository = configRepository;
         this.repoAdmin = repoAdmin;
         this.liveAggregateRepository = liveAggregateRepository;
+        this.aggregateCache = aggregateCache;
         this.mailService = mailService;
     }
 
@@ -291,6 +293,7 @@ class AdminJsonService {
     void deleteAllData() throws Exception {
         repoAdmin.deleteAllData();
         liveAggregateRepository.clearInMemoryAggregate();
+        aggregateCache.invalidateAll();
     }
 
     @POST(path = "/backend/admin/defrag-data", permission = "admin:edit:storage")
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.value.Value;
+
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches overview, percentile and throughput aggregates for time ranges that are no longer
+// changing, so that dashboards that are refreshed periodically over a long time range only need to
+// read the most recent aggregates from the repository
+//
+// aggregates are cached in buckets of BUCKET_INTERVALS rollup intervals, and a bucket is only
+// cached once the repository reports that all of the bucket's rollup intervals are complete (see
+// AggregateRepository.readRollupCompleteTime()), since the presence of a later aggregate does not
+// mean that earlier intervals have been fully written or rolled up (e.g. central rollups)
+//
+// entries also expire after a while, in order to pick up late arriving data (e.g. agent data that
+// was spooled during a central collector outage)
+class AggregateCache implements AggregateCacheMXBean {
+
+    private static final int BUCKET_INTERVALS = 60;
+
+    private static final long MAX_WEIGHT =
+            Long.getLong("glowroot.internal.ui.aggregateCacheMaxAggregates", 100000);
+
+    private static final long EXPIRE_MINUTES =
+            Long.getLong("glowroot.internal.ui.aggregateCacheExpireMinutes", 60);
+
+    private final AggregateRepository aggregateRepository;
+    private final ConfigRepository configRepository;
+
+    private final Cache<BucketKey, List<?>> cache;
+
+    private final LazyMBeanRegistration mbeanRegistration =
+            new LazyMBeanRegistration(this, "org.glowroot:type=AggregateCache");
+
+    AggregateCache(AggregateRepository aggregateRepository, ConfigRepository configRepository) {
+        this.aggregateRepository = aggregateRepository;
+        this.configRepository = configRepository;
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_WEIGHT)
+                .weigher(new Weigher<BucketKey, List<?>>() {
+                    @Override
+                    public int weigh(BucketKey key, List<?> value) {
+                        return value.size() + 1;
+                    }
+                })
+                .expireAfterWrite(EXPIRE_MINUTES, MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    // query.from() is INCLUSIVE
+    List<OverviewAggregate> readOverviewAggregates(String agentRollupId, TransactionQuery query)
+            throws Exception {
+        return read(agentRollupId, query, new AggregateReader<OverviewAggregate>() {
+            @Override
+            public String kind() {
+                return "overview";
+            }
+            @Override
+            public List<OverviewAggregate> read(String agentRollupId, TransactionQuery query)
+                    throws Exception {
+                return aggregateRepository.readOverviewAggregates(agentRollupId, query);
+            }
+            @Override
+            public long captureTime(OverviewAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        });
+    }
+
+    // query.from() is INCLUSIVE
+    List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return read(agentRollupId, query, new AggregateReader<PercentileAggregate>() {
+            @Override
+            public String kind() {
+                return "percentile";
+            }
+            @Override
+            public List<PercentileAggregate> read(String agentRollupId, TransactionQuery query)
+                    throws Exception {
+                return aggregateRepository.readPercentileAggregates(agentRollupId, query);
+            }
+            @Override
+            public long captureTime(PercentileAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        });
+    }
+
+    // query.from() is INCLUSIVE
+    List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return read(agentRollupId, query, new AggregateReader<ThroughputAggregate>() {
+            @Override
+            public String kind() {
+                return "throughput";
+            }
+            @Override
+            public List<ThroughputAggregate> read(String agentRollupId, TransactionQuery query)
+                    throws Exception {
+                return aggregateRepository.readThroughputAggregates(agentRollupId, query);
+            }
+            @Override
+            public long captureTime(ThroughputAggregate aggregate) {
+                return aggregate.captureTime();
+            }
+        });
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public double getMissRate() {
+        return cache.stats().missRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public long getBucketCount() {
+        return cache.size();
+    }
+
+    private <T extends /*@NonNull*/ Object> List<T> read(String agentRollupId,
+            TransactionQuery query, AggregateReader<T> reader) throws Exception {
+        mbeanRegistration.registerIfNeeded();
+        long bucketMillis = configRepository.getRollupConfigs().get(query.rollupLevel())
+                .intervalMillis() * BUCKET_INTERVALS;
+        List<T> aggregates = Lists.newArrayList();
+        // serve the leading finalized buckets from the cache
+        long uncachedFrom = query.from();
+        for (long bucket = query.from() / bucketMillis; bucket <= query.to() / bucketMillis;
+                bucket++) {
+            List<T> cachedAggregates = getIfPresent(reader, agentRollupId, query, bucket);
+            if (cachedAggregates == null) {
+                break;
+            }
+            for (T aggregate : cachedAggregates) {
+                long captureTime = reader.captureTime(aggregate);
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    aggregates.add(aggregate);
+                }
+            }
+            uncachedFrom = (bucket + 1) * bucketMillis;
+        }
+        if (uncachedFrom > query.to()) {
+            return aggregates;
+        }
+        // only buckets that are entirely covered by the query can be cached
+        long firstBucket = (uncachedFrom + bucketMillis - 1) / bucketMillis;
+        Long rollupCompleteTime = null;
+        if ((firstBucket + 1) * bucketMillis - 1 <= query.to()) {
+            // the rollup complete time must be read before the aggregates, otherwise aggregates
+            // that were completed in between could be cached in their incomplete state
+            rollupCompleteTime = aggregateRepository.readRollupCompleteTime(agentRollupId,
+                    query.rollupLevel());
+        }
+        List<T> uncachedAggregates = reader.read(agentRollupId,
+                ImmutableTransactionQuery.builder()
+                        .copyFrom(query)
+                        .from(uncachedFrom)
+                        .build());
+        aggregates.addAll(uncachedAggregates);
+        if (rollupCompleteTime != null) {
+            cacheFinalizedBuckets(reader, agentRollupId, query, bucketMillis, firstBucket,
+                    rollupCompleteTime, uncachedAggregates);
+        }
+        return aggregates;
+    }
+
+    // uncachedAggregates must be ordered by capture time
+    private <T extends /*@NonNull*/ Object> void cacheFinalizedBuckets(AggregateReader<T> reader,
+            String agentRollupId, TransactionQuery query, long bucketMillis, long firstBucket,
+            long rollupCompleteTime, List<T> uncachedAggregates) {
+        long bucket = firstBucket;
+        int index = 0;
+        while (true) {
+            long bucketStart = bucket * bucketMillis;
+            long bucketEnd = bucketStart + bucketMillis;
+            if (bucketEnd - 1 > rollupCompleteTime || bucketEnd - 1 > query.to()) {
+                // not finalized, or not entirely covered by the query
+                return;
+            }
+            List<T> bucketAggregates = Lists.newArrayList();
+            while (index < uncachedAggregates.size()) {
+                T aggregate = uncachedAggregates.get(index);
+                long captureTime = reader.captureTime(aggregate);
+                if (captureTime >= bucketEnd) {
+                    break;
+                }
+                if (captureTime >= bucketStart) {
+                    bucketAggregates.add(aggregate);
+                }
+                index++;
+            }
+            cache.put(bucketKey(reader, agentRollupId, query, bucket),
+                    ImmutableList.copyOf(bucketAggregates));
+            bucket++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends /*@NonNull*/ Object> @Nullable List<T> getIfPresent(
+            AggregateReader<T> reader, String agentRollupId, TransactionQuery query,
+            long bucket) {
+        return (List<T>) cache.getIfPresent(bucketKey(reader, agentRollupId, query, bucket));
+    }
+
+    private static BucketKey bucketKey(AggregateReader<?> reader, String agentRollupId,
+            TransactionQuery query, long bucket) {
+        return ImmutableBucketKey.of(reader.kind(), agentRollupId, query.transactionType(),
+                query.transactionName(), query.rollupLevel(), bucket);
+    }
+
+    private interface AggregateReader<T> {
+        String kind();
+        List<T> read(String agentRollupId, TransactionQuery query) throws Exception;
+        long captureTime(T aggregate);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BucketKey {
+        String kind();
+        String agentRollupId();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        int rollupLevel();
+        long bucket();
+    }
+}
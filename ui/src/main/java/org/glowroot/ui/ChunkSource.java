@@ -23,10 +23,14 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.io.CharSource;
 
 abstract class ChunkSource {
 
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
     public abstract ChunkCopier getCopier(Writer writer) throws IOException;
 
     static ChunkSource create(final CharSource charSource) {
@@ -62,6 +66,30 @@ abstract class ChunkSource {
         boolean copyNext() throws IOException;
     }
 
+    // for streaming large json responses a piece at a time, instead of building the entire json
+    // string in memory first
+    abstract static class JsonChunkCopier implements ChunkCopier {
+
+        private final JsonGenerator jg;
+
+        JsonChunkCopier(Writer writer) throws IOException {
+            jg = jsonFactory.createGenerator(writer);
+        }
+
+        @Override
+        public boolean copyNext() throws IOException {
+            if (!writeNext(jg)) {
+                return false;
+            }
+            // not closing the json generator since that would close the underlying writer
+            jg.flush();
+            return true;
+        }
+
+        // returns false when nothing left to write
+        protected abstract boolean writeNext(JsonGenerator jg) throws IOException;
+    }
+
     private static class ReaderChunkCopier implements ChunkCopier {
 
         private static final int CHUNK_SIZE = 8192;
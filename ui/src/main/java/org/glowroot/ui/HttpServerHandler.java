@@ -38,6 +38,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
@@ -63,6 +64,8 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.h2.api.ErrorCode;
 import org.immutables.value.Value;
@@ -85,6 +88,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_TIMEOUT;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -103,6 +107,9 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     private static final long ONE_DAY = DAYS.toMillis(1);
     private static final long FIVE_MINUTES = MINUTES.toMillis(5);
 
+    private static final AttributeKey<PipelinedRequestQueue> REQUEST_QUEUE =
+            AttributeKey.valueOf("glowroot.requestQueue");
+
     private static final String RESOURCE_BASE = "org/glowroot/ui/app-dist";
     // only null when running tests with glowroot.ui.skip=true (e.g. travis "deploy" build)
     private static final @Nullable String RESOURCE_BASE_URL_PREFIX;
@@ -137,6 +144,9 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     private final HttpSessionManager httpSessionManager;
     private final Clock clock;
 
+    // json services are executed off of the netty event loop since they perform blocking I/O
+    private final JsonServiceExecutor jsonServiceExecutor;
+
     private final ThreadLocal</*@Nullable*/ Channel> currentChannel =
             new ThreadLocal</*@Nullable*/ Channel>();
 
@@ -164,21 +174,32 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             }
         }
         this.jsonServiceMappings = ImmutableList.copyOf(jsonServiceMappings);
+        jsonServiceExecutor = new JsonServiceExecutor(Ticker.systemTicker());
         allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         allChannels.add(ctx.channel());
+        ctx.channel().attr(REQUEST_QUEUE).set(new PipelinedRequestQueue());
         super.channelActive(ctx);
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (Object request : getRequestQueue(ctx).clear()) {
+            ReferenceCountUtil.release(request);
+        }
+        super.channelInactive(ctx);
+    }
+
     void close(boolean waitForChannelClose) {
         if (waitForChannelClose) {
             allChannels.close().awaitUninterruptibly();
         } else {
             allChannels.close().awaitUninterruptibly(1, SECONDS);
         }
+        jsonServiceExecutor.close();
     }
 
     void closeAllButCurrent() {
@@ -197,7 +218,13 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        FullHttpRequest request = (FullHttpRequest) msg;
+        if (getRequestQueue(ctx).offer(msg)) {
+            processRequest(ctx, (FullHttpRequest) msg);
+        }
+    }
+
+    private void processRequest(ChannelHandlerContext ctx, FullHttpRequest request)
+            throws Exception {
         if (request.decoderResult().isFailure()) {
             sendBadRequest(ctx, request.decoderResult().cause().getMessage());
             return;
@@ -309,11 +336,81 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
         JsonServiceMapping jsonServiceMapping = getJsonServiceMapping(request, path);
         if (jsonServiceMapping != null) {
-            return handleJsonServiceMappings(request, jsonServiceMapping, authentication);
+            return handleJsonServiceMappingsAsync(ctx, request, jsonServiceMapping,
+                    authentication);
         }
         return handleStaticResource(path, request);
     }
 
+    // returns null if the request was submitted to the json service executor, in which case the
+    // response is sent from the json service executor thread
+    private @Nullable FullHttpResponse handleJsonServiceMappingsAsync(
+            final ChannelHandlerContext ctx, final FullHttpRequest request,
+            final JsonServiceMapping jsonServiceMapping, final Authentication authentication) {
+        // retain since the request is released at the end of processRequest()
+        request.retain();
+        // stop reading from the channel until the response has been sent, any pipelined requests
+        // that were already read are held in the channel's request queue until then, so that
+        // responses on a keep-alive connection are sent in the same order as the requests
+        final Channel channel = ctx.channel();
+        channel.config().setAutoRead(false);
+        String endpointName = jsonServiceMapping.httpMethod() + " " + jsonServiceMapping.path();
+        boolean accepted = jsonServiceExecutor.execute(endpointName, new Runnable() {
+            @Override
+            public void run() {
+                currentChannel.set(channel);
+                try {
+                    FullHttpResponse response =
+                            handleJsonServiceMappings(request, jsonServiceMapping, authentication);
+                    sendFullResponse(ctx, request, response, authentication);
+                } catch (Exception e) {
+                    logger.error("error handling request {}: {}", request.uri(), e.getMessage(),
+                            e);
+                    try {
+                        sendExceptionResponse(ctx, e);
+                    } catch (Exception f) {
+                        logger.error(f.getMessage(), f);
+                    }
+                } finally {
+                    currentChannel.remove();
+                    request.release();
+                    ctx.flush();
+                    ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onJsonServiceComplete(ctx);
+                        }
+                    });
+                }
+            }
+        });
+        if (accepted) {
+            getRequestQueue(ctx).startAsync();
+            return null;
+        }
+        request.release();
+        channel.config().setAutoRead(true);
+        return newHttpResponseWithMessage(SERVICE_UNAVAILABLE,
+                "Too many requests in progress, please try again");
+    }
+
+    // runs on the event loop, after the json service response has been written
+    private void onJsonServiceComplete(ChannelHandlerContext ctx) {
+        PipelinedRequestQueue requestQueue = getRequestQueue(ctx);
+        requestQueue.completeAsync();
+        ctx.channel().config().setAutoRead(true);
+        Object next;
+        while ((next = requestQueue.poll()) != null) {
+            FullHttpRequest request = (FullHttpRequest) next;
+            try {
+                processRequest(ctx, request);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        ctx.flush();
+    }
+
     private @Nullable FullHttpResponse handleIfLoginOrLogoutRequest(String path,
             FullHttpRequest request) throws Exception {
         if (path.equals("/backend/login")) {
@@ -505,8 +602,15 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private static PipelinedRequestQueue getRequestQueue(ChannelHandlerContext ctx) {
+        return checkNotNull(ctx.channel().attr(REQUEST_QUEUE).get());
+    }
+
     private static ImmutableJsonServiceMapping build(HttpMethod httpMethod, String path,
             String permission, Object jsonService, Method method) {
+        // suppress access checks once up front instead of on every invocation, json service
+        // classes and methods are package private
+        method.setAccessible(true);
         boolean bindAgentId = false;
         boolean bindAgentRollup = false;
         Class<?> bindRequest = null;
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// executes json service calls (which typically perform blocking I/O against H2 or Cassandra) on a
+// bounded worker pool instead of on the netty event loop, so that a slow json service call does not
+// hold up other requests that are served by the same event loop
+//
+// each endpoint is limited to a number of concurrent calls, so that a single slow endpoint cannot
+// occupy the entire worker pool, calls beyond that limit wait in a per-endpoint queue
+class JsonServiceExecutor implements JsonServiceExecutorMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(JsonServiceExecutor.class);
+
+    private static final int THREADS =
+            Math.max(Integer.getInteger("glowroot.internal.ui.jsonServiceThreads", 8), 1);
+
+    private static final int MAX_CONCURRENT_PER_ENDPOINT = Math.max(Integer.getInteger(
+            "glowroot.internal.ui.jsonServiceMaxConcurrentPerEndpoint", THREADS / 2), 1);
+
+    private static final int MAX_QUEUED =
+            Integer.getInteger("glowroot.internal.ui.jsonServiceMaxQueued", 200);
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    private final ThreadPoolExecutor executor;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, Endpoint> endpoints = Maps.newConcurrentMap();
+
+    // calls that have been accepted but have not started yet (either in the executor queue or in
+    // a per-endpoint queue)
+    private final AtomicInteger queuedCount = new AtomicInteger();
+
+    private final AtomicLong startedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    private final LazyMBeanRegistration mbeanRegistration =
+            new LazyMBeanRegistration(this, "org.glowroot:type=JsonServiceExecutor");
+
+    JsonServiceExecutor(Ticker ticker) {
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60, SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Json-Service-%d")
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        this.ticker = ticker;
+    }
+
+    // returns false if the call was rejected because too many calls are already queued
+    boolean execute(String endpointName, Runnable runnable) {
+        mbeanRegistration.registerIfNeeded();
+        if (queuedCount.incrementAndGet() > MAX_QUEUED) {
+            queuedCount.decrementAndGet();
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        Endpoint endpoint = endpoints.get(endpointName);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            Endpoint existing = endpoints.putIfAbsent(endpointName, endpoint);
+            if (existing != null) {
+                endpoint = existing;
+            }
+        }
+        endpoint.execute(new Call(endpoint, runnable, ticker.read()));
+        return true;
+    }
+
+    void close() {
+        executor.shutdownNow();
+        mbeanRegistration.unregister();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    @Override
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public double getAverageQueueMillis() {
+        long count = startedCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalQueueNanos.get() / (double) count / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    @Override
+    public double getMaxQueueMillis() {
+        return maxQueueNanos.get() / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    private void recordQueueTime(long queueNanos) {
+        totalQueueNanos.addAndGet(queueNanos);
+        long currMax = maxQueueNanos.get();
+        while (queueNanos > currMax && !maxQueueNanos.compareAndSet(currMax, queueNanos)) {
+            currMax = maxQueueNanos.get();
+        }
+        startedCount.incrementAndGet();
+    }
+
+    private class Endpoint {
+
+        @GuardedBy("this")
+        private int runningCount;
+        @GuardedBy("this")
+        private final Queue<Call> pending = Queues.newArrayDeque();
+
+        private void execute(Call call) {
+            synchronized (this) {
+                if (runningCount >= MAX_CONCURRENT_PER_ENDPOINT) {
+                    pending.add(call);
+                    return;
+                }
+                runningCount++;
+            }
+            executor.execute(call);
+        }
+
+        private void onComplete() {
+            if (executor.isShutdown()) {
+                return;
+            }
+            Call next;
+            synchronized (this) {
+                next = pending.poll();
+                if (next == null) {
+                    runningCount--;
+                    return;
+                }
+            }
+            executor.execute(next);
+        }
+    }
+
+    private class Call implements Runnable {
+
+        private final Endpoint endpoint;
+        private final Runnable runnable;
+        private final long startTick;
+
+        private Call(Endpoint endpoint, Runnable runnable, long startTick) {
+            this.endpoint = endpoint;
+            this.runnable = runnable;
+            this.startTick = startTick;
+        }
+
+        @Override
+        public void run() {
+            queuedCount.decrementAndGet();
+            recordQueueTime(ticker.read() - startTick);
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            } finally {
+                completedCount.incrementAndGet();
+                endpoint.onComplete();
+            }
+        }
+    }
+}
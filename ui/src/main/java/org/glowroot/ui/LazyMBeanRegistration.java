@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// registers an mbean on first use instead of during startup, since calling
+// ManagementFactory.getPlatformMBeanServer() early during jvm startup breaks jboss-modules (see
+// LazyPlatformMBeanServer in the agent)
+class LazyMBeanRegistration {
+
+    private static final Logger logger = LoggerFactory.getLogger(LazyMBeanRegistration.class);
+
+    private final Object mbean;
+    private final String name;
+
+    private final AtomicBoolean registered = new AtomicBoolean();
+
+    LazyMBeanRegistration(Object mbean, String name) {
+        this.mbean = mbean;
+        this.name = name;
+    }
+
+    void registerIfNeeded() {
+        if (registered.get() || !registered.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+                    ObjectName.getInstance(name));
+        } catch (Exception e) {
+            // e.g. InstanceAlreadyExistsException when there is more than one ui in the same jvm
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    void unregister() {
+        if (!registered.get()) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(ObjectName.getInstance(name));
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+import java.util.Queue;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Queues;
+
+import static com.google.common.base.Preconditions.checkState;
+
+// serializes request handling per channel, so that responses to pipelined HTTP/1.1 requests are
+// sent in request order even though json service requests complete on the json service executor
+//
+// pausing auto-read is not enough for this, since a single read can decode several pipelined
+// requests, and those are passed to the handler even while auto-read is off
+//
+// only accessed from the channel's event loop, so no synchronization is needed
+class PipelinedRequestQueue {
+
+    private final Queue<Object> pending = Queues.newArrayDeque();
+    private boolean asyncInProgress;
+
+    // returns false if the request was queued behind a request that is still in progress, in
+    // which case it will be returned from poll() once that request completes
+    boolean offer(Object request) {
+        if (asyncInProgress || !pending.isEmpty()) {
+            pending.add(request);
+            return false;
+        }
+        return true;
+    }
+
+    void startAsync() {
+        checkState(!asyncInProgress);
+        asyncInProgress = true;
+    }
+
+    void completeAsync() {
+        checkState(asyncInProgress);
+        asyncInProgress = false;
+    }
+
+    // returns null if there are no queued requests, or if the previously returned request is
+    // itself being handled asynchronously
+    @Nullable Object poll() {
+        if (asyncInProgress) {
+            return null;
+        }
+        return pending.poll();
+    }
+
+    // returns the queued requests so that they can be released when the channel closes
+    List<Object> clear() {
+        List<Object> requests = ImmutableList.copyOf(pending);
+        pending.clear();
+        return requests;
+    }
+}
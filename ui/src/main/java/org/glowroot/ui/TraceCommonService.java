@@ -16,6 +16,7 @@
 package org.glowroot.ui;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Locale;
@@ -34,9 +35,12 @@ import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.MutableProfile.ChunkedJsonWriter;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.TraceRepository.HeaderPlus;
 import org.glowroot.common.util.Styles;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
+import org.glowroot.ui.ChunkSource.JsonChunkCopier;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -45,6 +49,10 @@ class TraceCommonService {
 
     private static final JsonFactory jsonFactory = new JsonFactory();
 
+    // number of entries / profile nodes written per chunk when streaming
+    private static final int ENTRIES_PER_CHUNK = 100;
+    private static final int PROFILE_NODES_PER_CHUNK = 1000;
+
     private final TraceRepository traceRepository;
     private final LiveTraceRepository liveTraceRepository;
 
@@ -76,24 +84,24 @@ class TraceCommonService {
     // overwritten entries will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getEntriesJson(String agentRollupId, String agentId, String traceId,
+    ChunkSource getEntriesJson(String agentRollupId, String agentId, String traceId,
             boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
             // trace is not missed if it is in transition between these states
             Entries entries = liveTraceRepository.getEntries(agentRollupId, agentId, traceId);
             if (entries != null) {
-                return toJson(entries);
+                return toChunkSource(entries);
             }
         }
-        return toJson(getStoredEntries(agentRollupId, agentId, traceId,
+        return toChunkSource(getStoredEntries(agentRollupId, agentId, traceId,
                 new RetryCountdown(checkLiveTraces)));
     }
 
     // overwritten profile will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getMainThreadProfileJson(String agentRollupId, String agentId, String traceId,
+    ChunkSource getMainThreadProfileJson(String agentRollupId, String agentId, String traceId,
             boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -101,17 +109,17 @@ class TraceCommonService {
             Profile profile =
                     liveTraceRepository.getMainThreadProfile(agentRollupId, agentId, traceId);
             if (profile != null) {
-                return toJson(profile);
+                return toChunkSource(profile);
             }
         }
-        return toJson(getStoredMainThreadProfile(agentRollupId, agentId, traceId,
+        return toChunkSource(getStoredMainThreadProfile(agentRollupId, agentId, traceId,
                 new RetryCountdown(checkLiveTraces)));
     }
 
     // overwritten profile will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
     @Nullable
-    String getAuxThreadProfileJson(String agentRollupId, String agentId, String traceId,
+    ChunkSource getAuxThreadProfileJson(String agentRollupId, String agentId, String traceId,
             boolean checkLiveTraces) throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -119,10 +127,10 @@ class TraceCommonService {
             Profile profile =
                     liveTraceRepository.getAuxThreadProfile(agentRollupId, agentId, traceId);
             if (profile != null) {
-                return toJson(profile);
+                return toChunkSource(profile);
             }
         }
-        return toJson(getStoredAuxThreadProfile(agentRollupId, agentId, traceId,
+        return toChunkSource(getStoredAuxThreadProfile(agentRollupId, agentId, traceId,
                 new RetryCountdown(checkLiveTraces)));
     }
 
@@ -228,20 +236,16 @@ class TraceCommonService {
         return profile;
     }
 
-    private static @Nullable String toJson(@Nullable Entries entries) throws IOException {
+    private static @Nullable ChunkSource toChunkSource(final @Nullable Entries entries) {
         if (entries == null) {
             return null;
         }
-        StringBuilder sb = new StringBuilder();
-        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
-        jg.writeStartObject();
-        jg.writeFieldName("entries");
-        writeEntries(jg, entries.entries());
-        jg.writeFieldName("sharedQueryTexts");
-        writeSharedQueryTexts(jg, entries.sharedQueryTexts());
-        jg.writeEndObject();
-        jg.close();
-        return sb.toString();
+        return new ChunkSource() {
+            @Override
+            public ChunkCopier getCopier(Writer writer) throws IOException {
+                return new EntriesChunkCopier(entries, writer);
+            }
+        };
     }
 
     @VisibleForTesting
@@ -271,8 +275,14 @@ class TraceCommonService {
     private static void writeEntries(JsonGenerator jg, List<Trace.Entry> entries)
             throws IOException {
         jg.writeStartArray();
-        PeekingIterator<Trace.Entry> i = Iterators.peekingIterator(entries.iterator());
-        while (i.hasNext()) {
+        writeEntries(jg, Iterators.peekingIterator(entries.iterator()), Integer.MAX_VALUE);
+        jg.writeEndArray();
+    }
+
+    // returns false when there are no more entries to write
+    private static boolean writeEntries(JsonGenerator jg, PeekingIterator<Trace.Entry> i,
+            int maxEntries) throws IOException {
+        for (int count = 0; count < maxEntries && i.hasNext(); count++) {
             Trace.Entry entry = i.next();
             int depth = entry.getDepth();
             jg.writeStartObject();
@@ -290,7 +300,7 @@ class TraceCommonService {
                 jg.writeEndObject();
             }
         }
-        jg.writeEndArray();
+        return i.hasNext();
     }
 
     private static void writeSharedQueryTexts(JsonGenerator jg,
@@ -321,6 +331,21 @@ class TraceCommonService {
         return mutableProfile.toJson();
     }
 
+    private static @Nullable ChunkSource toChunkSource(@Nullable Profile profile)
+            throws IOException {
+        if (profile == null) {
+            return null;
+        }
+        final MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile);
+        return new ChunkSource() {
+            @Override
+            public ChunkCopier getCopier(Writer writer) throws IOException {
+                return new ProfileChunkCopier(mutableProfile, writer);
+            }
+        };
+    }
+
     private static String toJsonLiveHeader(String agentId, Trace.Header header) throws IOException {
         boolean hasProfile = header.getMainThreadProfileSampleCount() > 0
                 || header.getAuxThreadProfileSampleCount() > 0;
@@ -596,6 +621,61 @@ class TraceCommonService {
         return "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(header.getStartTime());
     }
 
+    private static class EntriesChunkCopier extends JsonChunkCopier {
+
+        private final Entries entries;
+        private final PeekingIterator<Trace.Entry> i;
+
+        private boolean started;
+        private boolean done;
+
+        private EntriesChunkCopier(Entries entries, Writer writer) throws IOException {
+            super(writer);
+            this.entries = entries;
+            i = Iterators.peekingIterator(entries.entries().iterator());
+        }
+
+        @Override
+        protected boolean writeNext(JsonGenerator jg) throws IOException {
+            if (done) {
+                return false;
+            }
+            if (!started) {
+                jg.writeStartObject();
+                jg.writeArrayFieldStart("entries");
+                started = true;
+            }
+            if (!writeEntries(jg, i, ENTRIES_PER_CHUNK)) {
+                jg.writeEndArray();
+                jg.writeFieldName("sharedQueryTexts");
+                writeSharedQueryTexts(jg, entries.sharedQueryTexts());
+                jg.writeEndObject();
+                done = true;
+            }
+            return true;
+        }
+    }
+
+    private static class ProfileChunkCopier extends JsonChunkCopier {
+
+        private final MutableProfile profile;
+
+        private @Nullable ChunkedJsonWriter profileWriter;
+
+        private ProfileChunkCopier(MutableProfile profile, Writer writer) throws IOException {
+            super(writer);
+            this.profile = profile;
+        }
+
+        @Override
+        protected boolean writeNext(JsonGenerator jg) throws IOException {
+            if (profileWriter == null) {
+                profileWriter = profile.newChunkedJsonWriter(jg);
+            }
+            return profileWriter.writeNext(PROFILE_NODES_PER_CHUNK);
+        }
+    }
+
     private static class RetryCountdown {
 
         private int remaining;
@@ -96,7 +96,6 @@ class TraceDetailHttpService implements HttpService {
         }
         HttpServices.preventCaching(response);
         ctx.write(response);
-        // TODO no more point in chunking here
         ChannelFuture future = ctx.write(ChunkedInputs.create(detail));
         HttpServices.addErrorListener(future);
         if (!keepAlive) {
@@ -109,30 +108,18 @@ class TraceDetailHttpService implements HttpService {
     private @Nullable ChunkSource getDetailChunkSource(String traceComponent, String agentRollupId,
             String agentId, String traceId, boolean checkLiveTraces) throws Exception {
         if (traceComponent.equals("entries")) {
-            String entriesJson = traceCommonService.getEntriesJson(agentRollupId, agentId, traceId,
+            // this returns null if the trace was found but the trace had no entries
+            // caller should check trace.entry_count
+            return traceCommonService.getEntriesJson(agentRollupId, agentId, traceId,
                     checkLiveTraces);
-            if (entriesJson == null) {
-                // this includes trace was found but the trace had no entries
-                // caller should check trace.entry_count
-                return null;
-            }
-            return ChunkSource.wrap(entriesJson);
         }
         if (traceComponent.equals("main-thread-profile")) {
-            String profileJson = traceCommonService.getMainThreadProfileJson(agentRollupId, agentId,
-                    traceId, checkLiveTraces);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getMainThreadProfileJson(agentRollupId, agentId, traceId,
+                    checkLiveTraces);
         }
         if (traceComponent.equals("aux-thread-profile")) {
-            String profileJson = traceCommonService.getAuxThreadProfileJson(agentRollupId, agentId,
-                    traceId, checkLiveTraces);
-            if (profileJson == null) {
-                return null;
-            }
-            return ChunkSource.wrap(profileJson);
+            return traceCommonService.getAuxThreadProfileJson(agentRollupId, agentId, traceId,
+                    checkLiveTraces);
         }
         throw new IllegalStateException("Unexpected trace component: " + traceComponent);
     }
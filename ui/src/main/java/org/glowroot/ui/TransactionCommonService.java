@@ -56,14 +56,16 @@ import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 class TransactionCommonService {
 
     private final AggregateRepository aggregateRepository;
+    private final AggregateCache aggregateCache;
     private final LiveAggregateRepository liveAggregateRepository;
     private final ConfigRepository configRepository;
     private final Clock clock;
 
     TransactionCommonService(AggregateRepository aggregateRepository,
-            LiveAggregateRepository liveAggregateRepository, ConfigRepository configRepository,
-            Clock clock) {
+            AggregateCache aggregateCache, LiveAggregateRepository liveAggregateRepository,
+            ConfigRepository configRepository, Clock clock) {
         this.aggregateRepository = aggregateRepository;
+        this.aggregateCache = aggregateCache;
         this.liveAggregateRepository = liveAggregateRepository;
         this.configRepository = configRepository;
         this.clock = clock;
@@ -128,7 +130,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<OverviewAggregate> aggregates =
-                aggregateRepository.readOverviewAggregates(agentRollupId, revisedQuery);
+                aggregateCache.readOverviewAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -178,7 +180,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId, revisedQuery);
+                aggregateCache.readPercentileAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -228,7 +230,7 @@ class TransactionCommonService {
                 .to(revisedTo)
                 .build();
         List<ThroughputAggregate> aggregates =
-                aggregateRepository.readThroughputAggregates(agentRollupId, revisedQuery);
+                aggregateCache.readThroughputAggregates(agentRollupId, revisedQuery);
         if (revisedQuery.rollupLevel() == 0) {
             if (liveResult != null) {
                 aggregates = Lists.newArrayList(aggregates);
@@ -42,10 +42,10 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
-import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.PercentileSketch;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
@@ -393,7 +393,9 @@ class TransactionJsonService {
 
         long transactionCount = 0;
         double totalDurationNanos = 0;
-        LazyHistogram mergedHistogram = new LazyHistogram();
+        // using sketches instead of the full histograms since merging thousands of full histograms
+        // (e.g. 30 days of 1 minute aggregates) is expensive, see PercentileSketch
+        PercentileSketch mergedSketch = new PercentileSketch();
 
         PercentileAggregate lastPercentileAggregate = null;
         for (PercentileAggregate percentileAggregate : percentileAggregates) {
@@ -406,14 +408,14 @@ class TransactionJsonService {
                         percentileAggregate.captureTime(), dataSeriesList, null);
             }
             lastPercentileAggregate = percentileAggregate;
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(percentileAggregate.durationNanosHistogram());
+            PercentileSketch durationNanosSketch = new PercentileSketch();
+            durationNanosSketch.merge(percentileAggregate.durationNanosHistogram());
             for (int i = 0; i < percentiles.size(); i++) {
                 DataSeries dataSeries = dataSeriesList.get(i);
                 double percentile = percentiles.get(i);
                 // convert to milliseconds
                 dataSeries.add(percentileAggregate.captureTime(),
-                        durationNanosHistogram.getValueAtPercentile(percentile)
+                        durationNanosSketch.getValueAtPercentile(percentile)
                                 / NANOSECONDS_PER_MILLISECOND);
             }
             if (percentileAggregate.captureTime() > request.from()) {
@@ -421,7 +423,7 @@ class TransactionJsonService {
                 // interval since it is for prior capture times
                 transactionCount += percentileAggregate.transactionCount();
                 totalDurationNanos += percentileAggregate.totalDurationNanos();
-                mergedHistogram.merge(durationNanosHistogram);
+                mergedSketch.merge(durationNanosSketch);
             }
         }
         if (lastPercentileAggregate != null) {
@@ -433,7 +435,7 @@ class TransactionJsonService {
         for (double percentile : percentiles) {
             percentileValues.add(ImmutablePercentileValue.of(
                     Utils.getPercentileWithSuffix(percentile) + " percentile",
-                    mergedHistogram.getValueAtPercentile(percentile)));
+                    mergedSketch.getValueAtPercentile(percentile)));
         }
 
         return ImmutablePercentileData.builder()
@@ -73,8 +73,10 @@ public class UiModule {
         IndexHtmlHttpService indexHtmlHttpService =
                 new IndexHtmlHttpService(layoutService, configRepository);
         LayoutHttpService layoutHttpService = new LayoutHttpService(layoutService);
+        AggregateCache aggregateCache = new AggregateCache(aggregateRepository, configRepository);
         TransactionCommonService transactionCommonService = new TransactionCommonService(
-                aggregateRepository, liveAggregateRepository, configRepository, clock);
+                aggregateRepository, aggregateCache, liveAggregateRepository, configRepository,
+                clock);
         TraceCommonService traceCommonService =
                 new TraceCommonService(traceRepository, liveTraceRepository);
         TransactionJsonService transactionJsonService = new TransactionJsonService(
@@ -96,7 +98,8 @@ public class UiModule {
                 gaugeValueRepository, rollupLevelService, agentRepository, configRepository);
         AlertConfigJsonService alertJsonService = new AlertConfigJsonService(configRepository);
         AdminJsonService adminJsonService = new AdminJsonService(embedded, glowrootDir,
-                configRepository, repoAdmin, liveAggregateRepository, new MailService());
+                configRepository, repoAdmin, liveAggregateRepository, aggregateCache,
+                new MailService());
 
         List<Object> jsonServices = Lists.newArrayList();
         jsonServices.add(transactionJsonService);
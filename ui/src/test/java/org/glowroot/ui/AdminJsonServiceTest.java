@@ -41,7 +41,8 @@ public class AdminJsonServiceTest {
     public void beforeEachTest() {
         mailService = new MockMailService();
         adminJsonService = new AdminJsonService(false, new File("."), mock(ConfigRepository.class),
-                mock(RepoAdmin.class), mock(LiveAggregateRepository.class), mailService);
+                mock(RepoAdmin.class), mock(LiveAggregateRepository.class),
+                mock(AggregateCache.class), mailService);
     }
 
     @Test
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.AggregateRepository;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AggregateCacheTest {
+
+    private static final String AGENT_ID = "";
+
+    private static final long MINUTE = 60000;
+
+    // 60 rollup level 0 intervals
+    private static final long BUCKET = 60 * MINUTE;
+
+    private AggregateRepository aggregateRepository;
+    private AggregateCache aggregateCache;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        aggregateRepository = mock(AggregateRepository.class);
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        aggregateCache = new AggregateCache(aggregateRepository, configRepository);
+        // one aggregate per minute for three hours
+        final List<ThroughputAggregate> stored = Lists.newArrayList();
+        for (long captureTime = MINUTE; captureTime <= 3 * BUCKET; captureTime += MINUTE) {
+            stored.add(ImmutableThroughputAggregate.of(captureTime, 1));
+        }
+        when(aggregateRepository.readThroughputAggregates(anyString(),
+                any(TransactionQuery.class))).thenAnswer(
+                        new Answer<List<ThroughputAggregate>>() {
+                            @Override
+                            public List<ThroughputAggregate> answer(InvocationOnMock invocation) {
+                                TransactionQuery query =
+                                        (TransactionQuery) invocation.getArguments()[1];
+                                List<ThroughputAggregate> aggregates = Lists.newArrayList();
+                                for (ThroughputAggregate aggregate : stored) {
+                                    if (aggregate.captureTime() >= query.from()
+                                            && aggregate.captureTime() <= query.to()) {
+                                        aggregates.add(aggregate);
+                                    }
+                                }
+                                return aggregates;
+                            }
+                        });
+    }
+
+    @Test
+    public void shouldNotCacheBucketThatIsNotRolledUpEvenIfNewerAggregatesExist()
+            throws Exception {
+        // given
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0))
+                .thenReturn(BUCKET - MINUTE);
+        TransactionQuery query = query(0, 3 * BUCKET);
+        // when
+        List<ThroughputAggregate> first = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        List<ThroughputAggregate> second = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        // then
+        assertThat(first).hasSize(180);
+        assertThat(second).isEqualTo(first);
+        List<TransactionQuery> queries = captureQueries(2);
+        assertThat(queries.get(0).from()).isEqualTo(0);
+        assertThat(queries.get(1).from()).isEqualTo(0);
+        assertThat(aggregateCache.getBucketCount()).isZero();
+    }
+
+    @Test
+    public void shouldCacheBucketsUpToRollupCompleteTime() throws Exception {
+        // given
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(2 * BUCKET);
+        TransactionQuery query = query(0, 3 * BUCKET);
+        // when
+        List<ThroughputAggregate> first = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        List<ThroughputAggregate> second = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        // then
+        assertThat(first).hasSize(180);
+        assertThat(second).isEqualTo(first);
+        List<TransactionQuery> queries = captureQueries(2);
+        assertThat(queries.get(0).from()).isEqualTo(0);
+        // the first two buckets are served from the cache
+        assertThat(queries.get(1).from()).isEqualTo(2 * BUCKET);
+        assertThat(aggregateCache.getBucketCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCacheBucketThatIsNotEntirelyCoveredByQuery() throws Exception {
+        // given
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(3 * BUCKET);
+        TransactionQuery query = query(30 * MINUTE, 2 * BUCKET + 30 * MINUTE);
+        // when
+        List<ThroughputAggregate> first = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        List<ThroughputAggregate> second = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        // then
+        assertThat(first).hasSize(121);
+        assertThat(second).isEqualTo(first);
+        // only the middle bucket is cached, and it is not served since the leading bucket is not
+        assertThat(aggregateCache.getBucketCount()).isEqualTo(1);
+        List<TransactionQuery> queries = captureQueries(2);
+        assertThat(queries.get(1).from()).isEqualTo(30 * MINUTE);
+    }
+
+    @Test
+    public void shouldServeCachedBucketsToOverlappingQuery() throws Exception {
+        // given
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(3 * BUCKET);
+        aggregateCache.readThroughputAggregates(AGENT_ID, query(0, 3 * BUCKET));
+        // when
+        List<ThroughputAggregate> aggregates = aggregateCache.readThroughputAggregates(AGENT_ID,
+                query(30 * MINUTE, 90 * MINUTE));
+        // then
+        assertThat(aggregates).hasSize(61);
+        assertThat(aggregates.get(0).captureTime()).isEqualTo(30 * MINUTE);
+        assertThat(aggregates.get(60).captureTime()).isEqualTo(90 * MINUTE);
+        // the second query is served entirely from the cache
+        captureQueries(1);
+    }
+
+    @Test
+    public void shouldCacheEmptyCompletedBucket() throws Exception {
+        // given
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(5 * BUCKET);
+        TransactionQuery query = query(3 * BUCKET, 5 * BUCKET);
+        // when
+        List<ThroughputAggregate> first = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        List<ThroughputAggregate> second = aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        // then
+        assertThat(first).hasSize(1);
+        assertThat(second).isEqualTo(first);
+        assertThat(aggregateCache.getBucketCount()).isEqualTo(2);
+        List<TransactionQuery> queries = captureQueries(2);
+        assertThat(queries.get(1).from()).isEqualTo(5 * BUCKET);
+    }
+
+    @Test
+    public void shouldNotReadRollupCompleteTimeWhenNoBucketCanBeCached() throws Exception {
+        // when
+        aggregateCache.readThroughputAggregates(AGENT_ID, query(10 * MINUTE, 50 * MINUTE));
+        // then
+        verify(aggregateRepository, never()).readRollupCompleteTime(anyString(), anyInt());
+    }
+
+    @Test
+    public void shouldReadAgainAfterInvalidateAll() throws Exception {
+        // given
+        when(aggregateRepository.readRollupCompleteTime(AGENT_ID, 0)).thenReturn(3 * BUCKET);
+        TransactionQuery query = query(0, 3 * BUCKET);
+        aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        // when
+        aggregateCache.invalidateAll();
+        aggregateCache.readThroughputAggregates(AGENT_ID, query);
+        // then
+        List<TransactionQuery> queries = captureQueries(2);
+        assertThat(queries.get(1).from()).isEqualTo(0);
+    }
+
+    private List<TransactionQuery> captureQueries(int count) throws Exception {
+        ArgumentCaptor<TransactionQuery> captor = ArgumentCaptor.forClass(TransactionQuery.class);
+        verify(aggregateRepository, times(count)).readThroughputAggregates(anyString(),
+                captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+}
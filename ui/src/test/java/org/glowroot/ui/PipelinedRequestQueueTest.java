@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PipelinedRequestQueueTest {
+
+    @Test
+    public void shouldHandleRequestsImmediatelyWhenNothingInProgress() {
+        // given
+        PipelinedRequestQueue queue = new PipelinedRequestQueue();
+        // when
+        // then
+        assertThat(queue.offer("a")).isTrue();
+        assertThat(queue.offer("b")).isTrue();
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void shouldQueueRequestsBehindAsyncRequest() {
+        // given
+        PipelinedRequestQueue queue = new PipelinedRequestQueue();
+        assertThat(queue.offer("a")).isTrue();
+        queue.startAsync();
+        // when
+        boolean b = queue.offer("b");
+        boolean c = queue.offer("c");
+        // then
+        assertThat(b).isFalse();
+        assertThat(c).isFalse();
+        assertThat(queue.poll()).isNull();
+        queue.completeAsync();
+        assertThat(queue.poll()).isEqualTo("b");
+        assertThat(queue.poll()).isEqualTo("c");
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void shouldStopPollingWhenQueuedRequestIsAlsoAsync() {
+        // given
+        PipelinedRequestQueue queue = new PipelinedRequestQueue();
+        queue.offer("a");
+        queue.startAsync();
+        queue.offer("b");
+        queue.offer("c");
+        queue.completeAsync();
+        // when
+        Object b = queue.poll();
+        queue.startAsync();
+        // then
+        assertThat(b).isEqualTo("b");
+        assertThat(queue.poll()).isNull();
+        // requests read while "b" is in progress still go after "c"
+        assertThat(queue.offer("d")).isFalse();
+        queue.completeAsync();
+        assertThat(queue.poll()).isEqualTo("c");
+        assertThat(queue.poll()).isEqualTo("d");
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.offer("e")).isTrue();
+    }
+
+    @Test
+    public void shouldClear() {
+        // given
+        PipelinedRequestQueue queue = new PipelinedRequestQueue();
+        queue.offer("a");
+        queue.startAsync();
+        queue.offer("b");
+        queue.offer("c");
+        // when
+        // then
+        assertThat(queue.clear()).containsExactly("b", "c");
+        queue.completeAsync();
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotCompleteWhenNothingInProgress() {
+        new PipelinedRequestQueue().completeAsync();
+    }
+}
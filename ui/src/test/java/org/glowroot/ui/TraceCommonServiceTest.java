@@ -15,14 +15,21 @@
  */
 package org.glowroot.ui;
 
+import java.io.CharArrayWriter;
 import java.util.List;
 
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.common.live.ImmutableEntries;
+import org.glowroot.common.live.LiveTraceRepository;
+import org.glowroot.common.repo.TraceRepository;
+import org.glowroot.ui.ChunkSource.ChunkCopier;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class TraceCommonServiceTest {
 
@@ -39,4 +46,34 @@ public class TraceCommonServiceTest {
                 + "\"childEntries\":[{\"startOffsetNanos\":0,\"durationNanos\":0,\"message\":\"\"}]"
                 + "}]");
     }
+
+    @Test
+    public void shouldStreamEntriesAcrossChunks() throws Exception {
+        // given
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 7)
+                    .setMessage("message " + i)
+                    .build());
+        }
+        LiveTraceRepository liveTraceRepository = mock(LiveTraceRepository.class);
+        when(liveTraceRepository.getEntries("", "", "abc")).thenReturn(ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .build());
+        TraceCommonService traceCommonService =
+                new TraceCommonService(mock(TraceRepository.class), liveTraceRepository);
+        // when
+        ChunkSource chunkSource = traceCommonService.getEntriesJson("", "", "abc", true);
+        CharArrayWriter writer = new CharArrayWriter();
+        ChunkCopier copier = chunkSource.getCopier(writer);
+        int chunkCount = 0;
+        while (copier.copyNext()) {
+            chunkCount++;
+        }
+        // then
+        assertThat(chunkCount).isGreaterThan(1);
+        assertThat(writer.toString()).isEqualTo("{\"entries\":"
+                + TraceCommonService.entriesToJson(entries) + ",\"sharedQueryTexts\":[]}");
+    }
 }